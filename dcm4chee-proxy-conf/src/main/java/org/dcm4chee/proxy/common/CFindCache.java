@@ -0,0 +1,337 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.io.DicomOutputStream;
+
+/**
+ * Matches of forwarded C-FIND requests, so that repeated identical queries
+ * can be answered without contacting the destinations. Entries are looked
+ * up by the coerced identifier, the calling AE and the destination AEs,
+ * expire after their timeout and are dropped when the proxy forwards
+ * objects of a cached study or patient. The cache is bounded by the total
+ * number of cached matches, least recently used entries are evicted first.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CFindCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, HashSet<String>> keysByStudy = new HashMap<String, HashSet<String>>();
+    private final HashMap<String, HashSet<String>> keysByPatient = new HashMap<String, HashSet<String>>();
+    private final HashSet<Recorder> recorders = new HashSet<Recorder>();
+    private volatile boolean empty = true;
+    private int size;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    private static final class Entry {
+
+        final List<Attributes> matches;
+        final long expires;
+        final HashSet<String> studyIUIDs;
+        final HashSet<String> patientIDs;
+
+        Entry(List<Attributes> matches, long expires, HashSet<String> studyIUIDs, HashSet<String> patientIDs) {
+            this.matches = matches;
+            this.expires = expires;
+            this.studyIUIDs = studyIUIDs;
+            this.patientIDs = patientIDs;
+        }
+    }
+
+    /**
+     * Collects the matches returned for a query which was not found in the
+     * cache. The matches are only cached on {@link #commit()} if no object of
+     * a concerned study or patient was forwarded in the meantime.
+     */
+    public class Recorder {
+
+        private final String key;
+        private final long timeout;
+        private final int maxSize;
+        private final HashSet<String> studyIUIDs = new HashSet<String>();
+        private final HashSet<String> patientIDs = new HashSet<String>();
+        private ArrayList<Attributes> matches = new ArrayList<Attributes>();
+        private boolean invalidated;
+
+        Recorder(String key, Attributes keys, long timeout, int maxSize) {
+            this.key = key;
+            this.timeout = timeout;
+            this.maxSize = maxSize;
+            addReferences(keys, studyIUIDs, patientIDs);
+        }
+
+        public void add(Attributes match) {
+            synchronized (CFindCache.this) {
+                if (matches == null || match == null)
+                    return;
+
+                if (matches.size() >= maxSize) {
+                    // too large to be cached
+                    discard();
+                    return;
+                }
+                matches.add(match);
+                addReferences(match, studyIUIDs, patientIDs);
+            }
+        }
+
+        public void discard() {
+            synchronized (CFindCache.this) {
+                matches = null;
+                recorders.remove(this);
+                updateEmpty();
+            }
+        }
+
+        public boolean commit() {
+            synchronized (CFindCache.this) {
+                recorders.remove(this);
+                if (matches == null || invalidated) {
+                    updateEmpty();
+                    return false;
+                }
+
+                put(key, new Entry(matches, System.currentTimeMillis() + timeout, studyIUIDs, patientIDs),
+                        maxSize);
+                matches = null;
+                updateEmpty();
+                return true;
+            }
+        }
+    }
+
+    public static String keyOf(String callingAET, String cuid, Collection<String> destinationAETs, Attributes keys)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DicomOutputStream dos = new DicomOutputStream(bout, UID.ExplicitVRLittleEndian);
+        try {
+            dos.writeDataset(null, keys);
+        } finally {
+            dos.close();
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(callingAET).append('|').append(cuid).append('|');
+        for (String destinationAET : new TreeSet<String>(destinationAETs))
+            sb.append(destinationAET).append(',');
+        sb.append('|');
+        try {
+            for (byte b : MessageDigest.getInstance("MD5").digest(bout.toByteArray()))
+                sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the cached matches or <code>null</code> if the query is not
+     *         cached or the entry expired
+     */
+    public synchronized List<Attributes> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.matches;
+    }
+
+    public synchronized Recorder newRecorder(String key, Attributes keys, long timeout, int maxSize) {
+        Recorder recorder = new Recorder(key, keys, timeout, maxSize);
+        recorders.add(recorder);
+        empty = false;
+        return recorder;
+    }
+
+    private void put(String key, Entry entry, int maxSize) {
+        remove(key);
+        int n = entry.matches.size();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (size + n > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Entry> e = eldest.next();
+            eldest.remove();
+            unindex(e.getKey(), e.getValue());
+            evictions++;
+        }
+        entries.put(key, entry);
+        size += n;
+        index(key, entry.studyIUIDs, keysByStudy);
+        index(key, entry.patientIDs, keysByPatient);
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+            updateEmpty();
+        }
+    }
+
+    private void updateEmpty() {
+        empty = entries.isEmpty() && recorders.isEmpty();
+    }
+
+    /**
+     * @return <code>true</code> if neither queries are cached nor matches
+     *         recorded, so that forwarded objects need not invalidate anything;
+     *         may be called without holding the lock of the cache
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    private void unindex(String key, Entry entry) {
+        size -= entry.matches.size();
+        for (String studyIUID : entry.studyIUIDs)
+            unindex(key, studyIUID, keysByStudy);
+        for (String patientID : entry.patientIDs)
+            unindex(key, patientID, keysByPatient);
+    }
+
+    /**
+     * Drops all cached queries which refer to the study or the patient.
+     */
+    public synchronized void invalidate(String patientID, String studyIUID) {
+        for (Recorder recorder : recorders)
+            if ((studyIUID != null && recorder.studyIUIDs.contains(studyIUID))
+                    || (patientID != null && recorder.patientIDs.contains(patientID)))
+                recorder.invalidated = true;
+        invalidate(keysByStudy.get(studyIUID));
+        invalidate(keysByPatient.get(patientID));
+    }
+
+    private void invalidate(HashSet<String> keys) {
+        if (keys == null)
+            return;
+
+        for (String key : new ArrayList<String>(keys)) {
+            remove(key);
+            invalidations++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keysByStudy.clear();
+        keysByPatient.clear();
+        size = 0;
+        updateEmpty();
+    }
+
+    private static void addReferences(Attributes attrs, HashSet<String> studyIUIDs, HashSet<String> patientIDs) {
+        String studyIUID = attrs.getString(Tag.StudyInstanceUID);
+        if (studyIUID != null)
+            studyIUIDs.add(studyIUID);
+        String patientID = attrs.getString(Tag.PatientID);
+        if (patientID != null)
+            patientIDs.add(patientID);
+    }
+
+    private static void index(String key, Collection<String> values, HashMap<String, HashSet<String>> index) {
+        for (String value : values)
+            index(key, value, index);
+    }
+
+    private static void index(String key, String value, HashMap<String, HashSet<String>> index) {
+        HashSet<String> keys = index.get(value);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            index.put(value, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void unindex(String key, String value, HashMap<String, HashSet<String>> index) {
+        HashSet<String> keys = index.get(value);
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+            index.remove(value);
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,162 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Move originator message IDs of forwarded C-MOVE requests, used to match
+ * the C-STORE association of the move destination to the C-MOVE it belongs
+ * to. Contexts the move destination never connected back for expire after
+ * the timeout.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CMoveInfoTable {
+
+    public static final int MAX_MESSAGE_ID = 0xFFFF;
+    public static final long DEFAULT_TIMEOUT = 3600000L;
+
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+    private final AtomicInteger lastMsgId = new AtomicInteger();
+    private final AtomicLong expired = new AtomicLong();
+    private final long timeout;
+
+    public CMoveInfoTable() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    public CMoveInfoTable(long timeout) {
+        this.timeout = timeout;
+    }
+
+    private static final class Entry {
+
+        final CMoveInfoObject info;
+        final long expires;
+
+        Entry(CMoveInfoObject info, long expires) {
+            this.info = info;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Allocate a message ID for the C-MOVE context.
+     * 
+     * @return the message ID or -1 if all message IDs are in use
+     */
+    public int add(CMoveInfoObject info) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(info, now + timeout);
+        for (int n = 0; n < MAX_MESSAGE_ID; n++) {
+            Integer msgId = nextMsgId();
+            Entry prev = entries.putIfAbsent(msgId, entry);
+            if (prev == null)
+                return msgId;
+
+            if (prev.expires <= now && entries.replace(msgId, prev, entry)) {
+                expired.incrementAndGet();
+                return msgId;
+            }
+        }
+        return -1;
+    }
+
+    public CMoveInfoObject get(int msgId) {
+        Entry entry = entries.get(msgId);
+        if (entry == null)
+            return null;
+
+        if (entry.expires <= System.currentTimeMillis()) {
+            if (entries.remove(msgId, entry))
+                expired.incrementAndGet();
+            return null;
+        }
+        return entry.info;
+    }
+
+    public CMoveInfoObject remove(int msgId) {
+        Entry entry = entries.remove(msgId);
+        return entry != null ? entry.info : null;
+    }
+
+    /**
+     * Remove the C-MOVE context, if the message ID is still allocated for
+     * it.
+     */
+    public boolean remove(int msgId, CMoveInfoObject info) {
+        Entry entry = entries.get(msgId);
+        return entry != null && entry.info == info && entries.remove(msgId, entry);
+    }
+
+    public int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Iterator<Map.Entry<Integer, Entry>> iter = entries.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<Integer, Entry> e = iter.next();
+            if (e.getValue().expires <= now && entries.remove(e.getKey(), e.getValue()))
+                count++;
+        }
+        expired.addAndGet(count);
+        return count;
+    }
+
+    public int getActiveCount() {
+        purgeExpired();
+        return entries.size();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private int nextMsgId() {
+        int prev, next;
+        do {
+            prev = lastMsgId.get();
+            next = prev >= MAX_MESSAGE_ID ? 1 : prev + 1;
+        } while (!lastMsgId.compareAndSet(prev, next));
+        return next;
+    }
+}
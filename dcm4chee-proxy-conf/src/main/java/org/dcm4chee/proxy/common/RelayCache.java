@@ -0,0 +1,479 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+
+/**
+ * Staging area of instances retrieved for relayed C-MOVE requests, so that
+ * repeated retrievals of the same study are served from local disk. Studies
+ * and series are marked complete after a successful retrieval on STUDY or
+ * SERIES level, instances are also found by their SOP Instance UID. The
+ * cache is bounded by the total size of the staged files, least recently
+ * retrieved studies which are not currently relayed are deleted first.
+ * Studies are staged per set of source AEs, so that a request is only
+ * served from instances retrieved from the sources its forward rules
+ * resolve to.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RelayCache {
+
+    private final File directory;
+    private final LinkedHashMap<String, Study> studies = new LinkedHashMap<String, Study>(16, 0.75f, true);
+    private final HashMap<String, HashSet<String>> keysByStudy = new HashMap<String, HashSet<String>>();
+    private final HashSet<Recorder> recorders = new HashSet<Recorder>();
+    private volatile boolean empty = true;
+    private long maxSize;
+    private long size;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    public static final class Instance {
+
+        public final File file;
+        public final String cuid;
+        public final String iuid;
+        public final String tsuid;
+        public final String studyIUID;
+        public final String seriesIUID;
+        final long length;
+
+        public Instance(File file, String cuid, String iuid, String tsuid, String studyIUID, String seriesIUID) {
+            this.file = file;
+            this.cuid = cuid;
+            this.iuid = iuid;
+            this.tsuid = tsuid;
+            this.studyIUID = studyIUID;
+            this.seriesIUID = seriesIUID;
+            this.length = file.length();
+        }
+    }
+
+    private static final class Study {
+
+        final String studyIUID;
+        final LinkedHashMap<String, Instance> instances = new LinkedHashMap<String, Instance>();
+        final HashSet<String> completeSeries = new HashSet<String>();
+        boolean complete;
+        long size;
+        int leases;
+
+        Study(String studyIUID) {
+            this.studyIUID = studyIUID;
+        }
+    }
+
+    /**
+     * Instances of a cache hit. The concerned studies are not evicted or
+     * deleted until the lease is released.
+     */
+    public class Lease {
+
+        private final List<Study> leased;
+        private final List<Instance> instances;
+        private boolean released;
+
+        Lease(List<Study> leased, List<Instance> instances) {
+            this.leased = leased;
+            this.instances = instances;
+            for (Study study : leased)
+                study.leases++;
+        }
+
+        public List<Instance> getInstances() {
+            return instances;
+        }
+
+        public void release() {
+            synchronized (RelayCache.this) {
+                if (released)
+                    return;
+
+                released = true;
+                for (Study study : leased)
+                    study.leases--;
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Collects the instances retrieved for a request which was not found in
+     * the cache. On {@link #commit(boolean)} the instances are added to the
+     * cache, the requested studies or series are only marked complete if
+     * none of them was changed in the meantime.
+     */
+    public class Recorder {
+
+        private final String sourceKey;
+        private final Attributes keys;
+        private final HashSet<String> studyIUIDs = new HashSet<String>();
+        private ArrayList<Instance> instances = new ArrayList<Instance>();
+        private boolean invalidated;
+
+        Recorder(String sourceKey, Attributes keys) {
+            this.sourceKey = sourceKey;
+            this.keys = keys;
+            String[] uids = keys.getStrings(Tag.StudyInstanceUID);
+            if (uids != null)
+                studyIUIDs.addAll(Arrays.asList(uids));
+        }
+
+        public void add(Instance instance) {
+            synchronized (RelayCache.this) {
+                if (instances == null) {
+                    instance.file.delete();
+                    return;
+                }
+                instances.add(instance);
+                if (instance.studyIUID != null)
+                    studyIUIDs.add(instance.studyIUID);
+            }
+        }
+
+        public void discard() {
+            synchronized (RelayCache.this) {
+                recorders.remove(this);
+                updateEmpty();
+                if (instances == null)
+                    return;
+
+                for (Instance instance : instances)
+                    instance.file.delete();
+                instances = null;
+            }
+        }
+
+        /**
+         * @param complete
+         *            all instances matching the request were retrieved
+         */
+        public void commit(boolean complete) {
+            synchronized (RelayCache.this) {
+                recorders.remove(this);
+                if (instances != null) {
+                    for (Instance instance : instances)
+                        put(sourceKey, instance);
+                    if (complete && !invalidated)
+                        markComplete(sourceKey, keys);
+                    instances = null;
+                    evict();
+                }
+                updateEmpty();
+            }
+        }
+    }
+
+    public RelayCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        // the index is not persisted, drop files staged before a restart
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+    }
+
+    /**
+     * @return the key of the sources of a relayed request, independent of
+     *         the order of the AE titles
+     */
+    public static String sourceKeyOf(Collection<String> sourceAETs) {
+        StringBuilder sb = new StringBuilder(64);
+        for (String sourceAET : new TreeSet<String>(sourceAETs))
+            sb.append(sourceAET).append(',');
+        return sb.toString();
+    }
+
+    private static String keyOf(String sourceKey, String studyIUID) {
+        return sourceKey + '|' + studyIUID;
+    }
+
+    public File createFile() throws IOException {
+        return File.createTempFile("relay", ".dcm", directory);
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * @return the instances retrieved from the sources which match the
+     *         identifier of the C-MOVE request or <code>null</code> if not
+     *         all of them are staged
+     */
+    public synchronized Lease lookup(String sourceKey, Attributes keys) {
+        ArrayList<Study> leased = new ArrayList<Study>();
+        ArrayList<Instance> instances = new ArrayList<Instance>();
+        if (!match(sourceKey, keys, leased, instances)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Lease(leased, instances);
+    }
+
+    private boolean match(String sourceKey, Attributes keys, List<Study> leased, List<Instance> instances) {
+        String level = keys.getString(Tag.QueryRetrieveLevel);
+        String[] studyIUIDs = keys.getStrings(Tag.StudyInstanceUID);
+        if (level == null || studyIUIDs == null || studyIUIDs.length == 0)
+            return false;
+
+        if (level.equals("STUDY")) {
+            for (String studyIUID : studyIUIDs) {
+                Study study = studies.get(keyOf(sourceKey, studyIUID));
+                if (study == null || !study.complete)
+                    return false;
+
+                leased.add(study);
+                instances.addAll(study.instances.values());
+            }
+            return true;
+        }
+        if (studyIUIDs.length != 1)
+            return false;
+
+        Study study = studies.get(keyOf(sourceKey, studyIUIDs[0]));
+        if (study == null)
+            return false;
+
+        leased.add(study);
+        if (level.equals("SERIES")) {
+            String[] seriesIUIDs = keys.getStrings(Tag.SeriesInstanceUID);
+            if (seriesIUIDs == null || seriesIUIDs.length == 0)
+                return false;
+
+            HashSet<String> requested = new HashSet<String>(Arrays.asList(seriesIUIDs));
+            for (String seriesIUID : requested)
+                if (!study.complete && !study.completeSeries.contains(seriesIUID))
+                    return false;
+            for (Instance instance : study.instances.values())
+                if (requested.contains(instance.seriesIUID))
+                    instances.add(instance);
+            return true;
+        }
+        if (level.equals("IMAGE")) {
+            String[] iuids = keys.getStrings(Tag.SOPInstanceUID);
+            if (iuids == null || iuids.length == 0)
+                return false;
+
+            for (String iuid : iuids) {
+                Instance instance = study.instances.get(iuid);
+                if (instance == null)
+                    return false;
+
+                instances.add(instance);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized Recorder newRecorder(String sourceKey, Attributes keys) {
+        Recorder recorder = new Recorder(sourceKey, keys);
+        recorders.add(recorder);
+        empty = false;
+        return recorder;
+    }
+
+    private void put(String sourceKey, Instance instance) {
+        String key = keyOf(sourceKey, instance.studyIUID);
+        Study study = studies.get(key);
+        if (study == null) {
+            study = new Study(instance.studyIUID);
+            studies.put(key, study);
+            HashSet<String> keys = keysByStudy.get(instance.studyIUID);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                keysByStudy.put(instance.studyIUID, keys);
+            }
+            keys.add(key);
+        }
+        if (study.instances.containsKey(instance.iuid)) {
+            // staged by a concurrent retrieval of the same study
+            instance.file.delete();
+            return;
+        }
+        study.instances.put(instance.iuid, instance);
+        study.size += instance.length;
+        size += instance.length;
+    }
+
+    private void markComplete(String sourceKey, Attributes keys) {
+        String level = keys.getString(Tag.QueryRetrieveLevel);
+        String[] studyIUIDs = keys.getStrings(Tag.StudyInstanceUID);
+        if (level == null || studyIUIDs == null)
+            return;
+
+        if (level.equals("STUDY")) {
+            for (String studyIUID : studyIUIDs) {
+                Study study = studies.get(keyOf(sourceKey, studyIUID));
+                if (study != null)
+                    study.complete = true;
+            }
+        } else if (level.equals("SERIES") && studyIUIDs.length == 1) {
+            Study study = studies.get(keyOf(sourceKey, studyIUIDs[0]));
+            String[] seriesIUIDs = keys.getStrings(Tag.SeriesInstanceUID);
+            if (study != null && seriesIUIDs != null)
+                study.completeSeries.addAll(Arrays.asList(seriesIUIDs));
+        }
+    }
+
+    private void evict() {
+        ArrayList<String> leased = new ArrayList<String>();
+        Iterator<Map.Entry<String, Study>> eldest = studies.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Study> entry = eldest.next();
+            Study study = entry.getValue();
+            if (study.leases > 0) {
+                leased.add(entry.getKey());
+                continue;
+            }
+            eldest.remove();
+            unindex(entry.getKey(), study);
+            delete(study);
+            evictions++;
+        }
+        // to the back of the access order, so that the next eviction does not scan them again
+        for (String key : leased)
+            studies.get(key);
+        updateEmpty();
+    }
+
+    private void updateEmpty() {
+        empty = studies.isEmpty() && recorders.isEmpty();
+    }
+
+    /**
+     * @return <code>true</code> if neither studies are staged nor retrievals
+     *         recorded, so that forwarded objects need not invalidate anything;
+     *         may be called without holding the lock of the cache
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    private void unindex(String key, Study study) {
+        HashSet<String> keys = keysByStudy.get(study.studyIUID);
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+            keysByStudy.remove(study.studyIUID);
+    }
+
+    private void delete(Study study) {
+        for (Instance instance : study.instances.values())
+            instance.file.delete();
+        size -= study.size;
+    }
+
+    /**
+     * Drops the staged instances of a study to which the proxy forwarded
+     * objects, retrieved from any source, so that it is retrieved again.
+     */
+    public synchronized void invalidate(String studyIUID) {
+        if (studyIUID == null)
+            return;
+
+        for (Recorder recorder : recorders)
+            if (recorder.studyIUIDs.contains(studyIUID))
+                recorder.invalidated = true;
+        HashSet<String> keys = keysByStudy.get(studyIUID);
+        if (keys == null)
+            return;
+
+        for (String key : new ArrayList<String>(keys)) {
+            Study study = studies.get(key);
+            if (study.leases > 0) {
+                study.complete = false;
+                study.completeSeries.clear();
+            } else {
+                studies.remove(key);
+                unindex(key, study);
+                delete(study);
+            }
+        }
+        invalidations++;
+        updateEmpty();
+    }
+
+    public synchronized int getStudyCount() {
+        return studies.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,230 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4che.net.Dimse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forward rules of an AE grouped by Calling AET, DIMSE and SOP Class, built
+ * once per configuration so that rule matching does not scan all rules on
+ * every association and DIMSE request.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardRuleIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ForwardRuleIndex.class);
+
+    private static final int MAX_CACHED_DIMSE_RQ_KEYS = 1000;
+
+    private final List<ForwardRule> forwardRules;
+    private final int size;
+    private final Set<ForwardRule> indexed = newRuleSet();
+    private final List<ForwardRule> anyCallingAET = new ArrayList<ForwardRule>();
+    private final HashMap<String, List<ForwardRule>> byCallingAET = new HashMap<String, List<ForwardRule>>();
+    private final List<ForwardRule> anyDimseRQ = new ArrayList<ForwardRule>();
+    private final HashMap<String, List<ForwardRule>> bySopClass = new HashMap<String, List<ForwardRule>>();
+    private final EnumMap<Dimse, List<ForwardRule>> byDimse = new EnumMap<Dimse, List<ForwardRule>>(Dimse.class);
+    private final HashMap<String, List<ForwardRule>> byDimseAndSopClass = new HashMap<String, List<ForwardRule>>();
+    private final ConcurrentHashMap<String, Set<ForwardRule>> dimseRQCandidates =
+            new ConcurrentHashMap<String, Set<ForwardRule>>();
+
+    public ForwardRuleIndex(List<ForwardRule> forwardRules) {
+        this.forwardRules = forwardRules;
+        this.size = forwardRules.size();
+        for (ForwardRule rule : forwardRules)
+            for (String callingAET : rule.getCallingAETs())
+                if (!byCallingAET.containsKey(callingAET))
+                    byCallingAET.put(callingAET, new ArrayList<ForwardRule>());
+        for (ForwardRule rule : forwardRules) {
+            indexed.add(rule);
+            if (rule.getCallingAETs().isEmpty()) {
+                anyCallingAET.add(rule);
+                for (List<ForwardRule> list : byCallingAET.values())
+                    list.add(rule);
+            } else
+                for (String callingAET : rule.getCallingAETs())
+                    addOnce(byCallingAET.get(callingAET), rule);
+            indexDimseRQ(rule);
+        }
+    }
+
+    private void indexDimseRQ(ForwardRule rule) {
+        List<Dimse> dimses = rule.getDimse();
+        List<String> sopClasses = rule.getSopClasses();
+        if (dimses.isEmpty() && sopClasses.isEmpty())
+            anyDimseRQ.add(rule);
+        else if (dimses.isEmpty())
+            for (String cuid : sopClasses)
+                addOnce(listOf(bySopClass, cuid), rule);
+        else if (sopClasses.isEmpty())
+            for (Dimse dimse : dimses) {
+                List<ForwardRule> list = byDimse.get(dimse);
+                if (list == null)
+                    byDimse.put(dimse, list = new ArrayList<ForwardRule>());
+                addOnce(list, rule);
+            }
+        else
+            for (Dimse dimse : dimses)
+                for (String cuid : sopClasses)
+                    addOnce(listOf(byDimseAndSopClass, key(dimse, cuid)), rule);
+    }
+
+    private static List<ForwardRule> listOf(HashMap<String, List<ForwardRule>> map, String key) {
+        List<ForwardRule> list = map.get(key);
+        if (list == null)
+            map.put(key, list = new ArrayList<ForwardRule>());
+        return list;
+    }
+
+    private static void addOnce(List<ForwardRule> list, ForwardRule rule) {
+        if (list.isEmpty() || list.get(list.size() - 1) != rule)
+            list.add(rule);
+    }
+
+    private static Set<ForwardRule> newRuleSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<ForwardRule, Boolean>());
+    }
+
+    private static String key(Dimse dimse, String cuid) {
+        return dimse.name() + '\\' + cuid;
+    }
+
+    public boolean isIndexOf(List<ForwardRule> forwardRules) {
+        return this.forwardRules == forwardRules && size == forwardRules.size();
+    }
+
+    /**
+     * Returns the rules for the Calling AET which receive at {@code now}.
+     * Rules without Calling AET are dropped if a rule with a different name
+     * lists the Calling AET explicitly.
+     */
+    public List<ForwardRule> filterByCallingAET(String callingAET, long now) {
+        List<ForwardRule> candidates = byCallingAET.get(callingAET);
+        if (candidates == null)
+            candidates = anyCallingAET;
+
+        List<ForwardRule> filterList = new ArrayList<ForwardRule>(candidates.size());
+        ForwardRule specificRule = null;
+        boolean differentSpecificRuleNames = false;
+        for (ForwardRule rule : candidates) {
+            if (!rule.getReceiveSchedule().isActive(now))
+                continue;
+
+            filterList.add(rule);
+            if (rule.getCallingAETs().isEmpty())
+                continue;
+
+            if (specificRule == null)
+                specificRule = rule;
+            else if (!sameName(specificRule, rule))
+                differentSpecificRuleNames = true;
+        }
+        if (specificRule == null)
+            return filterList;
+
+        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList.size());
+        for (ForwardRule rule : filterList) {
+            if (rule.getCallingAETs().isEmpty() && (differentSpecificRuleNames || !sameName(specificRule, rule))) {
+                LOG.debug("Filter by Calling AET: remove forward rule \"{}\" with Calling AET = <EMPTY> due to "
+                        + "rule with matching Calling AET = {}", rule.getCommonName(), callingAET);
+                continue;
+            }
+            returnList.add(rule);
+        }
+        return returnList;
+    }
+
+    private static boolean sameName(ForwardRule rule1, ForwardRule rule2) {
+        String name = rule1.getCommonName();
+        return name == null ? rule2.getCommonName() == null : name.equals(rule2.getCommonName());
+    }
+
+    /**
+     * Returns the rules of {@code fwdRules}, in their order, which apply to
+     * the DIMSE request.
+     */
+    public List<ForwardRule> filterOnDimseRQ(List<ForwardRule> fwdRules, String cuid, Dimse dimse) {
+        Set<ForwardRule> candidates = candidatesFor(cuid, dimse);
+        List<ForwardRule> filterList = new ArrayList<ForwardRule>(Math.min(fwdRules.size(), candidates.size()));
+        for (ForwardRule rule : fwdRules)
+            if (indexed.contains(rule) ? candidates.contains(rule) : matches(rule, cuid, dimse))
+                filterList.add(rule);
+        return filterList;
+    }
+
+    private Set<ForwardRule> candidatesFor(String cuid, Dimse dimse) {
+        String key = key(dimse, cuid);
+        Set<ForwardRule> candidates = dimseRQCandidates.get(key);
+        if (candidates != null)
+            return candidates;
+
+        candidates = newRuleSet();
+        candidates.addAll(anyDimseRQ);
+        addAll(candidates, bySopClass.get(cuid));
+        addAll(candidates, byDimse.get(dimse));
+        addAll(candidates, byDimseAndSopClass.get(key));
+        if (dimseRQCandidates.size() < MAX_CACHED_DIMSE_RQ_KEYS)
+            dimseRQCandidates.put(key, candidates);
+        return candidates;
+    }
+
+    private static void addAll(Set<ForwardRule> set, List<ForwardRule> list) {
+        if (list != null)
+            set.addAll(list);
+    }
+
+    public static boolean matches(ForwardRule rule, String cuid, Dimse dimse) {
+        return rule.getDimse().isEmpty() && rule.getSopClasses().isEmpty()
+                || rule.getSopClasses().contains(cuid) && rule.getDimse().isEmpty()
+                || rule.getDimse().contains(dimse)
+                    && (rule.getSopClasses().isEmpty() || rule.getSopClasses().contains(cuid));
+    }
+}
@@ -0,0 +1,231 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardingExecutor implements Executor {
+
+    public static final String ANY_DESTINATION = "*";
+
+    private final int threadsPerDestination;
+    private final HashSet<String> priorityAETitles;
+    private final Lane lane;
+    private final Lane priorityLane;
+    private final HashMap<String, DestinationQueue> queues = new HashMap<String, DestinationQueue>();
+    private ForwardingExecutor successor;
+
+    public ForwardingExecutor(int threads, int threadsPerDestination, String[] priorityAETitles, int priorityThreads) {
+        this.threadsPerDestination = threadsPerDestination;
+        this.priorityAETitles = new HashSet<String>(Arrays.asList(priorityAETitles));
+        this.lane = new Lane(threads);
+        this.priorityLane = (priorityAETitles.length > 0 && priorityThreads > 0) ? new Lane(priorityThreads) : lane;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(ANY_DESTINATION, command);
+    }
+
+    public synchronized void execute(String destinationAET, Runnable command) {
+        if (successor != null) {
+            successor.execute(destinationAET, command);
+            return;
+        }
+        DestinationQueue queue = queues.get(destinationAET);
+        if (queue == null) {
+            queue = new DestinationQueue(destinationAET,
+                    priorityAETitles.contains(destinationAET) ? priorityLane : lane);
+            queues.put(destinationAET, queue);
+        }
+        queue.tasks.offer(command);
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            queue.lane.ring.offer(queue);
+        }
+        dispatch(queue.lane);
+    }
+
+    /**
+     * Hands over the queued tasks to the executor replacing this one on
+     * reconfiguration, which also receives all tasks submitted later. The
+     * threads of the lanes terminate once the tasks in flight are done.
+     */
+    public synchronized void shutdown(ForwardingExecutor successor) {
+        this.successor = successor;
+        for (DestinationQueue queue : queues.values()) {
+            Runnable task;
+            while ((task = queue.tasks.poll()) != null)
+                successor.execute(queue.destinationAET, task);
+        }
+        lane.pool.shutdown();
+        priorityLane.pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        return lane.pool.awaitTermination(timeout, unit)
+                && priorityLane.pool.awaitTermination(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized String[] getDestinationAETs() {
+        return new TreeSet<String>(queues.keySet()).toArray(new String[queues.size()]);
+    }
+
+    public synchronized int getQueueDepth(String destinationAET) {
+        DestinationQueue queue = queues.get(destinationAET);
+        return queue != null ? queue.tasks.size() : 0;
+    }
+
+    public synchronized int getInFlight(String destinationAET) {
+        DestinationQueue queue = queues.get(destinationAET);
+        return queue != null ? queue.inFlight : 0;
+    }
+
+    public synchronized boolean isPriority(String destinationAET) {
+        return priorityLane != lane && priorityAETitles.contains(destinationAET);
+    }
+
+    private void dispatch(Lane lane) {
+        while (lane.active < lane.threads) {
+            DestinationQueue queue = nextReady(lane);
+            if (queue == null)
+                return;
+
+            Runnable task = queue.tasks.poll();
+            queue.inFlight++;
+            lane.active++;
+            try {
+                lane.pool.execute(new Worker(queue, task));
+            } catch (RejectedExecutionException e) {
+                queue.tasks.addFirst(task);
+                queue.inFlight--;
+                lane.active--;
+                throw e;
+            }
+        }
+    }
+
+    private DestinationQueue nextReady(Lane lane) {
+        for (int n = lane.ring.size(); n > 0; n--) {
+            DestinationQueue queue = lane.ring.poll();
+            if (queue.tasks.isEmpty()) {
+                queue.scheduled = false;
+                removeIfIdle(queue);
+                continue;
+            }
+            // round-robin: requeue at the tail, also if currently at its limit
+            lane.ring.offer(queue);
+            if (threadsPerDestination <= 0 || queue.inFlight < threadsPerDestination)
+                return queue;
+        }
+        return null;
+    }
+
+    private void removeIfIdle(DestinationQueue queue) {
+        if (!queue.scheduled && queue.inFlight == 0 && queue.tasks.isEmpty())
+            queues.remove(queue.destinationAET);
+    }
+
+    private synchronized void done(DestinationQueue queue) {
+        queue.inFlight--;
+        queue.lane.active--;
+        removeIfIdle(queue);
+        dispatch(queue.lane);
+    }
+
+    private static class Lane {
+
+        final int threads;
+        final ExecutorService pool;
+        final ArrayDeque<DestinationQueue> ring = new ArrayDeque<DestinationQueue>();
+        int active;
+
+        Lane(int threads) {
+            this.threads = threads;
+            this.pool = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private static class DestinationQueue {
+
+        final String destinationAET;
+        final Lane lane;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        int inFlight;
+        boolean scheduled;
+
+        DestinationQueue(String destinationAET, Lane lane) {
+            this.destinationAET = destinationAET;
+            this.lane = lane;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        final DestinationQueue queue;
+        final Runnable task;
+
+        Worker(DestinationQueue queue, Runnable task) {
+            this.queue = queue;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                done(queue);
+            }
+        }
+    }
+}
@@ -57,6 +57,8 @@ import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.proxy.common.AuditDirectory;
 import org.dcm4chee.proxy.common.CMoveInfoObject;
+import org.dcm4chee.proxy.common.CMoveInfoTable;
+import org.dcm4chee.proxy.common.RelayCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -86,12 +88,23 @@ public class ProxyAEExtension extends AEExtension {
     private HashMap<String, ForwardOption> forwardOptions = new HashMap<String, ForwardOption>();
     private List<Retry> retries = new ArrayList<Retry>();
     private List<ForwardRule> forwardRules = new ArrayList<ForwardRule>();
+    private transient volatile ForwardRuleIndex forwardRuleIndex;
     private AttributeCoercions attributeCoercions = new AttributeCoercions();
     private String proxyPIXConsumerApplication;
     private String remotePIXManagerApplication;
     private boolean deleteFailedDataWithoutRetryConfiguration;
     private String fallbackDestinationAET;
-    private CMoveInfoObject[] CMoveMessageID = new CMoveInfoObject[256];
+    private SpoolDurability spoolDurability = SpoolDurability.PER_OBJECT;
+    private boolean mergeCFindResponses;
+    private int mergeCFindTimeout;
+    private String[] mergeCFindMaxResults = {};
+    private HashMap<String, Integer> mergeCFindMaxResultsByLevel = new HashMap<String, Integer>();
+    private String[] cfindCacheTimeouts = {};
+    private HashMap<String, Integer> cfindCacheTimeoutBySOPClassAndLevel = new HashMap<String, Integer>();
+    private boolean relayCMoveAsCGet;
+    private int relayCacheSize;
+    private transient CMoveInfoTable cmoveInfoTable;
+    private transient volatile RelayCache relayCache;
 
     public boolean isAcceptDataOnFailedAssociation() {
         return acceptDataOnFailedAssociation;
@@ -215,6 +228,12 @@ public class ProxyAEExtension extends AEExtension {
                 throw new IOException("Cannot create path " + path);
     }
 
+    public File getRelayCacheDirectoryPath() throws IOException {
+        File path = new File(getSpoolDirectoryPath(), "relay");
+        makeDirs(path);
+        return path;
+    }
+
     public File getDoseSrPath() throws IOException {
         File path = new File(getSpoolDirectory(), "dose");
         if (!path.isAbsolute())
@@ -273,6 +292,14 @@ public class ProxyAEExtension extends AEExtension {
 
     public void setForwardRules(List<ForwardRule> forwardingRules) {
         this.forwardRules = forwardingRules;
+        this.forwardRuleIndex = new ForwardRuleIndex(forwardingRules);
+    }
+
+    public ForwardRuleIndex getForwardRuleIndex() {
+        ForwardRuleIndex index = forwardRuleIndex;
+        if (index == null || !index.isIndexOf(forwardRules))
+            forwardRuleIndex = index = new ForwardRuleIndex(forwardRules);
+        return index;
     }
 
     @SuppressWarnings("unchecked")
@@ -321,21 +348,171 @@ public class ProxyAEExtension extends AEExtension {
         this.fallbackDestinationAET = fallbackDestinationAET;
     }
 
-    public int getNewCMoveMessageID(CMoveInfoObject info) {
-        for (int index = 0; index < 256; index++)
-            if (CMoveMessageID[index] == null) {
-                CMoveMessageID[index] = info;
-                return index + 1;
+    public SpoolDurability getSpoolDurability() {
+        return spoolDurability;
+    }
+
+    public void setSpoolDurability(SpoolDurability spoolDurability) {
+        this.spoolDurability = spoolDurability;
+    }
+
+    public boolean isMergeCFindResponses() {
+        return mergeCFindResponses;
+    }
+
+    public void setMergeCFindResponses(boolean mergeCFindResponses) {
+        this.mergeCFindResponses = mergeCFindResponses;
+    }
+
+    /**
+     * Seconds to wait for the final C-FIND-RSP of each destination of a merged C-FIND. Destinations which did not
+     * complete within this time are canceled, 0 waits for all destinations.
+     */
+    public int getMergeCFindTimeout() {
+        return mergeCFindTimeout;
+    }
+
+    public void setMergeCFindTimeout(int mergeCFindTimeout) {
+        this.mergeCFindTimeout = mergeCFindTimeout;
+    }
+
+    public String[] getMergeCFindMaxResults() {
+        return mergeCFindMaxResults;
+    }
+
+    /**
+     * @param mergeCFindMaxResults
+     *            entries of the form <code>&lt;QueryRetrieveLevel&gt;:&lt;max&gt;</code>, e.g. "STUDY:500"
+     */
+    public void setMergeCFindMaxResults(String... mergeCFindMaxResults) {
+        HashMap<String, Integer> byLevel = new HashMap<String, Integer>();
+        for (String entry : mergeCFindMaxResults) {
+            int index = entry.indexOf(':');
+            try {
+                if (index <= 0)
+                    throw new NumberFormatException();
+                byLevel.put(entry.substring(0, index).trim(), Integer.parseInt(entry.substring(index + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid merge C-FIND max results: " + entry);
+            }
+        }
+        this.mergeCFindMaxResults = mergeCFindMaxResults;
+        this.mergeCFindMaxResultsByLevel = byLevel;
+    }
+
+    /**
+     * @return maximal number of merged C-FIND results for the QueryRetrieveLevel, 0 if unlimited
+     */
+    public int getMergeCFindMaxResults(String queryRetrieveLevel) {
+        Integer max = queryRetrieveLevel != null ? mergeCFindMaxResultsByLevel.get(queryRetrieveLevel) : null;
+        return max != null ? max : 0;
+    }
+
+    public String[] getCFindCacheTimeouts() {
+        return cfindCacheTimeouts;
+    }
+
+    /**
+     * @param cfindCacheTimeouts
+     *            entries of the form
+     *            <code>&lt;SOPClassUID&gt;:&lt;QueryRetrieveLevel&gt;:&lt;seconds&gt;</code>, SOP Class and
+     *            level may be "*", e.g. "*:STUDY:60"
+     */
+    public void setCFindCacheTimeouts(String... cfindCacheTimeouts) {
+        HashMap<String, Integer> bySOPClassAndLevel = new HashMap<String, Integer>();
+        for (String entry : cfindCacheTimeouts) {
+            int index = entry.lastIndexOf(':');
+            try {
+                if (index <= 0 || entry.indexOf(':') == index)
+                    throw new NumberFormatException();
+                bySOPClassAndLevel.put(entry.substring(0, index).trim(),
+                        Integer.parseInt(entry.substring(index + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid C-FIND cache timeout: " + entry);
             }
-        return -1;
+        }
+        this.cfindCacheTimeouts = cfindCacheTimeouts;
+        this.cfindCacheTimeoutBySOPClassAndLevel = bySOPClassAndLevel;
+    }
+
+    /**
+     * @return seconds the matches of a C-FIND request are cached, 0 if not cached
+     */
+    public int getCFindCacheTimeout(String cuid, String queryRetrieveLevel) {
+        if (cfindCacheTimeoutBySOPClassAndLevel.isEmpty())
+            return 0;
+
+        String level = queryRetrieveLevel != null ? queryRetrieveLevel : "*";
+        Integer timeout = cfindCacheTimeoutBySOPClassAndLevel.get(cuid + ':' + level);
+        if (timeout == null)
+            timeout = cfindCacheTimeoutBySOPClassAndLevel.get(cuid + ":*");
+        if (timeout == null)
+            timeout = cfindCacheTimeoutBySOPClassAndLevel.get("*:" + level);
+        if (timeout == null)
+            timeout = cfindCacheTimeoutBySOPClassAndLevel.get("*:*");
+        return timeout != null ? timeout : 0;
+    }
+
+    public boolean isRelayCMoveAsCGet() {
+        return relayCMoveAsCGet;
+    }
+
+    public void setRelayCMoveAsCGet(boolean relayCMoveAsCGet) {
+        this.relayCMoveAsCGet = relayCMoveAsCGet;
+    }
+
+    /**
+     * Size of the staging cache for relayed C-MOVE requests in MB. Staged instances exceeding the size are deleted,
+     * least recently retrieved studies first, 0 deletes all instances once they were relayed.
+     */
+    public int getRelayCacheSize() {
+        return relayCacheSize;
+    }
+
+    public synchronized void setRelayCacheSize(int relayCacheSize) {
+        this.relayCacheSize = relayCacheSize;
+        if (relayCache != null)
+            relayCache.setMaxSize(relayCacheSize * 1048576L);
+    }
+
+    public synchronized RelayCache getRelayCache() throws IOException {
+        if (relayCache == null)
+            relayCache = new RelayCache(getRelayCacheDirectoryPath(), relayCacheSize * 1048576L);
+        return relayCache;
+    }
+
+    /**
+     * @return <code>true</code> if no instances are staged for relayed C-MOVE requests, without locking the cache
+     */
+    public boolean isRelayCacheEmpty() {
+        RelayCache cache = relayCache;
+        return cache == null || cache.isEmpty();
+    }
+
+    /**
+     * Drops the staged instances of the study, if relayed C-MOVE requests were served before.
+     */
+    public synchronized void invalidateRelayCache(String studyIUID) {
+        if (relayCache != null)
+            relayCache.invalidate(studyIUID);
+    }
+
+    public synchronized CMoveInfoTable getCMoveInfoTable() {
+        if (cmoveInfoTable == null)
+            cmoveInfoTable = new CMoveInfoTable();
+        return cmoveInfoTable;
+    }
+
+    public int getNewCMoveMessageID(CMoveInfoObject info) {
+        return getCMoveInfoTable().add(info);
     }
 
     public CMoveInfoObject getCMoveInfoObject(int msgId) {
-        return CMoveMessageID[msgId - 1];
+        return getCMoveInfoTable().get(msgId);
     }
 
     public void removeCMoveInfoObject(int msgId) {
-        CMoveMessageID[msgId - 1] = null;
+        getCMoveInfoTable().remove(msgId);
     }
 
     public boolean isAssociationFromDestinationAET(Association asAccepted) {
@@ -361,6 +538,13 @@ public class ProxyAEExtension extends AEExtension {
         setRemotePIXManagerApplication(proxyAEE.remotePIXManagerApplication);
         setDeleteFailedDataWithoutRetryConfiguration(proxyAEE.deleteFailedDataWithoutRetryConfiguration);
         setFallbackDestinationAET(proxyAEE.fallbackDestinationAET);
+        setSpoolDurability(proxyAEE.spoolDurability);
+        setMergeCFindResponses(proxyAEE.mergeCFindResponses);
+        setMergeCFindTimeout(proxyAEE.mergeCFindTimeout);
+        setMergeCFindMaxResults(proxyAEE.mergeCFindMaxResults);
+        setCFindCacheTimeouts(proxyAEE.cfindCacheTimeouts);
+        setRelayCMoveAsCGet(proxyAEE.relayCMoveAsCGet);
+        setRelayCacheSize(proxyAEE.relayCacheSize);
         attributeCoercions.clear();
         for (AttributeCoercion ac : proxyAEE.getAttributeCoercions())
             addAttributeCoercion(ac);
@@ -38,9 +38,6 @@
 
 package org.dcm4chee.proxy.conf;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -48,6 +45,7 @@ import org.dcm4che.conf.api.hl7.HL7Configuration;
 import org.dcm4che.io.TemplatesCache;
 import org.dcm4che.net.DeviceExtension;
 import org.dcm4che.util.StringUtils;
+import org.dcm4chee.proxy.common.CFindCache;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -59,18 +57,38 @@ public class ProxyDeviceExtension extends DeviceExtension {
     
     public static final int DEFAULT_FORWARD_THREADS = 1;
     public static final int DEFAULT_SCHEDULER_INTERVAL = 30;
+    public static final int DEFAULT_FORWARD_PRIORITY_THREADS = 1;
+    public static final int DEFAULT_FORWARD_THREADS_PER_DESTINATION = 2;
+    public static final int DEFAULT_CIRCUIT_BREAKER_TIMEOUT = 60;
+    public static final int DEFAULT_PIX_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CFIND_CACHE_SIZE = 10000;
 
     private Integer schedulerInterval;
     private HL7Configuration dicomConf;
     private transient TemplatesCache templateCache;
     private int forwardThreads;
-    private transient ThreadPoolExecutor fileForwardingExecutor;
+    private transient ForwardingExecutor fileForwardingExecutor;
     private int configurationStaleTimeout;
+    private int forwardBatchMaxObjects;
+    private int forwardBatchMaxSize;
+    private int forwardAssociationIdleTimeout;
+    private int forwardThreadsPerDestination = DEFAULT_FORWARD_THREADS_PER_DESTINATION;
+    private String[] forwardPriorityAETitles = {};
+    private int forwardPriorityThreads = DEFAULT_FORWARD_PRIORITY_THREADS;
+    private int circuitBreakerThreshold;
+    private int circuitBreakerTimeout = DEFAULT_CIRCUIT_BREAKER_TIMEOUT;
+    private int forwardAssociationPoolSize;
+    private int forwardAssociationCheckInterval;
+    private int pixCacheTimeout;
+    private int pixCacheNegativeTimeout;
+    private int pixCacheSize = DEFAULT_PIX_CACHE_SIZE;
+    private int cfindCacheSize = DEFAULT_CFIND_CACHE_SIZE;
+    private transient volatile CFindCache cfindCache;
 
-    public ThreadPoolExecutor getFileForwardingExecutor() {
+    public synchronized ForwardingExecutor getFileForwardingExecutor() {
         if (fileForwardingExecutor == null)
-            fileForwardingExecutor = (ThreadPoolExecutor) Executors
-                    .newFixedThreadPool(forwardThreads);
+            fileForwardingExecutor = new ForwardingExecutor(forwardThreads, forwardThreadsPerDestination,
+                    forwardPriorityAETitles, forwardPriorityThreads);
         return fileForwardingExecutor;
     }
 
@@ -125,12 +143,163 @@ public class ProxyDeviceExtension extends DeviceExtension {
         this.configurationStaleTimeout = configurationStaleTimeout;
     }
 
+    public int getForwardBatchMaxObjects() {
+        return forwardBatchMaxObjects;
+    }
+
+    public void setForwardBatchMaxObjects(int forwardBatchMaxObjects) {
+        this.forwardBatchMaxObjects = forwardBatchMaxObjects;
+    }
+
+    public int getForwardBatchMaxSize() {
+        return forwardBatchMaxSize;
+    }
+
+    public void setForwardBatchMaxSize(int forwardBatchMaxSize) {
+        this.forwardBatchMaxSize = forwardBatchMaxSize;
+    }
+
+    public int getForwardAssociationIdleTimeout() {
+        return forwardAssociationIdleTimeout;
+    }
+
+    public void setForwardAssociationIdleTimeout(int forwardAssociationIdleTimeout) {
+        this.forwardAssociationIdleTimeout = forwardAssociationIdleTimeout;
+    }
+
+    public int getForwardThreadsPerDestination() {
+        return forwardThreadsPerDestination;
+    }
+
+    public void setForwardThreadsPerDestination(int forwardThreadsPerDestination) {
+        this.forwardThreadsPerDestination = forwardThreadsPerDestination;
+    }
+
+    public String[] getForwardPriorityAETitles() {
+        return forwardPriorityAETitles;
+    }
+
+    public void setForwardPriorityAETitles(String... forwardPriorityAETitles) {
+        this.forwardPriorityAETitles = forwardPriorityAETitles;
+    }
+
+    public int getForwardPriorityThreads() {
+        return forwardPriorityThreads;
+    }
+
+    public void setForwardPriorityThreads(int forwardPriorityThreads) {
+        this.forwardPriorityThreads = forwardPriorityThreads;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public int getCircuitBreakerTimeout() {
+        return circuitBreakerTimeout;
+    }
+
+    public void setCircuitBreakerTimeout(int circuitBreakerTimeout) {
+        this.circuitBreakerTimeout = circuitBreakerTimeout;
+    }
+
+    public int getForwardAssociationPoolSize() {
+        return forwardAssociationPoolSize;
+    }
+
+    public void setForwardAssociationPoolSize(int forwardAssociationPoolSize) {
+        this.forwardAssociationPoolSize = forwardAssociationPoolSize;
+    }
+
+    public int getForwardAssociationCheckInterval() {
+        return forwardAssociationCheckInterval;
+    }
+
+    public void setForwardAssociationCheckInterval(int forwardAssociationCheckInterval) {
+        this.forwardAssociationCheckInterval = forwardAssociationCheckInterval;
+    }
+
+    public int getPIXCacheTimeout() {
+        return pixCacheTimeout;
+    }
+
+    public void setPIXCacheTimeout(int pixCacheTimeout) {
+        this.pixCacheTimeout = pixCacheTimeout;
+    }
+
+    public int getPIXCacheNegativeTimeout() {
+        return pixCacheNegativeTimeout;
+    }
+
+    public void setPIXCacheNegativeTimeout(int pixCacheNegativeTimeout) {
+        this.pixCacheNegativeTimeout = pixCacheNegativeTimeout;
+    }
+
+    public int getPIXCacheSize() {
+        return pixCacheSize;
+    }
+
+    public void setPIXCacheSize(int pixCacheSize) {
+        this.pixCacheSize = pixCacheSize;
+    }
+
+    public int getCFindCacheSize() {
+        return cfindCacheSize;
+    }
+
+    public void setCFindCacheSize(int cfindCacheSize) {
+        this.cfindCacheSize = cfindCacheSize;
+    }
+
+    public synchronized CFindCache getCFindCache() {
+        if (cfindCache == null)
+            cfindCache = new CFindCache();
+        return cfindCache;
+    }
+
+    public boolean isCFindCacheEmpty() {
+        CFindCache cache = cfindCache;
+        return cache == null || cache.isEmpty();
+    }
+
+    public void invalidateCFindCache(String patientID, String studyIUID) {
+        CFindCache cache = cfindCache;
+        if (cache != null && !cache.isEmpty())
+            cache.invalidate(patientID, studyIUID);
+    }
+
     @Override
     public void reconfigure(DeviceExtension from) {
         ProxyDeviceExtension proxyDevExt = (ProxyDeviceExtension) from;
         setForwardThreads(proxyDevExt.forwardThreads);
         setSchedulerInterval(proxyDevExt.schedulerInterval);
-        fileForwardingExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(forwardThreads);
         setConfigurationStaleTimeout(proxyDevExt.configurationStaleTimeout);
+        setForwardBatchMaxObjects(proxyDevExt.forwardBatchMaxObjects);
+        setForwardBatchMaxSize(proxyDevExt.forwardBatchMaxSize);
+        setForwardAssociationIdleTimeout(proxyDevExt.forwardAssociationIdleTimeout);
+        setForwardThreadsPerDestination(proxyDevExt.forwardThreadsPerDestination);
+        setForwardPriorityAETitles(proxyDevExt.forwardPriorityAETitles);
+        setForwardPriorityThreads(proxyDevExt.forwardPriorityThreads);
+        setCircuitBreakerThreshold(proxyDevExt.circuitBreakerThreshold);
+        setCircuitBreakerTimeout(proxyDevExt.circuitBreakerTimeout);
+        setForwardAssociationPoolSize(proxyDevExt.forwardAssociationPoolSize);
+        setForwardAssociationCheckInterval(proxyDevExt.forwardAssociationCheckInterval);
+        setPIXCacheTimeout(proxyDevExt.pixCacheTimeout);
+        setPIXCacheNegativeTimeout(proxyDevExt.pixCacheNegativeTimeout);
+        setPIXCacheSize(proxyDevExt.pixCacheSize);
+        setCFindCacheSize(proxyDevExt.cfindCacheSize);
+        ForwardingExecutor prev;
+        ForwardingExecutor next = new ForwardingExecutor(forwardThreads, forwardThreadsPerDestination,
+                forwardPriorityAETitles, forwardPriorityThreads);
+        synchronized (this) {
+            prev = fileForwardingExecutor;
+            fileForwardingExecutor = next;
+        }
+        if (prev != null)
+            prev.shutdown(next);
     }
 }
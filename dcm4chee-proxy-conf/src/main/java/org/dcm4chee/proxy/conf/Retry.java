@@ -39,6 +39,7 @@
 package org.dcm4chee.proxy.conf;
 
 import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.dcm4chee.proxy.common.RetryObject;
 
@@ -51,17 +52,36 @@ public class Retry implements Serializable {
     private static final long serialVersionUID = 6529504420167597188L;
     public static final int DEFAULT_DELAY = 60;
     public static final int DEFAULT_RETRIES = 60;
+    public static final int DEFAULT_BACKOFF_FACTOR = 1;
+
+    // keeps due times computed from unbounded exponential backoff far from overflow
+    private static final double MAX_DELAY_MILLIS = Long.MAX_VALUE / 4;
 
     public final RetryObject retryObject;
     public final int delay;
     public final int numberOfRetries;
     public final boolean deleteAfterFinalRetry;
+    public final int backoffFactor;
+    public final int maxDelay;
+    public final int jitter;
 
     public Retry(RetryObject retryObject, int delay, int numberOfRetries, boolean delete) {
+        this(retryObject, delay, numberOfRetries, delete, DEFAULT_BACKOFF_FACTOR, 0, 0);
+    }
+
+    public Retry(RetryObject retryObject, int delay, int numberOfRetries, boolean delete, int backoffFactor,
+            int maxDelay, int jitter) {
+        if (backoffFactor < 1)
+            throw new IllegalArgumentException("backoffFactor: " + backoffFactor);
+        if (jitter < 0 || jitter > 100)
+            throw new IllegalArgumentException("jitter: " + jitter);
         this.retryObject = retryObject;
         this.delay = delay;
         this.numberOfRetries = numberOfRetries;
         this.deleteAfterFinalRetry = delete;
+        this.backoffFactor = backoffFactor;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
     }
 
     public RetryObject getRetryObject() {
@@ -79,4 +99,43 @@ public class Retry implements Serializable {
     public boolean isDeleteAfterFinalRetry() {
         return deleteAfterFinalRetry;
     }
+
+    public int getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    public int getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Delay before the given retry: {@link #delay} multiplied by
+     * {@link #backoffFactor} for each previous retry and capped by
+     * {@link #maxDelay} if set.
+     */
+    public long getBackoffDelayMillis(int retry) {
+        double d = delay * 1000.0;
+        if (backoffFactor > 1 && retry > 1)
+            d *= Math.pow(backoffFactor, retry - 1);
+        if (maxDelay > 0)
+            d = Math.min(d, maxDelay * 1000.0);
+        return (long) Math.min(d, MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Backoff delay before the given retry, randomly spread by up to
+     * &plusmn;{@link #jitter} percent.
+     */
+    public long getRetryDelayMillis(int retry) {
+        long d = getBackoffDelayMillis(retry);
+        if (jitter == 0 || d == 0)
+            return d;
+
+        double spread = d * jitter / 100.0;
+        return Math.max(0L, d + (long) (spread * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+    }
 }
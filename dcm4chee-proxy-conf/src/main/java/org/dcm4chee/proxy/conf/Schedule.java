@@ -41,6 +41,7 @@ package org.dcm4chee.proxy.conf;
 import java.io.Serializable;
 import java.util.BitSet;
 import java.util.Calendar;
+import java.util.GregorianCalendar;
 
 import org.dcm4che.util.StringUtils;
 
@@ -59,6 +60,8 @@ public class Schedule implements Serializable {
     final BitSet days = new BitSet(7);
     final BitSet hours = new BitSet(24);
 
+    private transient volatile Window window;
+
     public Schedule() {
         days.set(0, 7);
         hours.set(0, 24);
@@ -67,6 +70,7 @@ public class Schedule implements Serializable {
     public void setDays(String dayOfWeek) {
         if(dayOfWeek!=null)
             set(days, dayOfWeek, DAYS);
+        window = null;
     }
     
     public String getDays() {
@@ -76,6 +80,7 @@ public class Schedule implements Serializable {
     public void setHours(String hour) {
         if(hour!=null)
             set(hours, hour, HOURS);
+        window = null;
     }
     
     public String getHours() {
@@ -87,6 +92,41 @@ public class Schedule implements Serializable {
                 && hours.get(now.get(Calendar.HOUR_OF_DAY));
     }
 
+    public boolean isActive(long now) {
+        return windowAt(now).active;
+    }
+
+    /**
+     * Returns the instant after {@code now} at which the schedule switches
+     * between active and inactive, or {@code Long.MAX_VALUE} if it never does.
+     */
+    public long nextTransition(long now) {
+        return windowAt(now).end;
+    }
+
+    private Window windowAt(long now) {
+        Window w = window;
+        if (w == null || now < w.start || now >= w.end)
+            window = w = computeWindow(now);
+        return w;
+    }
+
+    private Window computeWindow(long now) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTimeInMillis(now);
+        boolean active = isNow(cal);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        long start = cal.getTimeInMillis();
+        for (int i = 0; i < DAYS.length * HOURS.length; i++) {
+            cal.add(Calendar.HOUR_OF_DAY, 1);
+            if (isNow(cal) != active)
+                return new Window(active, start, cal.getTimeInMillis());
+        }
+        return new Window(active, start, Long.MAX_VALUE);
+    }
+
     private static void set(BitSet bs, String value, String[] a) {
         bs.clear();
         for (String s : StringUtils.split(value.trim(), ','))
@@ -148,4 +188,16 @@ public class Schedule implements Serializable {
         return sb.toString();
     }
 
+    private static final class Window {
+
+        final boolean active;
+        final long start;
+        final long end;
+
+        Window(boolean active, long start, long end) {
+            this.active = active;
+            this.start = start;
+            this.end = end;
+        }
+    }
 }
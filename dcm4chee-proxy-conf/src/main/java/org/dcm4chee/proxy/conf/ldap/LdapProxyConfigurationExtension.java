@@ -64,6 +64,7 @@ import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.conf.SpoolDurability;
 import org.dcm4chee.proxy.conf.Retry;
 import org.dcm4chee.proxy.conf.Schedule;
 
@@ -83,6 +84,26 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeNotNull(attrs, "dcmSchedulerInterval", proxyDev.getSchedulerInterval());
         LdapUtils.storeNotNull(attrs, "dcmForwardThreads", proxyDev.getForwardThreads());
         LdapUtils.storeNotDef(attrs, "dcmProxyConfigurationStaleTimeout", proxyDev.getConfigurationStaleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmForwardBatchMaxObjects", proxyDev.getForwardBatchMaxObjects(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmForwardBatchMaxSize", proxyDev.getForwardBatchMaxSize(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmForwardAssociationIdleTimeout", proxyDev.getForwardAssociationIdleTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmForwardThreadsPerDestination", proxyDev.getForwardThreadsPerDestination(),
+                ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION);
+        LdapUtils.storeNotEmpty(attrs, "dcmForwardPriorityAETitle", proxyDev.getForwardPriorityAETitles());
+        LdapUtils.storeNotDef(attrs, "dcmForwardPriorityThreads", proxyDev.getForwardPriorityThreads(),
+                ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS);
+        LdapUtils.storeNotDef(attrs, "dcmCircuitBreakerThreshold", proxyDev.getCircuitBreakerThreshold(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmCircuitBreakerTimeout", proxyDev.getCircuitBreakerTimeout(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT);
+        LdapUtils.storeNotDef(attrs, "dcmForwardAssociationPoolSize", proxyDev.getForwardAssociationPoolSize(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmForwardAssociationCheckInterval",
+                proxyDev.getForwardAssociationCheckInterval(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmPIXCacheTimeout", proxyDev.getPIXCacheTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmPIXCacheNegativeTimeout", proxyDev.getPIXCacheNegativeTimeout(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmPIXCacheSize", proxyDev.getPIXCacheSize(),
+                ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE);
+        LdapUtils.storeNotDef(attrs, "dcmCFindCacheSize", proxyDev.getCFindCacheSize(),
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE);
     }
 
     @Override
@@ -100,6 +121,13 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeNotNull(attrs, "dcmDeleteFailedDataWithoutRetryConfiguration",
                 proxyAEE.isDeleteFailedDataWithoutRetryConfiguration());
         LdapUtils.storeNotNull(attrs, "dcmDestinationAETitle", proxyAEE.getFallbackDestinationAET());
+        LdapUtils.storeNotNull(attrs, "dcmSpoolDurability", proxyAEE.getSpoolDurability().name());
+        LdapUtils.storeNotNull(attrs, "dcmMergeCFindResponses", proxyAEE.isMergeCFindResponses());
+        LdapUtils.storeNotDef(attrs, "dcmMergeCFindTimeout", proxyAEE.getMergeCFindTimeout(), 0);
+        LdapUtils.storeNotEmpty(attrs, "dcmMergeCFindMaxResults", proxyAEE.getMergeCFindMaxResults());
+        LdapUtils.storeNotEmpty(attrs, "dcmCFindCacheTimeout", proxyAEE.getCFindCacheTimeouts());
+        LdapUtils.storeNotNull(attrs, "dcmRelayCMoveAsCGet", proxyAEE.isRelayCMoveAsCGet());
+        LdapUtils.storeNotDef(attrs, "dcmRelayCacheSize", proxyAEE.getRelayCacheSize(), 0);
     }
 
     @Override
@@ -114,6 +142,26 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         proxyDev.setForwardThreads(LdapUtils.intValue(attrs.get("dcmForwardThreads"),
                 ProxyDeviceExtension.DEFAULT_FORWARD_THREADS));
         proxyDev.setConfigurationStaleTimeout(LdapUtils.intValue(attrs.get("dcmProxyConfigurationStaleTimeout"), 0));
+        proxyDev.setForwardBatchMaxObjects(LdapUtils.intValue(attrs.get("dcmForwardBatchMaxObjects"), 0));
+        proxyDev.setForwardBatchMaxSize(LdapUtils.intValue(attrs.get("dcmForwardBatchMaxSize"), 0));
+        proxyDev.setForwardAssociationIdleTimeout(LdapUtils.intValue(attrs.get("dcmForwardAssociationIdleTimeout"), 0));
+        proxyDev.setForwardThreadsPerDestination(LdapUtils.intValue(attrs.get("dcmForwardThreadsPerDestination"),
+                ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION));
+        proxyDev.setForwardPriorityAETitles(LdapUtils.stringArray(attrs.get("dcmForwardPriorityAETitle")));
+        proxyDev.setForwardPriorityThreads(LdapUtils.intValue(attrs.get("dcmForwardPriorityThreads"),
+                ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS));
+        proxyDev.setCircuitBreakerThreshold(LdapUtils.intValue(attrs.get("dcmCircuitBreakerThreshold"), 0));
+        proxyDev.setCircuitBreakerTimeout(LdapUtils.intValue(attrs.get("dcmCircuitBreakerTimeout"),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT));
+        proxyDev.setForwardAssociationPoolSize(LdapUtils.intValue(attrs.get("dcmForwardAssociationPoolSize"), 0));
+        proxyDev.setForwardAssociationCheckInterval(
+                LdapUtils.intValue(attrs.get("dcmForwardAssociationCheckInterval"), 0));
+        proxyDev.setPIXCacheTimeout(LdapUtils.intValue(attrs.get("dcmPIXCacheTimeout"), 0));
+        proxyDev.setPIXCacheNegativeTimeout(LdapUtils.intValue(attrs.get("dcmPIXCacheNegativeTimeout"), 0));
+        proxyDev.setPIXCacheSize(LdapUtils.intValue(attrs.get("dcmPIXCacheSize"),
+                ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE));
+        proxyDev.setCFindCacheSize(LdapUtils.intValue(attrs.get("dcmCFindCacheSize"),
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE));
     }
 
     @Override
@@ -132,6 +180,14 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         proxyAEE.setDeleteFailedDataWithoutRetryConfiguration(LdapUtils.booleanValue(
                 attrs.get("dcmDeleteFailedDataWithoutRetryConfiguration"), Boolean.FALSE));
         proxyAEE.setFallbackDestinationAET(LdapUtils.stringValue(attrs.get("dcmDestinationAETitle"), null));
+        proxyAEE.setSpoolDurability(SpoolDurability.valueOf(LdapUtils.stringValue(attrs.get("dcmSpoolDurability"),
+                SpoolDurability.PER_OBJECT.name())));
+        proxyAEE.setMergeCFindResponses(LdapUtils.booleanValue(attrs.get("dcmMergeCFindResponses"), Boolean.FALSE));
+        proxyAEE.setMergeCFindTimeout(LdapUtils.intValue(attrs.get("dcmMergeCFindTimeout"), 0));
+        proxyAEE.setMergeCFindMaxResults(LdapUtils.stringArray(attrs.get("dcmMergeCFindMaxResults")));
+        proxyAEE.setCFindCacheTimeouts(LdapUtils.stringArray(attrs.get("dcmCFindCacheTimeout")));
+        proxyAEE.setRelayCMoveAsCGet(LdapUtils.booleanValue(attrs.get("dcmRelayCMoveAsCGet"), Boolean.FALSE));
+        proxyAEE.setRelayCacheSize(LdapUtils.intValue(attrs.get("dcmRelayCacheSize"), 0));
     }
 
     @Override
@@ -220,7 +276,10 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
                 Retry retry = new Retry(RetryObject.valueOf(LdapUtils.stringValue(attrs.get("dcmRetryObject"), null)),
                         LdapUtils.intValue(attrs.get("dcmRetryDelay"), 60), LdapUtils.intValue(
                                 attrs.get("dcmRetryNum"), 10), LdapUtils.booleanValue(
-                                attrs.get("dcmDeleteAfterFinalRetry"), false));
+                                attrs.get("dcmDeleteAfterFinalRetry"), false), LdapUtils.intValue(
+                                attrs.get("dcmRetryBackoffFactor"), Retry.DEFAULT_BACKOFF_FACTOR),
+                        LdapUtils.intValue(attrs.get("dcmRetryMaxDelay"), 0), LdapUtils.intValue(
+                                attrs.get("dcmRetryJitter"), 0));
                 retries.add(retry);
             }
             proxyAEE.setRetries(retries);
@@ -298,6 +357,9 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeNotNull(attrs, "dcmRetryDelay", retry.getDelay());
         LdapUtils.storeNotNull(attrs, "dcmRetryNum", retry.getNumberOfRetries());
         LdapUtils.storeNotNull(attrs, "dcmDeleteAfterFinalRetry", retry.isDeleteAfterFinalRetry());
+        LdapUtils.storeNotDef(attrs, "dcmRetryBackoffFactor", retry.getBackoffFactor(), Retry.DEFAULT_BACKOFF_FACTOR);
+        LdapUtils.storeNotDef(attrs, "dcmRetryMaxDelay", retry.getMaxDelay(), 0);
+        LdapUtils.storeNotDef(attrs, "dcmRetryJitter", retry.getJitter(), 0);
         return attrs;
     }
 
@@ -344,6 +406,15 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
                 pa.isDeleteFailedDataWithoutRetryConfiguration(), pb.isDeleteFailedDataWithoutRetryConfiguration());
         LdapUtils.storeDiff(mods, "dcmDestinationAETitle", pa.getFallbackDestinationAET(),
                 pb.getFallbackDestinationAET());
+        LdapUtils.storeDiff(mods, "dcmSpoolDurability", pa.getSpoolDurability().name(),
+                pb.getSpoolDurability().name());
+        LdapUtils.storeDiff(mods, "dcmMergeCFindResponses", pa.isMergeCFindResponses(), pb.isMergeCFindResponses());
+        LdapUtils.storeDiff(mods, "dcmMergeCFindTimeout", pa.getMergeCFindTimeout(), pb.getMergeCFindTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmMergeCFindMaxResults", pa.getMergeCFindMaxResults(),
+                pb.getMergeCFindMaxResults());
+        LdapUtils.storeDiff(mods, "dcmCFindCacheTimeout", pa.getCFindCacheTimeouts(), pb.getCFindCacheTimeouts());
+        LdapUtils.storeDiff(mods, "dcmRelayCMoveAsCGet", pa.isRelayCMoveAsCGet(), pb.isRelayCMoveAsCGet());
+        LdapUtils.storeDiff(mods, "dcmRelayCacheSize", pa.getRelayCacheSize(), pb.getRelayCacheSize(), 0);
     }
 
     @Override
@@ -357,6 +428,32 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeDiff(mods, "dcmForwardThreads", pa.getForwardThreads(), pb.getForwardThreads());
         LdapUtils.storeDiff(mods, "dcmProxyConfigurationStaleTimeout", pa.getConfigurationStaleTimeout(),
                 pb.getConfigurationStaleTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmForwardBatchMaxObjects", pa.getForwardBatchMaxObjects(),
+                pb.getForwardBatchMaxObjects(), 0);
+        LdapUtils.storeDiff(mods, "dcmForwardBatchMaxSize", pa.getForwardBatchMaxSize(), pb.getForwardBatchMaxSize(), 0);
+        LdapUtils.storeDiff(mods, "dcmForwardAssociationIdleTimeout", pa.getForwardAssociationIdleTimeout(),
+                pb.getForwardAssociationIdleTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmForwardThreadsPerDestination", pa.getForwardThreadsPerDestination(),
+                pb.getForwardThreadsPerDestination(), ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION);
+        LdapUtils.storeDiff(mods, "dcmForwardPriorityAETitle", pa.getForwardPriorityAETitles(),
+                pb.getForwardPriorityAETitles());
+        LdapUtils.storeDiff(mods, "dcmForwardPriorityThreads", pa.getForwardPriorityThreads(),
+                pb.getForwardPriorityThreads(), ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS);
+        LdapUtils.storeDiff(mods, "dcmCircuitBreakerThreshold", pa.getCircuitBreakerThreshold(),
+                pb.getCircuitBreakerThreshold(), 0);
+        LdapUtils.storeDiff(mods, "dcmCircuitBreakerTimeout", pa.getCircuitBreakerTimeout(),
+                pb.getCircuitBreakerTimeout(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT);
+        LdapUtils.storeDiff(mods, "dcmForwardAssociationPoolSize", pa.getForwardAssociationPoolSize(),
+                pb.getForwardAssociationPoolSize(), 0);
+        LdapUtils.storeDiff(mods, "dcmForwardAssociationCheckInterval", pa.getForwardAssociationCheckInterval(),
+                pb.getForwardAssociationCheckInterval(), 0);
+        LdapUtils.storeDiff(mods, "dcmPIXCacheTimeout", pa.getPIXCacheTimeout(), pb.getPIXCacheTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmPIXCacheNegativeTimeout", pa.getPIXCacheNegativeTimeout(),
+                pb.getPIXCacheNegativeTimeout(), 0);
+        LdapUtils.storeDiff(mods, "dcmPIXCacheSize", pa.getPIXCacheSize(), pb.getPIXCacheSize(),
+                ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE);
+        LdapUtils.storeDiff(mods, "dcmCFindCacheSize", pa.getCFindCacheSize(), pb.getCFindCacheSize(),
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE);
     }
 
     @Override
@@ -474,6 +571,10 @@ public class LdapProxyConfigurationExtension extends LdapDicomConfigurationExten
         LdapUtils.storeDiff(mods, "dcmRetryNum", prev.getNumberOfRetries(), ac.getNumberOfRetries());
         LdapUtils.storeDiff(mods, "dcmDeleteAfterFinalRetry", prev.isDeleteAfterFinalRetry(),
                 ac.isDeleteAfterFinalRetry());
+        LdapUtils.storeDiff(mods, "dcmRetryBackoffFactor", prev.getBackoffFactor(), ac.getBackoffFactor(),
+                Retry.DEFAULT_BACKOFF_FACTOR);
+        LdapUtils.storeDiff(mods, "dcmRetryMaxDelay", prev.getMaxDelay(), ac.getMaxDelay(), 0);
+        LdapUtils.storeDiff(mods, "dcmRetryJitter", prev.getJitter(), ac.getJitter(), 0);
         return mods;
     }
 }
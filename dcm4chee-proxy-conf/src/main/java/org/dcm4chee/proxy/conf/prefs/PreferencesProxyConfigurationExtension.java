@@ -57,6 +57,7 @@ import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.conf.SpoolDurability;
 import org.dcm4chee.proxy.conf.Retry;
 import org.dcm4chee.proxy.conf.Schedule;
 import org.slf4j.Logger;
@@ -81,6 +82,28 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmForwardThreads", proxyDev.getForwardThreads());
         PreferencesUtils.storeNotDef(prefs, "dcmProxyConfigurationStaleTimeout",
                 proxyDev.getConfigurationStaleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardBatchMaxObjects", proxyDev.getForwardBatchMaxObjects(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardBatchMaxSize", proxyDev.getForwardBatchMaxSize(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardAssociationIdleTimeout",
+                proxyDev.getForwardAssociationIdleTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardThreadsPerDestination",
+                proxyDev.getForwardThreadsPerDestination(),
+                ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION);
+        PreferencesUtils.storeNotEmpty(prefs, "dcmForwardPriorityAETitle", proxyDev.getForwardPriorityAETitles());
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardPriorityThreads", proxyDev.getForwardPriorityThreads(),
+                ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS);
+        PreferencesUtils.storeNotDef(prefs, "dcmCircuitBreakerThreshold", proxyDev.getCircuitBreakerThreshold(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmCircuitBreakerTimeout", proxyDev.getCircuitBreakerTimeout(),
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardAssociationPoolSize", proxyDev.getForwardAssociationPoolSize(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmForwardAssociationCheckInterval",
+                proxyDev.getForwardAssociationCheckInterval(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmPIXCacheTimeout", proxyDev.getPIXCacheTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmPIXCacheNegativeTimeout", proxyDev.getPIXCacheNegativeTimeout(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmPIXCacheSize", proxyDev.getPIXCacheSize(),
+                ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE);
+        PreferencesUtils.storeNotDef(prefs, "dcmCFindCacheSize", proxyDev.getCFindCacheSize(),
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE);
     }
 
     @Override
@@ -101,6 +124,13 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmDeleteFailedDataWithoutRetryConfiguration",
                 proxyAE.isDeleteFailedDataWithoutRetryConfiguration());
         PreferencesUtils.storeNotNull(prefs, "dcmDestinationAETitle", proxyAE.getFallbackDestinationAET());
+        PreferencesUtils.storeNotNull(prefs, "dcmSpoolDurability", proxyAE.getSpoolDurability().name());
+        PreferencesUtils.storeNotNull(prefs, "dcmMergeCFindResponses", proxyAE.isMergeCFindResponses());
+        PreferencesUtils.storeNotDef(prefs, "dcmMergeCFindTimeout", proxyAE.getMergeCFindTimeout(), 0);
+        PreferencesUtils.storeNotEmpty(prefs, "dcmMergeCFindMaxResults", proxyAE.getMergeCFindMaxResults());
+        PreferencesUtils.storeNotEmpty(prefs, "dcmCFindCacheTimeout", proxyAE.getCFindCacheTimeouts());
+        PreferencesUtils.storeNotNull(prefs, "dcmRelayCMoveAsCGet", proxyAE.isRelayCMoveAsCGet());
+        PreferencesUtils.storeNotDef(prefs, "dcmRelayCacheSize", proxyAE.getRelayCacheSize(), 0);
     }
 
     @Override
@@ -114,6 +144,24 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                 ProxyDeviceExtension.DEFAULT_SCHEDULER_INTERVAL));
         proxyDev.setForwardThreads(prefs.getInt("dcmForwardThreads", ProxyDeviceExtension.DEFAULT_FORWARD_THREADS));
         proxyDev.setConfigurationStaleTimeout(prefs.getInt("dcmProxyConfigurationStaleTimeout", 0));
+        proxyDev.setForwardBatchMaxObjects(prefs.getInt("dcmForwardBatchMaxObjects", 0));
+        proxyDev.setForwardBatchMaxSize(prefs.getInt("dcmForwardBatchMaxSize", 0));
+        proxyDev.setForwardAssociationIdleTimeout(prefs.getInt("dcmForwardAssociationIdleTimeout", 0));
+        proxyDev.setForwardThreadsPerDestination(prefs.getInt("dcmForwardThreadsPerDestination",
+                ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION));
+        proxyDev.setForwardPriorityAETitles(PreferencesUtils.stringArray(prefs, "dcmForwardPriorityAETitle"));
+        proxyDev.setForwardPriorityThreads(prefs.getInt("dcmForwardPriorityThreads",
+                ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS));
+        proxyDev.setCircuitBreakerThreshold(prefs.getInt("dcmCircuitBreakerThreshold", 0));
+        proxyDev.setCircuitBreakerTimeout(prefs.getInt("dcmCircuitBreakerTimeout",
+                ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT));
+        proxyDev.setForwardAssociationPoolSize(prefs.getInt("dcmForwardAssociationPoolSize", 0));
+        proxyDev.setForwardAssociationCheckInterval(prefs.getInt("dcmForwardAssociationCheckInterval", 0));
+        proxyDev.setPIXCacheTimeout(prefs.getInt("dcmPIXCacheTimeout", 0));
+        proxyDev.setPIXCacheNegativeTimeout(prefs.getInt("dcmPIXCacheNegativeTimeout", 0));
+        proxyDev.setPIXCacheSize(prefs.getInt("dcmPIXCacheSize", ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE));
+        proxyDev.setCFindCacheSize(prefs.getInt("dcmCFindCacheSize",
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE));
     }
 
     @Override
@@ -131,6 +179,14 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         proxyAEE.setDeleteFailedDataWithoutRetryConfiguration(prefs.getBoolean(
                 "dcmDeleteFailedDataWithoutRetryConfiguration", false));
         proxyAEE.setFallbackDestinationAET(prefs.get("dcmDestinationAETitle", null));
+        proxyAEE.setSpoolDurability(SpoolDurability.valueOf(prefs.get("dcmSpoolDurability",
+                SpoolDurability.PER_OBJECT.name())));
+        proxyAEE.setMergeCFindResponses(prefs.getBoolean("dcmMergeCFindResponses", false));
+        proxyAEE.setMergeCFindTimeout(prefs.getInt("dcmMergeCFindTimeout", 0));
+        proxyAEE.setMergeCFindMaxResults(PreferencesUtils.stringArray(prefs, "dcmMergeCFindMaxResults"));
+        proxyAEE.setCFindCacheTimeouts(PreferencesUtils.stringArray(prefs, "dcmCFindCacheTimeout"));
+        proxyAEE.setRelayCMoveAsCGet(prefs.getBoolean("dcmRelayCMoveAsCGet", false));
+        proxyAEE.setRelayCacheSize(prefs.getInt("dcmRelayCacheSize", 0));
     }
 
     @Override
@@ -208,7 +264,10 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                             RetryObject.valueOf(retryName), 
                             retryNode.getInt("dcmRetryDelay", Retry.DEFAULT_DELAY), 
                             retryNode.getInt("dcmRetryNum", Retry.DEFAULT_RETRIES),
-                            retryNode.getBoolean("dcmDeleteAfterFinalRetry", false));
+                            retryNode.getBoolean("dcmDeleteAfterFinalRetry", false),
+                            retryNode.getInt("dcmRetryBackoffFactor", Retry.DEFAULT_BACKOFF_FACTOR),
+                            retryNode.getInt("dcmRetryMaxDelay", 0),
+                            retryNode.getInt("dcmRetryJitter", 0));
             retries.add(retry);
         }
         proxyAE.setRetries(retries);
@@ -283,6 +342,10 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeNotNull(prefs, "dcmRetryDelay", retry.getDelay());
         PreferencesUtils.storeNotNull(prefs, "dcmRetryNum", retry.getNumberOfRetries());
         PreferencesUtils.storeNotNull(prefs, "dcmDeleteAfterFinalRetry", retry.isDeleteAfterFinalRetry());
+        PreferencesUtils.storeNotDef(prefs, "dcmRetryBackoffFactor", retry.getBackoffFactor(),
+                Retry.DEFAULT_BACKOFF_FACTOR);
+        PreferencesUtils.storeNotDef(prefs, "dcmRetryMaxDelay", retry.getMaxDelay(), 0);
+        PreferencesUtils.storeNotDef(prefs, "dcmRetryJitter", retry.getJitter(), 0);
     }
 
     @Override
@@ -304,6 +367,18 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
                 pa.isDeleteFailedDataWithoutRetryConfiguration(), pb.isDeleteFailedDataWithoutRetryConfiguration());
         PreferencesUtils.storeDiff(prefs, "dcmDestinationAETitle", pa.getFallbackDestinationAET(),
                 pb.getFallbackDestinationAET());
+        PreferencesUtils.storeDiff(prefs, "dcmSpoolDurability", pa.getSpoolDurability().name(),
+                pb.getSpoolDurability().name());
+        PreferencesUtils.storeDiff(prefs, "dcmMergeCFindResponses", pa.isMergeCFindResponses(),
+                pb.isMergeCFindResponses());
+        PreferencesUtils.storeDiff(prefs, "dcmMergeCFindTimeout", pa.getMergeCFindTimeout(),
+                pb.getMergeCFindTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmMergeCFindMaxResults", pa.getMergeCFindMaxResults(),
+                pb.getMergeCFindMaxResults());
+        PreferencesUtils.storeDiff(prefs, "dcmCFindCacheTimeout", pa.getCFindCacheTimeouts(),
+                pb.getCFindCacheTimeouts());
+        PreferencesUtils.storeDiff(prefs, "dcmRelayCMoveAsCGet", pa.isRelayCMoveAsCGet(), pb.isRelayCMoveAsCGet());
+        PreferencesUtils.storeDiff(prefs, "dcmRelayCacheSize", pa.getRelayCacheSize(), pb.getRelayCacheSize(), 0);
     }
 
     @Override
@@ -317,6 +392,33 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeDiff(prefs, "dcmForwardThreads", pa.getForwardThreads(), pb.getForwardThreads());
         PreferencesUtils.storeDiff(prefs, "dcmProxyConfigurationStaleTimeout", pa.getConfigurationStaleTimeout(),
                 pb.getConfigurationStaleTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardBatchMaxObjects", pa.getForwardBatchMaxObjects(),
+                pb.getForwardBatchMaxObjects(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardBatchMaxSize", pa.getForwardBatchMaxSize(),
+                pb.getForwardBatchMaxSize(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardAssociationIdleTimeout", pa.getForwardAssociationIdleTimeout(),
+                pb.getForwardAssociationIdleTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardThreadsPerDestination", pa.getForwardThreadsPerDestination(),
+                pb.getForwardThreadsPerDestination(), ProxyDeviceExtension.DEFAULT_FORWARD_THREADS_PER_DESTINATION);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardPriorityAETitle", pa.getForwardPriorityAETitles(),
+                pb.getForwardPriorityAETitles());
+        PreferencesUtils.storeDiff(prefs, "dcmForwardPriorityThreads", pa.getForwardPriorityThreads(),
+                pb.getForwardPriorityThreads(), ProxyDeviceExtension.DEFAULT_FORWARD_PRIORITY_THREADS);
+        PreferencesUtils.storeDiff(prefs, "dcmCircuitBreakerThreshold", pa.getCircuitBreakerThreshold(),
+                pb.getCircuitBreakerThreshold(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmCircuitBreakerTimeout", pa.getCircuitBreakerTimeout(),
+                pb.getCircuitBreakerTimeout(), ProxyDeviceExtension.DEFAULT_CIRCUIT_BREAKER_TIMEOUT);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardAssociationPoolSize", pa.getForwardAssociationPoolSize(),
+                pb.getForwardAssociationPoolSize(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmForwardAssociationCheckInterval", pa.getForwardAssociationCheckInterval(),
+                pb.getForwardAssociationCheckInterval(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmPIXCacheTimeout", pa.getPIXCacheTimeout(), pb.getPIXCacheTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmPIXCacheNegativeTimeout", pa.getPIXCacheNegativeTimeout(),
+                pb.getPIXCacheNegativeTimeout(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmPIXCacheSize", pa.getPIXCacheSize(), pb.getPIXCacheSize(),
+                ProxyDeviceExtension.DEFAULT_PIX_CACHE_SIZE);
+        PreferencesUtils.storeDiff(prefs, "dcmCFindCacheSize", pa.getCFindCacheSize(), pb.getCFindCacheSize(),
+                ProxyDeviceExtension.DEFAULT_CFIND_CACHE_SIZE);
     }
 
     @Override
@@ -442,5 +544,9 @@ public class PreferencesProxyConfigurationExtension extends PreferencesDicomConf
         PreferencesUtils.storeDiff(prefs, "dcmRetryNum", a.getNumberOfRetries(), b.getNumberOfRetries());
         PreferencesUtils.storeDiff(prefs, "dcmDeleteAfterFinalRetry", a.isDeleteAfterFinalRetry(),
                 b.isDeleteAfterFinalRetry());
+        PreferencesUtils.storeDiff(prefs, "dcmRetryBackoffFactor", a.getBackoffFactor(), b.getBackoffFactor(),
+                Retry.DEFAULT_BACKOFF_FACTOR);
+        PreferencesUtils.storeDiff(prefs, "dcmRetryMaxDelay", a.getMaxDelay(), b.getMaxDelay(), 0);
+        PreferencesUtils.storeDiff(prefs, "dcmRetryJitter", a.getJitter(), b.getJitter(), 0);
     }
 }
\ No newline at end of file
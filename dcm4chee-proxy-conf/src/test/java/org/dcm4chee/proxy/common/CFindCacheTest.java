@@ -0,0 +1,198 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CFindCacheTest {
+
+    private static final String CUID = UID.StudyRootQueryRetrieveInformationModelFIND;
+
+    private static Attributes attrs(String patientID, String studyIUID) {
+        Attributes attrs = new Attributes();
+        if (patientID != null)
+            attrs.setString(Tag.PatientID, VR.LO, patientID);
+        if (studyIUID != null)
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+        return attrs;
+    }
+
+    private static String key(Attributes keys) throws Exception {
+        return CFindCache.keyOf("FINDSCU", CUID, Arrays.asList("PACS1", "PACS2"), keys);
+    }
+
+    private static String put(CFindCache cache, String key, Attributes keys, int maxSize, Attributes... matches) {
+        CFindCache.Recorder recorder = cache.newRecorder(key, keys, 60000, maxSize);
+        for (Attributes match : matches)
+            recorder.add(match);
+        Assert.assertTrue(recorder.commit());
+        return key;
+    }
+
+    @Test
+    public void testKeyOf() throws Exception {
+        Attributes keys = attrs("P1", null);
+        String key = key(keys);
+        Assert.assertEquals(key, CFindCache.keyOf("FINDSCU", CUID, Arrays.asList("PACS2", "PACS1"), attrs("P1", null)));
+        Assert.assertFalse(key.equals(CFindCache.keyOf("OTHERSCU", CUID, Arrays.asList("PACS1", "PACS2"), keys)));
+        Assert.assertFalse(key.equals(CFindCache.keyOf("FINDSCU", CUID, Arrays.asList("PACS1"), keys)));
+        Assert.assertFalse(key.equals(key(attrs("P2", null))));
+    }
+
+    @Test
+    public void testRecordAndGet() throws Exception {
+        CFindCache cache = new CFindCache();
+        Assert.assertTrue(cache.isEmpty());
+        Attributes keys = attrs("P1", null);
+        String key = key(keys);
+        Assert.assertNull(cache.get(key));
+
+        CFindCache.Recorder recorder = cache.newRecorder(key, keys, 60000, 10);
+        Assert.assertFalse(cache.isEmpty());
+        recorder.add(attrs("P1", "1.2.1"));
+        recorder.add(attrs("P1", "1.2.2"));
+        Assert.assertTrue(recorder.commit());
+        List<Attributes> matches = cache.get(key);
+        Assert.assertEquals(2, matches.size());
+        Assert.assertEquals("1.2.2", matches.get(1).getString(Tag.StudyInstanceUID));
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        CFindCache cache = new CFindCache();
+        Attributes keys = attrs("P1", null);
+        CFindCache.Recorder recorder = cache.newRecorder(key(keys), keys, 1, 10);
+        recorder.add(attrs("P1", "1.2.1"));
+        Assert.assertTrue(recorder.commit());
+        Thread.sleep(10);
+        Assert.assertNull(cache.get(key(keys)));
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testInvalidateByStudyAndPatient() throws Exception {
+        CFindCache cache = new CFindCache();
+        Attributes studyKeys = attrs("P1", null);
+        String studyQuery = put(cache, key(studyKeys), studyKeys, 10, attrs("P1", "1.2.1"), attrs("P1", "1.2.2"));
+        Attributes seriesKeys = attrs(null, "1.2.3");
+        String seriesQuery = put(cache, key(seriesKeys), seriesKeys, 10, attrs(null, "1.2.3"));
+
+        cache.invalidate("P9", "1.2.9");
+        Assert.assertEquals(2, cache.getEntryCount());
+        // by a study of a match
+        cache.invalidate(null, "1.2.2");
+        Assert.assertNull(cache.get(studyQuery));
+        Assert.assertNotNull(cache.get(seriesQuery));
+        // by the patient of the query keys
+        studyQuery = put(cache, key(studyKeys), studyKeys, 10);
+        cache.invalidate("P1", null);
+        Assert.assertNull(cache.get(studyQuery));
+        Assert.assertEquals(2, cache.getInvalidations());
+        cache.invalidate(null, "1.2.3");
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testRecorderInvalidatedWhileQueryIsRunning() throws Exception {
+        CFindCache cache = new CFindCache();
+        Attributes keys = attrs("P1", null);
+        CFindCache.Recorder recorder = cache.newRecorder(key(keys), keys, 60000, 10);
+        recorder.add(attrs("P1", "1.2.1"));
+        cache.invalidate(null, "1.2.1");
+        Assert.assertFalse(recorder.commit());
+        Assert.assertNull(cache.get(key(keys)));
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        CFindCache cache = new CFindCache();
+        Attributes keys = attrs("P1", null);
+        CFindCache.Recorder recorder = cache.newRecorder(key(keys), keys, 60000, 10);
+        recorder.add(attrs("P1", "1.2.1"));
+        recorder.discard();
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertFalse(recorder.commit());
+        Assert.assertNull(cache.get(key(keys)));
+    }
+
+    @Test
+    public void testTooManyMatchesNotCached() throws Exception {
+        CFindCache cache = new CFindCache();
+        Attributes keys = attrs("P1", null);
+        CFindCache.Recorder recorder = cache.newRecorder(key(keys), keys, 60000, 2);
+        recorder.add(attrs("P1", "1.2.1"));
+        recorder.add(attrs("P1", "1.2.2"));
+        recorder.add(attrs("P1", "1.2.3"));
+        Assert.assertFalse(recorder.commit());
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        CFindCache cache = new CFindCache();
+        String query1 = put(cache, "query1", new Attributes(), 4, attrs("P1", null), attrs("P1", null));
+        String query2 = put(cache, "query2", new Attributes(), 4, attrs("P2", null), attrs("P2", null));
+        Assert.assertNotNull(cache.get(query1));
+        String query3 = put(cache, "query3", new Attributes(), 4, attrs("P3", null));
+        Assert.assertNull(cache.get(query2));
+        Assert.assertNotNull(cache.get(query1));
+        Assert.assertNotNull(cache.get(query3));
+        Assert.assertEquals(3, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+        // indices of evicted entries are dropped
+        cache.invalidate("P2", null);
+        Assert.assertEquals(0, cache.getInvalidations());
+    }
+}
@@ -0,0 +1,118 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CMoveInfoTableTest {
+
+    private static CMoveInfoObject newInfo(int sourceMsgId) {
+        return new CMoveInfoObject("MOVESCU", "STORESCP", "PACS", "PROXY", sourceMsgId, null);
+    }
+
+    @Test
+    public void testAddGetRemove() {
+        CMoveInfoTable table = new CMoveInfoTable();
+        CMoveInfoObject info1 = newInfo(1);
+        CMoveInfoObject info2 = newInfo(2);
+        int msgId1 = table.add(info1);
+        int msgId2 = table.add(info2);
+        Assert.assertTrue(msgId1 > 0 && msgId1 <= CMoveInfoTable.MAX_MESSAGE_ID);
+        Assert.assertTrue(msgId2 > 0 && msgId2 != msgId1);
+        Assert.assertSame(info1, table.get(msgId1));
+        Assert.assertSame(info2, table.get(msgId2));
+        Assert.assertEquals(2, table.getActiveCount());
+
+        Assert.assertSame(info1, table.remove(msgId1));
+        Assert.assertNull(table.get(msgId1));
+        Assert.assertNull(table.remove(msgId1));
+        Assert.assertTrue(table.remove(msgId2, info2));
+        Assert.assertFalse(table.remove(msgId2, info2));
+        Assert.assertEquals(0, table.getActiveCount());
+        Assert.assertEquals(0, table.getExpiredCount());
+    }
+
+    @Test
+    public void testExpiredMessageIDIsReused() {
+        CMoveInfoTable table = new CMoveInfoTable(0);
+        int msgId = table.add(newInfo(0));
+        for (int i = 1; i < CMoveInfoTable.MAX_MESSAGE_ID; i++)
+            Assert.assertTrue(table.add(newInfo(i)) > 0);
+        Assert.assertEquals(0, table.getExpiredCount());
+
+        // the IDs wrapped around, the expired entry is replaced
+        CMoveInfoObject info = newInfo(1);
+        Assert.assertEquals(msgId, table.add(info));
+        Assert.assertEquals(1, table.getExpiredCount());
+        Assert.assertNull(table.get(msgId));
+        Assert.assertEquals(2, table.getExpiredCount());
+        Assert.assertEquals(0, table.getActiveCount());
+    }
+
+    @Test
+    public void testAddFailsIfAllMessageIDsAreInUse() {
+        CMoveInfoTable table = new CMoveInfoTable();
+        for (int i = 0; i < CMoveInfoTable.MAX_MESSAGE_ID; i++)
+            Assert.assertTrue(table.add(newInfo(i)) > 0);
+        Assert.assertEquals(-1, table.add(newInfo(0)));
+        Assert.assertEquals(CMoveInfoTable.MAX_MESSAGE_ID, table.getActiveCount());
+
+        table.remove(1);
+        Assert.assertEquals(1, table.add(newInfo(0)));
+    }
+
+    @Test
+    public void testRemoveKeepsReusedMessageID() {
+        CMoveInfoTable table = new CMoveInfoTable(0);
+        CMoveInfoObject expired = newInfo(1);
+        int msgId = table.add(expired);
+        for (int i = 1; i < CMoveInfoTable.MAX_MESSAGE_ID; i++)
+            table.add(newInfo(i));
+        CMoveInfoObject reused = newInfo(2);
+        Assert.assertEquals(msgId, table.add(reused));
+
+        // e.g. the final C-MOVE-RSP of the expired context arrives late
+        Assert.assertFalse(table.remove(msgId, expired));
+        Assert.assertTrue(table.remove(msgId, reused));
+    }
+}
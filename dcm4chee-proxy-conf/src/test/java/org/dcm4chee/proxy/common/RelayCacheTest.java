@@ -0,0 +1,248 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RelayCacheTest {
+
+    private static final String SOURCES = RelayCache.sourceKeyOf(Arrays.asList("PACS1"));
+    private static final String OTHER_SOURCES = RelayCache.sourceKeyOf(Arrays.asList("PACS2"));
+
+    private File dir;
+    private RelayCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("relay", "");
+        dir.delete();
+        dir.mkdir();
+        cache = new RelayCache(dir, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        cache.setMaxSize(0);
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private RelayCache.Instance instance(String studyIUID, String seriesIUID, String iuid, int length)
+            throws IOException {
+        File file = cache.createFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return new RelayCache.Instance(file, UID.CTImageStorage, iuid, UID.ExplicitVRLittleEndian, studyIUID,
+                seriesIUID);
+    }
+
+    private static Attributes keys(String level, String studyIUID, String seriesIUID, String... iuids) {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+        keys.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+        if (seriesIUID != null)
+            keys.setString(Tag.SeriesInstanceUID, VR.UI, seriesIUID);
+        if (iuids.length > 0)
+            keys.setString(Tag.SOPInstanceUID, VR.UI, iuids);
+        return keys;
+    }
+
+    private void stageStudy(String studyIUID) throws IOException {
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys("STUDY", studyIUID, null));
+        recorder.add(instance(studyIUID, "1.2.1", "1.2.1.1", 100));
+        recorder.add(instance(studyIUID, "1.2.2", "1.2.2.1", 100));
+        recorder.commit(true);
+    }
+
+    @Test
+    public void testLeftoverFilesDeleted() throws IOException {
+        new File(dir, "leftover.dcm").createNewFile();
+        new RelayCache(dir, 1000);
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testSourceKeyOf() {
+        Assert.assertEquals(RelayCache.sourceKeyOf(Arrays.asList("PACS1", "PACS2")),
+                RelayCache.sourceKeyOf(Arrays.asList("PACS2", "PACS1")));
+        Assert.assertFalse(SOURCES.equals(OTHER_SOURCES));
+    }
+
+    @Test
+    public void testStudyHit() throws IOException {
+        Attributes keys = keys("STUDY", "1.2", null);
+        Assert.assertNull(cache.lookup(SOURCES, keys));
+        stageStudy("1.2");
+        Assert.assertEquals(200, cache.getSize());
+        RelayCache.Lease lease = cache.lookup(SOURCES, keys);
+        Assert.assertNotNull(lease);
+        Assert.assertEquals(2, lease.getInstances().size());
+        lease.release();
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testStagedPerSources() throws IOException {
+        stageStudy("1.2");
+        Assert.assertNull(cache.lookup(OTHER_SOURCES, keys("STUDY", "1.2", null)));
+    }
+
+    @Test
+    public void testSeriesAndImageLevel() throws IOException {
+        stageStudy("1.2");
+        RelayCache.Lease lease = cache.lookup(SOURCES, keys("SERIES", "1.2", "1.2.2"));
+        Assert.assertEquals(1, lease.getInstances().size());
+        Assert.assertEquals("1.2.2.1", lease.getInstances().get(0).iuid);
+        lease.release();
+        lease = cache.lookup(SOURCES, keys("IMAGE", "1.2", "1.2.1", "1.2.1.1"));
+        Assert.assertEquals(1, lease.getInstances().size());
+        lease.release();
+        // not all requested instances are staged
+        Assert.assertNull(cache.lookup(SOURCES, keys("IMAGE", "1.2", "1.2.1", "1.2.1.1", "1.2.1.2")));
+    }
+
+    @Test
+    public void testIncompleteRetrieveNotServed() throws IOException {
+        Attributes keys = keys("STUDY", "1.2", null);
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys);
+        recorder.add(instance("1.2", "1.2.1", "1.2.1.1", 100));
+        recorder.commit(false);
+        Assert.assertNull(cache.lookup(SOURCES, keys));
+        // staged instances are still found by their SOP Instance UID
+        RelayCache.Lease lease = cache.lookup(SOURCES, keys("IMAGE", "1.2", "1.2.1", "1.2.1.1"));
+        Assert.assertNotNull(lease);
+        lease.release();
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        stageStudy("1.2");
+        RelayCache.Lease lease = cache.lookup(SOURCES, keys("STUDY", "1.2", null));
+        cache.invalidate("1.2");
+        Assert.assertNull(cache.lookup(SOURCES, keys("STUDY", "1.2", null)));
+        // files of a leased study are kept until the lease is released
+        for (RelayCache.Instance instance : lease.getInstances())
+            Assert.assertTrue(instance.file.exists());
+        lease.release();
+        cache.invalidate("1.2");
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testRecorderInvalidatedWhileRetrieving() throws IOException {
+        Attributes keys = keys("STUDY", "1.2", null);
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys);
+        recorder.add(instance("1.2", "1.2.1", "1.2.1.1", 100));
+        cache.invalidate("1.2");
+        recorder.commit(true);
+        Assert.assertNull(cache.lookup(SOURCES, keys));
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys("STUDY", "1.2", null));
+        recorder.add(instance("1.2", "1.2.1", "1.2.1.1", 100));
+        recorder.discard();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        stageStudy("1.2");
+        stageStudy("1.3");
+        cache.lookup(SOURCES, keys("STUDY", "1.2", null)).release();
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys("STUDY", "1.4", null));
+        recorder.add(instance("1.4", "1.4.1", "1.4.1.1", 700));
+        recorder.commit(true);
+        Assert.assertEquals(2, cache.getStudyCount());
+        Assert.assertEquals(900, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNull(cache.lookup(SOURCES, keys("STUDY", "1.3", null)));
+        cache.lookup(SOURCES, keys("STUDY", "1.2", null)).release();
+
+        cache.setMaxSize(0);
+        Assert.assertEquals(0, cache.getStudyCount());
+        Assert.assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testLeasedStudyNotEvicted() throws IOException {
+        stageStudy("1.2");
+        RelayCache.Lease lease = cache.lookup(SOURCES, keys("STUDY", "1.2", null));
+        stageStudy("1.3");
+        stageStudy("1.4");
+        RelayCache.Recorder recorder = cache.newRecorder(SOURCES, keys("STUDY", "1.5", null));
+        recorder.add(instance("1.5", "1.5.1", "1.5.1.1", 500));
+        recorder.commit(true);
+        // the leased study is skipped and moved to the back
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNull(cache.lookup(SOURCES, keys("STUDY", "1.3", null)));
+        lease.release();
+
+        stageStudy("1.6");
+        Assert.assertEquals(2, cache.getEvictions());
+        Assert.assertNull(cache.lookup(SOURCES, keys("STUDY", "1.4", null)));
+        Assert.assertNotNull(cache.lookup(SOURCES, keys("STUDY", "1.2", null)));
+    }
+}
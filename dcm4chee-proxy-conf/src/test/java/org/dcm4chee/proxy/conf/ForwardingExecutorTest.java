@@ -0,0 +1,158 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardingExecutorTest {
+
+    private static final String[] NO_PRIORITY = {};
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    private Runnable blockingTask() {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                started.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.incrementAndGet();
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void awaitValue(AtomicInteger value, int expected) throws InterruptedException {
+        for (int i = 0; i < 1000 && value.get() < expected; i++)
+            Thread.sleep(10);
+        Assert.assertEquals(expected, value.get());
+    }
+
+    @Test
+    public void testThreadsPerDestination() throws Exception {
+        ForwardingExecutor executor = new ForwardingExecutor(4, 2, NO_PRIORITY, 0);
+        for (int i = 0; i < 5; i++)
+            executor.execute("A", blockingTask());
+        awaitValue(started, 2);
+        Assert.assertEquals(2, executor.getInFlight("A"));
+        Assert.assertEquals(3, executor.getQueueDepth("A"));
+
+        // other destinations are not blocked by the limit of A
+        CountDownLatch other = new CountDownLatch(1);
+        executor.execute("B", countDown(other));
+        Assert.assertTrue(other.await(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        awaitValue(finished, 5);
+        executor.shutdown(new ForwardingExecutor(1, 1, NO_PRIORITY, 0));
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPriorityLane() throws Exception {
+        ForwardingExecutor executor = new ForwardingExecutor(1, 0, new String[] { "PRIO" }, 1);
+        Assert.assertTrue(executor.isPriority("PRIO"));
+        Assert.assertFalse(executor.isPriority("A"));
+        executor.execute("A", blockingTask());
+        awaitValue(started, 1);
+
+        // the only thread of the default lane is busy
+        CountDownLatch prio = new CountDownLatch(1);
+        executor.execute("PRIO", countDown(prio));
+        Assert.assertTrue(prio.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        awaitValue(finished, 1);
+    }
+
+    @Test
+    public void testShutdownHandsOverQueuedTasks() throws Exception {
+        ForwardingExecutor executor = new ForwardingExecutor(1, 1, NO_PRIORITY, 0);
+        executor.execute("A", blockingTask());
+        awaitValue(started, 1);
+        CountDownLatch queued = new CountDownLatch(2);
+        executor.execute("A", countDown(queued));
+        executor.execute("B", countDown(queued));
+
+        ForwardingExecutor successor = new ForwardingExecutor(2, 1, NO_PRIORITY, 0);
+        executor.shutdown(successor);
+        Assert.assertEquals(0, executor.getQueueDepth("A"));
+        // run by the successor while the task in flight still blocks the old lane
+        Assert.assertTrue(queued.await(10, TimeUnit.SECONDS));
+
+        CountDownLatch later = new CountDownLatch(1);
+        executor.execute("A", countDown(later));
+        Assert.assertTrue(later.await(10, TimeUnit.SECONDS));
+
+        Assert.assertFalse(executor.awaitTermination(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, finished.get());
+        successor.shutdown(new ForwardingExecutor(1, 1, NO_PRIORITY, 0));
+    }
+}
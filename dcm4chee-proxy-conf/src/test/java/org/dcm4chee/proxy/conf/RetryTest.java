@@ -0,0 +1,115 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import org.dcm4chee.proxy.common.RetryObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RetryTest {
+
+    @Test
+    public void testFixedDelay() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 60, 10, false);
+        Assert.assertEquals(60000L, retry.getBackoffDelayMillis(1));
+        Assert.assertEquals(60000L, retry.getBackoffDelayMillis(5));
+        Assert.assertEquals(60000L, retry.getRetryDelayMillis(5));
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 10, 10, false, 2, 0, 0);
+        Assert.assertEquals(10000L, retry.getBackoffDelayMillis(0));
+        Assert.assertEquals(10000L, retry.getBackoffDelayMillis(1));
+        Assert.assertEquals(20000L, retry.getBackoffDelayMillis(2));
+        Assert.assertEquals(40000L, retry.getBackoffDelayMillis(3));
+        Assert.assertEquals(80000L, retry.getBackoffDelayMillis(4));
+    }
+
+    @Test
+    public void testMaxDelay() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 10, 10, false, 3, 100, 0);
+        Assert.assertEquals(90000L, retry.getBackoffDelayMillis(3));
+        Assert.assertEquals(100000L, retry.getBackoffDelayMillis(4));
+        Assert.assertEquals(100000L, retry.getBackoffDelayMillis(1000));
+    }
+
+    @Test
+    public void testUnboundedBackoffDoesNotOverflow() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 60, 10, false, 10, 0, 0);
+        long delay = retry.getBackoffDelayMillis(1000);
+        Assert.assertTrue(delay > 0);
+        Assert.assertTrue(System.currentTimeMillis() + delay > 0);
+    }
+
+    @Test
+    public void testJitter() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 100, 10, false, 1, 0, 20);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = retry.getRetryDelayMillis(1);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        Assert.assertTrue(min >= 80000L);
+        Assert.assertTrue(max <= 120000L);
+        // the delays are spread, not all the same
+        Assert.assertTrue(max - min > 1000L);
+    }
+
+    @Test
+    public void testNoJitterWithoutDelay() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 0, 10, false, 2, 0, 50);
+        Assert.assertEquals(0L, retry.getRetryDelayMillis(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBackoffFactor() {
+        new Retry(RetryObject.ConnectionException, 60, 10, false, 0, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        new Retry(RetryObject.ConnectionException, 60, 10, false, 1, 0, 101);
+    }
+}
@@ -0,0 +1,117 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.conf;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ScheduleTest {
+
+    // January 2013 in the default time zone used by the schedule, the 16th is a Wednesday
+    private static long time(int dayOfMonth, int hour, int minute) {
+        Calendar cal = new GregorianCalendar(2013, Calendar.JANUARY, dayOfMonth, hour, minute);
+        return cal.getTimeInMillis();
+    }
+
+    private static Schedule newSchedule(String days, String hours) {
+        Schedule schedule = new Schedule();
+        schedule.setDays(days);
+        schedule.setHours(hours);
+        return schedule;
+    }
+
+    @Test
+    public void testIsActive() {
+        Schedule schedule = newSchedule("Mon-Fri", "8-17");
+        Assert.assertTrue(schedule.isActive(time(16, 8, 0)));
+        Assert.assertTrue(schedule.isActive(time(16, 17, 59)));
+        Assert.assertFalse(schedule.isActive(time(16, 7, 59)));
+        Assert.assertFalse(schedule.isActive(time(16, 18, 0)));
+        Assert.assertFalse(schedule.isActive(time(19, 10, 0)));
+        Assert.assertEquals(schedule.isNow(new GregorianCalendar()), schedule.isActive(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testNextTransition() {
+        Schedule schedule = newSchedule("Mon-Fri", "8-17");
+        Assert.assertEquals(time(16, 18, 0), schedule.nextTransition(time(16, 10, 30)));
+        Assert.assertEquals(time(17, 8, 0), schedule.nextTransition(time(16, 18, 0)));
+        Assert.assertEquals(time(17, 8, 0), schedule.nextTransition(time(16, 23, 59)));
+        // Friday evening until Monday morning
+        Assert.assertEquals(time(21, 8, 0), schedule.nextTransition(time(18, 19, 0)));
+        Assert.assertEquals(time(21, 8, 0), schedule.nextTransition(time(20, 12, 0)));
+    }
+
+    @Test
+    public void testRangesWrapAround() {
+        Schedule schedule = newSchedule("Fri-Mon", "22-2");
+        Assert.assertTrue(schedule.isActive(time(18, 23, 0)));
+        Assert.assertTrue(schedule.isActive(time(21, 1, 0)));
+        Assert.assertFalse(schedule.isActive(time(21, 3, 0)));
+        Assert.assertEquals(time(21, 3, 0), schedule.nextTransition(time(21, 0, 30)));
+        Assert.assertEquals(time(21, 22, 0), schedule.nextTransition(time(21, 3, 0)));
+        // the hours after midnight belong to Tuesday, which is not scheduled
+        Assert.assertEquals(time(22, 0, 0), schedule.nextTransition(time(21, 23, 0)));
+        Assert.assertEquals(time(25, 0, 0), schedule.nextTransition(time(22, 0, 0)));
+    }
+
+    @Test
+    public void testAlwaysActive() {
+        Schedule schedule = new Schedule();
+        Assert.assertTrue(schedule.isActive(time(16, 12, 0)));
+        Assert.assertEquals(Long.MAX_VALUE, schedule.nextTransition(time(16, 12, 0)));
+    }
+
+    @Test
+    public void testChangeResetsCachedWindow() {
+        Schedule schedule = newSchedule("Mon-Fri", "8-17");
+        Assert.assertTrue(schedule.isActive(time(16, 12, 0)));
+        Assert.assertEquals(time(16, 18, 0), schedule.nextTransition(time(16, 12, 0)));
+
+        schedule.setHours("13-14");
+        Assert.assertFalse(schedule.isActive(time(16, 12, 0)));
+        Assert.assertEquals(time(16, 13, 0), schedule.nextTransition(time(16, 12, 0)));
+    }
+}
@@ -67,6 +67,10 @@ import org.dcm4che.net.DeviceService;
 import org.dcm4che.net.audit.AuditLogger;
 import org.dcm4che.net.service.DicomServiceRegistry;
 import org.dcm4chee.proxy.audit.AuditLog;
+import org.dcm4chee.proxy.common.CFindCache;
+import org.dcm4chee.proxy.common.CMoveInfoTable;
+import org.dcm4chee.proxy.common.RelayCache;
+import org.dcm4chee.proxy.conf.ForwardingExecutor;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.dimse.CEcho;
@@ -76,7 +80,10 @@ import org.dcm4chee.proxy.dimse.CMove;
 import org.dcm4chee.proxy.dimse.CStore;
 import org.dcm4chee.proxy.dimse.Mpps;
 import org.dcm4chee.proxy.dimse.StgCmt;
+import org.dcm4chee.proxy.forward.ForwardDispatcher;
 import org.dcm4chee.proxy.forward.Scheduler;
+import org.dcm4chee.proxy.forward.SpoolCatalog;
+import org.dcm4chee.proxy.pix.PIXCache;
 import org.dcm4chee.proxy.pix.PIXConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -171,6 +178,7 @@ public class Proxy extends DeviceService implements ProxyMBean {
 
         scheduler.stop();
         super.stop();
+        pixConsumer.closeIdleConnections();
         try {
             resetSpoolFiles("shut-down");
         } catch (IOException e) {
@@ -219,6 +227,95 @@ public class Proxy extends DeviceService implements ProxyMBean {
         return result.toString();
     }
 
+    public String getForwardQueues() {
+        ForwardingExecutor executor = device.getDeviceExtension(ProxyDeviceExtension.class)
+                .getFileForwardingExecutor();
+        StringBuilder result = new StringBuilder();
+        boolean separator = false;
+        result.append("{\n\"forwardQueues\": [");
+        for (String aet : executor.getDestinationAETs()) {
+            result.append((separator ? "," : "") + "\n{\"aeTitle\": \"" + aet + "\",");
+            result.append("\"priority\": " + executor.isPriority(aet) + ",");
+            result.append("\"queued\": " + executor.getQueueDepth(aet) + ",");
+            result.append("\"inFlight\": " + executor.getInFlight(aet) + "}");
+            separator = true;
+        }
+        result.append("\n]\n}");
+        return result.toString();
+    }
+
+    public String getCMoveContexts() {
+        StringBuilder result = new StringBuilder();
+        boolean separator = false;
+        result.append("{\n\"cmoveContexts\": [");
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE == null)
+                continue;
+
+            CMoveInfoTable table = proxyAEE.getCMoveInfoTable();
+            result.append((separator ? "," : "") + "\n{\"aeTitle\": \"" + ae.getAETitle() + "\",");
+            result.append("\"active\": " + table.getActiveCount() + ",");
+            result.append("\"expired\": " + table.getExpiredCount() + "}");
+            separator = true;
+        }
+        result.append("\n]\n}");
+        return result.toString();
+    }
+
+    public String getPIXCacheStatistics() {
+        PIXCache cache = pixConsumer.getCache();
+        StringBuilder result = new StringBuilder();
+        result.append("{\n\"pixCache\": {");
+        result.append("\"size\": " + cache.size() + ",");
+        result.append("\"hits\": " + cache.getHits() + ",");
+        result.append("\"negativeHits\": " + cache.getNegativeHits() + ",");
+        result.append("\"misses\": " + cache.getMisses() + ",");
+        result.append("\"coalesced\": " + cache.getCoalesced() + ",");
+        result.append("\"evictions\": " + cache.getEvictions() + ",");
+        result.append("\"hitRate\": " + cache.getHitRate() + "}");
+        result.append("\n}");
+        return result.toString();
+    }
+
+    public String getCFindCacheStatistics() {
+        CFindCache cache = device.getDeviceExtension(ProxyDeviceExtension.class).getCFindCache();
+        StringBuilder result = new StringBuilder();
+        result.append("{\n\"cfindCache\": {");
+        result.append("\"entries\": " + cache.getEntryCount() + ",");
+        result.append("\"matches\": " + cache.getSize() + ",");
+        result.append("\"hits\": " + cache.getHits() + ",");
+        result.append("\"misses\": " + cache.getMisses() + ",");
+        result.append("\"invalidations\": " + cache.getInvalidations() + ",");
+        result.append("\"evictions\": " + cache.getEvictions() + "}");
+        result.append("\n}");
+        return result.toString();
+    }
+
+    public String getRelayCacheStatistics() throws Exception {
+        StringBuilder result = new StringBuilder();
+        boolean separator = false;
+        result.append("{\n\"relayCaches\": [");
+        for (ApplicationEntity ae : device.getApplicationEntities()) {
+            ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+            if (proxyAEE == null || !proxyAEE.isRelayCMoveAsCGet())
+                continue;
+
+            RelayCache cache = proxyAEE.getRelayCache();
+            result.append((separator ? "," : "") + "\n{\"aeTitle\": \"" + ae.getAETitle() + "\",");
+            result.append("\"studies\": " + cache.getStudyCount() + ",");
+            result.append("\"size\": " + cache.getSize() + ",");
+            result.append("\"maxSize\": " + cache.getMaxSize() + ",");
+            result.append("\"hits\": " + cache.getHits() + ",");
+            result.append("\"misses\": " + cache.getMisses() + ",");
+            result.append("\"invalidations\": " + cache.getInvalidations() + ",");
+            result.append("\"evictions\": " + cache.getEvictions() + "}");
+            separator = true;
+        }
+        result.append("\n]\n}");
+        return result.toString();
+    }
+
     private static int getRestartTimeout() {
         String timeoutString = System.getProperty("org.dcm4chee.proxy.restart.timeout");
         try {
@@ -295,26 +392,26 @@ public class Proxy extends DeviceService implements ProxyMBean {
             if (proxyAEE != null) {
                 LOG.info("Reset spool files for {} on {}", ae.getAETitle(), action);
                 // clear cstore spool dir
-                renameSndFiles(proxyAEE.getCStoreDirectoryPath(), action);
+                renameSndFiles(proxyAEE, proxyAEE.getCStoreDirectoryPath(), action);
                 deletePartFiles(proxyAEE.getCStoreDirectoryPath(), action);
-                deleteIncompleteDcmFiles(proxyAEE.getCStoreDirectoryPath(), action);
+                deleteIncompleteDcmFiles(proxyAEE, proxyAEE.getCStoreDirectoryPath(), action);
                 // clear naction spool dir
-                renameSndFiles(proxyAEE.getNactionDirectoryPath(), action);
+                renameSndFiles(proxyAEE, proxyAEE.getNactionDirectoryPath(), action);
                 deletePartFiles(proxyAEE.getNactionDirectoryPath(), action);
                 // clear ncreate spool dir
-                renameSndFiles(proxyAEE.getNCreateDirectoryPath(), action);
+                renameSndFiles(proxyAEE, proxyAEE.getNCreateDirectoryPath(), action);
                 deletePartFiles(proxyAEE.getNCreateDirectoryPath(), action);
                 // clear nset spool dir
-                renameSndFiles(proxyAEE.getNSetDirectoryPath(), action);
+                renameSndFiles(proxyAEE, proxyAEE.getNSetDirectoryPath(), action);
                 deletePartFiles(proxyAEE.getNSetDirectoryPath(), action);
             }
         }
     }
 
-    private void deleteIncompleteDcmFiles(File path, String action) {
+    private void deleteIncompleteDcmFiles(ProxyAEExtension proxyAEE, File path, String action) throws IOException {
         String[] dirs = path.list(dirFilter());
         for (String dir : dirs)
-            deleteIncompleteDcmFiles(new File(path, dir), action);
+            deleteIncompleteDcmFiles(proxyAEE, new File(path, dir), action);
 
         String[] dcmFiles = path.list(dcmFileFilter());
         ArrayList<File> infoFiles = listFiles(infoFileFilter(), path);
@@ -324,9 +421,10 @@ public class Proxy extends DeviceService implements ProxyMBean {
             if (infoFiles.contains(infoFile))
                 continue;
 
-            if (file.delete())
+            if (file.delete()) {
                 LOG.info("Delete incomplete dcm file {} (without info file) on {}", file.getPath(), action);
-            else
+                SpoolCatalog.getInstance(proxyAEE).remove(file);
+            } else
                 LOG.info("Failed to delete incomplete dcm file {} (without info file) on {}", file.getPath(), action);
         }
     }
@@ -341,16 +439,17 @@ public class Proxy extends DeviceService implements ProxyMBean {
         return files;
     }
 
-    private void renameSndFiles(File path, String action) {
+    private void renameSndFiles(ProxyAEExtension proxyAEE, File path, String action) {
         for (String calledAET : path.list(dirFilter())) {
             File dir = new File(path, calledAET);
             File[] sndFiles = dir.listFiles(sndFileFilter());
             for (File sndFile : sndFiles) {
                 String sndFileName = sndFile.getPath();
                 File dst = new File(sndFileName.substring(0, sndFileName.length() - 4));
-                if (sndFile.renameTo(dst))
+                if (sndFile.renameTo(dst)) {
                     LOG.info("Rename {} to {} on {}", new Object[] { sndFile.getPath(), dst.getPath(), action });
-                else
+                    ForwardDispatcher.republish(proxyAEE, calledAET, dst);
+                } else
                     LOG.info("Failed to rename {} to {} on {}",
                             new Object[] { sndFile.getPath(), dst.getPath(), action });
             }
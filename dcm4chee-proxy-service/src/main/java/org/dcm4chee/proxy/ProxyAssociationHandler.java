@@ -41,7 +41,6 @@ package org.dcm4chee.proxy;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 
@@ -65,8 +64,10 @@ import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.Schedule;
+import org.dcm4chee.proxy.forward.ForwardAssociations;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
+import org.dcm4chee.proxy.utils.SpoolSync;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -107,6 +108,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
     @Override
     protected void onClose(Association as) {
         super.onClose(as);
+        SpoolSync.onClose(as);
         Object forwardAssociationProperty = as.getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
         if (forwardAssociationProperty == null)
             return;
@@ -121,11 +123,13 @@ public class ProxyAssociationHandler extends AssociationHandler {
             HashMap<String, Association> fwdAssocs = (HashMap<String, Association>) forwardAssociationProperty;
             asInvoked = fwdAssocs.values().toArray(new Association[fwdAssocs.size()]);
         }
+        ProxyAEExtension proxyAEE = as.getApplicationEntity().getAEExtension(ProxyAEExtension.class);
         for (Association assoc : asInvoked) {
             if (assoc != null && assoc.isRequestor())
                 try {
                     assoc.waitForOutstandingRSP();
-                    assoc.release();
+                    if (!ForwardAssociations.giveBack(proxyAEE, assoc))
+                        assoc.release();
                 } catch (Exception e) {
                     LOG.debug("Failed to release {} ({})", new Object[] { assoc, e.getMessage() });
                 }
@@ -148,7 +152,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
 
     private boolean forwardBasedOnTemplates(List<ForwardRule> forwardRules) {
         for (ForwardRule rule : forwardRules)
-            if (rule.getReceiveSchedule().isNow(new GregorianCalendar()))
+            if (rule.getReceiveSchedule().isActive(System.currentTimeMillis()))
                 if (rule.containsTemplateURI())
                     return true;
         return false;
@@ -160,7 +164,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
             return true;
 
         Schedule forwardAETSchedule = forwardOptions.get(destinationAET).getSchedule();
-        return forwardAETSchedule.isNow(new GregorianCalendar());
+        return forwardAETSchedule.isActive(System.currentTimeMillis());
     }
 
     private AAssociateAC forwardAAssociateRQ(Association asAccepted, AAssociateRQ rq, ProxyAEExtension proxyAEE)
@@ -177,7 +181,7 @@ public class ProxyAssociationHandler extends AssociationHandler {
             AAssociateRQ forwardRq = copyOf(rq);
             String callingAET = (forwardRule.getUseCallingAET() == null) ? asAccepted.getCallingAET() : forwardRule.getUseCallingAET();
             Association asCalled = ForwardConnectionUtils.openForwardAssociation(proxyAEE, asAccepted, forwardRule,
-                    callingAET, calledAET, forwardRq, aeCache);
+                    callingAET, calledAET, forwardRq, aeCache, true);
             asAccepted.setProperty(ProxyAEExtension.FORWARD_ASSOCIATION, asCalled);
             asCalled.setProperty(ProxyAEExtension.FORWARD_ASSOCIATION, asAccepted);
             AAssociateAC acCalled = asCalled.getAAssociateAC();
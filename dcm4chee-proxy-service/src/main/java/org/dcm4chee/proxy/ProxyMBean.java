@@ -71,4 +71,24 @@ public interface ProxyMBean {
     @GET
     @Path("getRegisteredAETs")
     String getRegisteredAETs() throws Exception;
+
+    @GET
+    @Path("getForwardQueues")
+    String getForwardQueues();
+
+    @GET
+    @Path("getCMoveContexts")
+    String getCMoveContexts();
+
+    @GET
+    @Path("getPIXCacheStatistics")
+    String getPIXCacheStatistics();
+
+    @GET
+    @Path("getCFindCacheStatistics")
+    String getCFindCacheStatistics();
+
+    @GET
+    @Path("getRelayCacheStatistics")
+    String getRelayCacheStatistics() throws Exception;
 }
@@ -0,0 +1,522 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.audit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4chee.proxy.common.AuditDirectory;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates transferred, failed and deleted objects per study in memory
+ * until the study was quiet for a while and can be written as one audit
+ * message. Every change is appended to a journal in the audit directory,
+ * which is replayed after a restart. The journal is buffered and flushed by
+ * the audit writer on each scheduler run and on close. Studies are kept in the order of their
+ * last update, so finding the quiet ones never looks past the first study
+ * which is still active.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class AuditAggregator {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(AuditAggregator.class);
+
+    public static final String JOURNAL_FILE_NAME = "audit.journal";
+
+    private static final String ENCODING = "UTF-8";
+    private static final int MIN_COMPACT_THRESHOLD = 10000;
+    private static final ConcurrentHashMap<File, AuditAggregator> aggregators = new ConcurrentHashMap<File, AuditAggregator>();
+
+    private final File dir;
+    private final File journalFile;
+    private final LinkedHashMap<String, StudyLog> logs = new LinkedHashMap<String, StudyLog>();
+    private final HashSet<StudyLog> taken = new HashSet<StudyLog>();
+    private Writer journal;
+    private int records;
+    private boolean loaded;
+
+    private AuditAggregator(File dir) {
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_FILE_NAME);
+    }
+
+    public static AuditAggregator getInstance(ProxyAEExtension proxyAEE) throws IOException {
+        File dir = proxyAEE.getAuditDirectoryPath();
+        AuditAggregator aggregator = aggregators.get(dir);
+        if (aggregator == null) {
+            AuditAggregator newAggregator = new AuditAggregator(dir);
+            aggregator = aggregators.putIfAbsent(dir, newAggregator);
+            if (aggregator == null)
+                aggregator = newAggregator;
+        }
+        return aggregator;
+    }
+
+    public static final class StudyLog {
+
+        final AuditDirectory auditDir;
+        final String calledAET;
+        final String callingAET;
+        final String studyIUID;
+        final int retry;
+        final String key;
+        final LinkedHashMap<String, Integer> sopClasses = new LinkedHashMap<String, Integer>();
+        String patientID;
+        String hostname;
+        String proxyHostname;
+        long totalSize;
+        int instances;
+        long t1, t2;
+        long lastUpdate;
+
+        StudyLog(AuditDirectory auditDir, String calledAET, String callingAET, String studyIUID, int retry) {
+            this.auditDir = auditDir;
+            this.calledAET = calledAET;
+            this.callingAET = callingAET;
+            this.studyIUID = studyIUID;
+            this.retry = retry;
+            this.key = keyOf(auditDir, calledAET, callingAET, studyIUID, retry);
+        }
+
+        void touch(long time) {
+            t1 = (t1 == 0 || t1 > time) ? time : t1;
+            t2 = (t2 == 0 || t2 < time) ? time : t2;
+        }
+
+        void add(String cuid, long size, int count) {
+            Integer prev = sopClasses.get(cuid);
+            int n = (prev != null ? prev : 0) + count;
+            if (n > 0)
+                sopClasses.put(cuid, n);
+            else
+                sopClasses.remove(cuid);
+            totalSize += size * count;
+            instances += count;
+        }
+    }
+
+    /**
+     * Handle of a single logged object, which can be withdrawn if the
+     * transfer it was logged for did not succeed.
+     */
+    public final class Record {
+
+        private final StudyLog log;
+        private final String cuid;
+        private final long size;
+        private boolean withdrawn;
+
+        private Record(StudyLog log, String cuid, long size) {
+            this.log = log;
+            this.cuid = cuid;
+            this.size = size;
+        }
+
+        public void withdraw() {
+            AuditAggregator.this.withdraw(this);
+        }
+    }
+
+    public synchronized void start(AuditDirectory auditDir, String callingAET, String calledAET, String studyIUID,
+            int retry, String patientID, String hostname, String proxyHostname, long time) {
+        ensureLoaded();
+        StudyLog log = getOrCreate(auditDir, calledAET, callingAET, studyIUID, retry);
+        if (log.patientID != null)
+            return;
+
+        setStart(log, patientID, hostname, proxyHostname, time);
+        moveToTail(log);
+        appendRecord("S\t" + log.key + '\t' + time + '\t' + escape(patientID) + '\t' + escape(hostname) + '\t'
+                + escape(proxyHostname));
+    }
+
+    public synchronized Record add(AuditDirectory auditDir, String callingAET, String calledAET, String studyIUID,
+            int retry, String cuid, long size, long time) {
+        ensureLoaded();
+        StudyLog log = getOrCreate(auditDir, calledAET, callingAET, studyIUID, retry);
+        log.add(cuid, size, 1);
+        log.touch(time);
+        log.lastUpdate = time;
+        moveToTail(log);
+        appendRecord("+\t" + log.key + '\t' + time + '\t' + size + '\t' + cuid);
+        return new Record(log, cuid, size);
+    }
+
+    // once its study was taken for writing, or ended, a record stays counted,
+    // it must not be withdrawn from a newer log of the same study
+    private synchronized void withdraw(Record record) {
+        if (record.withdrawn)
+            return;
+
+        record.withdrawn = true;
+        StudyLog log = record.log;
+        if (logs.get(log.key) != log)
+            return;
+
+        log.add(record.cuid, record.size, -1);
+        appendRecord("-\t" + log.key + '\t' + record.size + '\t' + record.cuid);
+    }
+
+    /**
+     * Remove and return up to <code>max</code> studies without changes for
+     * the quiet period. Studies which only carry start information or whose
+     * objects were all withdrawn are discarded. The returned studies stay in
+     * the journal until they are released by {@link #done(StudyLog)} after
+     * their audit message was sent, or by {@link #failed(List)}.
+     */
+    public synchronized List<StudyLog> takeQuiet(long now, long quietPeriod, int max) {
+        ensureLoaded();
+        List<StudyLog> result = new ArrayList<StudyLog>();
+        for (Iterator<StudyLog> iter = logs.values().iterator(); iter.hasNext() && result.size() < max;) {
+            StudyLog log = iter.next();
+            if (log.lastUpdate + quietPeriod > now)
+                break;
+
+            iter.remove();
+            if (log.instances > 0) {
+                taken.add(log);
+                result.add(log);
+            } else
+                appendRecord("E\t" + log.key);
+        }
+        compactIfIdle();
+        return result;
+    }
+
+    /**
+     * Ends a study taken by {@link #takeQuiet} after its audit message was
+     * sent. Objects logged for the same study in the meantime are kept.
+     */
+    public synchronized void done(StudyLog log) {
+        if (!taken.remove(log))
+            return;
+
+        appendRecord("E\t" + log.key);
+        // the end record also drops the newer objects of the study on replay
+        StudyLog newer = logs.get(log.key);
+        if (newer != null)
+            appendRecord(snapshotRecord(newer));
+        compactIfIdle();
+    }
+
+    /**
+     * Returns studies taken by {@link #takeQuiet} whose audit messages could
+     * not be sent, so that they are taken again by a later call, in the same
+     * order.
+     */
+    public synchronized void failed(List<StudyLog> failed) {
+        // back to the head, they are still the least recently updated ones
+        LinkedHashMap<String, StudyLog> others = new LinkedHashMap<String, StudyLog>(logs);
+        logs.clear();
+        for (StudyLog log : failed) {
+            if (!taken.remove(log))
+                continue;
+
+            StudyLog newer = others.get(log.key);
+            if (newer != null)
+                merge(log, newer);
+            else
+                logs.put(log.key, log);
+        }
+        logs.putAll(others);
+        compactIfIdle();
+    }
+
+    // the journal holds the records of both, as on replay
+    private static void merge(StudyLog log, StudyLog newer) {
+        for (Map.Entry<String, Integer> entry : log.sopClasses.entrySet())
+            newer.add(entry.getKey(), 0, entry.getValue());
+        newer.totalSize += log.totalSize;
+        newer.touch(log.t1);
+        newer.touch(log.t2);
+        if (newer.patientID == null) {
+            newer.patientID = log.patientID;
+            newer.hostname = log.hostname;
+            newer.proxyHostname = log.proxyHostname;
+        }
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return logs.size();
+    }
+
+    public synchronized void flush() {
+        if (journal == null)
+            return;
+
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            LOG.error("Error writing audit journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Flushes and closes the journals of all aggregators, when the scheduler
+     * is stopped or reconfigured. An aggregator reopens its journal with the
+     * next change.
+     */
+    public static void closeAll() {
+        for (AuditAggregator aggregator : aggregators.values())
+            aggregator.close();
+    }
+
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    private StudyLog getOrCreate(AuditDirectory auditDir, String calledAET, String callingAET, String studyIUID,
+            int retry) {
+        String key = keyOf(auditDir, calledAET, callingAET, studyIUID, retry);
+        StudyLog log = logs.get(key);
+        if (log == null) {
+            log = new StudyLog(auditDir, calledAET, callingAET, studyIUID, retry);
+            logs.put(key, log);
+        }
+        return log;
+    }
+
+    private void moveToTail(StudyLog log) {
+        logs.remove(log.key);
+        logs.put(log.key, log);
+    }
+
+    private static void setStart(StudyLog log, String patientID, String hostname, String proxyHostname, long time) {
+        log.patientID = patientID;
+        log.hostname = hostname;
+        log.proxyHostname = proxyHostname;
+        log.touch(time);
+        log.lastUpdate = Math.max(log.lastUpdate, time);
+    }
+
+    private static String keyOf(AuditDirectory auditDir, String calledAET, String callingAET, String studyIUID,
+            int retry) {
+        return auditDir.name() + '\t' + escape(calledAET) + '\t' + escape(callingAET) + '\t' + escape(studyIUID)
+                + '\t' + retry;
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String unescape(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+
+        loaded = true;
+        if (!journalFile.exists())
+            return;
+
+        try {
+            replayJournal();
+        } catch (Exception e) {
+            LOG.error("Error reading audit journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        compact();
+    }
+
+    private void replayJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 6)
+                    continue;
+
+                char op = fields[0].charAt(0);
+                AuditDirectory auditDir = AuditDirectory.valueOf(fields[1]);
+                int retry = Integer.parseInt(fields[5]);
+                if (op == 'E') {
+                    logs.remove(keyOf(auditDir, fields[2], fields[3], fields[4], retry));
+                    continue;
+                }
+
+                StudyLog log = getOrCreate(auditDir, fields[2], fields[3], fields[4], retry);
+                switch (op) {
+                case 'S':
+                    setStart(log, unescape(fields[7]), unescape(fields[8]), unescape(fields[9]),
+                            Long.parseLong(fields[6]));
+                    moveToTail(log);
+                    break;
+                case '+':
+                    long time = Long.parseLong(fields[6]);
+                    log.add(fields[8], Long.parseLong(fields[7]), 1);
+                    log.touch(time);
+                    log.lastUpdate = Math.max(log.lastUpdate, time);
+                    moveToTail(log);
+                    break;
+                case '-':
+                    log.add(fields[7], Long.parseLong(fields[6]), -1);
+                    break;
+                case '=':
+                    log.patientID = unescape(fields[6]);
+                    log.hostname = unescape(fields[7]);
+                    log.proxyHostname = unescape(fields[8]);
+                    log.t1 = Long.parseLong(fields[9]);
+                    log.t2 = Long.parseLong(fields[10]);
+                    log.lastUpdate = Long.parseLong(fields[11]);
+                    log.totalSize = Long.parseLong(fields[12]);
+                    for (int i = 13; i + 1 < fields.length; i += 2)
+                        log.add(fields[i], 0, Integer.parseInt(fields[i + 1]));
+                    break;
+                default:
+                    LOG.debug("Skip unrecognized audit journal record: {}", line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        LOG.info("Loaded {} studies from audit journal {}", logs.size(), journalFile);
+    }
+
+    private void appendRecord(String record) {
+        try {
+            if (journal == null)
+                journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), ENCODING));
+            journal.write(record);
+            journal.write('\n');
+            records++;
+        } catch (IOException e) {
+            LOG.error("Error writing audit journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            closeJournal();
+        }
+    }
+
+    // compacting drops the records of taken studies, which may still be needed
+    private void compactIfIdle() {
+        if (!taken.isEmpty())
+            return;
+
+        if (logs.isEmpty() && records > 0)
+            truncate();
+        else if (records > Math.max(MIN_COMPACT_THRESHOLD, logs.size() * 4))
+            compact();
+    }
+
+    private void truncate() {
+        closeJournal();
+        if (journalFile.delete() || !journalFile.exists())
+            records = 0;
+        else
+            LOG.error("Failed to delete {}", journalFile);
+    }
+
+    private void compact() {
+        closeJournal();
+        if (logs.isEmpty()) {
+            truncate();
+            return;
+        }
+        File tmp = new File(dir, JOURNAL_FILE_NAME + ".part");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+            try {
+                for (StudyLog log : logs.values()) {
+                    out.write(snapshotRecord(log));
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            journalFile.delete();
+            if (tmp.renameTo(journalFile))
+                records = logs.size();
+            else
+                LOG.error("Failed to rename {} to {}", tmp, journalFile);
+        } catch (IOException e) {
+            LOG.error("Error compacting audit journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private static String snapshotRecord(StudyLog log) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("=\t").append(log.key).append('\t').append(escape(log.patientID)).append('\t')
+                .append(escape(log.hostname)).append('\t').append(escape(log.proxyHostname)).append('\t')
+                .append(log.t1).append('\t').append(log.t2).append('\t').append(log.lastUpdate).append('\t')
+                .append(log.totalSize);
+        for (Map.Entry<String, Integer> entry : log.sopClasses.entrySet())
+            sb.append('\t').append(entry.getKey()).append('\t').append(entry.getValue());
+        return sb.toString();
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing audit journal {}: {}", journalFile, e.getMessage());
+        }
+        journal = null;
+    }
+}
@@ -45,12 +45,15 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dcm4che.audit.AuditMessage;
 import org.dcm4che.audit.AuditMessages;
@@ -61,6 +64,7 @@ import org.dcm4che.audit.ParticipantObjectDescription;
 import org.dcm4che.audit.SOPClass;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.audit.AuditLogger;
+import org.dcm4chee.proxy.audit.AuditAggregator.StudyLog;
 import org.dcm4chee.proxy.common.AuditDirectory;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
@@ -76,209 +80,221 @@ public class AuditLog {
 
     private static AuditLogger logger;
 
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final Set<File> importedLogDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private final Set<File> activeWriters = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
     public AuditLog(AuditLogger logger) {
         AuditLog.logger = logger;
         AuditLogger.setDefaultLogger(logger);
     }
 
-    public void scanLogDir(ApplicationEntity ae) {
-        ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+    /**
+     * Write the audit messages of quiet studies in batches on the device
+     * executor. There is at most one writer per audit directory, a scheduler
+     * run does nothing while the previous one is still busy.
+     */
+    public void writeAuditMessages(final ApplicationEntity ae) {
+        final ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
         if (!proxyAEE.isEnableAuditLog())
             return;
 
+        final File auditDir;
         try {
-            File failedPath = proxyAEE.getFailedAuditDirectoryPath();
-            for (String calledAET : failedPath.list())
-                scanCalledAETDir(ae, new File(failedPath, calledAET), AuditDirectory.FAILED);
-            File transferredPath = proxyAEE.getTransferredAuditDirectoryPath();
-            for (String calledAET : transferredPath.list())
-                scanCalledAETDir(ae, new File(transferredPath, calledAET), AuditDirectory.TRANSFERRED);
-            File deletePath = proxyAEE.getDeleteAuditDirectoryPath();
-            for (String calledAET : deletePath.list())
-                scanCalledAETDir(ae, new File(deletePath, calledAET), AuditDirectory.DELETED);
+            auditDir = proxyAEE.getAuditDirectoryPath();
         } catch (IOException e) {
             LOG.error("Error reading from audit log directory: {}", e.getMessage());
             if(LOG.isDebugEnabled())
                 e.printStackTrace();
+            return;
+        }
+        if (!activeWriters.add(auditDir)) {
+            LOG.debug("Audit messages of {} still being written, skip scheduler run", auditDir);
+            return;
+        }
+        try {
+            ae.getDevice().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        writeQuietStudies(ae, proxyAEE, auditDir);
+                    } finally {
+                        activeWriters.remove(auditDir);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeWriters.remove(auditDir);
+            LOG.error("Failed to schedule writing audit messages of {}: {}", auditDir, e.getMessage());
         }
     }
 
-    private void scanCalledAETDir(ApplicationEntity ae, File calledAETDir, AuditDirectory auditDir) {
-        for (String callingAET : calledAETDir.list()) {
-            File callingAETDir = new File(calledAETDir.getPath(), callingAET);
-            for (String studyIUID : callingAETDir.list()) {
-                File studyIUIDDir = new File(callingAETDir.getPath(), studyIUID);
-                scanStudyDir(ae, studyIUIDDir, auditDir);
+    private void writeQuietStudies(ApplicationEntity ae, ProxyAEExtension proxyAEE, File auditDir) {
+        try {
+            AuditAggregator aggregator = AuditAggregator.getInstance(proxyAEE);
+            if (importedLogDirs.add(auditDir))
+                importLogDirs(proxyAEE, aggregator);
+            ProxyDeviceExtension proxyDev = (ProxyDeviceExtension) ae.getDevice().getDeviceExtension(
+                    ProxyDeviceExtension.class);
+            long quietPeriod = proxyDev.getSchedulerInterval() * 1000L * 2;
+            try {
+                List<StudyLog> batch;
+                do {
+                    batch = aggregator.takeQuiet(System.currentTimeMillis(), quietPeriod, MAX_BATCH_SIZE);
+                    for (int i = 0, n = batch.size(); i < n; i++) {
+                        StudyLog log = batch.get(i);
+                        if (!writeLogMessage(ae, log)) {
+                            // keep the remaining studies for the next run if the audit record repository is not reachable
+                            aggregator.failed(batch.subList(i, n));
+                            return;
+                        }
+                        aggregator.done(log);
+                    }
+                } while (batch.size() == MAX_BATCH_SIZE);
+            } finally {
+                aggregator.flush();
             }
+        } catch (IOException e) {
+            LOG.error("Error reading from audit log directory: {}", e.getMessage());
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
         }
     }
 
-    private void scanStudyDir(final ApplicationEntity ae, final File studyIUIDDir, final AuditDirectory auditDir) {
-        ae.getDevice().execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    if (auditDir == AuditDirectory.FAILED)
-                        checkRetryLog(ae, studyIUIDDir, auditDir);
-                    else
-                        checkLog(ae, studyIUIDDir, auditDir);
-                } catch (IOException e) {
-                    LOG.error("Error processing audit log for study dir {}: {}", studyIUIDDir.getPath(), e);
-                    if(LOG.isDebugEnabled())
-                        e.printStackTrace();
-                }
-            }
-        });
+    // log files left in the audit directories by previous versions
+    private void importLogDirs(ProxyAEExtension proxyAEE, AuditAggregator aggregator) throws IOException {
+        importLogDir(aggregator, proxyAEE.getFailedAuditDirectoryPath(), AuditDirectory.FAILED);
+        importLogDir(aggregator, proxyAEE.getTransferredAuditDirectoryPath(), AuditDirectory.TRANSFERRED);
+        importLogDir(aggregator, proxyAEE.getDeleteAuditDirectoryPath(), AuditDirectory.DELETED);
     }
 
-    private void checkRetryLog(ApplicationEntity ae, File studyIUIDDir, AuditDirectory auditDir) throws IOException {
-        if (!studyIUIDDir.exists())
+    private void importLogDir(AuditAggregator aggregator, File auditDirPath, AuditDirectory auditDir) {
+        String[] calledAETs = auditDirPath.list();
+        if (calledAETs == null)
             return;
 
-        for (String numRetry : studyIUIDDir.list()) {
-            String separator = System.getProperty("file.separator");
-            File startLog = new File(studyIUIDDir + separator + numRetry + separator + "start.log");
-            long lastModified = startLog.lastModified();
-            long now = System.currentTimeMillis();
-            ProxyDeviceExtension proxyDev = (ProxyDeviceExtension) ae.getDevice().getDeviceExtension(
-                    ProxyDeviceExtension.class);
-            if (!(now > lastModified + proxyDev.getSchedulerInterval() * 1000 * 2))
-                return;
+        for (String calledAET : calledAETs) {
+            File calledAETDir = new File(auditDirPath, calledAET);
+            String[] callingAETs = calledAETDir.list();
+            if (callingAETs == null)
+                continue;
+
+            for (String callingAET : callingAETs) {
+                File callingAETDir = new File(calledAETDir, callingAET);
+                String[] studyIUIDs = callingAETDir.list();
+                if (studyIUIDs == null)
+                    continue;
 
-            writeFailedLogMessage(ae, studyIUIDDir, numRetry, auditDir, separator);
+                for (String studyIUID : studyIUIDs) {
+                    File studyIUIDDir = new File(callingAETDir, studyIUID);
+                    if (auditDir == AuditDirectory.FAILED) {
+                        String[] retries = studyIUIDDir.list();
+                        if (retries != null)
+                            for (String retry : retries)
+                                importLogFiles(aggregator, new File(studyIUIDDir, retry), auditDir, calledAET,
+                                        callingAET, studyIUID, Integer.parseInt(retry));
+                    } else
+                        importLogFiles(aggregator, studyIUIDDir, auditDir, calledAET, callingAET, studyIUID, 0);
+                    deleteDir(studyIUIDDir);
+                }
+                deleteDir(callingAETDir);
+            }
+            deleteDir(calledAETDir);
         }
     }
 
-    private void checkLog(ApplicationEntity ae, File studyIUIDDir, AuditDirectory auditDir) throws IOException {
-        if (!studyIUIDDir.exists())
+    private void importLogFiles(AuditAggregator aggregator, File dir, AuditDirectory auditDir, String calledAET,
+            String callingAET, String studyIUID, int retry) {
+        File[] logFiles = dir.listFiles(fileFilter());
+        if (logFiles == null)
             return;
 
-        String separator = System.getProperty("file.separator");
-        File startLog = new File(studyIUIDDir + separator + "start.log");
-        long lastModified = startLog.lastModified();
-        long now = System.currentTimeMillis();
-        ProxyDeviceExtension proxyDev = (ProxyDeviceExtension) ae.getDevice().getDeviceExtension(ProxyDeviceExtension.class);
-        if (!(now > lastModified + proxyDev.getSchedulerInterval() * 1000 * 2))
-            return;
-
-        writeLogMessage(ae, studyIUIDDir, auditDir, separator);
-    }
-
-    private void writeLogMessage(ApplicationEntity ae, File studyIUIDDir, AuditDirectory auditDir, String separator) throws IOException {
-        File[] logFiles = studyIUIDDir.listFiles(fileFilter());
-        if (logFiles != null && logFiles.length > 1) {
-            Log log = new Log();
-            log.files = logFiles.length;
-            for (File file : logFiles)
-                readProperties(file, log);
-            float mb = log.totalSize / 1048576F;
-            float time = (log.t2 - log.t1) / 1000F;
-            String path = studyIUIDDir.getPath();
-            String studyIUID = path.substring(path.lastIndexOf(separator) + 1);
-            path = path.substring(0, path.lastIndexOf(separator));
-            String callingAET = path.substring(path.lastIndexOf(separator) + 1);
-            path = path.substring(0, path.lastIndexOf(separator));
-            String calledAET = path.substring(path.lastIndexOf(separator) + 1);
-            Calendar timeStamp = new GregorianCalendar();
-            timeStamp.setTimeInMillis(log.t2);
-            AuditMessage msg = new AuditMessage();
+        LOG.info("Import {} audit log files from {}", logFiles.length, dir);
+        for (File file : logFiles) {
             try {
-                switch (auditDir) {
-                case TRANSFERRED:
-                    writeTransferredServerLogMessage(log, mb, time, studyIUID, callingAET, calledAET);
-                    msg = createAuditMessage(ae, log, studyIUID, calledAET, log.hostname, callingAET, timeStamp,
-                            EventID.DICOMInstancesTransferred, EventActionCode.Read, EventOutcomeIndicator.Success);
-                    break;
-                case DELETED:
-                    writeDeleteServerLogMessage(log, studyIUID, studyIUIDDir.getPath());
-                    msg = createAuditMessage(ae, log, studyIUID, ae.getAETitle(), ae.getConnections().get(0).getHostname(),
-                            callingAET, timeStamp, EventID.DICOMInstancesAccessed, EventActionCode.Delete,
-                            EventOutcomeIndicator.Success);
-                    break;
-                default:
-                    LOG.error("Unrecognized Audit Directory: " + auditDir.getDirectoryName());
-                    break;
-                }
-                if (LOG.isDebugEnabled())
-                    LOG.debug("AuditMessage: " + AuditMessages.toXML(msg));
-                logger.write(timeStamp, msg);
+                Properties prop = readProperties(file);
+                long time = Long.parseLong(prop.getProperty("time"));
+                if (file.getName().equals("start.log"))
+                    aggregator.start(auditDir, callingAET, calledAET, studyIUID, retry,
+                            prop.getProperty("patient-id"), prop.getProperty("hostname"),
+                            prop.getProperty("proxy-hostname"), time);
+                else
+                    aggregator.add(auditDir, callingAET, calledAET, studyIUID, retry,
+                            prop.getProperty("sop-class-uid"), Long.parseLong(prop.getProperty("size")), time);
             } catch (Exception e) {
-                LOG.error("Failed to write audit log message: " + e.getMessage());
+                LOG.error("Error reading properties from {}: {}", new Object[]{file.getPath(), e.getMessage()});
                 if(LOG.isDebugEnabled())
                     e.printStackTrace();
             }
-            boolean deleteStudyDir = deleteLogFiles(logFiles);
-            if (deleteStudyDir)
-                deleteStudyDir(studyIUIDDir, separator);
+            LOG.debug("Delete log file " + file.getAbsolutePath());
+            if (!file.delete())
+                LOG.error("Failed to delete " + file.getAbsolutePath());
         }
+        deleteDir(dir);
     }
 
-    private void deleteStudyDir(File studyIUIDDir, String separator) {
-        for (String dir : studyIUIDDir.list()) {
-            File subDir = new File(studyIUIDDir + separator + dir);
-            if (subDir.listFiles().length > 0)
-                return;
+    private void deleteDir(File dir) {
+        String[] files = dir.list();
+        if (files == null || files.length > 0)
+            return;
 
-            LOG.debug("Delete dir " + subDir.getAbsolutePath());
-            if (!subDir.delete())
-                LOG.error("Failed to delete " + subDir.getAbsolutePath());
-        }
-        if (studyIUIDDir.list().length == 0) {
-            LOG.debug("Delete dir " + studyIUIDDir.getAbsolutePath());
-            if (!studyIUIDDir.delete())
-                LOG.error("Failed to delete " + studyIUIDDir.getAbsolutePath());
-        }
+        LOG.debug("Delete dir " + dir.getAbsolutePath());
+        if (!dir.delete())
+            LOG.error("Failed to delete " + dir.getAbsolutePath());
     }
 
-    private boolean deleteLogFiles(File[] logFiles) {
-        boolean deleteStudyDir = true;
-        for (File file : logFiles) {
-            LOG.debug("Delete log file " + file.getAbsolutePath());
-            if (!file.delete()) {
-                LOG.error("Failed to delete " + file.getAbsolutePath());
-                deleteStudyDir = false;
+    // false if the message could not be sent and should be retried, a message
+    // which cannot be created is dropped
+    private boolean writeLogMessage(ApplicationEntity ae, StudyLog log) {
+        Calendar timeStamp = new GregorianCalendar();
+        timeStamp.setTimeInMillis(log.t2);
+        AuditMessage msg;
+        try {
+            switch (log.auditDir) {
+            case TRANSFERRED:
+                writeTransferredServerLogMessage(log);
+                msg = createAuditMessage(ae, log, log.calledAET, log.hostname, timeStamp,
+                        EventID.DICOMInstancesTransferred, EventActionCode.Read, EventOutcomeIndicator.Success);
+                break;
+            case DELETED:
+                writeDeleteServerLogMessage(log);
+                msg = createAuditMessage(ae, log, ae.getAETitle(), ae.getConnections().get(0).getHostname(),
+                        timeStamp, EventID.DICOMInstancesAccessed, EventActionCode.Delete,
+                        EventOutcomeIndicator.Success);
+                break;
+            case FAILED:
+                writeFailedServerLogMessage(log);
+                msg = createAuditMessage(ae, log, log.calledAET, log.hostname, timeStamp,
+                        EventID.DICOMInstancesTransferred, EventActionCode.Read,
+                        EventOutcomeIndicator.SeriousFailure);
+                break;
+            default:
+                LOG.error("Unrecognized Audit Directory: " + log.auditDir.getDirectoryName());
+                return true;
             }
+            if (LOG.isDebugEnabled())
+                LOG.debug("AuditMessage: " + AuditMessages.toXML(msg));
+        } catch (Exception e) {
+            LOG.error("Failed to create audit log message: " + e.getMessage());
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
+            return true;
         }
-        return deleteStudyDir;
-    }
-
-    private void writeFailedLogMessage(ApplicationEntity ae, File studyIUIDDir, String retry, AuditDirectory auditDir,
-            String separator) throws IOException {
-        File retryDir = new File(studyIUIDDir + separator + retry);
-        File[] logFiles = retryDir.listFiles(fileFilter());
-        if (logFiles != null && logFiles.length > 1) {
-            Log log = new Log();
-            log.files = logFiles.length;
-            for (File file : logFiles)
-                readProperties(file, log);
-            String retryPath = retryDir.getPath();
-            String numRetry = retryPath.substring(retryPath.lastIndexOf(separator) + 1);
-            String studyPath = studyIUIDDir.getPath();
-            String studyIUID = studyPath.substring(studyPath.lastIndexOf(separator) + 1);
-            String callingAETPath = studyPath.substring(0, studyPath.lastIndexOf(separator));
-            String callingAET = callingAETPath.substring(callingAETPath.lastIndexOf(separator) + 1);
-            String calledAETPath = callingAETPath.substring(0, callingAETPath.lastIndexOf(separator));
-            String calledAET = calledAETPath.substring(calledAETPath.lastIndexOf(separator) + 1);
-            Calendar timeStamp = new GregorianCalendar();
-            timeStamp.setTimeInMillis(log.t2);
-            AuditMessage msg = createAuditMessage(ae, log, studyIUID, calledAET, log.hostname, callingAET, timeStamp,
-                    EventID.DICOMInstancesTransferred, EventActionCode.Read, EventOutcomeIndicator.SeriousFailure);
-            writeFailedServerLogMessage(log, studyIUID, callingAET, calledAET, numRetry);
-            try {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("AuditMessage: " + AuditMessages.toXML(msg));
-                logger.write(timeStamp, msg);
-            } catch (Exception e) {
-                LOG.error("Failed to write audit log message: ", e);
-            }
-            boolean deleteStudyDir = deleteLogFiles(logFiles);
-            if (deleteStudyDir)
-                deleteStudyDir(studyIUIDDir, separator);
+        try {
+            logger.write(timeStamp, msg);
+            return true;
+        } catch (Exception e) {
+            LOG.error("Failed to write audit log message: " + e.getMessage());
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
+            return false;
         }
     }
 
-    private AuditMessage createAuditMessage(ApplicationEntity ae, Log log, String studyIUID, String destinationAET,
-            String destinationHostname, String sourceAET, Calendar timeStamp, EventID eventID, String eventActionCode,
+    private AuditMessage createAuditMessage(ApplicationEntity ae, StudyLog log, String destinationAET,
+            String destinationHostname, Calendar timeStamp, EventID eventID, String eventActionCode,
             String eventOutcomeIndicator) {
         AuditMessage msg = new AuditMessage();
         msg.setEventIdentification(AuditMessages.createEventIdentification(
@@ -308,7 +324,7 @@ public class AuditLog {
                 AuditMessages.RoleIDCode.Application));
         msg.getActiveParticipant().add(AuditMessages.createActiveParticipant(
                 log.hostname, 
-                AuditMessages.alternativeUserIDForAETitle(sourceAET), 
+                AuditMessages.alternativeUserIDForAETitle(log.callingAET), 
                 null, 
                 true, 
                 null, 
@@ -316,14 +332,14 @@ public class AuditLog {
                 null, 
                 AuditMessages.RoleIDCode.Application));
         ParticipantObjectDescription pod = new ParticipantObjectDescription();
-        for (String sopClassUID : log.sopclassuid) {
+        for (Map.Entry<String, Integer> entry : log.sopClasses.entrySet()) {
             SOPClass sc = new SOPClass();
-            sc.setUID(sopClassUID);
-            sc.setNumberOfInstances(log.files - 1);
+            sc.setUID(entry.getKey());
+            sc.setNumberOfInstances(entry.getValue());
             pod.getSOPClass().add(sc);
         }
         msg.getParticipantObjectIdentification().add(AuditMessages.createParticipantObjectIdentification(
-                studyIUID, 
+                log.studyIUID, 
                 AuditMessages.ParticipantObjectIDTypeCode.StudyInstanceUID, 
                 null, 
                 null, 
@@ -346,65 +362,52 @@ public class AuditLog {
         return msg;
     }
 
-    private void writeTransferredServerLogMessage(Log log, float mb, float time, String studyIUID, String callingAET,
-            String calledAET) {
+    private void writeTransferredServerLogMessage(StudyLog log) {
+        float mb = log.totalSize / 1048576F;
+        float time = (log.t2 - log.t1) / 1000F;
         LOG.info("Sent {} {} (={}MB) of study {} with SOPClassUIDs {} from {} to {} in {}s (={}MB/s)",
-                new Object[] {  log.files - 1, 
-                ((log.files - 1) > 1) ? "objects" : "object", 
+                new Object[] {  log.instances, 
+                (log.instances > 1) ? "objects" : "object", 
                 mb, 
-                studyIUID,
-                Arrays.toString(log.sopclassuid.toArray()), 
-                callingAET, 
-                calledAET, 
+                log.studyIUID,
+                log.sopClasses.keySet(), 
+                log.callingAET, 
+                log.calledAET, 
                 time,
-                (log.totalSize / 1048576F) / time });
+                mb / time });
     }
 
-    private void writeDeleteServerLogMessage(Log log, String studyIUID, String path) {
-        LOG.info("Deleted {} {} of study {} with SOPClassUIDs {} from {}",new Object[] {
-                log.files - 1,
-                ((log.files - 1) > 1) ? "objects" : "object",
-                studyIUID,
-                Arrays.toString(log.sopclassuid.toArray()),
-                path });
+    private void writeDeleteServerLogMessage(StudyLog log) {
+        LOG.info("Deleted {} {} of study {} with SOPClassUIDs {} from {} to {}",new Object[] {
+                log.instances,
+                (log.instances > 1) ? "objects" : "object",
+                log.studyIUID,
+                log.sopClasses.keySet(),
+                log.callingAET,
+                log.calledAET });
     }
 
-    private void writeFailedServerLogMessage(Log log, String studyIUID, String callingAET, String calledAET, String numRetry) {
+    private void writeFailedServerLogMessage(StudyLog log) {
         LOG.info("Failed to send {} {} of study {} with SOPClassUIDs {} from {} to {} (Retry {})", new Object[]{
-                log.files - 1, 
-                ((log.files - 1) > 1) ? "objects" : "object",
-                studyIUID,
-                Arrays.toString(log.sopclassuid.toArray()),
-                callingAET,
-                calledAET,
-                numRetry
+                log.instances, 
+                (log.instances > 1) ? "objects" : "object",
+                log.studyIUID,
+                log.sopClasses.keySet(),
+                log.callingAET,
+                log.calledAET,
+                log.retry
         });
     }
 
-    private void readProperties(File file, Log log) throws IOException {
+    private Properties readProperties(File file) throws IOException {
         Properties prop = new Properties();
-        FileInputStream inStream = null;
+        FileInputStream inStream = new FileInputStream(file);
         try {
-            inStream = new FileInputStream(file);
             prop.load(inStream);
-            if (!file.getPath().endsWith("start.log")) {
-                log.totalSize = log.totalSize + Long.parseLong(prop.getProperty("size"));
-                log.sopclassuid.add(prop.getProperty("sop-class-uid"));
-            } else {
-                log.hostname = prop.getProperty("hostname");
-                log.proxyHostname = prop.getProperty("proxy-hostname");
-                log.patientID = prop.getProperty("patient-id");
-            }
-            long time = Long.parseLong(prop.getProperty("time"));
-            log.t1 = (log.t1 == 0 || log.t1 > time) ? time : log.t1;
-            log.t2 = (log.t2 == 0 || log.t2 < time) ? time : log.t2;
-        } catch (IOException e) {
-            LOG.error("Error reading properties from {}: {}", new Object[]{file.getPath(), e.getMessage()});
-            if(LOG.isDebugEnabled())
-                e.printStackTrace();
         } finally {
             inStream.close();
         }
+        return prop;
     }
 
     private FileFilter fileFilter() {
@@ -418,14 +421,4 @@ public class AuditLog {
             }
         };
     }
-
-    private class Log {
-        private String patientID;
-        private String hostname;
-        private String proxyHostname;
-        private long totalSize;
-        private int files;
-        private long t1, t2;
-        private Set<String> sopclassuid = new HashSet<String>();
-    }
 }
@@ -39,21 +39,27 @@
 package org.dcm4chee.proxy.dimse;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
 import org.dcm4che.conf.api.ApplicationEntityCache;
+import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
 import org.dcm4che.net.Dimse;
 import org.dcm4che.net.Status;
 import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.DicomService;
 import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.proxy.common.CFindCache;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.pix.PIXConsumer;
 import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
@@ -88,9 +94,47 @@ public class CFind extends DicomService {
         ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
         data = AttributeCoercionUtils.coerceDataset(proxyAEE, asAccepted, Role.SCU, Dimse.C_FIND_RQ, data, rq);
         Object forwardAssociationProperty = asAccepted.getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
+        String cuid = rq.getString(dimse.tagOfSOPClassUID());
+        List<ForwardRule> forwardRules = forwardAssociationProperty == null
+                ? ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE, proxyAEE.getCurrentForwardRules(asAccepted),
+                        cuid, dimse)
+                : null;
+        CFindCache.Recorder cacheRecorder = null;
+        int cacheTimeout = proxyAEE.getCFindCacheTimeout(cuid, data.getString(Tag.QueryRetrieveLevel));
+        if (cacheTimeout > 0) {
+            ProxyDeviceExtension proxyDev = ae.getDevice().getDeviceExtension(ProxyDeviceExtension.class);
+            CFindCache cache = proxyDev.getCFindCache();
+            List<String> destinationAETs = getDestinationAETs(asAccepted, forwardRules, forwardAssociationProperty,
+                    data);
+            if (destinationAETs != null) {
+                String key = CFindCache.keyOf(asAccepted.getCallingAET(), cuid, destinationAETs, data);
+                List<Attributes> matches = cache.get(key);
+                if (matches != null) {
+                    writeCachedRSP(asAccepted, pc, rq, matches);
+                    return;
+                }
+                cacheRecorder = cache.newRecorder(key, data, cacheTimeout * 1000L, proxyDev.getCFindCacheSize());
+            }
+        }
+        try {
+            forward(asAccepted, pc, dimse, rq, data, proxyAEE, forwardAssociationProperty, forwardRules,
+                    cacheRecorder);
+        } catch (IOException e) {
+            if (cacheRecorder != null)
+                cacheRecorder.discard();
+            throw e;
+        } catch (RuntimeException e) {
+            if (cacheRecorder != null)
+                cacheRecorder.discard();
+            throw e;
+        }
+    }
+
+    private void forward(Association asAccepted, PresentationContext pc, Dimse dimse, Attributes rq, Attributes data,
+            ProxyAEExtension proxyAEE, Object forwardAssociationProperty, List<ForwardRule> forwardRules,
+            CFindCache.Recorder cacheRecorder) throws IOException {
         if (forwardAssociationProperty == null) {
-            List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(
-                    proxyAEE.getCurrentForwardRules(asAccepted), rq.getString(dimse.tagOfSOPClassUID()), dimse);
+            ForwardDimseRQ.startPIXQuery(asAccepted, forwardRules, data, pixConsumer, aeCache);
             HashMap<String, Association> fwdAssocs = ForwardConnectionUtils.openForwardAssociations(proxyAEE,
                     asAccepted, forwardRules, data, aeCache);
             if (fwdAssocs.isEmpty())
@@ -98,8 +142,10 @@ public class CFind extends DicomService {
 
             try {
                 asAccepted.setProperty(ProxyAEExtension.FORWARD_ASSOCIATION, fwdAssocs);
-                new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache, fwdAssocs.values().toArray(
-                        new Association[fwdAssocs.size()])).execute();
+                ForwardDimseRQ fwdDimseRQ = new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache,
+                        fwdAssocs.values().toArray(new Association[fwdAssocs.size()]));
+                fwdDimseRQ.setCFindCacheRecorder(cacheRecorder);
+                fwdDimseRQ.execute();
             } catch (InterruptedException e) {
                 LOG.error("Error forwarding C-FIND request: " + e.getMessage());
                 if(LOG.isDebugEnabled())
@@ -108,15 +154,18 @@ public class CFind extends DicomService {
             }
         } else
             try {
+                ForwardDimseRQ fwdDimseRQ;
                 if (forwardAssociationProperty instanceof Association)
-                    new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache,
-                            (Association) forwardAssociationProperty).execute();
+                    fwdDimseRQ = new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache,
+                            (Association) forwardAssociationProperty);
                 else {
                     @SuppressWarnings("unchecked")
                     HashMap<String, Association> fwdAssocs = (HashMap<String, Association>) forwardAssociationProperty;
-                    new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache, fwdAssocs.values()
-                            .toArray(new Association[fwdAssocs.size()])).execute();
+                    fwdDimseRQ = new ForwardDimseRQ(asAccepted, pc, rq, data, dimse, pixConsumer, aeCache, fwdAssocs
+                            .values().toArray(new Association[fwdAssocs.size()]));
                 }
+                fwdDimseRQ.setCFindCacheRecorder(cacheRecorder);
+                fwdDimseRQ.execute();
             } catch (InterruptedException e) {
                 LOG.error("Error forwarding C-FIND request: " + e.getMessage());
                 if(LOG.isDebugEnabled())
@@ -124,4 +173,34 @@ public class CFind extends DicomService {
                 throw new DicomServiceException(Status.UnableToProcess, e.getCause());
             }
     }
+
+    private List<String> getDestinationAETs(Association asAccepted, List<ForwardRule> forwardRules,
+            Object forwardAssociationProperty, Attributes data) {
+        ArrayList<String> destinationAETs = new ArrayList<String>();
+        if (forwardAssociationProperty == null) {
+            for (ForwardRule rule : forwardRules)
+                try {
+                    destinationAETs.addAll(ForwardRuleUtils.getDestinationAETsFromForwardRule(asAccepted, rule, data));
+                } catch (ConfigurationException e) {
+                    LOG.debug("{}: C-FIND not cached, failed to get destination AETs: {}", asAccepted,
+                            e.getMessage());
+                    return null;
+                }
+        } else if (forwardAssociationProperty instanceof Association)
+            destinationAETs.add(((Association) forwardAssociationProperty).getCalledAET());
+        else {
+            @SuppressWarnings("unchecked")
+            HashMap<String, Association> fwdAssocs = (HashMap<String, Association>) forwardAssociationProperty;
+            destinationAETs.addAll(fwdAssocs.keySet());
+        }
+        return destinationAETs.isEmpty() ? null : destinationAETs;
+    }
+
+    private void writeCachedRSP(Association asAccepted, PresentationContext pc, Attributes rq,
+            List<Attributes> matches) throws IOException {
+        LOG.debug("{}: return {} cached C-FIND matches", asAccepted, matches.size());
+        for (Attributes match : matches)
+            asAccepted.writeDimseRSP(pc, Commands.mkCFindRSP(rq, Status.Pending), match);
+        asAccepted.writeDimseRSP(pc, Commands.mkCFindRSP(rq, Status.Success));
+    }
 }
@@ -0,0 +1,180 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.DimseRSPHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the pending C-FIND-RSPs of a C-FIND request forwarded to several destinations. Duplicate matches are
+ * suppressed by the unique key of the Query/Retrieve Level, the number of returned matches can be limited and
+ * destinations which do not respond in time can be dropped.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CFindMerger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CFindMerger.class);
+
+    // upper bound of unique keys remembered per request, further matches are passed without duplicate check
+    public static final int MAX_UNIQUE_KEYS = 100000;
+
+    private final String queryRetrieveLevel;
+    private final int uniqueKeyTag;
+    private final int maxResults;
+    private final HashSet<String> uniqueKeys = new HashSet<String>();
+    private final IdentityHashMap<DimseRSPHandler, Association> outstanding =
+            new IdentityHashMap<DimseRSPHandler, Association>();
+    private int results;
+    private int duplicates;
+    private int dropped;
+    private boolean expired;
+
+    public CFindMerger(Attributes keys, int maxResults) {
+        this.queryRetrieveLevel = keys.getString(Tag.QueryRetrieveLevel);
+        this.uniqueKeyTag = uniqueKeyTag(queryRetrieveLevel);
+        this.maxResults = maxResults;
+    }
+
+    private static int uniqueKeyTag(String queryRetrieveLevel) {
+        if ("PATIENT".equals(queryRetrieveLevel))
+            return Tag.PatientID;
+        if ("STUDY".equals(queryRetrieveLevel))
+            return Tag.StudyInstanceUID;
+        if ("SERIES".equals(queryRetrieveLevel))
+            return Tag.SeriesInstanceUID;
+        if ("IMAGE".equals(queryRetrieveLevel))
+            return Tag.SOPInstanceUID;
+        // e.g. Modality Worklist, no unique key to merge on
+        return 0;
+    }
+
+    public String getQueryRetrieveLevel() {
+        return queryRetrieveLevel;
+    }
+
+    public synchronized void register(DimseRSPHandler rspHandler, Association asInvoked) {
+        outstanding.put(rspHandler, asInvoked);
+    }
+
+    /**
+     * @return <code>false</code> if the destination was already dropped because of the timeout
+     */
+    public synchronized boolean isOutstanding(DimseRSPHandler rspHandler) {
+        return outstanding.containsKey(rspHandler);
+    }
+
+    /**
+     * Marks the request of the handler as completed.
+     * 
+     * @return <code>true</code> if the request was outstanding and was not dropped before
+     */
+    public synchronized boolean complete(DimseRSPHandler rspHandler) {
+        if (!outstanding.containsKey(rspHandler))
+            return false;
+
+        outstanding.remove(rspHandler);
+        return true;
+    }
+
+    /**
+     * Drops all outstanding requests, late responses will be ignored. Used if
+     * destinations do not respond in time or the maximum number of results
+     * was returned.
+     * 
+     * @return the dropped requests with their forward association
+     */
+    public synchronized Map<DimseRSPHandler, Association> expire() {
+        expired = true;
+        IdentityHashMap<DimseRSPHandler, Association> late = new IdentityHashMap<DimseRSPHandler, Association>(
+                outstanding);
+        dropped += late.size();
+        outstanding.clear();
+        return late;
+    }
+
+    /**
+     * @return <code>true</code> if the match shall be returned to the requester
+     */
+    public synchronized boolean accept(Attributes match) {
+        if (maxResults > 0 && results >= maxResults)
+            return false;
+
+        if (uniqueKeyTag != 0 && match != null) {
+            String key = match.getString(uniqueKeyTag);
+            if (key != null) {
+                if (uniqueKeyTag == Tag.PatientID)
+                    key = key + "^^^" + match.getString(Tag.IssuerOfPatientID, "");
+                if (uniqueKeys.contains(key)) {
+                    duplicates++;
+                    return false;
+                }
+                if (uniqueKeys.size() < MAX_UNIQUE_KEYS) {
+                    uniqueKeys.add(key);
+                    if (uniqueKeys.size() == MAX_UNIQUE_KEYS)
+                        LOG.debug("Reached {} unique keys, no further duplicate suppression", MAX_UNIQUE_KEYS);
+                }
+            }
+        }
+        results++;
+        return true;
+    }
+
+    public synchronized boolean isExpired() {
+        return expired;
+    }
+
+    public synchronized boolean isLimitReached() {
+        return maxResults > 0 && results >= maxResults;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CFindMerger[level=" + queryRetrieveLevel + ", results=" + results + ", duplicates=" + duplicates
+                + ", dropped=" + dropped + "]";
+    }
+}
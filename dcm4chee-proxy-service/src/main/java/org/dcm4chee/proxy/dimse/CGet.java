@@ -88,8 +88,9 @@ public class CGet extends DicomService {
         data = AttributeCoercionUtils.coerceDataset(proxyAEE, asAccepted, Role.SCU, dimse, data, cmd);
         Object forwardAssociationProperty = asAccepted.getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
         if (forwardAssociationProperty == null) {
-            List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(
+            List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE,
                     proxyAEE.getCurrentForwardRules(asAccepted), cmd.getString(dimse.tagOfSOPClassUID()), dimse);
+            ForwardDimseRQ.startPIXQuery(asAccepted, forwardRules, data, pixConsumer, aeCache);
             HashMap<String, Association> fwdAssocs = ForwardConnectionUtils.openForwardAssociations(proxyAEE,
                     asAccepted, forwardRules, data, aeCache);
             if (fwdAssocs.isEmpty())
@@ -88,8 +88,16 @@ public class CMove extends DicomService {
         data = AttributeCoercionUtils.coerceDataset(proxyAEE, asAccepted, Role.SCU, dimse, data, rq);
         Object forwardAssociationProperty = asAccepted.getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
         if (forwardAssociationProperty == null) {
-            List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(
+            List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE,
                     proxyAEE.getCurrentForwardRules(asAccepted), rq.getString(dimse.tagOfSOPClassUID()), dimse);
+            if (proxyAEE.isRelayCMoveAsCGet()) {
+                if (forwardRules.isEmpty())
+                    throw new DicomServiceException(Status.UnableToProcess);
+
+                new CMoveRelay(aeCache, asAccepted, pc, rq, data, forwardRules).start();
+                return;
+            }
+            ForwardDimseRQ.startPIXQuery(asAccepted, forwardRules, data, pixConsumer, aeCache);
             HashMap<String, Association> fwdAssocs = ForwardConnectionUtils.openForwardAssociations(proxyAEE,
                     asAccepted, forwardRules, data, aeCache);
             if (fwdAssocs.isEmpty())
@@ -0,0 +1,624 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che.conf.api.ApplicationEntityCache;
+import org.dcm4che.conf.api.AttributeCoercion;
+import org.dcm4che.conf.api.ConfigurationException;
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.CancelRQHandler;
+import org.dcm4che.net.Commands;
+import org.dcm4che.net.DataWriter;
+import org.dcm4che.net.DataWriterAdapter;
+import org.dcm4che.net.Dimse;
+import org.dcm4che.net.DimseRSPHandler;
+import org.dcm4che.net.InputStreamDataWriter;
+import org.dcm4che.net.PDVInputStream;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.TransferCapability;
+import org.dcm4che.net.TransferCapability.Role;
+import org.dcm4che.net.pdu.AAssociateRQ;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.pdu.RoleSelection;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4che.util.SafeClose;
+import org.dcm4chee.proxy.common.RelayCache;
+import org.dcm4chee.proxy.conf.ForwardRule;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.forward.ForwardAssociations;
+import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
+import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
+import org.dcm4chee.proxy.utils.ForwardRuleUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs a C-MOVE request by retrieving the instances with C-GET from the
+ * destinations of the forward rules and storing them to the move destination
+ * over a pooled association, while the C-GET is still in progress. Retrieved
+ * instances are staged in the {@link RelayCache} of the AE, so that repeated
+ * requests for the same study are served without contacting the source.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CMoveRelay implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CMoveRelay.class);
+
+    private static final int MAX_PCID = 255;
+
+    private static final String STORAGE_SOP_CLASS_PREFIX = "1.2.840.10008.5.1.4.1.1.";
+
+    private static final HashMap<String, String> GET_SOP_CLASSES = new HashMap<String, String>();
+    static {
+        GET_SOP_CLASSES.put("1.2.840.10008.5.1.4.1.2.1.2", "1.2.840.10008.5.1.4.1.2.1.3");
+        GET_SOP_CLASSES.put("1.2.840.10008.5.1.4.1.2.2.2", "1.2.840.10008.5.1.4.1.2.2.3");
+        GET_SOP_CLASSES.put("1.2.840.10008.5.1.4.1.2.3.2", "1.2.840.10008.5.1.4.1.2.3.3");
+    }
+
+    // marks the final C-GET-RSP in the queue of received instances
+    private static final RelayCache.Instance END_OF_RETRIEVE = new RelayCache.Instance(new File(""), null, null,
+            null, null, null);
+
+    private final ApplicationEntityCache aeCache;
+    private final ProxyAEExtension proxyAEE;
+    private final Association asAccepted;
+    private final PresentationContext pc;
+    private final Attributes rq;
+    private final Attributes keys;
+    private final List<ForwardRule> forwardRules;
+    private final int msgId;
+    private final int priority;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger warning = new AtomicInteger();
+    private final List<String> failedIUIDs = new ArrayList<String>();
+    private String moveDestination;
+    private Association asDest;
+    private volatile RelayCache.Recorder recorder;
+    private volatile BlockingQueue<RelayCache.Instance> received;
+    private volatile Association asGet;
+    private volatile DimseRSPHandler getRSPHandler;
+    private volatile int remaining = -1;
+    private volatile int retrieveStatus = Status.Success;
+    private volatile boolean canceled;
+
+    public CMoveRelay(ApplicationEntityCache aeCache, Association asAccepted, PresentationContext pc,
+            Attributes rq, Attributes keys, List<ForwardRule> forwardRules) {
+        this.aeCache = aeCache;
+        this.proxyAEE = asAccepted.getApplicationEntity().getAEExtension(ProxyAEExtension.class);
+        this.asAccepted = asAccepted;
+        this.pc = pc;
+        this.rq = rq;
+        this.keys = keys;
+        this.forwardRules = forwardRules;
+        this.msgId = rq.getInt(Tag.MessageID, 0);
+        this.priority = rq.getInt(Tag.Priority, 0);
+    }
+
+    public void start() throws DicomServiceException {
+        moveDestination = rq.getString(Tag.MoveDestination);
+        try {
+            aeCache.findApplicationEntity(moveDestination);
+        } catch (ConfigurationException e) {
+            LOG.error("{}: unknown move destination {}: {}", new Object[] { asAccepted, moveDestination,
+                    e.getMessage() });
+            throw new DicomServiceException(Status.MoveDestinationUnknown, e);
+        }
+        asAccepted.addCancelRQHandler(msgId, new CancelRQHandler() {
+
+            @Override
+            public void onCancelRQ(Association association) {
+                cancel();
+            }
+        });
+        asAccepted.getApplicationEntity().getDevice().execute(this);
+    }
+
+    private void cancel() {
+        canceled = true;
+        DimseRSPHandler rspHandler = getRSPHandler;
+        Association as = asGet;
+        if (rspHandler != null && as != null)
+            try {
+                rspHandler.cancel(as);
+            } catch (IOException e) {
+                LOG.error(as + ": failed to cancel C-GET: " + e.getMessage());
+                if (LOG.isDebugEnabled())
+                    e.printStackTrace();
+            }
+    }
+
+    @Override
+    public void run() {
+        RelayCache cache;
+        try {
+            cache = proxyAEE.getRelayCache();
+        } catch (IOException e) {
+            LOG.error(asAccepted + ": unable to access relay cache: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            writeFinalRSP(Status.UnableToProcess);
+            return;
+        }
+        LinkedHashMap<ForwardRule, List<String>> sourceAETsByRule = new LinkedHashMap<ForwardRule, List<String>>();
+        boolean resolved = resolveSourceAETs(sourceAETsByRule);
+        ArrayList<String> sourceAETs = new ArrayList<String>();
+        for (List<String> aets : sourceAETsByRule.values())
+            sourceAETs.addAll(aets);
+        // only serve instances retrieved from the sources the forward rules of this request resolve to
+        String sourceKey = RelayCache.sourceKeyOf(sourceAETs);
+        RelayCache.Lease lease = resolved ? cache.lookup(sourceKey, keys) : null;
+        try {
+            if (lease != null)
+                relayFromCache(lease.getInstances());
+            else
+                retrieve(cache, sourceKey, sourceAETsByRule, resolved);
+        } finally {
+            if (lease != null)
+                lease.release();
+            releaseDestination();
+        }
+        writeFinalRSP(finalStatus());
+    }
+
+    private void relayFromCache(List<RelayCache.Instance> instances) {
+        LOG.info("{}: relay {} staged instance(s) to {}", new Object[] { asAccepted, instances.size(),
+                moveDestination });
+        remaining = instances.size();
+        Map<String, Set<String>> tsuidsByCuid = new LinkedHashMap<String, Set<String>>();
+        for (RelayCache.Instance instance : instances)
+            addTransferSyntax(tsuidsByCuid, instance.cuid, instance.tsuid);
+        openDestination(tsuidsByCuid);
+        for (RelayCache.Instance instance : instances) {
+            if (canceled)
+                break;
+            store(instance);
+        }
+    }
+
+    private boolean resolveSourceAETs(Map<ForwardRule, List<String>> sourceAETsByRule) {
+        boolean resolved = true;
+        for (ForwardRule rule : forwardRules)
+            try {
+                sourceAETsByRule.put(rule, ForwardRuleUtils.getDestinationAETsFromForwardRule(asAccepted, rule, keys));
+            } catch (ConfigurationException e) {
+                LOG.error("Failed to get destination AET from forward rule {}: {}", rule.getCommonName(), e);
+                resolved = false;
+            }
+        return resolved;
+    }
+
+    private void retrieve(RelayCache cache, String sourceKey, Map<ForwardRule, List<String>> sourceAETsByRule,
+            boolean complete) {
+        recorder = cache.newRecorder(sourceKey, keys);
+        for (Map.Entry<ForwardRule, List<String>> entry : sourceAETsByRule.entrySet())
+            for (String sourceAET : entry.getValue())
+                if (!canceled)
+                    complete &= retrieveFrom(entry.getKey(), sourceAET);
+        if (canceled)
+            recorder.discard();
+        else
+            recorder.commit(complete);
+    }
+
+    private boolean retrieveFrom(ForwardRule rule, String sourceAET) {
+        String cuid = GET_SOP_CLASSES.get(rq.getString(Tag.AffectedSOPClassUID));
+        String callingAET = (rule.getUseCallingAET() == null) ? asAccepted.getCallingAET() : rule
+                .getUseCallingAET();
+        Association as;
+        try {
+            as = ForwardConnectionUtils.openForwardAssociation(proxyAEE, asAccepted, rule, callingAET, sourceAET,
+                    mkCGetAssociateRQ(cuid), aeCache);
+        } catch (Exception e) {
+            LOG.error("Unable to connect to {}: {}", new Object[] { sourceAET, e });
+            retrieveStatus = Status.UnableToProcess;
+            return false;
+        }
+        final BlockingQueue<RelayCache.Instance> queue = new LinkedBlockingQueue<RelayCache.Instance>();
+        final AtomicInteger getStatus = new AtomicInteger(-1);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            String tsuid = ForwardConnectionUtils.getMatchingTsuid(as, pc.getTransferSyntax(), cuid);
+            if (tsuid == null) {
+                LOG.error("{}: C-GET not supported by {}", as, sourceAET);
+                retrieveStatus = Status.UnableToProcess;
+                return false;
+            }
+            if (asDest == null)
+                openDestination(acceptedStorageContexts(as));
+            received = queue;
+            as.setProperty(CMoveRelay.class.getName(), this);
+            DimseRSPHandler rspHandler = new DimseRSPHandler(as.nextMessageID()) {
+
+                @Override
+                public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                    super.onDimseRSP(as, cmd, data);
+                    int status = cmd.getInt(Tag.Status, -1);
+                    if (Status.isPending(status)) {
+                        remaining = cmd.getInt(Tag.NumberOfRemainingSuboperations, -1);
+                        return;
+                    }
+                    // sub-operations which failed between source and proxy
+                    failed.addAndGet(cmd.getInt(Tag.NumberOfFailedSuboperations, 0));
+                    getStatus.set(status);
+                    if (done.compareAndSet(false, true))
+                        queue.offer(END_OF_RETRIEVE);
+                }
+
+                @Override
+                public void onClose(Association as) {
+                    super.onClose(as);
+                    if (done.compareAndSet(false, true))
+                        queue.offer(END_OF_RETRIEVE);
+                }
+            };
+            getRSPHandler = rspHandler;
+            asGet = as;
+            LOG.debug("{}: retrieve {} from {} for move destination {}", new Object[] { asAccepted,
+                    keys.getString(Tag.QueryRetrieveLevel), sourceAET, moveDestination });
+            as.cget(cuid, priority, AttributeCoercionUtils.coerceDataset(proxyAEE, as, Role.SCP, Dimse.C_MOVE_RQ,
+                    new Attributes(keys), rq), tsuid, rspHandler);
+            if (canceled)
+                cancel();
+            RelayCache.Instance instance;
+            while ((instance = queue.take()) != END_OF_RETRIEVE)
+                if (!canceled)
+                    store(instance);
+        } catch (Exception e) {
+            LOG.error("{}: unable to retrieve from {}: {}", new Object[] { asAccepted, sourceAET, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        } finally {
+            getRSPHandler = null;
+            asGet = null;
+            received = null;
+            as.clearProperty(CMoveRelay.class.getName());
+            // negotiated with SCP role for the storage SOP classes, not for reuse by other forwards
+            releaseAssociation(as, false);
+        }
+        int status = getStatus.get();
+        if (status == Status.Success)
+            return true;
+
+        if (status != Status.Cancel && (status & 0xF000) != 0xB000)
+            retrieveStatus = status == -1 ? Status.UnableToProcess : status;
+        return false;
+    }
+
+    /**
+     * Called for each C-STORE-RQ received on the C-GET association. The data
+     * set is staged in the relay cache and queued for the move destination.
+     */
+    public void onCStoreRQ(Association as, PresentationContext pc, Attributes rq, PDVInputStream data)
+            throws IOException {
+        BlockingQueue<RelayCache.Instance> queue = received;
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        String tsuid = pc.getTransferSyntax();
+        File file = proxyAEE.getRelayCache().createFile();
+        RelayCache.Instance instance;
+        try {
+            DicomOutputStream out = new DicomOutputStream(new BufferedOutputStream(new FileOutputStream(file)),
+                    UID.ExplicitVRLittleEndian);
+            try {
+                out.writeFileMetaInformation(as.createFileMetaInformation(iuid, cuid, tsuid));
+                data.copyTo(out);
+            } finally {
+                out.close();
+            }
+            Attributes header = readHeader(file);
+            instance = new RelayCache.Instance(file, cuid, iuid, tsuid, header.getString(Tag.StudyInstanceUID),
+                    header.getString(Tag.SeriesInstanceUID));
+        } catch (IOException e) {
+            LOG.error("{}: failed to stage {}: {}", new Object[] { as, file, e.getMessage() });
+            file.delete();
+            throw new DicomServiceException(Status.OutOfResources, e);
+        }
+        LOG.debug("{}: stage {}", as, file);
+        recorder.add(instance);
+        if (queue != null)
+            queue.offer(instance);
+        as.writeDimseRSP(pc, Commands.mkCStoreRSP(rq, Status.Success));
+    }
+
+    private static Attributes readHeader(File file) throws IOException {
+        DicomInputStream in = new DicomInputStream(file);
+        try {
+            return in.readDataset(-1, Tag.PixelData);
+        } finally {
+            in.close();
+        }
+    }
+
+    private AAssociateRQ mkCGetAssociateRQ(String cuid) {
+        AAssociateRQ aarq = new AAssociateRQ();
+        aarq.addPresentationContext(new PresentationContext(1, cuid, pc.getTransferSyntax(),
+                UID.ImplicitVRLittleEndian));
+        int pcid = 3;
+        for (TransferCapability tc : proxyAEE.getApplicationEntity().getTransferCapabilitiesWithRole(Role.SCP)) {
+            String sopClass = tc.getSopClass();
+            if (!sopClass.startsWith(STORAGE_SOP_CLASS_PREFIX))
+                continue;
+
+            if (pcid > MAX_PCID) {
+                LOG.warn("{}: too many storage SOP classes, not offering {} for C-GET", asAccepted, sopClass);
+                continue;
+            }
+            String[] tsuids = tc.getTransferSyntaxes();
+            if (Arrays.asList(tsuids).contains("*"))
+                tsuids = new String[] { UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian };
+            aarq.addPresentationContext(new PresentationContext(pcid, sopClass, tsuids));
+            aarq.addRoleSelection(new RoleSelection(sopClass, false, true));
+            pcid += 2;
+        }
+        return aarq;
+    }
+
+    // the move destination is offered what the source may send on the C-GET association
+    private static Map<String, Set<String>> acceptedStorageContexts(Association as) {
+        Map<String, Set<String>> tsuidsByCuid = new LinkedHashMap<String, Set<String>>();
+        for (PresentationContext rqpc : as.getAAssociateRQ().getPresentationContexts()) {
+            String cuid = rqpc.getAbstractSyntax();
+            if (cuid.startsWith(STORAGE_SOP_CLASS_PREFIX))
+                for (String tsuid : as.getTransferSyntaxesFor(cuid))
+                    addTransferSyntax(tsuidsByCuid, cuid, tsuid);
+        }
+        return tsuidsByCuid;
+    }
+
+    private static void addTransferSyntax(Map<String, Set<String>> tsuidsByCuid, String cuid, String tsuid) {
+        Set<String> tsuids = tsuidsByCuid.get(cuid);
+        if (tsuids == null) {
+            tsuids = new LinkedHashSet<String>();
+            tsuidsByCuid.put(cuid, tsuids);
+        }
+        tsuids.add(tsuid);
+    }
+
+    private void openDestination(Map<String, Set<String>> tsuidsByCuid) {
+        if (tsuidsByCuid.isEmpty())
+            return;
+
+        AAssociateRQ aarq = new AAssociateRQ();
+        aarq.setCallingAET(asAccepted.getCalledAET());
+        aarq.setCalledAET(moveDestination);
+        int pcid = 1;
+        for (Map.Entry<String, Set<String>> entry : tsuidsByCuid.entrySet()) {
+            if (pcid > MAX_PCID)
+                break;
+            Set<String> tsuids = entry.getValue();
+            aarq.addPresentationContext(new PresentationContext(pcid, entry.getKey(), tsuids
+                    .toArray(new String[tsuids.size()])));
+            pcid += 2;
+        }
+        asDest = ForwardAssociations.take(proxyAEE, aarq);
+        if (asDest != null)
+            return;
+
+        try {
+            asDest = ForwardConnectionUtils.openForwardAssociation(proxyAEE, null, asAccepted.getCalledAET(),
+                    moveDestination, aarq);
+        } catch (Exception e) {
+            LOG.error("Unable to connect to {}: {}", new Object[] { moveDestination, e });
+        }
+    }
+
+    private void store(final RelayCache.Instance instance) {
+        if (asDest == null || !asDest.isReadyForDataTransfer()) {
+            onStoreFailed(instance.iuid);
+            return;
+        }
+        String tsuid = ForwardConnectionUtils.getMatchingTsuid(asDest, instance.tsuid, instance.cuid);
+        if (tsuid == null) {
+            LOG.error("{}: no presentation context for {} at {}", new Object[] { asAccepted, instance.cuid,
+                    moveDestination });
+            onStoreFailed(instance.iuid);
+            return;
+        }
+        DicomInputStream in = null;
+        try {
+            DataWriter dataWriter;
+            AttributeCoercion ac = proxyAEE.getAttributeCoercion(moveDestination, instance.cuid, Role.SCP,
+                    Dimse.C_STORE_RQ);
+            if (ac == null && tsuid.equals(instance.tsuid)) {
+                // sent as staged, behind the file meta information
+                in = new DicomInputStream(instance.file);
+                in.readFileMetaInformation();
+                dataWriter = new InputStreamDataWriter(in);
+            } else {
+                Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asDest, instance.file);
+                if (ac != null)
+                    attrs = AttributeCoercionUtils.coerceAttributes(asDest, proxyAEE, attrs, ac);
+                dataWriter = new DataWriterAdapter(attrs);
+            }
+            asDest.cstore(instance.cuid, instance.iuid, priority, asAccepted.getRemoteAET(), msgId,
+                    dataWriter, tsuid, new DimseRSPHandler(asDest.nextMessageID()) {
+
+                        @Override
+                        public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                            super.onDimseRSP(as, cmd, data);
+                            int status = cmd.getInt(Tag.Status, -1);
+                            if (status == Status.Success)
+                                completed.incrementAndGet();
+                            else if ((status & 0xF000) == 0xB000)
+                                warning.incrementAndGet();
+                            else {
+                                LOG.info("{}: failed to store {} with error status {}", new Object[] { as,
+                                        instance.iuid, Integer.toHexString(status) + 'H' });
+                                onStoreFailed(instance.iuid);
+                                return;
+                            }
+                            writePendingRSP();
+                        }
+
+                        @Override
+                        public void onClose(Association as) {
+                            super.onClose(as);
+                            onStoreFailed(instance.iuid);
+                        }
+                    });
+        } catch (Exception e) {
+            LOG.error("{}: failed to store {} to {}: {}", new Object[] { asAccepted, instance.iuid,
+                    moveDestination, e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            onStoreFailed(instance.iuid);
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    private void onStoreFailed(String iuid) {
+        failed.incrementAndGet();
+        synchronized (failedIUIDs) {
+            failedIUIDs.add(iuid);
+        }
+        writePendingRSP();
+    }
+
+    // called by the reader threads of the C-GET and the destination association
+    private synchronized void writePendingRSP() {
+        if (canceled)
+            return;
+
+        Attributes rsp = Commands.mkCMoveRSP(rq, Status.Pending);
+        addNumberOfSuboperations(rsp);
+        int total = remaining;
+        if (total >= 0) {
+            // staged instances are counted down, otherwise the source reports what it still has to send
+            if (asGet == null)
+                total -= completed.get() + failed.get() + warning.get();
+            else if (received != null)
+                total += received.size();
+            rsp.setInt(Tag.NumberOfRemainingSuboperations, VR.US, Math.max(0, total));
+        }
+        try {
+            asAccepted.writeDimseRSP(pc, rsp);
+        } catch (IOException e) {
+            LOG.error(asAccepted + ": failed to write C-MOVE-RSP: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            cancel();
+        }
+    }
+
+    private void addNumberOfSuboperations(Attributes rsp) {
+        rsp.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed.get());
+        rsp.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed.get());
+        rsp.setInt(Tag.NumberOfWarningSuboperations, VR.US, warning.get());
+    }
+
+    private int finalStatus() {
+        if (canceled)
+            return Status.Cancel;
+
+        if (failed.get() == 0 && warning.get() == 0)
+            return completed.get() == 0 ? retrieveStatus : Status.Success;
+
+        return completed.get() == 0 && warning.get() == 0 ? Status.UnableToPerformSubOperations
+                : Status.OneOrMoreFailures;
+    }
+
+    private synchronized void writeFinalRSP(int status) {
+        Attributes rsp = Commands.mkCMoveRSP(rq, status);
+        addNumberOfSuboperations(rsp);
+        Attributes data = null;
+        synchronized (failedIUIDs) {
+            if (!failedIUIDs.isEmpty()) {
+                data = new Attributes(1);
+                data.setString(Tag.FailedSOPInstanceUIDList, VR.UI,
+                        failedIUIDs.toArray(new String[failedIUIDs.size()]));
+            }
+        }
+        LOG.info("{}: relayed C-MOVE to {} with status {}H (completed={}, failed={}, warning={})", new Object[] {
+                asAccepted, moveDestination, Integer.toHexString(status), completed, failed, warning });
+        try {
+            asAccepted.writeDimseRSP(pc, rsp, data);
+        } catch (IOException e) {
+            LOG.error(asAccepted + ": failed to write C-MOVE-RSP: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private void releaseDestination() {
+        if (asDest != null)
+            releaseAssociation(asDest, true);
+    }
+
+    private void releaseAssociation(Association as, boolean pooled) {
+        try {
+            as.waitForOutstandingRSP();
+            if (!pooled || !ForwardAssociations.giveBack(proxyAEE, as))
+                as.release();
+        } catch (InterruptedException e) {
+            LOG.error(as + ": unexpected exception: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        } catch (IOException e) {
+            LOG.error(as + ": failed to release association: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+}
@@ -43,23 +43,36 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dcm4che.conf.api.ApplicationEntityCache;
 import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Sequence;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.UID;
 import org.dcm4che.data.VR;
 import org.dcm4che.emf.MultiframeExtractor;
 import org.dcm4che.io.DicomEncodingOptions;
+import org.dcm4che.io.DicomInputHandler;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che.io.DicomOutputStream;
@@ -71,23 +84,28 @@ import org.dcm4che.net.Dimse;
 import org.dcm4che.net.DimseRSPHandler;
 import org.dcm4che.net.InputStreamDataWriter;
 import org.dcm4che.net.PDVInputStream;
+import org.dcm4che.net.PDVOutputStream;
 import org.dcm4che.net.Status;
 import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.AAssociateRQ;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicCStoreSCP;
 import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.proxy.audit.AuditAggregator;
 import org.dcm4chee.proxy.common.AuditDirectory;
 import org.dcm4chee.proxy.common.CMoveInfoObject;
 import org.dcm4chee.proxy.common.RetryObject;
 import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.forward.ForwardDispatcher;
 import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.dcm4chee.proxy.utils.LogUtils;
+import org.dcm4chee.proxy.utils.SpoolSync;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -99,6 +117,11 @@ public class CStore extends BasicCStoreSCP {
 
     protected static final Logger LOG = LoggerFactory.getLogger(CStore.class);
 
+    private static final int STREAM_BUFFER_SIZE = 65536;
+
+    private static final Set<FileStore> storesWithoutHardLinks =
+            Collections.newSetFromMap(new ConcurrentHashMap<FileStore, Boolean>());
+
     private ApplicationEntityCache aeCache;
 
     public CStore(ApplicationEntityCache aeCache, String... sopClasses) {
@@ -112,14 +135,28 @@ public class CStore extends BasicCStoreSCP {
         if (dimse != Dimse.C_STORE_RQ)
             throw new DicomServiceException(Status.UnrecognizedOperation);
 
+        // sub-operation of a C-GET issued for a relayed C-MOVE
+        Object relay = asAccepted.getProperty(CMoveRelay.class.getName());
+        if (relay != null) {
+            ((CMoveRelay) relay).onCStoreRQ(asAccepted, pc, rq, data);
+            return;
+        }
+
         ProxyAEExtension proxyAEE = asAccepted.getApplicationEntity().getAEExtension(ProxyAEExtension.class);
         Object forwardAssociationProperty = asAccepted.getProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
-        if (spoolRequest(asAccepted, dimse, rq, proxyAEE, forwardAssociationProperty))
+        if (spoolRequest(asAccepted, pc, dimse, rq, proxyAEE, forwardAssociationProperty))
             spool(proxyAEE, asAccepted, pc, dimse, rq, data, null);
         else {
             try {
-                forward(proxyAEE, asAccepted, (Association) forwardAssociationProperty, pc, rq, 
-                        new InputStreamDataWriter(data), -1, null, null, null);
+                Association asInvoked = (Association) forwardAssociationProperty;
+                boolean coerce = requiresCoercion(asAccepted, dimse, rq, proxyAEE, forwardAssociationProperty);
+                if (coerce || requiresReferences(proxyAEE)) {
+                    Attributes references = new Attributes(2);
+                    forward(proxyAEE, asAccepted, asInvoked, pc, rq, new CoercingDataWriter(proxyAEE, asAccepted,
+                            asInvoked, pc, rq, data, coerce, references), references, -1, null, null, null);
+                } else
+                    forward(proxyAEE, asAccepted, asInvoked, pc, rq, new InputStreamDataWriter(data), null, -1,
+                            null, null, null);
             } catch (Exception e) {
                 LOG.error(asAccepted + ": error forwarding C-STORE-RQ: " + e.getMessage());
                 asAccepted.setProperty(ProxyAEExtension.FILE_SUFFIX, RetryObject.ConnectionException.getSuffix() + "0");
@@ -128,14 +165,12 @@ public class CStore extends BasicCStoreSCP {
         }
     }
 
-    private boolean spoolRequest(Association asAccepted, Dimse dimse, Attributes rq, ProxyAEExtension proxyAEE,
-            Object forwardAssociationProperty) {
+    private boolean spoolRequest(Association asAccepted, PresentationContext pc, Dimse dimse, Attributes rq,
+            ProxyAEExtension proxyAEE, Object forwardAssociationProperty) {
         return forwardAssociationProperty == null
                 || proxyAEE.isAcceptDataOnFailedAssociation()
-                || proxyAEE.getAttributeCoercions().findAttributeCoercion(rq.getString(Tag.AffectedSOPClassUID), dimse,
-                        Role.SCU, asAccepted.getRemoteAET()) != null
-                || proxyAEE.getAttributeCoercions().findAttributeCoercion(rq.getString(Tag.AffectedSOPClassUID), dimse,
-                        Role.SCP, ((Association)forwardAssociationProperty).getRemoteAET()) != null
+                || ((requiresCoercion(asAccepted, dimse, rq, proxyAEE, forwardAssociationProperty)
+                        || requiresReferences(proxyAEE)) && !isStreamable(pc, rq, forwardAssociationProperty))
                 || proxyAEE.isEnableAuditLog()
                 || (forwardAssociationProperty instanceof HashMap<?, ?>)
                 || (forwardAssociationProperty instanceof Association && ForwardConnectionUtils
@@ -145,6 +180,40 @@ public class CStore extends BasicCStoreSCP {
                 || proxyAEE.isAssociationFromDestinationAET(asAccepted);
     }
 
+    private static boolean requiresCoercion(Association asAccepted, Dimse dimse, Attributes rq,
+            ProxyAEExtension proxyAEE, Object forwardAssociationProperty) {
+        if (!(forwardAssociationProperty instanceof Association))
+            return false;
+
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        return proxyAEE.getAttributeCoercions().findAttributeCoercion(cuid, dimse, Role.SCU,
+                asAccepted.getRemoteAET()) != null
+                || proxyAEE.getAttributeCoercions().findAttributeCoercion(cuid, dimse, Role.SCP,
+                        ((Association) forwardAssociationProperty).getRemoteAET()) != null;
+    }
+
+    // relayed objects are only parsed if cached queries or staged studies
+    // have to be invalidated by their patient and study
+    private static boolean requiresReferences(ProxyAEExtension proxyAEE) {
+        return !proxyAEE.isRelayCacheEmpty()
+                || !proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                        .isCFindCacheEmpty();
+    }
+
+    // the header is parsed while relaying if the data set can be passed on in
+    // the received transfer syntax and is not deflated
+    private static boolean isStreamable(PresentationContext pc, Attributes rq, Object forwardAssociationProperty) {
+        if (!(forwardAssociationProperty instanceof Association))
+            return false;
+
+        String tsuid = pc.getTransferSyntax();
+        if (tsuid.equals(UID.DeflatedExplicitVRLittleEndian) || tsuid.equals(UID.JPIPReferencedDeflate))
+            return false;
+
+        return tsuid.equals(ForwardConnectionUtils.getMatchingTsuid((Association) forwardAssociationProperty, tsuid,
+                rq.getString(Tag.AffectedSOPClassUID)));
+    }
+
     protected void spool(ProxyAEExtension proxyAEE, Association asAccepted, PresentationContext pc, Dimse dimse,
             Attributes cmd, PDVInputStream data, Attributes rsp) throws IOException {
         File file = createSpoolFile(proxyAEE, asAccepted);
@@ -220,12 +289,16 @@ public class CStore extends BasicCStoreSCP {
         String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
         String tsuid = pc.getTransferSyntax();
         Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
-        Attributes attrs = data.readDataset(tsuid);
-        attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, as, Role.SCU, Dimse.C_STORE_RQ, attrs, rq);
+        Attributes attrs;
         try {
-            out.writeDataset(fmi, attrs);
+            if (tsuid.equals(UID.DeflatedExplicitVRLittleEndian) || tsuid.equals(UID.JPIPReferencedDeflate)) {
+                attrs = data.readDataset(tsuid);
+                attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, as, Role.SCU, Dimse.C_STORE_RQ, attrs, rq);
+                out.writeDataset(fmi, attrs);
+            } else
+                attrs = streamDataset(proxyAEE, as, rq, fmi, tsuid, data, out);
             fout.flush();
-            fout.getFD().sync();
+            SpoolSync.sync(proxyAEE, fout);
         } finally {
             out.close();
             bout.close();
@@ -241,45 +314,195 @@ public class CStore extends BasicCStoreSCP {
         prop.setProperty("source-aet", as.getCallingAET());
         String path = file.getPath();
         File info = new File(path.substring(0, path.length() - 5) + ".info");
-        FileOutputStream infoOut = new FileOutputStream(info);
-        try {
-            prop.store(infoOut, null);
-            infoOut.flush();
-            infoOut.getFD().sync();
-        } finally {
-            infoOut.close();
-        }
+        InfoFileUtils.storeInfoFile(proxyAEE, info, prop, true);
         return fmi;
     }
 
-    private void addFileInfo(String path, String key, String value) throws IOException {
-        File info = new File(path.substring(0, path.length() - 5) + ".info");
-        Properties prop = new Properties();
-        FileInputStream inStream = null;
+    private static Attributes streamDataset(ProxyAEExtension proxyAEE, Association as, Attributes rq,
+            Attributes fmi, String tsuid, PDVInputStream data, DicomOutputStream out) throws IOException {
+        DicomInputStream in = new DicomInputStream(data, tsuid);
+        Attributes header = new Attributes();
+        boolean pixelData = readHeader(in, header);
+        Attributes attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, as, Role.SCU, Dimse.C_STORE_RQ, header,
+                rq);
+        out.writeDataset(fmi, attrs);
+        if (pixelData)
+            copyPixelData(in, out);
+        return attrs;
+    }
+
+    // parse header only, stops at the top level pixel data element
+    private static boolean readHeader(DicomInputStream in, final Attributes header) throws IOException {
+        in.setDicomInputHandler(new DicomInputHandler() {
+
+            @Override
+            public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
+                if (attrs == header && dis.tag() == Tag.PixelData)
+                    throw new PixelDataReached();
+                dis.readValue(dis, attrs);
+            }
+
+            @Override
+            public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
+                dis.readValue(dis, seq);
+            }
+
+            @Override
+            public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
+                dis.readValue(dis, frags);
+            }
+
+            @Override
+            public void startDataset(DicomInputStream dis) throws IOException {
+            }
+
+            @Override
+            public void endDataset(DicomInputStream dis) throws IOException {
+            }
+        });
         try {
-            inStream = new FileInputStream(info);
-            prop.load(inStream);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            inStream.close();
+            in.readAttributes(header, -1, -1);
+            return false;
+        } catch (PixelDataReached e) {
+            return true;
         }
-        prop.setProperty(key, value);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(info);
-            prop.store(out, null);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            out.close();
+    }
+
+    // pixel data and any trailing elements are copied unchanged
+    private static void copyPixelData(DicomInputStream in, DicomOutputStream out) throws IOException {
+        out.writeHeader(Tag.PixelData, in.vr(), in.length());
+        byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buf)) > 0)
+            out.write(buf, 0, read);
+    }
+
+    private static class PixelDataReached extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // received bytes are passed on while the header is parsed from them
+    private static class PassThroughInputStream extends FilterInputStream {
+
+        private final OutputStream out;
+
+        PassThroughInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                out.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0)
+                out.write(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int) Math.min(n, STREAM_BUFFER_SIZE)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buf, 0, (int) Math.min(n - skipped, buf.length))) > 0)
+                skipped += read;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    // relays the received data set to the forward association, attribute
+    // coercion of both roles is applied to the header on the fly; patient and
+    // study of the header are kept to invalidate cached queries on success.
+    // Without coercion the received bytes are passed on unchanged.
+    private static class CoercingDataWriter implements DataWriter {
+
+        private final ProxyAEExtension proxyAEE;
+        private final Association asAccepted;
+        private final Association asInvoked;
+        private final PresentationContext pc;
+        private final Attributes rq;
+        private final PDVInputStream data;
+        private final boolean coerce;
+        private final Attributes references;
+
+        CoercingDataWriter(ProxyAEExtension proxyAEE, Association asAccepted, Association asInvoked,
+                PresentationContext pc, Attributes rq, PDVInputStream data, boolean coerce, Attributes references) {
+            this.proxyAEE = proxyAEE;
+            this.asAccepted = asAccepted;
+            this.asInvoked = asInvoked;
+            this.pc = pc;
+            this.rq = rq;
+            this.data = data;
+            this.coerce = coerce;
+            this.references = references;
+        }
+
+        @Override
+        public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+            Attributes header = new Attributes();
+            if (!coerce) {
+                readHeader(new DicomInputStream(new PassThroughInputStream(data, out), pc.getTransferSyntax()),
+                        header);
+                setReferences(header);
+                data.copyTo(out);
+                return;
+            }
+            DicomInputStream in = new DicomInputStream(data, pc.getTransferSyntax());
+            boolean pixelData = readHeader(in, header);
+            Attributes attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, asAccepted, Role.SCU,
+                    Dimse.C_STORE_RQ, header, rq);
+            attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, asInvoked, Role.SCP, Dimse.C_STORE_RQ, attrs, rq);
+            setReferences(attrs);
+            // not closed, closing the PDV output stream is up to the association
+            @SuppressWarnings("resource")
+            DicomOutputStream dos = new DicomOutputStream(out, tsuid);
+            dos.writeDataset(null, attrs);
+            if (pixelData)
+                copyPixelData(in, dos);
+            dos.finish();
         }
+
+        private void setReferences(Attributes attrs) {
+            references.setString(Tag.PatientID, VR.LO, attrs.getString(Tag.PatientID));
+            references.setString(Tag.StudyInstanceUID, VR.UI, attrs.getString(Tag.StudyInstanceUID));
+        }
+    }
+
+    private static void invalidateCFindCache(ProxyAEExtension proxyAEE, Attributes dataset) {
+        if (dataset == null)
+            return;
+
+        String studyIUID = dataset.getString(Tag.StudyInstanceUID);
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .invalidateCFindCache(dataset.getString(Tag.PatientID), studyIUID);
+        proxyAEE.invalidateRelayCache(studyIUID);
+    }
+
+    private void addFileInfo(ProxyAEExtension proxyAEE, String path, String key, String value) throws IOException {
+        File info = new File(path.substring(0, path.length() - 5) + ".info");
+        Properties prop = InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath());
+        prop.setProperty(key, value);
+        InfoFileUtils.storeInfoFile(proxyAEE, info, prop, false);
     }
 
     private void processForwardRules(ProxyAEExtension proxyAEE, Association asAccepted,
             Object forwardAssociationProperty, PresentationContext pc, Dimse dimse, Attributes rq, Attributes rsp,
             File file, Attributes fmi) throws IOException, DicomServiceException, ConfigurationException {
-        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(
+        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE,
                 proxyAEE.getCurrentForwardRules(asAccepted), rq.getString(dimse.tagOfSOPClassUID()), Dimse.C_STORE_RQ);
         if (forwardRules.size() == 0)
             throw new ConfigurationException("no matching forward rule");
@@ -289,6 +512,7 @@ public class CStore extends BasicCStoreSCP {
                     forwardRules.get(0));
         else {
             List<String> prevDestinationAETs = new ArrayList<String>();
+            LinkedHashMap<File, String> copies = new LinkedHashMap<File, String>();
             for (ForwardRule rule : forwardRules) {
                 List<String> destinationAETs = new ArrayList<String>();
                 if (rule.containsTemplateURI()) {
@@ -304,14 +528,17 @@ public class CStore extends BasicCStoreSCP {
                         continue;
                     }
                     if (rule.getUseCallingAET() != null)
-                        addFileInfo(file.getPath(), "use-calling-aet", rule.getUseCallingAET());
-                    createMappedFileCopy(proxyAEE, asAccepted, file, calledAET, ".dcm");
+                        addFileInfo(proxyAEE, file.getPath(), "use-calling-aet", rule.getUseCallingAET());
+                    copies.put(createMappedFileCopy(proxyAEE, asAccepted, file, calledAET, ".dcm"), calledAET);
                 }
                 prevDestinationAETs.addAll(destinationAETs);
             }
             deleteFile(asAccepted, file);
+            SpoolSync.commit(proxyAEE, asAccepted, copies.keySet().toArray(new File[copies.size()]));
             Attributes cmd = Commands.mkCStoreRSP(rq, Status.Success);
             asAccepted.writeDimseRSP(pc, cmd);
+            for (Entry<File, String> copy : copies.entrySet())
+                ForwardDispatcher.publish(proxyAEE, copy.getValue(), copy.getKey());
         }
     }
 
@@ -319,10 +546,10 @@ public class CStore extends BasicCStoreSCP {
             PresentationContext pc, Attributes rq, File file, Attributes fmi, ProxyAEExtension proxyAEE,
             ForwardRule rule) throws DicomServiceException, IOException {
         if (rule.getUseCallingAET() != null)
-            addFileInfo(file.getPath(), "use-calling-aet", rule.getUseCallingAET());
+            addFileInfo(proxyAEE, file.getPath(), "use-calling-aet", rule.getUseCallingAET());
         String calledAET = rule.getDestinationAETitles().get(0);
         ForwardOption forwardOption = proxyAEE.getForwardOptions().get(calledAET);
-        if (forwardOption == null || forwardOption.getSchedule().isNow(new GregorianCalendar())) {
+        if (forwardOption == null || forwardOption.getSchedule().isActive(System.currentTimeMillis())) {
             String callingAET = (rule.getUseCallingAET() == null) ? asAccepted.getCallingAET() : rule.getUseCallingAET();
             Association asInvoked = getSingleForwardDestination(asAccepted, callingAET, calledAET,
                     ForwardConnectionUtils.copyOfMatchingAAssociateRQ(asAccepted), forwardAssociationProperty, proxyAEE, rule);
@@ -354,7 +581,9 @@ public class CStore extends BasicCStoreSCP {
                     file.getName().indexOf('.')) + ".info");
             File infoDst = new File(dir, infoFile.getName());
             infoFile.renameTo(infoDst);
+            SpoolSync.commit(proxyAEE, asAccepted, dst);
             asAccepted.writeDimseRSP(pc, Commands.mkCStoreRSP(rq, Status.Success));
+            ForwardDispatcher.publish(proxyAEE, calledAET, dst);
         } else {
             LOG.error("{}: failed to rename {} to {}", new Object[] { asAccepted, file, dst });
             throw new DicomServiceException(Status.OutOfResources);
@@ -420,20 +649,21 @@ public class CStore extends BasicCStoreSCP {
         }
         Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asAccepted, dataFile);
         attrs = AttributeCoercionUtils.coerceDataset(proxyAEE, asInvoked, Role.SCP, Dimse.C_STORE_RQ, attrs, rq);
-        File logFile = null;
+        AuditAggregator.Record logRecord = null;
         try {
             if (proxyAEE.isEnableAuditLog()) {
                 String sourceAET = fmi.getString(Tag.SourceApplicationEntityTitle);
                 Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, dataFile);
-                LogUtils.createStartLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, asInvoked.getRemoteAET(),
+                LogUtils.startLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, asInvoked.getRemoteAET(),
                         asInvoked.getConnection().getHostname(), prop, 0);
-                logFile = LogUtils.writeLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
+                logRecord = LogUtils.writeLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
                         asInvoked.getRemoteAET(), prop, dataFile.length(), 0);
             }
-            forward(proxyAEE, asAccepted, asInvoked, pc, rq, new DataWriterAdapter(attrs), -1, logFile, dataFile, null);
+            forward(proxyAEE, asAccepted, asInvoked, pc, rq, new DataWriterAdapter(attrs), attrs, -1, logRecord,
+                    dataFile, null);
         } catch (Exception e) {
-            if (logFile != null)
-                logFile.delete();
+            if (logRecord != null)
+                logRecord.withdraw();
             LOG.error("{}: error forwarding object {}: {}", new Object[] { asAccepted, dataFile, e.getMessage() });
             if (proxyAEE.isAcceptDataOnFailedAssociation()) {
                 asAccepted.setProperty(ProxyAEExtension.FILE_SUFFIX, ".dcm");
@@ -460,7 +690,7 @@ public class CStore extends BasicCStoreSCP {
         Attributes forwardRq = new Attributes(rq);
         String sourceUID = src.getString(Tag.SOPInstanceUID);
         for (int frameNumber = n - 1; frameNumber >= 0; --frameNumber) {
-            File logFile = null;
+            AuditAggregator.Record logRecord = null;
             try {
                 long t1 = System.currentTimeMillis();
                 Attributes attrs = extractor.extract(src, frameNumber);
@@ -471,16 +701,16 @@ public class CStore extends BasicCStoreSCP {
                 if (proxyAEE.isEnableAuditLog()) {
                     Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, dataFile);
                     String sourceAET = prop.getProperty("source-aet");
-                    LogUtils.createStartLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
+                    LogUtils.startLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
                             asInvoked.getRemoteAET(), asInvoked.getConnection().getHostname(), prop, 0);
-                    logFile = LogUtils.writeLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
+                    logRecord = LogUtils.writeLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET,
                             asInvoked.getRemoteAET(), prop, attrs.calcLength(DicomEncodingOptions.DEFAULT, true), 0);
                 }
-                forward(proxyAEE, asAccepted, asInvoked, pc, forwardRq, new DataWriterAdapter(attrs), frameNumber,
-                        logFile, dataFile, sourceUID);
+                forward(proxyAEE, asAccepted, asInvoked, pc, forwardRq, new DataWriterAdapter(attrs), src,
+                        frameNumber, logRecord, dataFile, sourceUID);
             } catch (Exception e) {
-                if (logFile != null)
-                    logFile.delete();
+                if (logRecord != null)
+                    logRecord.withdraw();
                 log = false;
                 if (LOG.isDebugEnabled())
                     e.printStackTrace();
@@ -502,30 +732,67 @@ public class CStore extends BasicCStoreSCP {
                     sourceUID, t / 1000F });
     }
 
-    protected static void createMappedFileCopy(ProxyAEExtension proxyAEE, Association as, File file, String calledAET,
+    // the spooled data set is shared by all destinations, the file system
+    // deletes it with the last link after the last destination succeeded
+    private static boolean createLink(Association as, File file, File dst) throws FileAlreadyExistsException {
+        FileStore store;
+        try {
+            store = Files.getFileStore(file.toPath());
+        } catch (IOException e) {
+            LOG.info("{}: failed to determine file store of {}, copy spool file: {}", new Object[] { as,
+                    file.getPath(), e.getMessage() });
+            return false;
+        }
+        if (storesWithoutHardLinks.contains(store))
+            return false;
+
+        try {
+            Files.createLink(dst.toPath(), file.toPath());
+            LOG.debug("{}: link {} to {}", new Object[] { as, file.getPath(), dst.getPath() });
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException e) {
+            LOG.info("{}: hard links not supported by {}, copy spool files per destination", as, store);
+            storesWithoutHardLinks.add(store);
+        } catch (IOException e) {
+            LOG.info("{}: failed to link {} to {}, copy spool file: {}", new Object[] { as, file.getPath(),
+                    dst.getPath(), e.getMessage() });
+        }
+        return false;
+    }
+
+    protected static File createMappedFileCopy(ProxyAEExtension proxyAEE, Association as, File file, String calledAET,
             String suffix) throws IOException {
         FileChannel source = null;
         FileChannel destination = null;
         File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
         dir.mkdir();
         File dst = new File(dir, file.getName().substring(0, file.getName().lastIndexOf('.')).concat(suffix));
-        LOG.debug("{}: copy {} to {}", new Object[] { as, file.getPath(), dst.getPath() });
-        FileInputStream in = new FileInputStream(file);
-        source = in.getChannel();
-        FileOutputStream out = new FileOutputStream(dst);
-        destination = out.getChannel();
-        try {
-            destination.transferFrom(source, 0, source.size());
-            out.flush();
-            out.getFD().sync();
-        } finally {
-            destination.close();
-            out.close();
-            in.close();
+        if (!createLink(as, file, dst)) {
+            // never write to an existing spool file, it may be a link shared with other destinations
+            if (!dst.createNewFile())
+                throw new FileAlreadyExistsException(dst.getPath());
+            LOG.debug("{}: copy {} to {}", new Object[] { as, file.getPath(), dst.getPath() });
+            FileInputStream in = new FileInputStream(file);
+            source = in.getChannel();
+            FileOutputStream out = new FileOutputStream(dst);
+            destination = out.getChannel();
+            try {
+                destination.transferFrom(source, 0, source.size());
+                out.flush();
+                SpoolSync.sync(proxyAEE, out);
+            } finally {
+                destination.close();
+                out.close();
+                in.close();
+            }
         }
         File infoFile = new File(proxyAEE.getCStoreDirectoryPath(), file.getName().substring(0,
                 file.getName().indexOf('.')) + ".info");
         File infoDst = new File(dir, infoFile.getName());
+        if (!infoDst.createNewFile())
+            throw new FileAlreadyExistsException(infoDst.getPath());
         LOG.debug("{}: copy {} to {}", new Object[] { as, infoFile.getPath(), infoDst.getPath() });
         FileInputStream infoIn = new FileInputStream(infoFile);
         source = infoIn.getChannel();
@@ -534,17 +801,19 @@ public class CStore extends BasicCStoreSCP {
         try {
             destination.transferFrom(source, 0, source.size());
             infoOut.flush();
-            infoOut.getFD().sync();
+            SpoolSync.sync(proxyAEE, infoOut);
         } finally {
             destination.close();
             infoOut.close();
             infoIn.close();
         }
+        return dst;
     }
 
     private static void forward(final ProxyAEExtension proxyAEE, final Association asAccepted, Association asInvoked,
-            final PresentationContext pc, final Attributes rq, DataWriter data, final int frame,
-            final File logFile, final File dataFile, final String sourceIUID) throws IOException, InterruptedException {
+            final PresentationContext pc, final Attributes rq, DataWriter data, final Attributes dataset,
+            final int frame, final AuditAggregator.Record logRecord, final File dataFile, final String sourceIUID)
+            throws IOException, InterruptedException {
         final String tsuid = pc.getTransferSyntax();
         String cuid = rq.getString(Tag.AffectedSOPClassUID);
         String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
@@ -568,6 +837,8 @@ public class CStore extends BasicCStoreSCP {
                     if (frame > 0)
                         return;
 
+                    if (cmd.getInt(Tag.Status, -1) == Status.Success)
+                        invalidateCFindCache(proxyAEE, dataset);
                     try {
                         if (!asInvoked.isRequestor() || info != null || sourceIUID != null)
                             cmd.setInt(Tag.MessageIDBeingRespondedTo, VR.US, msgId);
@@ -586,14 +857,16 @@ public class CStore extends BasicCStoreSCP {
             @Override
             synchronized public void onClose(Association as) {
                 isClosed = true;
-                if (logFile != null)
-                    logFile.delete();
+                if (logRecord != null)
+                    logRecord.withdraw();
                 super.onClose(as);
                 Attributes cmd = new Attributes();
                 if (dataFile != null && dataFile.exists() && proxyAEE.isAcceptDataOnFailedAssociation())
                     try {
                         String suffix = RetryObject.ConnectionException.getSuffix() + "0";
-                        createMappedFileCopy(proxyAEE, asAccepted, dataFile, calledAET, suffix);
+                        File dst = createMappedFileCopy(proxyAEE, asAccepted, dataFile, calledAET, suffix);
+                        SpoolSync.commit(proxyAEE, asAccepted, dst);
+                        ForwardDispatcher.publish(proxyAEE, calledAET, dst);
                         cmd = Commands.mkCStoreRSP(rq, Status.Success);
                     } catch (Exception e) {
                         LOG.error("{}: error saving file {}: {}", new Object[]{as, dataFile.getPath(), e.getMessage()});
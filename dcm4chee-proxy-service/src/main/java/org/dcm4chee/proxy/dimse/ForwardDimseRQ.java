@@ -42,7 +42,12 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4che.conf.api.ApplicationEntityCache;
 import org.dcm4che.conf.api.ConfigurationException;
@@ -61,6 +66,7 @@ import org.dcm4che.net.Status;
 import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.proxy.common.CFindCache;
 import org.dcm4chee.proxy.common.CMoveInfoObject;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
@@ -79,19 +85,23 @@ public class ForwardDimseRQ {
 
     private static final Logger LOG = LoggerFactory.getLogger(ForwardDimseRQ.class);
 
-    private int status = -1;
-    private CountDownLatch waitForOutstandingRSP;
+    // updated by the reader threads of all forward associations
+    private final AtomicInteger status = new AtomicInteger(-1);
+    private final AtomicInteger outstandingRSP = new AtomicInteger();
     private PresentationContext pc;
     private Attributes rq;
     private Attributes data;
     private Association asAccepted;
     private Dimse dimse;
     private Association[] fwdAssocs;
-    private int NumberOfCompletedSuboperations = 0;
-    private int NumberOfFailedSuboperations = 0;
-    private int NumberOfWarningSuboperations = 0;
+    private final AtomicInteger numberOfCompletedSuboperations = new AtomicInteger();
+    private final AtomicInteger numberOfFailedSuboperations = new AtomicInteger();
+    private final AtomicInteger numberOfWarningSuboperations = new AtomicInteger();
     private PIXConsumer pixConsumer;
     private ApplicationEntityCache aeCache;
+    private CFindMerger merger;
+    private ScheduledFuture<?> mergeTimeout;
+    private CFindCache.Recorder cacheRecorder;
 
     public ForwardDimseRQ(Association asAccepted, PresentationContext pc, Attributes rq, Attributes data, Dimse dimse,
             PIXConsumer pixConsumer, ApplicationEntityCache aeCache, Association... fwdAssocs) {
@@ -103,7 +113,10 @@ public class ForwardDimseRQ {
         this.fwdAssocs = fwdAssocs;
         this.pixConsumer = pixConsumer;
         this.aeCache = aeCache;
-        waitForOutstandingRSP = new CountDownLatch(fwdAssocs.length);
+    }
+
+    public void setCFindCacheRecorder(CFindCache.Recorder cacheRecorder) {
+        this.cacheRecorder = cacheRecorder;
     }
 
     private void forwardDimseRQ(final Association asInvoked, Attributes coercedData, final boolean adjustPatientID)
@@ -115,9 +128,10 @@ public class ForwardDimseRQ {
         final int msgId = rq.getInt(Tag.MessageID, 0);
         int rspMsgId = msgId;
         ForwardRule fwdRule = (ForwardRule) asInvoked.getProperty(ForwardRule.class.getName());
+        CMoveInfoObject infoObject = null;
         if (dimse == Dimse.C_MOVE_RQ) {
             if (fwdRule.getUseCallingAET() != null) {
-                CMoveInfoObject infoObject = new CMoveInfoObject(asAccepted.getRemoteAET(),
+                infoObject = new CMoveInfoObject(asAccepted.getRemoteAET(),
                         rq.getString(Tag.MoveDestination), asInvoked.getCalledAET(), asInvoked.getCallingAET(),
                         rq.getInt(Tag.MessageID, 0), (ForwardRule) asInvoked.getProperty(ForwardRule.class.getName()));
                 int newMsgId = proxyAEE.getNewCMoveMessageID(infoObject);
@@ -132,31 +146,53 @@ public class ForwardDimseRQ {
         } else if (adjustPatientID) {
             rspMsgId = asInvoked.nextMessageID();
         }
+        final CMoveInfoObject cmoveInfo = infoObject;
+        final int moveOriginatorMsgId = rspMsgId;
         final DimseRSPHandler rspHandler = new DimseRSPHandler(rspMsgId) {
 
             @Override
             public void onDimseRSP(Association asInvoked, Attributes cmd, Attributes rspData) {
                 super.onDimseRSP(asInvoked, cmd, rspData);
+                // destination was dropped after the merge timeout
+                if (merger != null && !merger.isOutstanding(this))
+                    return;
+
                 if (adjustPatientID || dimse == Dimse.C_MOVE_RQ)
                     cmd.setInt(Tag.MessageIDBeingRespondedTo, VR.US, msgId);
                 int rspStatus = cmd.getInt(Tag.Status, -1);
                 if (Status.isPending(rspStatus))
                     writeDimseRSP(pc, cmd, rspData);
                 else {
-                    if (status != Status.Success)
-                        status = rspStatus;
-                    NumberOfCompletedSuboperations = NumberOfCompletedSuboperations
-                            + cmd.getInt(Tag.NumberOfCompletedSuboperations, 0);
-                    NumberOfFailedSuboperations = NumberOfFailedSuboperations
-                            + cmd.getInt(Tag.NumberOfFailedSuboperations, 0);
-                    NumberOfWarningSuboperations = NumberOfWarningSuboperations
-                            + cmd.getInt(Tag.NumberOfWarningSuboperations, 0);
-                    waitForOutstandingRSP.countDown();
-                    if (waitForOutstandingRSP.getCount() == 0)
-                        sendFinalDimseRSP();
+                    // the move destination did not connect back, if the context is still there
+                    if (cmoveInfo != null)
+                        proxyAEE.getCMoveInfoTable().remove(moveOriginatorMsgId, cmoveInfo);
+                    if (merger != null && !merger.complete(this))
+                        return;
+
+                    updateStatus(rspStatus);
+                    numberOfCompletedSuboperations.addAndGet(cmd.getInt(Tag.NumberOfCompletedSuboperations, 0));
+                    numberOfFailedSuboperations.addAndGet(cmd.getInt(Tag.NumberOfFailedSuboperations, 0));
+                    numberOfWarningSuboperations.addAndGet(cmd.getInt(Tag.NumberOfWarningSuboperations, 0));
+                    completeOutstandingRSP(1);
                 }
             }
 
+            // forward association closed before the final response, the matches are incomplete
+            @Override
+            public void onClose(Association asInvoked) {
+                super.onClose(asInvoked);
+                LOG.warn("{}: association closed before final {} response", asInvoked, dimse);
+                if (cacheRecorder != null)
+                    cacheRecorder.discard();
+                if (cmoveInfo != null)
+                    proxyAEE.getCMoveInfoTable().remove(moveOriginatorMsgId, cmoveInfo);
+                if (merger != null && !merger.complete(this))
+                    return;
+
+                updateStatus(Status.UnableToProcess);
+                completeOutstandingRSP(1);
+            }
+
             private void writeDimseRSP(PresentationContext pc, Attributes cmd, Attributes rspData) {
                 try {
                     if (adjustPatientID) {
@@ -172,8 +208,17 @@ public class ForwardDimseRQ {
                                     rspData,
                                     rq);
                     }
+                    if (merger != null && !merger.accept(rspData))
+                        return;
+
+                    if (cacheRecorder != null)
+                        cacheRecorder.add(rspData);
                     asAccepted.writeDimseRSP(pc, cmd, rspData);
+                    if (merger != null && merger.isLimitReached())
+                        cancelOnLimitReached();
                 } catch (IOException e) {
+                    if (cacheRecorder != null)
+                        cacheRecorder.discard();
                     LOG.error(asAccepted + ": failed to forward DIMSE-RSP: " + e.getMessage());
                     if(LOG.isDebugEnabled())
                         e.printStackTrace();
@@ -181,6 +226,8 @@ public class ForwardDimseRQ {
                 }
             }
         };
+        if (merger != null)
+            merger.register(rspHandler, asInvoked);
         asAccepted.addCancelRQHandler(msgId, new CancelRQHandler() {
 
             @Override
@@ -217,9 +264,13 @@ public class ForwardDimseRQ {
             LOG.error("{}: unable to forward DIMSE request: {}", new Object[] { asInvoked, e.getMessage() });
             if(LOG.isDebugEnabled())
                 e.printStackTrace();
-            waitForOutstandingRSP.countDown();
-            if (waitForOutstandingRSP.getCount() == 0)
-                sendFinalDimseRSP();
+            if (cmoveInfo != null)
+                proxyAEE.getCMoveInfoTable().remove(moveOriginatorMsgId, cmoveInfo);
+            if (merger != null && !merger.complete(rspHandler))
+                return;
+
+            updateStatus(Status.UnableToProcess);
+            completeOutstandingRSP(1);
         }
     }
 
@@ -229,7 +280,35 @@ public class ForwardDimseRQ {
                 : rq.getString(Tag.MoveDestination);
     }
 
+    // the final status is Success if any destination succeeded, otherwise the last received status
+    private void updateStatus(int rspStatus) {
+        int prev;
+        do {
+            prev = status.get();
+            if (prev == Status.Success)
+                return;
+        } while (!status.compareAndSet(prev, rspStatus));
+    }
+
+    // exactly one thread sees the count drop to zero and sends the final response
+    private void completeOutstandingRSP(int n) {
+        if (outstandingRSP.addAndGet(-n) == 0)
+            sendFinalDimseRSP();
+    }
+
     private void sendFinalDimseRSP() {
+        int status = this.status.get();
+        if (merger != null) {
+            if (mergeTimeout != null)
+                mergeTimeout.cancel(false);
+            LOG.debug("{}: {}", asAccepted, merger);
+        }
+        if (cacheRecorder != null) {
+            if (status == Status.Success && (merger == null || !merger.isExpired()))
+                cacheRecorder.commit();
+            else
+                cacheRecorder.discard();
+        }
         if (dimse == Dimse.C_FIND_RQ)
             try {
                 asAccepted.writeDimseRSP(pc, Commands.mkCFindRSP(rq, status));
@@ -264,9 +343,9 @@ public class ForwardDimseRQ {
     }
 
     private void addNumberOfSuboperations(Attributes rsp) {
-        rsp.setInt(Tag.NumberOfCompletedSuboperations, VR.US, NumberOfCompletedSuboperations);
-        rsp.setInt(Tag.NumberOfFailedSuboperations, VR.US, NumberOfFailedSuboperations);
-        rsp.setInt(Tag.NumberOfWarningSuboperations, VR.US, NumberOfWarningSuboperations);
+        rsp.setInt(Tag.NumberOfCompletedSuboperations, VR.US, numberOfCompletedSuboperations.get());
+        rsp.setInt(Tag.NumberOfFailedSuboperations, VR.US, numberOfFailedSuboperations.get());
+        rsp.setInt(Tag.NumberOfWarningSuboperations, VR.US, numberOfWarningSuboperations.get());
     }
 
     public void execute() throws IOException, InterruptedException {
@@ -278,45 +357,148 @@ public class ForwardDimseRQ {
             if (!fwdRules.contains(rule))
                 fwdRules.add(rule);
         }
-        for (Association fwdAssoc : fwdAssocs) {
-            IDWithIssuer[] pids = processPatientIDs(proxyAEE, fwdRules, fwdAssoc);
-            if (pids.length == 0)
-                coerceAndForward(proxyAEE, fwdAssoc, data, false);
-            else
-                forwardDimseRQPerPatientID(proxyAEE, fwdAssoc, pids);
+        if (dimse == Dimse.C_FIND_RQ && proxyAEE.isMergeCFindResponses())
+            merger = new CFindMerger(data, proxyAEE.getMergeCFindMaxResults(data.getString(Tag.QueryRetrieveLevel)));
+        // size the number of outstanding responses up front, before the first response can arrive
+        IDWithIssuer[][] pidsPerAssoc = new IDWithIssuer[fwdAssocs.length][];
+        int outstanding = 0;
+        for (int i = 0; i < fwdAssocs.length; i++) {
+            pidsPerAssoc[i] = processPatientIDs(proxyAEE, fwdRules, fwdAssocs[i]);
+            outstanding += Math.max(1, pidsPerAssoc[i].length);
         }
+        outstandingRSP.set(outstanding);
+        int forwarded = 0;
+        try {
+            for (int i = 0; i < fwdAssocs.length; i++) {
+                if (pidsPerAssoc[i].length == 0) {
+                    coerceAndForward(proxyAEE, fwdAssocs[i], data, false);
+                    forwarded++;
+                } else
+                    for (IDWithIssuer pid : pidsPerAssoc[i]) {
+                        forwardDimseRQForPatientID(proxyAEE, fwdAssocs[i], pid);
+                        forwarded++;
+                    }
+            }
+        } catch (InterruptedException e) {
+            LOG.error("{}: interrupted while forwarding {}, {} of {} requests not forwarded",
+                    new Object[] { asAccepted, dimse, outstanding - forwarded, outstanding });
+            Thread.currentThread().interrupt();
+            // the final response is sent once the already forwarded requests completed
+            updateStatus(Status.UnableToProcess);
+            completeOutstandingRSP(outstanding - forwarded);
+            return;
+        }
+        final int timeout = proxyAEE.getMergeCFindTimeout();
+        if (merger != null && timeout > 0)
+            mergeTimeout = asAccepted.getApplicationEntity().getDevice().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    dropLateDestinations(timeout);
+                }
+            }, timeout, TimeUnit.SECONDS);
     }
 
-    private void forwardDimseRQPerPatientID(ProxyAEExtension proxyAEE, Association fwdAssoc, IDWithIssuer[] pids)
-            throws IOException, InterruptedException {
-        waitForOutstandingRSP = new CountDownLatch((int) waitForOutstandingRSP.getCount() + (pids.length - 1));
-        LOG.debug("{}: execute {} for PatientIDs {}", new Object[]{ fwdAssoc, dimse, pidsToString(pids)});
-        for (IDWithIssuer pid : pids) {
-            Attributes newPidAttrs = new Attributes(data);
-            newPidAttrs.setString(Tag.PatientID, VR.LO, pid.id);
-            newPidAttrs.setString(Tag.IssuerOfPatientID, VR.LO, pid.issuer.getLocalNamespaceEntityID());
-            coerceAndForward(proxyAEE, fwdAssoc, newPidAttrs, true);
-        }
+    private void dropLateDestinations(int timeout) {
+        Map<DimseRSPHandler, Association> late = merger.expire();
+        if (late.isEmpty())
+            return;
+
+        for (Association fwdAssoc : late.values())
+            LOG.warn("{}: no final C-FIND-RSP within {}s, dropping destination {}",
+                    new Object[] { asAccepted, timeout, fwdAssoc.getCalledAET() });
+        // UnableToProcess if none of the destinations completed in time
+        status.compareAndSet(-1, Status.UnableToProcess);
+        cancel(late);
+    }
+
+    // the maximum number of matches was returned, further responses would be dropped anyway
+    private void cancelOnLimitReached() {
+        Map<DimseRSPHandler, Association> remaining = merger.expire();
+        if (remaining.isEmpty())
+            return;
+
+        LOG.info("{}: returned maximum number of {} level matches, cancel C-FIND at {} destinations",
+                new Object[] { asAccepted, merger.getQueryRetrieveLevel(), remaining.size() });
+        updateStatus(Status.Success);
+        cancel(remaining);
     }
 
-    private String pidsToString(IDWithIssuer[] pids) {
-        StringBuffer sb = new StringBuffer();
-        sb.append("[");
-        int i = 1;
-        for (IDWithIssuer pid : pids) {
-            sb.append(pid.toString());
-            if (i < pids.length)
-                sb.append(", ");
-            ++i;
+    private void cancel(Map<DimseRSPHandler, Association> rspHandlers) {
+        for (Map.Entry<DimseRSPHandler, Association> entry : rspHandlers.entrySet()) {
+            Association fwdAssoc = entry.getValue();
+            try {
+                entry.getKey().cancel(fwdAssoc);
+            } catch (IOException e) {
+                LOG.error(fwdAssoc + ": failed to cancel C-FIND: " + e.getMessage());
+                if (LOG.isDebugEnabled())
+                    e.printStackTrace();
+            }
         }
-        sb.append("]");
-        return sb.toString();
+        completeOutstandingRSP(rspHandlers.size());
     }
 
+    private void forwardDimseRQForPatientID(ProxyAEExtension proxyAEE, Association fwdAssoc, IDWithIssuer pid)
+            throws InterruptedException {
+        LOG.debug("{}: execute {} for PatientID {}", new Object[]{ fwdAssoc, dimse, pid });
+        Attributes newPidAttrs = new Attributes(data);
+        newPidAttrs.setString(Tag.PatientID, VR.LO, pid.id);
+        newPidAttrs.setString(Tag.IssuerOfPatientID, VR.LO, pid.issuer.getLocalNamespaceEntityID());
+        coerceAndForward(proxyAEE, fwdAssoc, newPidAttrs, true);
+    }
+
+    // every request counted in outstandingRSP completes, also if it could not be sent
     private void coerceAndForward(ProxyAEExtension proxyAEE, Association fwdAssoc, Attributes attrs, boolean adjustPatientID)
-            throws IOException, InterruptedException {
-        Attributes coercedData = new Attributes(AttributeCoercionUtils.coerceDataset(proxyAEE, fwdAssoc, Role.SCP, dimse, attrs, rq));
-        forwardDimseRQ(fwdAssoc, coercedData, adjustPatientID);
+            throws InterruptedException {
+        try {
+            Attributes coercedData = new Attributes(AttributeCoercionUtils.coerceDataset(proxyAEE, fwdAssoc, Role.SCP, dimse, attrs, rq));
+            forwardDimseRQ(fwdAssoc, coercedData, adjustPatientID);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.error("{}: unable to forward {}: {}", new Object[] { fwdAssoc, dimse, e.getMessage() });
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
+            updateStatus(Status.UnableToProcess);
+            completeOutstandingRSP(1);
+        }
+    }
+
+    /**
+     * Starts the PIX Query for the PatientID of the request in the background, so that it runs concurrently with
+     * opening the forward associations. The pending result is stored at the accepted association and awaited when
+     * the request is forwarded.
+     */
+    public static void startPIXQuery(Association asAccepted, List<ForwardRule> forwardRules, Attributes data,
+            PIXConsumer pixConsumer, ApplicationEntityCache aeCache) {
+        if (asAccepted.getProperty(ProxyAEExtension.PIDS) != null)
+            return;
+
+        String patientID = data.getString(Tag.PatientID);
+        if (patientID == null || patientID.isEmpty())
+            return;
+
+        boolean runPIXQuery = false;
+        for (ForwardRule rule : forwardRules)
+            if (rule.isRunPIXQuery()) {
+                runPIXQuery = true;
+                break;
+            }
+        if (!runPIXQuery)
+            return;
+
+        try {
+            Issuer issuerOfPatientID = getIssuerOfPatientID(asAccepted, data, aeCache);
+            IDWithIssuer pid = issuerOfPatientID != null ? IDWithIssuer.pidWithIssuer(data, issuerOfPatientID) : null;
+            if (pid == null)
+                return;
+
+            ProxyAEExtension proxyAEE = asAccepted.getApplicationEntity().getAEExtension(ProxyAEExtension.class);
+            LOG.debug("{}: start PIX Query using PatientID \"{}\"", asAccepted, pid);
+            asAccepted.setProperty(ProxyAEExtension.PIDS, pixConsumer.pixQueryAsync(proxyAEE, pid));
+        } catch (ConfigurationException e) {
+            LOG.debug("{}: unable to start PIX Query: {}", asAccepted, e.getMessage());
+        }
     }
 
     private IDWithIssuer[] processPatientIDs(ProxyAEExtension proxyAEE, List<ForwardRule> fwdRules, Association fwdAssoc) {
@@ -329,7 +511,12 @@ public class ForwardDimseRQ {
         for (ForwardRule fwr : fwdRules)
             if (fwr.isRunPIXQuery() && fwr.getDestinationAETitles().contains(fwdAssoc.getCalledAET())) {
                 Object pidsFromAssoc = asAccepted.getProperty(ProxyAEExtension.PIDS);
-                if (pidsFromAssoc != null) {
+                if (pidsFromAssoc instanceof Future) {
+                    @SuppressWarnings("unchecked")
+                    Future<IDWithIssuer[]> pendingPIDs = (Future<IDWithIssuer[]>) pidsFromAssoc;
+                    pids = awaitPIXQuery(fwdAssoc, pendingPIDs);
+                    asAccepted.setProperty(ProxyAEExtension.PIDS, pids);
+                } else if (pidsFromAssoc != null) {
                     pids = (IDWithIssuer[]) pidsFromAssoc;
                 } else {
                     try {
@@ -346,6 +533,26 @@ public class ForwardDimseRQ {
         return pids;
     }
 
+    private IDWithIssuer[] awaitPIXQuery(Association as, Future<IDWithIssuer[]> pendingPIDs) {
+        IDWithIssuer[] pids;
+        try {
+            pids = pendingPIDs.get();
+        } catch (ExecutionException e) {
+            LOG.error("Unable to execute PIX Query: " + e.getCause().getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return IDWithIssuer.EMPTY;
+        } catch (InterruptedException e) {
+            LOG.error("{}: interrupted while waiting for PIX Query", as);
+            Thread.currentThread().interrupt();
+            return IDWithIssuer.EMPTY;
+        }
+        // the first entry is the queried PatientID, carrying the resolved issuer
+        if (pids.length > 0 && pids[0].issuer != null && data.getString(Tag.IssuerOfPatientID) == null)
+            data.setString(Tag.IssuerOfPatientID, VR.LO, pids[0].issuer.toString());
+        return pids;
+    }
+
     private IDWithIssuer[] getOtherPatientIDs(Association as, ProxyAEExtension proxyAEE)
             throws ConfigurationException, IncompatibleConnectionException, IOException, GeneralSecurityException {
         IDWithIssuer[] pids = IDWithIssuer.EMPTY;
@@ -354,11 +561,9 @@ public class ForwardDimseRQ {
         if (requestedIssuer == null) {
             String deviceName = asAccepted.getApplicationEntity().getDevice().getDeviceName();
             LOG.debug("{}: IssuerOfPatientID not in dataset, will now try to retrieve from device configuration \"{}\"", as, deviceName);
-            String callingAET = asAccepted.getAAssociateAC().getCallingAET();
-            ApplicationEntity issuerAET = aeCache.findApplicationEntity(callingAET);
-            issuerOfPatientID = issuerAET.getDevice().getIssuerOfPatientID();
+            issuerOfPatientID = getIssuerOfPatientID(asAccepted, data, aeCache);
             if (issuerOfPatientID == null) {
-                LOG.error("{}: no IssuerOfPatientID configured for {}", as, callingAET);
+                LOG.error("{}: no IssuerOfPatientID configured for {}", as, asAccepted.getAAssociateAC().getCallingAET());
                 return pids;
             }
             if (LOG.isDebugEnabled())
@@ -375,4 +580,14 @@ public class ForwardDimseRQ {
             LOG.error("{}: unexpected error: IDWithIssuer == null", as);
         return pids;
     }
+
+    private static Issuer getIssuerOfPatientID(Association asAccepted, Attributes data,
+            ApplicationEntityCache aeCache) throws ConfigurationException {
+        String requestedIssuer = data.getString(Tag.IssuerOfPatientID);
+        if (requestedIssuer != null)
+            return new Issuer(requestedIssuer);
+
+        ApplicationEntity issuerAET = aeCache.findApplicationEntity(asAccepted.getAAssociateAC().getCallingAET());
+        return issuerAET.getDevice().getIssuerOfPatientID();
+    }
 }
@@ -39,7 +39,6 @@
 package org.dcm4chee.proxy.dimse;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Calendar;
@@ -89,6 +88,7 @@ import org.dcm4che.util.UIDUtils;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.forward.ForwardDispatcher;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
@@ -151,8 +151,8 @@ public class Mpps extends DicomService {
             Attributes data) throws ConfigurationException, IOException {
         ApplicationEntity ae = as.getApplicationEntity();
         ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
-        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE.getCurrentForwardRules(as),
-                cmd.getString(dimse.tagOfSOPClassUID()), dimse);
+        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE,
+                proxyAEE.getCurrentForwardRules(as), cmd.getString(dimse.tagOfSOPClassUID()), dimse);
         if (forwardRules.size() == 0)
             throw new ConfigurationException("no matching forward rule");
 
@@ -232,7 +232,7 @@ public class Mpps extends DicomService {
         File doseSrFile = createFile(as, doseSrFmi, doseSrData, proxyAEE.getCStoreDirectoryPath(), calledAET, rule);
         LOG.info("{}: created Dose SR file {}", as, doseSrFile.getPath());
         as.setProperty(ProxyAEExtension.FILE_SUFFIX, ".dcm");
-        rename(as, doseSrFile);
+        ForwardDispatcher.publish(proxyAEE, calledAET, rename(as, doseSrFile));
         AuditMessage msg = createAuditMessage(
                 proxyAEE.getApplicationEntity(), 
                 timeStamp,
@@ -382,10 +382,10 @@ public class Mpps extends DicomService {
             prop.setProperty("use-calling-aet", rule.getUseCallingAET());
         String path = file.getPath();
         File info = new File(path.substring(0, path.length() - 5) + ".info");
-        FileOutputStream infoOut = new FileOutputStream(info);
         try {
             LOG.debug("{}: create {}", as, info.getPath());
-            prop.store(infoOut, null);
+            InfoFileUtils.storeInfoFile(as.getApplicationEntity().getAEExtension(ProxyAEExtension.class), info, prop,
+                    false);
         } catch (IOException e) {
             LOG.warn("{}: failed to create {}", new Object[] { as, info.getPath() });
             if (LOG.isDebugEnabled())
@@ -393,8 +393,6 @@ public class Mpps extends DicomService {
             file.delete();
             info.delete();
             throw new DicomServiceException(Status.OutOfResources, e.getCause());
-        } finally {
-            infoOut.close();
         }
         return file;
     }
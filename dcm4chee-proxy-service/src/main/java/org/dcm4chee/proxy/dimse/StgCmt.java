@@ -39,10 +39,8 @@
 package org.dcm4chee.proxy.dimse;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -136,8 +134,8 @@ public class StgCmt extends DicomService {
             Attributes data) throws IOException, ConfigurationException {
         ApplicationEntity ae = as.getApplicationEntity();
         ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
-        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE.getCurrentForwardRules(as),
-                rq.getString(dimse.tagOfSOPClassUID()), dimse);
+        List<ForwardRule> forwardRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE,
+                proxyAEE.getCurrentForwardRules(as), rq.getString(dimse.tagOfSOPClassUID()), dimse);
         if (forwardRules.size() == 0)
             throw new ConfigurationException("No matching forward rule");
 
@@ -163,7 +161,7 @@ public class StgCmt extends DicomService {
             Dimse dimse, Attributes rq, Attributes data, String callingAET, String calledAET,
             ForwardRule rule) throws IOException, ConfigurationException {
         for (Entry<String, ForwardOption> entry : proxyAEE.getForwardOptions().entrySet()) {
-            if (calledAET.equals(entry.getKey()) && !entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+            if (calledAET.equals(entry.getKey()) && !entry.getValue().getSchedule().isActive(System.currentTimeMillis())) {
                 storeNActionRQ(proxyAEE, asAccepted, pc, rq, data, ".dcm", rule);
                 return;
             }
@@ -467,11 +465,9 @@ public class StgCmt extends DicomService {
         prop.setProperty("sop-class-uid", rq.getString(Tag.RequestedSOPClassUID));
         String path = file.getPath();
         File info = new File(path.substring(0, path.indexOf('.')) + ".info");
-        FileOutputStream infoOut = new FileOutputStream(info);
         try {
-
             LOG.debug("{}: create {}", asAccepted, info.getPath());
-            prop.store(infoOut, null);
+            InfoFileUtils.storeInfoFile(proxyAE, info, prop, false);
         } catch (Exception e) {
             LOG.error(asAccepted + ": Failed to create transaction UID info-file: " + e.getMessage());
             if(LOG.isDebugEnabled())
@@ -479,8 +475,6 @@ public class StgCmt extends DicomService {
             file.delete();
             info.delete();
             throw new DicomServiceException(Status.OutOfResources, e.getCause());
-        } finally {
-            infoOut.close();
         }
         return file;
     }
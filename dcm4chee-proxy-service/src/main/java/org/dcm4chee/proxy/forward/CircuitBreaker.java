@@ -0,0 +1,160 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CircuitBreaker {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private enum State { CLOSED, OPEN, PROBING }
+
+    private final String calledAET;
+    private State state = State.CLOSED;
+    private int failures;
+    private long probeTime;
+
+    private CircuitBreaker(String calledAET) {
+        this.calledAET = calledAET;
+    }
+
+    /**
+     * Returns <code>true</code> if a connection to <code>calledAET</code> may
+     * be opened now. While the circuit is open, only a single caller is
+     * allowed to probe the destination after the configured timeout; its
+     * outcome must be reported by {@link #onConnect}.
+     */
+    public static boolean allowRequest(ProxyAEExtension proxyAEE, String calledAET) {
+        if (threshold(proxyAEE) <= 0)
+            return true;
+
+        CircuitBreaker breaker = breakers.get(calledAET);
+        return breaker == null || breaker.allow();
+    }
+
+    /**
+     * Returns <code>true</code> while connections to <code>calledAET</code>
+     * are suspended and no probe is due.
+     */
+    public static boolean isOpen(ProxyAEExtension proxyAEE, String calledAET) {
+        if (threshold(proxyAEE) <= 0)
+            return false;
+
+        CircuitBreaker breaker = breakers.get(calledAET);
+        return breaker != null && breaker.open();
+    }
+
+    public static void onConnect(ProxyAEExtension proxyAEE, String calledAET, boolean success) {
+        int threshold = threshold(proxyAEE);
+        if (threshold <= 0)
+            return;
+
+        CircuitBreaker breaker = breakers.get(calledAET);
+        if (success) {
+            if (breaker != null)
+                breaker.closed();
+            return;
+        }
+        if (breaker == null) {
+            CircuitBreaker newBreaker = new CircuitBreaker(calledAET);
+            breaker = breakers.putIfAbsent(calledAET, newBreaker);
+            if (breaker == null)
+                breaker = newBreaker;
+        }
+        breaker.failed(threshold, proxyAEE.getApplicationEntity().getDevice()
+                .getDeviceExtension(ProxyDeviceExtension.class).getCircuitBreakerTimeout() * 1000L);
+    }
+
+    private static int threshold(ProxyAEExtension proxyAEE) {
+        return proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .getCircuitBreakerThreshold();
+    }
+
+    private synchronized boolean allow() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() < probeTime)
+                return false;
+
+            LOG.info("Probe suspended destination {}", calledAET);
+            state = State.PROBING;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private synchronized boolean open() {
+        return state == State.PROBING || state == State.OPEN && System.currentTimeMillis() < probeTime;
+    }
+
+    private synchronized void closed() {
+        if (state != State.CLOSED)
+            LOG.info("Resume connections to {}", calledAET);
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    private synchronized void failed(int threshold, long timeout) {
+        if (state == State.CLOSED && ++failures < threshold)
+            return;
+
+        if (state == State.CLOSED)
+            LOG.warn("Suspend connections to {} for {}s after {} failed attempts",
+                    new Object[] { calledAET, timeout / 1000, failures });
+        else
+            LOG.info("Probe of {} failed, suspend connections for {}s", calledAET, timeout / 1000);
+        state = State.OPEN;
+        probeTime = System.currentTimeMillis() + timeout;
+    }
+}
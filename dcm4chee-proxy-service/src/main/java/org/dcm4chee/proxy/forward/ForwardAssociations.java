@@ -0,0 +1,290 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.DimseRSP;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.pdu.AAssociateRQ;
+import org.dcm4che.net.pdu.ExtendedNegotiation;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.pdu.RoleSelection;
+import org.dcm4chee.proxy.conf.ForwardRule;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardAssociations {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(ForwardAssociations.class);
+
+    private static volatile ForwardAssociations instance;
+
+    private final ScheduledExecutorService scheduledExecutor;
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<IdleAssociation>> idleAssociations =
+            new ConcurrentHashMap<String, ConcurrentLinkedQueue<IdleAssociation>>();
+
+    public ForwardAssociations(ScheduledExecutorService scheduledExecutor) {
+        this.scheduledExecutor = scheduledExecutor;
+    }
+
+    public void start() {
+        instance = this;
+    }
+
+    public void stop() {
+        if (instance == this)
+            instance = null;
+        for (ConcurrentLinkedQueue<IdleAssociation> queue : idleAssociations.values()) {
+            IdleAssociation idle;
+            while ((idle = queue.poll()) != null)
+                if (idle.cancel())
+                    release(idle.as);
+        }
+    }
+
+    public static Association take(ProxyAEExtension proxyAEE, AAssociateRQ rq) {
+        return take(proxyAEE, rq, false);
+    }
+
+    /**
+     * Leases an idle association to the called AE of the request. With
+     * {@code sameContexts}, the pooled association must have been negotiated
+     * with identical presentation contexts, as required when its A-ASSOCIATE-AC
+     * is passed through to the requestor.
+     */
+    public static Association take(ProxyAEExtension proxyAEE, AAssociateRQ rq, boolean sameContexts) {
+        ForwardAssociations associations = instance;
+        if (associations == null || rq.getUserIdentityRQ() != null)
+            return null;
+
+        ConcurrentLinkedQueue<IdleAssociation> queue = associations.idleAssociations.get(key(rq.getCallingAET(),
+                rq.getCalledAET()));
+        if (queue == null)
+            return null;
+
+        long checkInterval = getDeviceExtension(proxyAEE).getForwardAssociationCheckInterval() * 1000L;
+        for (Iterator<IdleAssociation> iter = queue.iterator(); iter.hasNext();) {
+            IdleAssociation idle = iter.next();
+            if (!idle.as.isReadyForDataTransfer()) {
+                if (queue.remove(idle) && idle.cancel())
+                    LOG.debug("{}: discard closed idle association", idle.as);
+            } else if (matches(idle.as, rq, sameContexts) && queue.remove(idle) && idle.cancel()) {
+                if (checkInterval > 0 && System.currentTimeMillis() - idle.since > checkInterval
+                        && !echo(idle.as)) {
+                    LOG.debug("{}: discard idle association after failed C-ECHO", idle.as);
+                    abort(idle.as);
+                    continue;
+                }
+                LOG.debug("{}: reuse idle association", idle.as);
+                return idle.as;
+            }
+        }
+        return null;
+    }
+
+    public static boolean giveBack(ProxyAEExtension proxyAEE, Association as) {
+        ForwardAssociations associations = instance;
+        if (associations == null || !as.isReadyForDataTransfer() || as.getAAssociateRQ().getUserIdentityRQ() != null)
+            return false;
+
+        ProxyDeviceExtension proxyDevExt = getDeviceExtension(proxyAEE);
+        int timeout = proxyDevExt.getForwardAssociationIdleTimeout();
+        if (timeout <= 0)
+            return false;
+
+        String key = key(as.getCallingAET(), as.getCalledAET());
+        ConcurrentLinkedQueue<IdleAssociation> queue = associations.idleAssociations.get(key);
+        if (queue == null) {
+            ConcurrentLinkedQueue<IdleAssociation> newQueue = new ConcurrentLinkedQueue<IdleAssociation>();
+            queue = associations.idleAssociations.putIfAbsent(key, newQueue);
+            if (queue == null)
+                queue = newQueue;
+        }
+        int poolSize = proxyDevExt.getForwardAssociationPoolSize();
+        if (poolSize > 0 && queue.size() >= poolSize) {
+            LOG.debug("{}: {} idle associations to {} already open", new Object[] { as, poolSize, as.getCalledAET() });
+            return false;
+        }
+        as.clearProperty(ProxyAEExtension.FORWARD_ASSOCIATION);
+        as.clearProperty(ForwardRule.class.getName());
+        return associations.park(queue, as, timeout);
+    }
+
+    private static ProxyDeviceExtension getDeviceExtension(ProxyAEExtension proxyAEE) {
+        return proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class);
+    }
+
+    private boolean park(final ConcurrentLinkedQueue<IdleAssociation> queue, Association as, int timeout) {
+        final IdleAssociation idle = new IdleAssociation(as, timeout);
+        queue.offer(idle);
+        try {
+            idle.future = scheduledExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (queue.remove(idle)) {
+                        LOG.debug("{}: release association after {}s idle", idle.as, idle.timeout);
+                        release(idle.as);
+                    }
+                }
+            }, timeout, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // already taken by another forward task otherwise
+            return !queue.remove(idle);
+        }
+        LOG.debug("{}: keep association open for {}s", as, timeout);
+        return true;
+    }
+
+    private static boolean matches(Association as, AAssociateRQ rq, boolean sameContexts) {
+        return (sameContexts ? sameContexts(as.getAAssociateRQ(), rq) : acceptsAll(as, rq))
+                && sameNegotiation(as.getAAssociateRQ(), rq);
+    }
+
+    private static boolean acceptsAll(Association as, AAssociateRQ rq) {
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            if (pc.getAbstractSyntax().equals(UID.VerificationSOPClass))
+                continue;
+            for (String tsuid : pc.getTransferSyntaxes())
+                if (!as.getTransferSyntaxesFor(pc.getAbstractSyntax()).contains(tsuid))
+                    return false;
+        }
+        return true;
+    }
+
+    static boolean sameContexts(AAssociateRQ pooled, AAssociateRQ rq) {
+        if (pooled.getNumberOfPresentationContexts() != rq.getNumberOfPresentationContexts())
+            return false;
+        for (PresentationContext pc : rq.getPresentationContexts()) {
+            PresentationContext other = pooled.getPresentationContext(pc.getPCID());
+            if (other == null || !other.getAbstractSyntax().equals(pc.getAbstractSyntax())
+                    || !Arrays.equals(other.getTransferSyntaxes(), pc.getTransferSyntaxes()))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean sameNegotiation(AAssociateRQ pooled, AAssociateRQ rq) {
+        // roles the request did not ask for, e.g. SCP role of storage SOP classes negotiated for C-GET
+        for (RoleSelection rs : pooled.getRoleSelections())
+            if (rq.getRoleSelectionFor(rs.getSOPClassUID()) == null)
+                return false;
+        for (RoleSelection rs : rq.getRoleSelections()) {
+            RoleSelection other = pooled.getRoleSelectionFor(rs.getSOPClassUID());
+            if (other == null || other.isSCU() != rs.isSCU() || other.isSCP() != rs.isSCP())
+                return false;
+        }
+        for (ExtendedNegotiation en : rq.getExtendedNegotiations()) {
+            ExtendedNegotiation other = pooled.getExtNegotiationFor(en.getSOPClassUID());
+            if (other == null || !Arrays.equals(other.getInformation(), en.getInformation()))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean echo(Association as) {
+        if (as.getTransferSyntaxesFor(UID.VerificationSOPClass).isEmpty())
+            return true;
+
+        try {
+            DimseRSP rsp = as.cecho();
+            rsp.next();
+            return rsp.getCommand().getInt(Tag.Status, -1) == Status.Success;
+        } catch (Exception e) {
+            LOG.debug("{}: C-ECHO failed: {}", as, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void abort(Association as) {
+        try {
+            as.abort();
+        } catch (Exception e) {
+            LOG.debug("{}: failed to abort association: {}", as, e.getMessage());
+        }
+    }
+
+    private static void release(Association as) {
+        try {
+            as.release();
+        } catch (IOException e) {
+            LOG.error(as + ": failed to release association: " + e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private static String key(String callingAET, String calledAET) {
+        return callingAET + '/' + calledAET;
+    }
+
+    private static class IdleAssociation {
+
+        final Association as;
+        final int timeout;
+        final long since = System.currentTimeMillis();
+        volatile ScheduledFuture<?> future;
+
+        IdleAssociation(Association as, int timeout) {
+            this.as = as;
+            this.timeout = timeout;
+        }
+
+        boolean cancel() {
+            return future == null || future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dcm4che.conf.api.ApplicationEntityCache;
+import org.dcm4che.net.Device;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.forward.SpoolCatalog.SpoolEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardDispatcher {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(ForwardDispatcher.class);
+
+    private static volatile ForwardDispatcher instance;
+
+    private final ApplicationEntityCache aeCache;
+    private final Device device;
+    private final ScheduledExecutorService scheduledExecutor;
+    private final ConcurrentHashMap<String, ReadyQueue> readyQueues = new ConcurrentHashMap<String, ReadyQueue>();
+
+    public ForwardDispatcher(ApplicationEntityCache aeCache, Device device, ScheduledExecutorService scheduledExecutor) {
+        this.aeCache = aeCache;
+        this.device = device;
+        this.scheduledExecutor = scheduledExecutor;
+    }
+
+    public static void publish(ProxyAEExtension proxyAEE, String calledAET, File file) {
+        publish(proxyAEE, calledAET, file, null);
+    }
+
+    /**
+     * Publish a spool file which may have been forwarded before, restoring
+     * its retry state from the spool metadata.
+     */
+    public static void republish(ProxyAEExtension proxyAEE, String calledAET, File file) {
+        publish(proxyAEE, calledAET, file, RetryState.read(proxyAEE, file));
+    }
+
+    static void publish(ProxyAEExtension proxyAEE, String calledAET, File file, RetryState state) {
+        SpoolEntry entry;
+        try {
+            SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+            entry = state == null
+                    ? catalog.add(calledAET, file)
+                    : catalog.add(calledAET, file, state.dueTime, state.retries, state.suffix);
+        } catch (IOException e) {
+            LOG.error("Error adding {} to spool catalog: {}", file, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return;
+        }
+        ForwardDispatcher dispatcher = instance;
+        if (dispatcher != null && entry != null)
+            dispatcher.enqueue(proxyAEE, calledAET, file, entry.getDueTime() - System.currentTimeMillis());
+    }
+
+    public void start() {
+        instance = this;
+    }
+
+    public void stop() {
+        if (instance == this)
+            instance = null;
+        readyQueues.clear();
+    }
+
+    private void enqueue(final ProxyAEExtension proxyAEE, final String calledAET, final File file, long delay) {
+        if (delay <= 0) {
+            offer(proxyAEE, calledAET, file);
+            return;
+        }
+        LOG.debug("Publish {} to ready queue of {} in {}ms", new Object[] { file, calledAET, delay });
+        try {
+            scheduledExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (instance == ForwardDispatcher.this)
+                        offer(proxyAEE, calledAET, file);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dispatcher stopped, leave {} for next scheduler run", file);
+        }
+    }
+
+    private void offer(ProxyAEExtension proxyAEE, String calledAET, File file) {
+        String key = proxyAEE.getApplicationEntity().getAETitle() + '/' + calledAET;
+        ReadyQueue queue = readyQueues.get(key);
+        if (queue == null) {
+            ReadyQueue newQueue = new ReadyQueue(proxyAEE, calledAET);
+            queue = readyQueues.putIfAbsent(key, newQueue);
+            if (queue == null)
+                queue = newQueue;
+        }
+        queue.files.offer(file);
+        LOG.debug("Publish {} to ready queue of {}", file, calledAET);
+        scheduleDrain(queue);
+    }
+
+    private void scheduleDrain(final ReadyQueue queue) {
+        if (!queue.draining.compareAndSet(false, true))
+            return;
+
+        try {
+            device.getDeviceExtension(ProxyDeviceExtension.class).getFileForwardingExecutor()
+                    .execute(queue.calledAET, new Runnable() {
+
+                        @Override
+                        public void run() {
+                            drain(queue);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            LOG.error("Failed to dispatch ready queue of {}: {}", queue.calledAET, e.getMessage());
+            queue.files.clear();
+            queue.draining.set(false);
+        }
+    }
+
+    private void drain(ReadyQueue queue) {
+        try {
+            ArrayList<File> files = new ArrayList<File>();
+            File file;
+            while ((file = queue.files.poll()) != null)
+                files.add(file);
+            if (!files.isEmpty()) {
+                LOG.debug("Dispatching {} file(s) from ready queue of {}", files.size(), queue.calledAET);
+                new ForwardFiles(aeCache).forwardCStoreFiles(queue.proxyAEE, queue.calledAET, files);
+            }
+        } catch (Exception e) {
+            LOG.error("Error dispatching ready queue of {}: {}", queue.calledAET, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        } finally {
+            queue.draining.set(false);
+            if (!queue.files.isEmpty())
+                scheduleDrain(queue);
+        }
+    }
+
+    private static class ReadyQueue {
+
+        final ProxyAEExtension proxyAEE;
+        final String calledAET;
+        final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        ReadyQueue(ProxyAEExtension proxyAEE, String calledAET) {
+            this.proxyAEE = proxyAEE;
+            this.calledAET = calledAET;
+        }
+    }
+}
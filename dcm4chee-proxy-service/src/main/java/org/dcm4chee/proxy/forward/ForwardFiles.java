@@ -45,13 +45,12 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dcm4che.conf.api.ApplicationEntityCache;
-import org.dcm4che.conf.api.AttributeCoercion;
 import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
@@ -64,12 +63,10 @@ import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
 import org.dcm4che.net.AssociationStateException;
 import org.dcm4che.net.DataWriterAdapter;
-import org.dcm4che.net.Dimse;
 import org.dcm4che.net.DimseRSPHandler;
 import org.dcm4che.net.IncompatibleConnectionException;
 import org.dcm4che.net.NoPresentationContextException;
 import org.dcm4che.net.Status;
-import org.dcm4che.net.TransferCapability.Role;
 import org.dcm4che.net.pdu.AAbort;
 import org.dcm4che.net.pdu.AAssociateRJ;
 import org.dcm4che.net.pdu.AAssociateRQ;
@@ -80,10 +77,11 @@ import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.dcm4chee.proxy.conf.Retry;
-import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
+import org.dcm4chee.proxy.forward.SpoolCatalog.SpoolEntry;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.dcm4chee.proxy.utils.LogUtils;
+import org.dcm4chee.proxy.utils.SpoolSync;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -149,7 +147,7 @@ public class ForwardFiles {
             } else
                 for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                     boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                    if (isMatchingAET && entry.getValue().getSchedule().isActive(System.currentTimeMillis())) {
                         LOG.debug("Found currently active forward schedule for {}, sending N-SET data now", calledAET);
                         startForwardScheduledMPPS(proxyAEE, files, calledAET, "nset");
                     } else if (isMatchingAET) {
@@ -176,7 +174,7 @@ public class ForwardFiles {
             } else
                 for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                     boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                    if (isMatchingAET && entry.getValue().getSchedule().isActive(System.currentTimeMillis())) {
                         LOG.debug("Found currently active forward schedule for {}, sending existing N-CREATE data now",
                                 calledAET);
                         startForwardScheduledMPPS(proxyAEE, files, calledAET, "ncreate");
@@ -204,7 +202,7 @@ public class ForwardFiles {
             } else
                 for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
                     boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
+                    if (isMatchingAET && entry.getValue().getSchedule().isActive(System.currentTimeMillis())) {
                         LOG.debug("Found currently active forward schedule for {}, sending existing N-ACTION data now",
                                 calledAET);
                         startForwardScheduledNAction(proxyAEE, calledAET, files);
@@ -218,31 +216,135 @@ public class ForwardFiles {
     }
 
     private void processCStore(ProxyAEExtension proxyAEE, HashMap<String, ForwardOption> forwardOptions) throws IOException {
-        for (String calledAET : proxyAEE.getCStoreDirectoryPath().list(dirFilter())) {
-            File dir = new File(proxyAEE.getCStoreDirectoryPath(), calledAET);
-            File[] files = dir.listFiles(fileFilter(proxyAEE, calledAET));
-            if (files == null || files.length == 0)
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        catalog.reconcile();
+        for (String calledAET : catalog.getDestinationAETs()) {
+            ForwardOption forwardOption = forwardOptions.get(calledAET);
+            if (forwardOption != null && !forwardOption.getSchedule().isActive(System.currentTimeMillis())) {
+                LOG.debug("Found forward schedule for {}, but is inactive (days={}, hours={})", new Object[] {
+                        calledAET, forwardOption.getSchedule().getDays(), forwardOption.getSchedule().getHours() });
+                continue;
+            }
+            if (CircuitBreaker.isOpen(proxyAEE, calledAET)) {
+                LOG.debug("Connections to {} are suspended, keep C-STORE data spooled", calledAET);
+                continue;
+            }
+            File[] files = readyFiles(proxyAEE, calledAET, catalog,
+                    catalog.takeDueEntries(calledAET, System.currentTimeMillis()));
+            if (files.length == 0)
                 continue;
 
             LOG.debug("Processing schedule C-STORE data ...");
-            if (!forwardOptions.keySet().contains(calledAET)) {
-                // process destinations without forward schedule
+            if (forwardOption == null)
                 LOG.debug("No forward schedule for {}, sending existing C-STORE data now", calledAET);
-                startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
-            } else
-                for (Entry<String, ForwardOption> entry : forwardOptions.entrySet()) {
-                    boolean isMatchingAET = calledAET.equals(entry.getKey());
-                    if (isMatchingAET && entry.getValue().getSchedule().isNow(new GregorianCalendar())) {
-                        LOG.debug("Found currently active forward schedule for {}, sending existing C-STORE data now",
-                                calledAET);
-                        startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
-                    } else if (isMatchingAET) {
-                        LOG.debug("Found forward schedule for {}, but is inactive (days={}, hours={})", new Object[] {
-                                calledAET, entry.getValue().getSchedule().getDays(),
-                                entry.getValue().getSchedule().getHours() });
+            else
+                LOG.debug("Found currently active forward schedule for {}, sending existing C-STORE data now",
+                        calledAET);
+            startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
+        }
+    }
+
+    /**
+     * Forwards the data spooled for {@code calledAET} as soon as its forward
+     * schedule opens, instead of waiting for the next scheduler run.
+     */
+    public void forwardOnScheduleOpened(final ProxyAEExtension proxyAEE, final String calledAET) {
+        LOG.info("Forward schedule for {} opened, sending spooled data", calledAET);
+        try {
+            if (CircuitBreaker.isOpen(proxyAEE, calledAET))
+                LOG.debug("Connections to {} are suspended, keep C-STORE data spooled", calledAET);
+            else {
+                SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+                File[] files = readyFiles(proxyAEE, calledAET, catalog,
+                        catalog.takeDueEntries(calledAET, System.currentTimeMillis()));
+                if (files.length > 0)
+                    startForwardScheduledCStoreFiles(proxyAEE, calledAET, files);
+            }
+            File[] files = scheduledFiles(proxyAEE, proxyAEE.getNactionDirectoryPath(), calledAET);
+            if (files.length > 0)
+                startForwardScheduledNAction(proxyAEE, calledAET, files);
+        } catch (IOException e) {
+            LOG.error("Error processing spooled data for {}: {}", calledAET, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
+                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(calledAET,
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            File[] files = scheduledFiles(proxyAEE, proxyAEE.getNCreateDirectoryPath(), calledAET);
+                            if (files.length > 0)
+                                startForwardScheduledMPPS(proxyAEE, files, calledAET, "ncreate");
+                            files = scheduledFiles(proxyAEE, proxyAEE.getNSetDirectoryPath(), calledAET);
+                            if (files.length > 0)
+                                startForwardScheduledMPPS(proxyAEE, files, calledAET, "nset");
+                        } catch (IOException e) {
+                            LOG.error("Error processing scheduled MPPS files for {}: {}", calledAET, e.getMessage());
+                            if (LOG.isDebugEnabled())
+                                e.printStackTrace();
+                        }
                     }
-                }
+                });
+    }
+
+    private File[] scheduledFiles(ProxyAEExtension proxyAEE, File dir, String calledAET) {
+        File[] files = new File(dir, calledAET).listFiles(fileFilter(proxyAEE, calledAET));
+        return files == null ? new File[0] : files;
+    }
+
+    // entries of files which are not sent are committed, or put back if the
+    // file is still in place
+    private File[] readyFiles(ProxyAEExtension proxyAEE, String calledAET, SpoolCatalog catalog,
+            Collection<SpoolEntry> entries) {
+        ArrayList<File> readyFiles = new ArrayList<File>(entries.size());
+        for (SpoolEntry entry : entries) {
+            File file = entry.getFile();
+            if (!file.exists()) {
+                catalog.commit(file);
+                continue;
+            }
+
+            boolean ready = entry.getRetrySuffix() != null
+                    ? checkRetries(proxyAEE, calledAET, entry)
+                    : file.getName().endsWith(".dcm") || checkRetries(proxyAEE, calledAET, file) != null;
+            if (ready)
+                readyFiles.add(file);
+            else if (file.exists())
+                catalog.putBack(file);
+            else
+                catalog.commit(file);
         }
+        return readyFiles.toArray(new File[readyFiles.size()]);
+    }
+
+    private boolean checkRetries(ProxyAEExtension proxyAEE, String calledAET, SpoolEntry entry) {
+        File file = entry.getFile();
+        Retry retry = RetryState.matchingRetry(proxyAEE, entry.getRetrySuffix());
+        try {
+            if (retry == null) {
+                LOG.debug("Found no matching retry configuration for {}", entry.getRetrySuffix());
+                if (proxyAEE.isDeleteFailedDataWithoutRetryConfiguration())
+                    deleteFailedFile(proxyAEE, calledAET, file,
+                            ": delete files without retry configuration is ENABLED", 0);
+                else
+                    moveToNoRetryPath(proxyAEE, calledAET, file, ": delete files without retry configuration is DISABLED");
+                return false;
+            }
+            boolean send = entry.getRetries() < retry.numberOfRetries;
+            LOG.debug(">> send file {} again = {} (previous retries = {}, max number of retries for {} = {})",
+                    new Object[] { file, send, entry.getRetries(), retry.getRetryObject(), retry.numberOfRetries });
+            if (!send)
+                handleFinalRetry(proxyAEE, retry, file, calledAET, entry.getRetries());
+            return send;
+        } catch (IOException e) {
+            LOG.error("Error processing retry of {}: {}", file, e.getMessage());
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        return false;
     }
 
     private FileFilter fileFilter(final ProxyAEExtension proxyAEE, final String calledAET) {
@@ -264,48 +366,55 @@ public class ForwardFiles {
                 if (path.endsWith(".part") || path.endsWith(".snd") || path.endsWith(".info"))
                     return false;
     
-                try {
-                    LOG.debug("Get matching retry for file " + file.getPath());
-                    String suffix = path.substring(path.lastIndexOf('.'));
-                    Retry matchingRetry = getMatchingRetry(proxyAEE, suffix);
-                    if (matchingRetry == null)
-                        if (proxyAEE.isDeleteFailedDataWithoutRetryConfiguration())
-                            deleteFailedFile(proxyAEE, calledAET, file,
-                                    ": delete files without retry configuration is ENABLED", 0);
-                        else
-                            moveToNoRetryPath(proxyAEE, calledAET, file, ": delete files without retry configuration is DISABLED");
-                    else if (checkNumberOfRetries(proxyAEE, matchingRetry, suffix, file, calledAET)
-                            && checkSendFileDelay(now, file, matchingRetry))
-                        return true;
-                } catch (IndexOutOfBoundsException e) {
-                    LOG.error("Error parsing suffix of " + path);
-                    try {
-                        moveToNoRetryPath(proxyAEE, calledAET, file, "(error parsing suffix)");
-                    } catch (IOException e1) {
-                        LOG.error("Error moving file {} to no retry directory: {}",
-                                new Object[] { file.getName(), e.getMessage() });
-                        if(LOG.isDebugEnabled())
-                            e1.printStackTrace();
-                    }
-                } catch (IOException e) {
-                    LOG.error("Error reading from directory: {}", e.getMessage());
-                    if(LOG.isDebugEnabled())
-                        e.printStackTrace();
-                }
-                return false;
+                Retry matchingRetry = checkRetries(proxyAEE, calledAET, file);
+                return matchingRetry != null && checkSendFileDelay(now, file, matchingRetry);
             }
     
             private boolean checkSendFileDelay(final long now, File file, Retry matchingRetry) {
-                boolean sendNow = now > (file.lastModified() + (matchingRetry.delay * 1000));
+                long delay = matchingRetry.getBackoffDelayMillis(RetryState.legacyRetries(file.getName(),
+                        matchingRetry.getRetryObject().getSuffix()));
+                boolean sendNow = now > (file.lastModified() + delay);
                 if (sendNow)
                     LOG.debug(">> ready to send now");
                 else
-                    LOG.debug(">> wait until last send delay > {}sec", matchingRetry.delay);
+                    LOG.debug(">> wait until last send delay > {}sec", delay / 1000);
                 return sendNow;
             }
         };
     }
 
+    private Retry checkRetries(ProxyAEExtension proxyAEE, String calledAET, File file) {
+        String path = file.getPath();
+        try {
+            LOG.debug("Get matching retry for file " + file.getPath());
+            String suffix = path.substring(path.lastIndexOf('.'));
+            Retry matchingRetry = getMatchingRetry(proxyAEE, suffix);
+            if (matchingRetry == null)
+                if (proxyAEE.isDeleteFailedDataWithoutRetryConfiguration())
+                    deleteFailedFile(proxyAEE, calledAET, file,
+                            ": delete files without retry configuration is ENABLED", 0);
+                else
+                    moveToNoRetryPath(proxyAEE, calledAET, file, ": delete files without retry configuration is DISABLED");
+            else if (checkNumberOfRetries(proxyAEE, matchingRetry, suffix, file, calledAET))
+                return matchingRetry;
+        } catch (IndexOutOfBoundsException e) {
+            LOG.error("Error parsing suffix of " + path);
+            try {
+                moveToNoRetryPath(proxyAEE, calledAET, file, "(error parsing suffix)");
+            } catch (IOException e1) {
+                LOG.error("Error moving file {} to no retry directory: {}",
+                        new Object[] { file.getName(), e.getMessage() });
+                if(LOG.isDebugEnabled())
+                    e1.printStackTrace();
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading from directory: {}", e.getMessage());
+            if(LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        return null;
+    }
+
     private FilenameFilter dirFilter() {
         return new FilenameFilter() {
             
@@ -334,20 +443,24 @@ public class ForwardFiles {
         boolean send = prevRetries < retry.numberOfRetries;
         LOG.debug(">> send file again = {} (max number of retries for {} = {})",
                 new Object[] { send, retry.getRetryObject(), retry.numberOfRetries });
-        if (!send) {
-            String reason = ">> max number of retries = " + retry.getNumberOfRetries();
-            if (sendToFallbackAET(proxyAEE, calledAET)) {
-                moveToFallbackAetDir(proxyAEE, file, calledAET, reason);
-            } else if (retry.deleteAfterFinalRetry)
-                deleteFailedFile(proxyAEE, calledAET, file, reason + " and delete after final retry is ENABLED",
-                        prevRetries);
-            else {
-                moveToNoRetryPath(proxyAEE, calledAET, file, reason);
-            }
-        }
+        if (!send)
+            handleFinalRetry(proxyAEE, retry, file, calledAET, prevRetries);
         return send;
     }
 
+    private void handleFinalRetry(ProxyAEExtension proxyAEE, Retry retry, File file, String calledAET,
+            int prevRetries) throws IOException {
+        String reason = ">> max number of retries = " + retry.getNumberOfRetries();
+        if (sendToFallbackAET(proxyAEE, calledAET)) {
+            moveToFallbackAetDir(proxyAEE, file, calledAET, reason);
+        } else if (retry.deleteAfterFinalRetry)
+            deleteFailedFile(proxyAEE, calledAET, file, reason + " and delete after final retry is ENABLED",
+                    prevRetries);
+        else {
+            moveToNoRetryPath(proxyAEE, calledAET, file, reason);
+        }
+    }
+
     private void moveToFallbackAetDir(ProxyAEExtension proxyAEE, File file, String calledAET, String reason) throws IOException {
         String path = file.getAbsolutePath();
         if (path.contains("ncreate")) {
@@ -366,11 +479,17 @@ public class ForwardFiles {
             LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
         File infoFile = new File(path.substring(0, path.indexOf('.')) + ".info");
         File infoDst = new File(dstDir, fileName.substring(0, fileName.indexOf('.')) + ".info");
-        if (infoFile.renameTo(infoDst))
+        if (infoFile.renameTo(infoDst)) {
             LOG.debug("Rename {} to {} {} and fallback AET is {}",
                     new Object[] { infoFile, infoDst, reason, proxyAEE.getFallbackDestinationAET() });
-        else
+            // retries to the fallback AET start over
+            Properties prop = InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, infoDst.getPath());
+            if (RetryState.clear(prop))
+                InfoFileUtils.storeInfoFile(proxyAEE, infoDst, prop, false);
+        } else
             LOG.error("Failed to rename {} to {}", new Object[] { infoFile, infoDst });
+        if (dst.exists())
+            ForwardDispatcher.publish(proxyAEE, proxyAEE.getFallbackDestinationAET(), dst);
     }
 
     private File getMatchingNsetFile(ProxyAEExtension proxyAEE, String calledAET, File file) throws IOException {
@@ -443,9 +562,9 @@ public class ForwardFiles {
             Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
             if (proxyAEE.isEnableAuditLog() && path.contains("cstore")) {
                 String callingAET = prop.getProperty("source-aet");
-                LogUtils.createStartLogFile(proxyAEE, AuditDirectory.DELETED, callingAET, calledAET, proxyAEE
+                LogUtils.startLog(proxyAEE, AuditDirectory.DELETED, callingAET, calledAET, proxyAEE
                         .getApplicationEntity().getConnections().get(0).getHostname(), prop, retry);
-                LogUtils.writeLogFile(proxyAEE, AuditDirectory.DELETED, callingAET, calledAET, prop, file.length(), retry);
+                LogUtils.writeLog(proxyAEE, AuditDirectory.DELETED, callingAET, calledAET, prop, file.length(), retry);
             }
             if (path.contains("ncreate"))
                 deletePendingNSet(proxyAEE, calledAET, file, prop);
@@ -571,14 +690,13 @@ public class ForwardFiles {
         }
     }
 
-    private void writeFailedAuditLogMessage(ProxyAEExtension proxyAEE, File file, Attributes fmi, String calledAET,
-            Properties prop) throws IOException {
-        if (proxyAEE.isEnableAuditLog() && file.getPath().contains("cstore")) {
+    private void writeFailedAuditLogMessage(ProxyAEExtension proxyAEE, File file, String calledAET, Properties prop,
+            int retry) throws IOException {
+        if (proxyAEE.isEnableAuditLog()) {
             String sourceAET = prop.getProperty("source-aet");
-            int retry = getPreviousRetries(proxyAEE, file);
-            LogUtils.createStartLogFile(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, proxyAEE
+            LogUtils.startLog(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, proxyAEE
                     .getApplicationEntity().getConnections().get(0).getHostname(), prop, retry);
-            LogUtils.writeLogFile(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, prop, file.length(), retry);
+            LogUtils.writeLog(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, prop, file.length(), retry);
         }
     }
 
@@ -641,7 +759,8 @@ public class ForwardFiles {
             File[] files) {
         final File[] sendFiles = createSendFileList(files);
         ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(new Runnable() {
+                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(destinationAETitle,
+                new Runnable() {
 
             @Override
             public void run() {
@@ -786,16 +905,104 @@ public class ForwardFiles {
         }
     }
 
-    private void startForwardScheduledCStoreFiles(final ProxyAEExtension proxyAEE, final String calledAET,
+    private void startForwardScheduledCStoreFiles(ProxyAEExtension proxyAEE, String calledAET, File[] files) {
+        for (File[] batch : splitIntoBatches(proxyAEE, files))
+            startForwardScheduledCStoreBatch(proxyAEE, calledAET, batch);
+    }
+
+    private void startForwardScheduledCStoreBatch(final ProxyAEExtension proxyAEE, final String calledAET,
             final File[] files) {
-        ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
-                .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(new Runnable() {
+        try {
+            ((ProxyDeviceExtension) proxyAEE.getApplicationEntity().getDevice()
+                    .getDeviceExtension(ProxyDeviceExtension.class)).getFileForwardingExecutor().execute(calledAET,
+                    new Runnable() {
 
-            @Override
-            public void run() {
-                forwardScheduledCStoreFiles(proxyAEE, calledAET, files);
+                @Override
+                public void run() {
+                    forwardScheduledCStoreFiles(proxyAEE, calledAET, files);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.error("Failed to schedule forwarding of {} file(s) to {}: {}", new Object[] { files.length,
+                    calledAET, e.getMessage() });
+            putBack(proxyAEE, files);
+        }
+    }
+
+    private void putBack(ProxyAEExtension proxyAEE, File[] files) {
+        try {
+            SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+            for (File file : files)
+                catalog.putBack(file);
+        } catch (IOException e) {
+            LOG.error("Error loading spool catalog: {}", e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private ArrayList<File[]> splitIntoBatches(ProxyAEExtension proxyAEE, File[] files) {
+        ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice()
+                .getDeviceExtension(ProxyDeviceExtension.class);
+        int maxObjects = proxyDevExt.getForwardBatchMaxObjects();
+        long maxSize = proxyDevExt.getForwardBatchMaxSize() * 1024L * 1024L;
+        ArrayList<File[]> batches = new ArrayList<File[]>();
+        ArrayList<File> batch = new ArrayList<File>();
+        long batchSize = 0;
+        for (File file : files) {
+            long length = file.length();
+            if (!batch.isEmpty()
+                    && ((maxObjects > 0 && batch.size() >= maxObjects) || (maxSize > 0 && batchSize + length > maxSize))) {
+                batches.add(batch.toArray(new File[batch.size()]));
+                batch.clear();
+                batchSize = 0;
             }
-        });
+            batch.add(file);
+            batchSize += length;
+        }
+        if (!batch.isEmpty())
+            batches.add(batch.toArray(new File[batch.size()]));
+        if (batches.size() > 1)
+            LOG.debug("Split {} files into {} batches", files.length, batches.size());
+        return batches;
+    }
+
+    public void forwardCStoreFiles(ProxyAEExtension proxyAEE, String calledAET, Collection<File> files) {
+        ForwardOption forwardOption = proxyAEE.getForwardOptions().get(calledAET);
+        if (forwardOption != null && !forwardOption.getSchedule().isActive(System.currentTimeMillis())) {
+            LOG.debug("Found forward schedule for {}, but is inactive (days={}, hours={})", new Object[] { calledAET,
+                    forwardOption.getSchedule().getDays(), forwardOption.getSchedule().getHours() });
+            return;
+        }
+        if (CircuitBreaker.isOpen(proxyAEE, calledAET)) {
+            LOG.debug("Connections to {} are suspended, keep C-STORE data spooled", calledAET);
+            return;
+        }
+        SpoolCatalog catalog;
+        try {
+            catalog = SpoolCatalog.getInstance(proxyAEE);
+        } catch (IOException e) {
+            LOG.error("Error loading spool catalog: {}", e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return;
+        }
+        ArrayList<SpoolEntry> takenEntries = new ArrayList<SpoolEntry>(files.size());
+        for (File file : files) {
+            // skip files already taken by the scheduler
+            SpoolEntry entry = catalog.take(file);
+            if (entry != null)
+                takenEntries.add(entry);
+        }
+        File[] readyFiles = readyFiles(proxyAEE, calledAET, catalog, takenEntries);
+        if (readyFiles.length == 0)
+            return;
+
+        ArrayList<File[]> batches = splitIntoBatches(proxyAEE, readyFiles);
+        // hand over remaining batches to other forward threads
+        for (int i = 1; i < batches.size(); i++)
+            startForwardScheduledCStoreBatch(proxyAEE, calledAET, batches.get(i));
+        forwardScheduledCStoreFiles(proxyAEE, calledAET, batches.get(0));
     }
 
     private void forwardScheduledCStoreFiles(ProxyAEExtension proxyAEE, String calledAET, File[] files) {
@@ -814,26 +1021,45 @@ public class ForwardFiles {
     private void processForwardTask(ProxyAEExtension proxyAEE, ForwardTask ft) throws IOException {
         AAssociateRQ rq = ft.getAAssociateRQ();
         Association asInvoked = null;
+        PrefetchReader reader = null;
         Properties prop = InfoFileUtils.getFileInfoProperties(proxyAEE, ft.getFiles().get(0));
         try {
             if (proxyAEE.getForwardOptions().containsKey(rq.getCalledAET())
                     && proxyAEE.getForwardOptions().get(rq.getCalledAET()).isConvertEmf2Sf())
                 ForwardConnectionUtils.addReducedTS(rq);
-            asInvoked = proxyAEE.getApplicationEntity().connect(aeCache.findApplicationEntity(rq.getCalledAET()), rq);
-            for (File file : ft.getFiles()) {
-                prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+            asInvoked = ForwardAssociations.take(proxyAEE, rq);
+            if (asInvoked == null) {
+                if (!CircuitBreaker.allowRequest(proxyAEE, rq.getCalledAET())) {
+                    postponeForwardTask(proxyAEE, ft);
+                    return;
+                }
+                boolean connected = false;
+                try {
+                    asInvoked = proxyAEE.getApplicationEntity().connect(
+                            aeCache.findApplicationEntity(rq.getCalledAET()), rq);
+                    connected = true;
+                } finally {
+                    CircuitBreaker.onConnect(proxyAEE, rq.getCalledAET(), connected);
+                }
+            }
+            // parse and coerce next files while previous C-STOREs are outstanding
+            reader = new PrefetchReader(proxyAEE, asInvoked, ft.getFiles());
+            proxyAEE.getApplicationEntity().getDevice().execute(reader);
+            for (int i = 0, n = ft.getFiles().size(); i < n; i++) {
+                PrefetchReader.Item item = reader.take();
+                File file = item.file;
+                if (item.infoException != null)
+                    throw item.infoException;
+                prop = item.prop;
                 try {
-                    String cuid = prop.getProperty("sop-class-uid");
-                    if (ForwardConnectionUtils.requiresMultiFrameConversion(proxyAEE, asInvoked.getCalledAET(), cuid))
+                    if (item.exception != null)
+                        throw item.exception;
+                    if (item.emf2sf)
                         processEmf2Sf(proxyAEE, asInvoked, prop, file);
-                    else if (asInvoked.isReadyForDataTransfer()) {
-                        Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(asInvoked, file);
-                        AttributeCoercion ac = proxyAEE.getAttributeCoercion(asInvoked.getCalledAET(), cuid, Role.SCP,
-                                Dimse.C_STORE_RQ);
-                        if (ac != null)
-                            attrs = AttributeCoercionUtils.coerceAttributes(asInvoked, proxyAEE, attrs, ac);
-                        forwardScheduledCStoreFile(proxyAEE, asInvoked, new DataWriterAdapter(attrs), -1, file, prop, file.length());
-                    } else
+                    else if (asInvoked.isReadyForDataTransfer())
+                        forwardScheduledCStoreFile(proxyAEE, asInvoked, new DataWriterAdapter(item.attrs), -1, file,
+                                prop, file.length());
+                    else
                         renameFile(proxyAEE, RetryObject.ConnectionException.getSuffix(), file, rq.getCalledAET(), prop);
                 } catch (NoPresentationContextException npc) {
                     handleForwardException(proxyAEE, asInvoked, file, npc,
@@ -867,10 +1093,13 @@ public class ForwardFiles {
             handleProcessForwardTaskException(proxyAEE, rq, ft, e, RetryObject.GeneralSecurityException.getSuffix(),
                     prop);
         } finally {
+            if (reader != null)
+                reader.cancel();
             if (asInvoked != null) {
                 try {
                     asInvoked.waitForOutstandingRSP();
-                    asInvoked.release();
+                    if (!ForwardAssociations.giveBack(proxyAEE, asInvoked))
+                        asInvoked.release();
                 } catch (InterruptedException e) {
                     LOG.error(asInvoked + ": unexpected exception: " + e.getMessage());
                     if(LOG.isDebugEnabled())
@@ -884,6 +1113,19 @@ public class ForwardFiles {
         }
     }
 
+    private void postponeForwardTask(ProxyAEExtension proxyAEE, ForwardTask ft) {
+        String calledAET = ft.getAAssociateRQ().getCalledAET();
+        LOG.debug("Connections to {} are suspended, postpone {} file(s)", calledAET, ft.getFiles().size());
+        for (File file : ft.getFiles()) {
+            String path = file.getPath();
+            File dst = new File(path.substring(0, path.length() - 4));
+            if (file.renameTo(dst))
+                ForwardDispatcher.republish(proxyAEE, calledAET, dst);
+            else
+                LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
+        }
+    }
+
     private void processEmf2Sf(ProxyAEExtension proxyAEE, Association asInvoked, Properties prop, File file)
             throws IOException, InterruptedException {
         Attributes src;
@@ -934,11 +1176,14 @@ public class ForwardFiles {
                     case Status.Success:
                     case Status.CoercionOfDataElements: {
                         if (proxyAEE.isEnableAuditLog())
-                            LogUtils.writeLogFile(proxyAEE, AuditDirectory.TRANSFERRED, asInvoked.getCallingAET(),
+                            LogUtils.writeLog(proxyAEE, AuditDirectory.TRANSFERRED, asInvoked.getCallingAET(),
                                     asInvoked.getRemoteAET(), prop, fileSize, -1);
                         if (frame > 0)
                             return;
-    
+
+                        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                                .invalidateCFindCache(prop.getProperty("patient-id"), prop.getProperty("study-iuid"));
+                        proxyAEE.invalidateRelayCache(prop.getProperty("study-iuid"));
                         deleteSendFile(asInvoked, file);
                         break;
                     }
@@ -960,47 +1205,43 @@ public class ForwardFiles {
             };
             if (proxyAEE.isEnableAuditLog()) {
                 String sourceAET = prop.getProperty("source-aet");
-                LogUtils.createStartLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, asInvoked.getRemoteAET(),
+                LogUtils.startLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, asInvoked.getRemoteAET(),
                         asInvoked.getConnection().getHostname(), prop, 0);
             }
             asInvoked.cstore(cuid, iuid, 0, data, tsuid, rspHandler);
     }
 
-    private Integer getPreviousRetries(ProxyAEExtension proxyAEE, File file) {
-        String suffix = file.getName().substring(file.getName().lastIndexOf('.'));
-        Retry matchingRetry = getMatchingRetry(proxyAEE, suffix);
-        if (matchingRetry != null) {
-            String substring = suffix.substring(matchingRetry.getRetryObject().getSuffix().length());
-            if (!substring.isEmpty())
-                try {
-                    return Integer.parseInt(substring);
-                } catch (NumberFormatException e) {
-                    LOG.error("Error parsing number of retries in suffix of file " + file.getName());
-                    if(LOG.isDebugEnabled())
-                        e.printStackTrace();
-                }
-        }
-        return 1;
-    }
-
     private Collection<ForwardTask> scanFiles(ProxyAEExtension proxyAEE, String calledAET, File[] files) {
         HashMap<String, ForwardTask> map = new HashMap<String, ForwardTask>(4);
+        SpoolCatalog catalog;
+        try {
+            catalog = SpoolCatalog.getInstance(proxyAEE);
+        } catch (IOException e) {
+            LOG.error("Error loading spool catalog: {}", e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return map.values();
+        }
         for (File file : files) {
             String prevFilePath = file.getPath();
             File snd = new File(prevFilePath + ".snd");
-            if (file.renameTo(snd))
+            SpoolSync.beforeRename(file);
+            if (file.renameTo(snd)) {
                 LOG.debug("Rename {} to {}", prevFilePath, snd.getPath());
-            else {
+                catalog.commit(file);
+            } else {
                 LOG.error("Error renaming {} to {}. Skip file for now and try again on next scheduler run.", prevFilePath, snd.getPath());
+                catalog.putBack(file);
                 continue;
             }
             try {
                 addFileToFwdTaskMap(proxyAEE, calledAET, snd, map);
             } catch (Exception e) {
                 File prev = new File(prevFilePath);
-                if (snd.renameTo(prev))
+                if (snd.renameTo(prev)) {
                     LOG.debug("Rename {} to {}", snd.getPath(), prev.getPath());
-                else
+                    ForwardDispatcher.republish(proxyAEE, calledAET, prev);
+                } else
                     LOG.debug("Error renaming {} to {}", snd.getPath(), prev.getPath());
             }
         }
@@ -1057,8 +1298,12 @@ public class ForwardFiles {
     }
 
     private void renameFile(ProxyAEExtension proxyAEE, String suffix, File file, String calledAET, Properties prop) {
-        File dst;
         String path = file.getPath();
+        if (path.contains("cstore")) {
+            scheduleRetry(proxyAEE, suffix, file, calledAET, prop);
+            return;
+        }
+        File dst;
         if (path.endsWith(".snd"))
             dst = setFileSuffix(path.substring(0, path.length() - 4), suffix);
         else
@@ -1066,18 +1311,43 @@ public class ForwardFiles {
         if (file.renameTo(dst)) {
             dst.setLastModified(System.currentTimeMillis());
             LOG.debug("Rename {} to {}", new Object[] { file, dst });
-            try {
-                writeFailedAuditLogMessage(proxyAEE, dst, null, calledAET, prop);
-            } catch (IOException e) {
-                LOG.error("Failed to write audit log message");
-                if (LOG.isDebugEnabled())
-                    e.printStackTrace();
-            }
         } else {
             LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
         }
     }
 
+    private void scheduleRetry(ProxyAEExtension proxyAEE, String suffix, File file, String calledAET,
+            Properties prop) {
+        String fileName = file.getName();
+        File infoFile = InfoFileUtils.getInfoFile(file);
+        File dst = new File(file.getParentFile(), fileName.substring(0, fileName.indexOf('.')) + ".dcm");
+        RetryState state;
+        try {
+            Properties info = InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, infoFile.getPath());
+            state = RetryState.next(info, fileName, suffix, RetryState.matchingRetry(proxyAEE, suffix),
+                    System.currentTimeMillis());
+            InfoFileUtils.storeInfoFile(proxyAEE, infoFile, info, false);
+        } catch (IOException e) {
+            LOG.error("Failed to store retry state of {}: {}", file, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return;
+        }
+        LOG.debug("Schedule retry {} of {} for {}", new Object[] { state.retries, file, suffix });
+        if (!file.equals(dst) && !file.renameTo(dst)) {
+            LOG.error("Failed to rename {} to {}", new Object[] { file, dst });
+            return;
+        }
+        try {
+            writeFailedAuditLogMessage(proxyAEE, dst, calledAET, prop, state.retries);
+        } catch (IOException e) {
+            LOG.error("Failed to write audit log message");
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+        ForwardDispatcher.publish(proxyAEE, calledAET, dst, state);
+    }
+
     private File setFileSuffix(String path, String newSuffix) {
         int indexOfNewSuffix = path.lastIndexOf(newSuffix);
         if (indexOfNewSuffix == -1)
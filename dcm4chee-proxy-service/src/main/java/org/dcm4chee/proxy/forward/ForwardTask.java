@@ -42,6 +42,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.dcm4che.data.UID;
 import org.dcm4che.net.pdu.AAssociateRQ;
 import org.dcm4che.net.pdu.PresentationContext;
 
@@ -57,6 +58,8 @@ class ForwardTask {
     public ForwardTask(String callingAET, String calledAET) {
         aarq.setCallingAET(callingAET);
         aarq.setCalledAET(calledAET);
+        aarq.addPresentationContext(
+                new PresentationContext(1, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
     }
 
     public void addFile(File file, String cuid, String tsuid) {
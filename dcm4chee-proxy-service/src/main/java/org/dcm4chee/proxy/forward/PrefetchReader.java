@@ -0,0 +1,151 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.dcm4che.conf.api.AttributeCoercion;
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.Dimse;
+import org.dcm4che.net.TransferCapability.Role;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
+import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+class PrefetchReader implements Runnable {
+
+    static final int DEFAULT_WINDOW = 16;
+
+    static class Item {
+
+        final File file;
+        Properties prop;
+        IOException infoException;
+        Attributes attrs;
+        boolean emf2sf;
+        Exception exception;
+
+        Item(File file) {
+            this.file = file;
+        }
+    }
+
+    private final ProxyAEExtension proxyAEE;
+    private final Association as;
+    private final List<File> files;
+    private final ArrayBlockingQueue<Item> queue;
+    private volatile boolean canceled;
+
+    public PrefetchReader(ProxyAEExtension proxyAEE, Association as, List<File> files) {
+        this(proxyAEE, as, files, as.getMaxOpsInvoked() > 0 ? as.getMaxOpsInvoked() : DEFAULT_WINDOW);
+    }
+
+    PrefetchReader(ProxyAEExtension proxyAEE, Association as, List<File> files, int window) {
+        this.proxyAEE = proxyAEE;
+        this.as = as;
+        this.files = files;
+        this.queue = new ArrayBlockingQueue<Item>(window);
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (File file : files) {
+                if (canceled)
+                    return;
+
+                Item item;
+                try {
+                    item = read(file);
+                } catch (Throwable e) {
+                    // the sender takes one item per file, also if it failed
+                    item = new Item(file);
+                    item.infoException = new IOException("Failed to prefetch " + file + ": " + e, e);
+                }
+                queue.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Item take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public void cancel() {
+        canceled = true;
+        queue.clear();
+    }
+
+    private Item read(File file) {
+        Item item = new Item(file);
+        try {
+            item.prop = InfoFileUtils.getFileInfoProperties(proxyAEE, file);
+        } catch (IOException e) {
+            item.infoException = e;
+            return item;
+        }
+        try {
+            String cuid = item.prop.getProperty("sop-class-uid");
+            if (ForwardConnectionUtils.requiresMultiFrameConversion(proxyAEE, as.getCalledAET(), cuid)) {
+                // converted by the sender, which creates the frames on the fly
+                item.emf2sf = true;
+                return item;
+            }
+            Attributes attrs = proxyAEE.parseAttributesWithLazyBulkData(as, file);
+            AttributeCoercion ac = proxyAEE.getAttributeCoercion(as.getCalledAET(), cuid, Role.SCP, Dimse.C_STORE_RQ);
+            if (ac != null)
+                attrs = AttributeCoercionUtils.coerceAttributes(as, proxyAEE, attrs, ac);
+            item.attrs = attrs;
+        } catch (Exception e) {
+            item.exception = e;
+        }
+        return item;
+    }
+}
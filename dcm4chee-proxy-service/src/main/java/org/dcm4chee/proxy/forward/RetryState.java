@@ -0,0 +1,166 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.dcm4chee.proxy.common.RetryObject;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.Retry;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+final class RetryState {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(RetryState.class);
+
+    static final String RETRY_SUFFIX = "retry-suffix";
+    static final String RETRY_COUNT = "retry-count";
+    static final String RETRY_DUE = "retry-due";
+    static final String RETRY_ERROR = "retry-error";
+
+    final String suffix;
+    final int retries;
+    final long dueTime;
+
+    RetryState(String suffix, int retries, long dueTime) {
+        this.suffix = suffix;
+        this.retries = retries;
+        this.dueTime = dueTime;
+    }
+
+    static RetryState valueOf(Properties prop) {
+        String suffix = prop.getProperty(RETRY_SUFFIX);
+        if (suffix == null)
+            return null;
+
+        try {
+            return new RetryState(suffix, retries(prop, suffix), Long.parseLong(prop.getProperty(RETRY_DUE, "0")));
+        } catch (NumberFormatException e) {
+            LOG.error("Invalid retry due time {}", prop.getProperty(RETRY_DUE));
+            return new RetryState(suffix, retries(prop, suffix), 0L);
+        }
+    }
+
+    static RetryState read(ProxyAEExtension proxyAEE, File file) {
+        try {
+            return valueOf(InfoFileUtils.getFileInfoProperties(proxyAEE, file));
+        } catch (IOException e) {
+            LOG.debug("Failed to read retry state of {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    static int retries(Properties prop, String suffix) {
+        String value = prop.getProperty(RETRY_COUNT + suffix);
+        if (value == null)
+            return 0;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOG.error("Invalid number of retries {} for {}", value, suffix);
+            return 0;
+        }
+    }
+
+    /**
+     * Number of previous retries encoded in a file name of the former
+     * suffix based retry scheme, e.g. 3 for <tt>dcm123.rj1.conn3</tt>.
+     */
+    static int legacyRetries(String fileName, String suffix) {
+        if (fileName.endsWith(".snd"))
+            fileName = fileName.substring(0, fileName.length() - 4);
+        int index = fileName.lastIndexOf(suffix);
+        if (index == -1)
+            return 0;
+
+        int start = index + suffix.length();
+        int end = fileName.indexOf('.', start);
+        try {
+            return Integer.parseInt(end == -1 ? fileName.substring(start) : fileName.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static RetryState next(Properties prop, String fileName, String suffix, Retry retry, long now) {
+        int retries = prop.containsKey(RETRY_COUNT + suffix)
+                ? retries(prop, suffix)
+                : legacyRetries(fileName, suffix);
+        long dueTime = retry != null ? now + retry.getRetryDelayMillis(retries + 1) : now;
+        RetryState state = new RetryState(suffix, retries + 1, dueTime);
+        prop.setProperty(RETRY_SUFFIX, suffix);
+        prop.setProperty(RETRY_COUNT + suffix, Integer.toString(state.retries));
+        prop.setProperty(RETRY_DUE, Long.toString(dueTime));
+        prop.setProperty(RETRY_ERROR, errorOf(suffix));
+        return state;
+    }
+
+    static boolean clear(Properties prop) {
+        boolean modified = false;
+        for (String name : prop.stringPropertyNames())
+            if (name.startsWith("retry-")) {
+                prop.remove(name);
+                modified = true;
+            }
+        return modified;
+    }
+
+    static Retry matchingRetry(ProxyAEExtension proxyAEE, String suffix) {
+        for (Retry retry : proxyAEE.getRetries())
+            if (retry.getRetryObject().getSuffix().equals(suffix))
+                return retry;
+        return null;
+    }
+
+    private static String errorOf(String suffix) {
+        for (RetryObject retryObject : RetryObject.values())
+            if (retryObject.getSuffix().equals(suffix))
+                return retryObject.getRetryNote();
+        // DIMSE status suffix, e.g. .a700H
+        return "Status " + suffix.substring(1).toUpperCase();
+    }
+}
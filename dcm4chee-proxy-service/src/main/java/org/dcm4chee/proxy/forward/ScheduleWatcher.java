@@ -0,0 +1,157 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.conf.api.ApplicationEntityCache;
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4chee.proxy.conf.ForwardOption;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.Schedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts forwarding the data spooled for a destination at the moment its
+ * forward schedule opens.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ScheduleWatcher {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(ScheduleWatcher.class);
+
+    private final ApplicationEntityCache aeCache;
+    private final ScheduledExecutorService scheduledExecutor;
+    private final ConcurrentHashMap<String, Opening> openings = new ConcurrentHashMap<String, Opening>();
+
+    public ScheduleWatcher(ApplicationEntityCache aeCache, ScheduledExecutorService scheduledExecutor) {
+        this.aeCache = aeCache;
+        this.scheduledExecutor = scheduledExecutor;
+    }
+
+    public void watch(ApplicationEntity ae) {
+        ProxyAEExtension proxyAEE = ae.getAEExtension(ProxyAEExtension.class);
+        long now = System.currentTimeMillis();
+        for (Entry<String, ForwardOption> entry : proxyAEE.getForwardOptions().entrySet()) {
+            Schedule schedule = entry.getValue().getSchedule();
+            if (!schedule.isActive(now))
+                watch(proxyAEE, entry.getKey(), schedule.nextTransition(now), now);
+        }
+    }
+
+    public void stop() {
+        for (Opening opening : openings.values())
+            opening.cancel();
+        openings.clear();
+    }
+
+    private void watch(final ProxyAEExtension proxyAEE, final String calledAET, long time, long now) {
+        if (time == Long.MAX_VALUE)
+            return;
+
+        final String key = proxyAEE.getApplicationEntity().getAETitle() + '/' + calledAET;
+        Opening prev = openings.get(key);
+        if (prev != null && prev.time == time)
+            return;
+
+        final Opening opening = new Opening(time);
+        if (prev == null ? openings.putIfAbsent(key, opening) != null : !openings.replace(key, prev, opening))
+            return;
+
+        if (prev != null)
+            prev.cancel();
+        try {
+            opening.future = scheduledExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (openings.remove(key, opening))
+                        opened(proxyAEE, calledAET);
+                }
+            }, time - now, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            openings.remove(key, opening);
+            return;
+        }
+        LOG.debug("Forward schedule for {} opens in {}ms", calledAET, time - now);
+    }
+
+    private void opened(ProxyAEExtension proxyAEE, String calledAET) {
+        ForwardOption forwardOption = proxyAEE.getForwardOptions().get(calledAET);
+        if (forwardOption == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        Schedule schedule = forwardOption.getSchedule();
+        if (!schedule.isActive(now)) {
+            watch(proxyAEE, calledAET, schedule.nextTransition(now), now);
+            return;
+        }
+        try {
+            new ForwardFiles(aeCache).forwardOnScheduleOpened(proxyAEE, calledAET);
+        } catch (Exception e) {
+            LOG.error("Error forwarding spooled data for {}: {}", calledAET, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private static class Opening {
+
+        final long time;
+        volatile ScheduledFuture<?> future;
+
+        Opening(long time) {
+            this.time = time;
+        }
+
+        void cancel() {
+            ScheduledFuture<?> f = future;
+            if (f != null)
+                f.cancel(false);
+        }
+    }
+}
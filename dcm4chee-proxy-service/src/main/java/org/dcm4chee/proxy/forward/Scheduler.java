@@ -46,6 +46,7 @@ import java.util.concurrent.TimeUnit;
 import org.dcm4che.conf.api.ApplicationEntityCache;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Device;
+import org.dcm4chee.proxy.audit.AuditAggregator;
 import org.dcm4chee.proxy.audit.AuditLog;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
@@ -61,15 +62,26 @@ public class Scheduler {
     private ScheduledFuture<?> timer;
     private ApplicationEntityCache aeCache;
     private ScheduledExecutorService scheduledExecutor;
+    private final ForwardDispatcher dispatcher;
+    private final ForwardAssociations associations;
+    private final ScheduleWatcher scheduleWatcher;
 
     public Scheduler(ApplicationEntityCache aeCache, Device device, AuditLog log) {
         this.aeCache = aeCache;
         this.device = device;
         this.log = log;
         this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.dispatcher = new ForwardDispatcher(aeCache, device, scheduledExecutor);
+        this.associations = new ForwardAssociations(scheduledExecutor);
+        this.scheduleWatcher = new ScheduleWatcher(aeCache, scheduledExecutor);
     }
 
     public void start() {
+        associations.start();
+        dispatcher.start();
+        for (ApplicationEntity ae : device.getApplicationEntities())
+            if (ae.getAEExtension(ProxyAEExtension.class) != null)
+                scheduleWatcher.watch(ae);
         long period = device.getDeviceExtension(ProxyDeviceExtension.class).getSchedulerInterval();
         timer = scheduledExecutor.scheduleAtFixedRate(new Runnable() {
 
@@ -78,7 +90,8 @@ public class Scheduler {
                 for (ApplicationEntity ae : device.getApplicationEntities()) {
                     if (ae.getAEExtension(ProxyAEExtension.class) != null) {
                         new ForwardFiles(aeCache).execute(ae);
-                        log.scanLogDir(ae);
+                        log.writeAuditMessages(ae);
+                        scheduleWatcher.watch(ae);
                     }
                 }
             }
@@ -86,9 +99,14 @@ public class Scheduler {
     }
 
     public void stop() {
+        dispatcher.stop();
         if (timer != null) {
             timer.cancel(true);
             timer = null;
         }
+        scheduleWatcher.stop();
+        associations.stop();
+        SpoolCatalog.closeAll();
+        AuditAggregator.closeAll();
     }
 }
@@ -0,0 +1,547 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.Retry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolCatalog {
+
+    protected static final Logger LOG = LoggerFactory.getLogger(SpoolCatalog.class);
+
+    public static final String JOURNAL_FILE_NAME = "spool.journal";
+    public static final long RECONCILE_INTERVAL = 3600000L;
+
+    private static final String ENCODING = "UTF-8";
+    private static final int MIN_COMPACT_THRESHOLD = 10000;
+    private static final ConcurrentHashMap<File, SpoolCatalog> catalogs = new ConcurrentHashMap<File, SpoolCatalog>();
+
+    private final File dir;
+    private final File journalFile;
+    private volatile ProxyAEExtension proxyAEE;
+    private final HashMap<String, SpoolEntry> entries = new HashMap<String, SpoolEntry>();
+    private final HashMap<String, TreeSet<SpoolEntry>> dueIndex = new HashMap<String, TreeSet<SpoolEntry>>();
+    private final HashMap<String, Lease> leases = new HashMap<String, Lease>();
+    private Writer journal;
+    private int obsoleteRecords;
+    private boolean loaded;
+    private long lastReconcile;
+
+    private SpoolCatalog(File dir) {
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_FILE_NAME);
+    }
+
+    public static SpoolCatalog getInstance(ProxyAEExtension proxyAEE) throws IOException {
+        File dir = proxyAEE.getCStoreDirectoryPath();
+        SpoolCatalog catalog = catalogs.get(dir);
+        if (catalog == null) {
+            SpoolCatalog newCatalog = new SpoolCatalog(dir);
+            catalog = catalogs.putIfAbsent(dir, newCatalog);
+            if (catalog == null)
+                catalog = newCatalog;
+        }
+        catalog.proxyAEE = proxyAEE;
+        return catalog;
+    }
+
+    public static final class SpoolEntry implements Comparable<SpoolEntry> {
+
+        private final String calledAET;
+        private final File file;
+        private final long dueTime;
+        private final int retries;
+        private final String retrySuffix;
+
+        SpoolEntry(String calledAET, File file, long dueTime, int retries, String retrySuffix) {
+            this.calledAET = calledAET;
+            this.file = file;
+            this.dueTime = dueTime;
+            this.retries = retries;
+            this.retrySuffix = retrySuffix;
+        }
+
+        public String getCalledAET() {
+            return calledAET;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getDueTime() {
+            return dueTime;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        public String getRetrySuffix() {
+            return retrySuffix;
+        }
+
+        @Override
+        public int compareTo(SpoolEntry other) {
+            if (dueTime != other.dueTime)
+                return dueTime < other.dueTime ? -1 : 1;
+            return file.getName().compareTo(other.file.getName());
+        }
+    }
+
+    // entry taken by a sender, only journaled as removed after the file was
+    // renamed for sending, deleted or moved
+    private static final class Lease {
+
+        final SpoolEntry entry;
+        final long time;
+
+        Lease(SpoolEntry entry, long time) {
+            this.entry = entry;
+            this.time = time;
+        }
+    }
+
+    public synchronized SpoolEntry add(String calledAET, File file) {
+        if (!isSpoolFile(file))
+            return null;
+
+        ensureLoaded();
+        SpoolEntry entry = newEntry(calledAET, file, System.currentTimeMillis(), null);
+        put(entry);
+        appendRecord('+', entry);
+        return entry;
+    }
+
+    public synchronized SpoolEntry add(String calledAET, File file, long dueTime, int retries, String retrySuffix) {
+        if (!isSpoolFile(file))
+            return null;
+
+        ensureLoaded();
+        SpoolEntry entry = new SpoolEntry(calledAET, file, dueTime, retries, retrySuffix);
+        put(entry);
+        appendRecord('+', entry);
+        return entry;
+    }
+
+    /**
+     * Removes the entry of a deleted spool file, also if it was taken by a
+     * sender.
+     */
+    public synchronized SpoolEntry remove(File file) {
+        if (!isSpoolFile(file))
+            return null;
+
+        ensureLoaded();
+        String key = keyOf(file);
+        SpoolEntry entry = entries.remove(key);
+        if (entry != null)
+            unindex(entry);
+        else {
+            Lease lease = leases.remove(key);
+            if (lease == null)
+                return null;
+
+            entry = lease.entry;
+        }
+        journalRemoval(entry);
+        return entry;
+    }
+
+    /**
+     * Takes the entry of a spool file for sending. The entry is not offered
+     * again until it is put back, and is only journaled as removed on
+     * {@link #commit(File)}, so that it survives a crash in the meantime.
+     */
+    public synchronized SpoolEntry take(File file) {
+        if (!isSpoolFile(file))
+            return null;
+
+        ensureLoaded();
+        SpoolEntry entry = entries.remove(keyOf(file));
+        if (entry != null)
+            lease(entry, System.currentTimeMillis());
+        return entry;
+    }
+
+    public synchronized List<SpoolEntry> takeDueEntries(String calledAET, long now) {
+        ensureLoaded();
+        ArrayList<SpoolEntry> due = new ArrayList<SpoolEntry>();
+        TreeSet<SpoolEntry> index = dueIndex.get(calledAET);
+        if (index == null)
+            return due;
+
+        for (SpoolEntry entry : index) {
+            if (entry.dueTime > now)
+                break;
+            due.add(entry);
+        }
+        for (SpoolEntry entry : due) {
+            entries.remove(keyOf(entry.file));
+            lease(entry, now);
+        }
+        return due;
+    }
+
+    /**
+     * Journals the removal of a taken entry, after its file was renamed for
+     * sending, deleted or moved.
+     */
+    public synchronized void commit(File file) {
+        Lease lease = leases.remove(keyOf(file));
+        if (lease != null)
+            journalRemoval(lease.entry);
+    }
+
+    /**
+     * Offers a taken entry again, e.g. if its file could not be renamed for
+     * sending.
+     */
+    public synchronized void putBack(File file) {
+        Lease lease = leases.remove(keyOf(file));
+        if (lease != null && !entries.containsKey(keyOf(file)))
+            put(lease.entry);
+    }
+
+    private void lease(SpoolEntry entry, long now) {
+        unindex(entry);
+        leases.put(keyOf(entry.file), new Lease(entry, now));
+    }
+
+    private void journalRemoval(SpoolEntry entry) {
+        appendRecord('-', entry);
+        obsoleteRecords += 2;
+        if (obsoleteRecords > Math.max(MIN_COMPACT_THRESHOLD, entries.size() + leases.size()))
+            compact();
+    }
+
+    public synchronized Set<String> getDestinationAETs() {
+        ensureLoaded();
+        return new HashSet<String>(dueIndex.keySet());
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    public synchronized int size(String calledAET) {
+        ensureLoaded();
+        TreeSet<SpoolEntry> index = dueIndex.get(calledAET);
+        return index == null ? 0 : index.size();
+    }
+
+    public synchronized void reconcile() {
+        ensureLoaded();
+        if (System.currentTimeMillis() > lastReconcile + RECONCILE_INTERVAL)
+            rebuild();
+    }
+
+    /**
+     * Rebuilds the catalog from the spool directory. Files taken by a sender
+     * are skipped, unless they were taken longer than
+     * {@link #RECONCILE_INTERVAL} ago and the sender is assumed to be lost.
+     */
+    public synchronized void rebuild() {
+        LOG.debug("Rebuild spool catalog of {}", dir);
+        loaded = true;
+        entries.clear();
+        dueIndex.clear();
+        long now = System.currentTimeMillis();
+        for (Iterator<Lease> iter = leases.values().iterator(); iter.hasNext();)
+            if (iter.next().time + RECONCILE_INTERVAL < now)
+                iter.remove();
+        String[] calledAETs = dir.list();
+        if (calledAETs != null)
+            for (String calledAET : calledAETs) {
+                File[] files = new File(dir, calledAET).listFiles(spoolFileFilter());
+                if (files == null)
+                    continue;
+
+                for (File file : files)
+                    if (!leases.containsKey(keyOf(file)))
+                        put(newEntry(calledAET, file, file.lastModified(), RetryState.read(proxyAEE, file)));
+            }
+        lastReconcile = now;
+        compact();
+        LOG.debug("Spool catalog of {} contains {} entries, {} taken for sending", new Object[] { dir,
+                entries.size(), leases.size() });
+    }
+
+    /**
+     * Closes the journals of all catalogs, when the scheduler is stopped or
+     * reconfigured. A catalog reopens its journal with the next change.
+     */
+    public static void closeAll() {
+        for (SpoolCatalog catalog : catalogs.values())
+            catalog.close();
+    }
+
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    private SpoolEntry newEntry(String calledAET, File file, long time, RetryState state) {
+        if (state != null)
+            return new SpoolEntry(calledAET, file, state.dueTime, state.retries, state.suffix);
+
+        // files named by the former suffix based retry scheme
+        String suffix = suffixOf(file.getName());
+        Retry retry = matchingRetry(suffix);
+        if (retry == null)
+            return new SpoolEntry(calledAET, file, time, 0, null);
+
+        int retries = parseRetries(suffix, retry);
+        return new SpoolEntry(calledAET, file, time + retry.getBackoffDelayMillis(retries), retries, null);
+    }
+
+    private void put(SpoolEntry entry) {
+        String key = keyOf(entry.file);
+        SpoolEntry prev = entries.put(key, entry);
+        if (prev != null) {
+            unindex(prev);
+            obsoleteRecords++;
+        } else if (leases.remove(key) != null)
+            // added again, e.g. by a sender that restored the file
+            obsoleteRecords++;
+        TreeSet<SpoolEntry> index = dueIndex.get(entry.calledAET);
+        if (index == null) {
+            index = new TreeSet<SpoolEntry>();
+            dueIndex.put(entry.calledAET, index);
+        }
+        index.add(entry);
+    }
+
+    private void unindex(SpoolEntry entry) {
+        TreeSet<SpoolEntry> index = dueIndex.get(entry.calledAET);
+        index.remove(entry);
+        if (index.isEmpty())
+            dueIndex.remove(entry.calledAET);
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+
+        loaded = true;
+        lastReconcile = System.currentTimeMillis();
+        if (!journalFile.exists()) {
+            LOG.info("No spool journal found in {}, scanning spool directory", dir);
+            rebuild();
+            return;
+        }
+        try {
+            replayJournal();
+        } catch (Exception e) {
+            LOG.error("Error reading spool journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            rebuild();
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+
+                String[] fields = line.split("\t");
+                if (fields[0].equals("+")) {
+                    // journals written before retry state was kept in spool metadata lack the retry suffix
+                    int n = fields.length;
+                    File file = new File(new File(dir, fields[n - 2]), fields[n - 1]);
+                    String retrySuffix = n > 5 && !fields[3].isEmpty() ? fields[3] : null;
+                    put(new SpoolEntry(fields[n - 2], file, Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                            retrySuffix));
+                } else {
+                    SpoolEntry entry = entries.remove(fields[1] + '/' + fields[2]);
+                    if (entry != null)
+                        unindex(entry);
+                    obsoleteRecords += 2;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        LOG.info("Loaded {} entries from spool journal {}", entries.size(), journalFile);
+    }
+
+    private void appendRecord(char op, SpoolEntry entry) {
+        try {
+            if (journal == null)
+                journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), ENCODING));
+            journal.write(op);
+            journal.write('\t');
+            if (op == '+') {
+                journal.write(Long.toString(entry.dueTime));
+                journal.write('\t');
+                journal.write(Integer.toString(entry.retries));
+                journal.write('\t');
+                if (entry.retrySuffix != null)
+                    journal.write(entry.retrySuffix);
+                journal.write('\t');
+            }
+            journal.write(entry.calledAET);
+            journal.write('\t');
+            journal.write(entry.file.getName());
+            journal.write('\n');
+            journal.flush();
+        } catch (IOException e) {
+            LOG.error("Error writing spool journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            closeJournal();
+        }
+    }
+
+    private void compact() {
+        closeJournal();
+        File tmp = new File(dir, JOURNAL_FILE_NAME + ".part");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+            try {
+                for (TreeSet<SpoolEntry> index : dueIndex.values())
+                    for (SpoolEntry entry : index)
+                        writeRecord(out, entry);
+                // taken entries are kept until their removal is journaled
+                for (Lease lease : leases.values())
+                    writeRecord(out, lease.entry);
+            } finally {
+                out.close();
+            }
+            journalFile.delete();
+            if (tmp.renameTo(journalFile))
+                obsoleteRecords = 0;
+            else
+                LOG.error("Failed to rename {} to {}", tmp, journalFile);
+        } catch (IOException e) {
+            LOG.error("Error compacting spool journal {}: {}", journalFile, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private static void writeRecord(Writer out, SpoolEntry entry) throws IOException {
+        out.write("+\t" + entry.dueTime + '\t' + entry.retries + '\t'
+                + (entry.retrySuffix != null ? entry.retrySuffix : "") + '\t' + entry.calledAET + '\t'
+                + entry.file.getName() + '\n');
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing spool journal {}: {}", journalFile, e.getMessage());
+        }
+        journal = null;
+    }
+
+    private boolean isSpoolFile(File file) {
+        File parent = file.getParentFile();
+        return parent != null && dir.equals(parent.getParentFile());
+    }
+
+    private static String keyOf(File file) {
+        return file.getParentFile().getName() + '/' + file.getName();
+    }
+
+    private static String suffixOf(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('.'));
+    }
+
+    private Retry matchingRetry(String suffix) {
+        if (suffix.equals(".dcm"))
+            return null;
+
+        for (Retry retry : proxyAEE.getRetries())
+            if (suffix.startsWith(retry.getRetryObject().getSuffix()))
+                return retry;
+        return null;
+    }
+
+    private static int parseRetries(String suffix, Retry retry) {
+        String substring = suffix.substring(retry.getRetryObject().getSuffix().length());
+        try {
+            return substring.isEmpty() ? 0 : Integer.parseInt(substring);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static FileFilter spoolFileFilter() {
+        return new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                String path = file.getPath();
+                return file.isFile() && !path.endsWith(".part") && !path.endsWith(".snd") && !path.endsWith(".info");
+            }
+        };
+    }
+}
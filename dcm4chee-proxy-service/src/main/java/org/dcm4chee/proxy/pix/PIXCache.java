@@ -0,0 +1,183 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.pix;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PIX Query results shared by all associations. Results are evicted in least
+ * recently used order, results without other Patient IDs can be cached for
+ * a different time than the others. Concurrent queries for the same Patient
+ * ID wait for the one already sent to the PIX Manager.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class PIXCache {
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, FutureTask<IDWithIssuer[]>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<IDWithIssuer[]>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry {
+
+        final IDWithIssuer[] pids;
+        final long expires;
+
+        Entry(IDWithIssuer[] pids, long expires) {
+            this.pids = pids;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Return the cached result for <code>key</code> or run the query.
+     * 
+     * @param timeout
+     *            milliseconds results with other Patient IDs are cached
+     * @param negativeTimeout
+     *            milliseconds results without other Patient IDs are cached
+     * @param maxSize
+     *            maximum number of cached results
+     */
+    public IDWithIssuer[] get(String key, Callable<IDWithIssuer[]> query, long timeout, long negativeTimeout,
+            int maxSize) throws Exception {
+        IDWithIssuer[] pids = lookup(key);
+        if (pids != null)
+            return pids;
+
+        FutureTask<IDWithIssuer[]> task = new FutureTask<IDWithIssuer[]>(query);
+        FutureTask<IDWithIssuer[]> prev = inFlight.putIfAbsent(key, task);
+        if (prev != null) {
+            coalesced.incrementAndGet();
+            return result(prev);
+        }
+        misses.incrementAndGet();
+        try {
+            task.run();
+            pids = result(task);
+            long ttl = pids.length > 1 ? timeout : negativeTimeout;
+            if (ttl > 0 && maxSize > 0)
+                put(key, new Entry(pids, System.currentTimeMillis() + ttl), maxSize);
+            return pids;
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public float getHitRate() {
+        long h = hits.get() + negativeHits.get() + coalesced.get();
+        long total = h + misses.get();
+        return total > 0 ? (float) h / total : 0F;
+    }
+
+    private synchronized IDWithIssuer[] lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        if (entry.pids.length > 1)
+            hits.incrementAndGet();
+        else
+            negativeHits.incrementAndGet();
+        return entry.pids;
+    }
+
+    private synchronized void put(String key, Entry entry, int maxSize) {
+        entries.put(key, entry);
+        for (Iterator<Entry> iter = entries.values().iterator(); entries.size() > maxSize && iter.hasNext();) {
+            iter.next();
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static IDWithIssuer[] result(FutureTask<IDWithIssuer[]> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+}
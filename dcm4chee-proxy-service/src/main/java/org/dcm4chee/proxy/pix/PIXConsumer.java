@@ -40,7 +40,14 @@ package org.dcm4chee.proxy.pix;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.conf.api.hl7.HL7ApplicationCache;
@@ -56,6 +63,7 @@ import org.dcm4che.net.hl7.HL7Application;
 import org.dcm4che.net.hl7.HL7DeviceExtension;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,25 +75,85 @@ public class PIXConsumer {
 
     private static final Logger LOG = LoggerFactory.getLogger(PIXConsumer.class);
 
+    // idle MLLP connections kept open per PIX Consumer / PIX Manager pair
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long MAX_IDLE_TIME = 60000L;
+
     private final HL7ApplicationCache hl7AppCache;
+    private final PIXCache cache = new PIXCache();
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<PooledConnection>> idleConnections =
+            new ConcurrentHashMap<String, ConcurrentLinkedDeque<PooledConnection>>();
 
     public PIXConsumer(HL7ApplicationCache hl7AppCache) {
         this.hl7AppCache = hl7AppCache;
     }
 
-    public IDWithIssuer[] pixQuery(ProxyAEExtension pae, IDWithIssuer pid) throws ConfigurationException,
+    public PIXCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Runs the PIX Query on the device executor, so that the caller can do other work (e.g. open the forward
+     * associations) while waiting for the PIX Manager.
+     */
+    public Future<IDWithIssuer[]> pixQueryAsync(final ProxyAEExtension pae, final IDWithIssuer pid) {
+        FutureTask<IDWithIssuer[]> task = new FutureTask<IDWithIssuer[]>(new Callable<IDWithIssuer[]>() {
+
+            @Override
+            public IDWithIssuer[] call() throws Exception {
+                return pixQuery(pae, pid);
+            }
+        });
+        try {
+            pae.getApplicationEntity().getDevice().execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("PIX Query rejected by device executor, running in calling thread");
+            task.run();
+        }
+        return task;
+    }
+
+    public IDWithIssuer[] pixQuery(final ProxyAEExtension pae, final IDWithIssuer pid) throws ConfigurationException,
             IncompatibleConnectionException, IOException, GeneralSecurityException {
         if (pid == null)
             return IDWithIssuer.EMPTY;
 
-        String pixConsumer = pae.getProxyPIXConsumerApplication();
+        final String pixConsumer = pae.getProxyPIXConsumerApplication();
         if (pixConsumer == null || pixConsumer.isEmpty())
             throw new DicomServiceException(Status.ProcessingFailure, "undefined Proxy PIX Consumer");
 
-        String pixManager = pae.getRemotePIXManagerApplication();
+        final String pixManager = pae.getRemotePIXManagerApplication();
         if (pixManager == null || pixManager.isEmpty())
             throw new DicomServiceException(Status.ProcessingFailure, "undefined Remote PIX Manager");
 
+        Device dev = pae.getApplicationEntity().getDevice();
+        ProxyDeviceExtension proxyDev = dev.getDeviceExtension(ProxyDeviceExtension.class);
+        try {
+            return cache.get(pixConsumer + '|' + pixManager + '|' + pid, new Callable<IDWithIssuer[]>() {
+
+                @Override
+                public IDWithIssuer[] call() throws Exception {
+                    return pixQuery(pae, pid, pixConsumer, pixManager);
+                }
+            }, proxyDev.getPIXCacheTimeout() * 1000L, proxyDev.getPIXCacheNegativeTimeout() * 1000L,
+                    proxyDev.getPIXCacheSize());
+        } catch (ConfigurationException e) {
+            throw e;
+        } catch (IncompatibleConnectionException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private IDWithIssuer[] pixQuery(ProxyAEExtension pae, IDWithIssuer pid, String pixConsumer, String pixManager)
+            throws ConfigurationException, IncompatibleConnectionException, IOException, GeneralSecurityException {
         ArrayList<IDWithIssuer> pids = new ArrayList<IDWithIssuer>();
         pids.add(pid);
         Device dev = pae.getApplicationEntity().getDevice();
@@ -113,18 +181,102 @@ public class PIXConsumer {
 
     private HL7Message pixQuery(HL7Application pixConsumerApp, HL7Application pixManagerApp, HL7Message qbp)
             throws IncompatibleConnectionException, IOException, GeneralSecurityException {
+        String key = pixConsumerApp.getApplicationName() + '|' + pixManagerApp.getApplicationName();
+        byte[] msg = qbp.getBytes(pixConsumerApp.getHL7DefaultCharacterSet());
+        PooledConnection idle = takeIdleConnection(key);
+        if (idle != null) {
+            try {
+                return exchange(key, idle, pixConsumerApp, pixManagerApp, msg);
+            } catch (IOException e) {
+                LOG.debug("{}: pooled connection to {} failed ({}), reconnecting", new Object[] {
+                        pixConsumerApp.getApplicationName(), pixManagerApp.getApplicationName(), e.getMessage() });
+            }
+        }
         CompatibleConnection cc = pixConsumerApp.findCompatibelConnection(pixManagerApp);
         Connection conn = cc.getLocalConnection();
         MLLPConnection mllpConn = pixConsumerApp.connect(conn, cc.getRemoteConnection());
+        return exchange(key, new PooledConnection(conn, mllpConn), pixConsumerApp, pixManagerApp, msg);
+    }
+
+    private HL7Message exchange(String key, PooledConnection pooled, HL7Application pixConsumerApp,
+            HL7Application pixManagerApp, byte[] msg) throws IOException {
+        boolean reusable = false;
         try {
-            String charset = pixConsumerApp.getHL7DefaultCharacterSet();
             LOG.debug("{}: Executing PIX Query to {}", pixConsumerApp.getApplicationName(),
                     pixManagerApp.getApplicationName());
-            mllpConn.writeMessage(qbp.getBytes(charset));
-            HL7Message rsp = HL7Message.parse(mllpConn.readMessage(), charset);
+            pooled.mllpConn.writeMessage(msg);
+            byte[] rspBytes = pooled.mllpConn.readMessage();
+            if (rspBytes == null)
+                throw new IOException("Connection closed by " + pixManagerApp.getApplicationName());
+
+            HL7Message rsp = HL7Message.parse(rspBytes, pixConsumerApp.getHL7DefaultCharacterSet());
+            reusable = true;
             return rsp;
         } finally {
-            conn.close(mllpConn.getSocket());
+            if (reusable)
+                releaseConnection(key, pooled);
+            else
+                pooled.close();
+        }
+    }
+
+    private PooledConnection takeIdleConnection(String key) {
+        ConcurrentLinkedDeque<PooledConnection> idle = idleConnections.get(key);
+        if (idle == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (now - pooled.idleSince < MAX_IDLE_TIME && !pooled.socket.isClosed())
+                return pooled;
+            pooled.close();
+        }
+        return null;
+    }
+
+    private void releaseConnection(String key, PooledConnection pooled) {
+        ConcurrentLinkedDeque<PooledConnection> idle = idleConnections.get(key);
+        if (idle == null) {
+            idle = new ConcurrentLinkedDeque<PooledConnection>();
+            ConcurrentLinkedDeque<PooledConnection> prev = idleConnections.putIfAbsent(key, idle);
+            if (prev != null)
+                idle = prev;
+        }
+        pooled.idleSince = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+        // most recently used connections are kept at the head, drop the oldest ones
+        while (idle.size() > MAX_IDLE_CONNECTIONS) {
+            PooledConnection oldest = idle.pollLast();
+            if (oldest == null)
+                break;
+            oldest.close();
+        }
+    }
+
+    public void closeIdleConnections() {
+        for (ConcurrentLinkedDeque<PooledConnection> idle : idleConnections.values()) {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null)
+                pooled.close();
+        }
+    }
+
+    private static class PooledConnection {
+
+        final Connection conn;
+        final MLLPConnection mllpConn;
+        final Socket socket;
+        volatile long idleSince;
+
+        PooledConnection(Connection conn, MLLPConnection mllpConn) {
+            this.conn = conn;
+            this.mllpConn = mllpConn;
+            this.socket = mllpConn.getSocket();
+        }
+
+        void close() {
+            conn.close(socket);
         }
     }
 }
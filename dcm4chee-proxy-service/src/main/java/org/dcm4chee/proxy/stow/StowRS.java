@@ -49,7 +49,6 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -106,11 +105,14 @@ import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.dcm4chee.proxy.forward.ForwardDispatcher;
 import org.dcm4chee.proxy.resteasy.LogInterceptor;
 import org.dcm4chee.proxy.utils.AttributeCoercionUtils;
 import org.dcm4chee.proxy.utils.ForwardConnectionUtils;
 import org.dcm4chee.proxy.utils.ForwardRuleUtils;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
 import org.dcm4chee.proxy.utils.LogUtils;
+import org.dcm4chee.proxy.utils.SpoolSync;
 import org.dcm4chee.proxy.wado.MediaTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -546,7 +548,7 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
         try {
             out.writeDataset(fmi, destAttrs);
             fout.flush();
-            fout.getFD().sync();
+            SpoolSync.sync(proxyAEE, fout);
             LOG.info("{}: copy {} to {}", new Object[]{this, fileInfo.file.getPath(), dst.getPath()});
         } finally {
             out.close();
@@ -559,15 +561,10 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
     private void storeInfoFile(Properties prop, File file) throws IOException {
         String path = file.getPath();
         File infoFile = new File(path.substring(0, path.length() - 4) + ".info");
-        FileOutputStream infoOut = new FileOutputStream(infoFile);
-        try {
-            prop.store(infoOut, null);
-            infoOut.flush();
-            infoOut.getFD().sync();
-        } finally {
-            infoOut.close();
-        }
+        InfoFileUtils.storeInfoFile(proxyAEE, infoFile, prop, true);
         LOG.debug("{}: store info file {}", this, infoFile.getPath());
+        SpoolSync.commit(proxyAEE, null, file);
+        ForwardDispatcher.publish(proxyAEE, file.getParentFile().getName(), file);
     }
 
     private Properties setInfoFileProperties(Attributes fmi, Attributes attrs, String sourceAET) {
@@ -670,7 +667,7 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
 
     private void setForwardRules(Attributes attrs, String cuid, String sourceAET) throws ConfigurationException {
         fwdRules = ForwardRuleUtils.filterForwardRulesByCallingAET(proxyAEE, sourceAET);
-        fwdRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(fwdRules, cuid, Dimse.C_STORE_RQ);
+        fwdRules = ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE, fwdRules, cuid, Dimse.C_STORE_RQ);
     }
 
     private List<String> getDestinationAETsFromForwardRule(ForwardRule rule, Attributes attrs)
@@ -772,7 +769,7 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
             callingAET = proxyAEE.getApplicationEntity().getAETitle();
         }
         ForwardOption forwardOption = proxyAEE.getForwardOptions().get(calledAET);
-        if (forwardOption == null || forwardOption.getSchedule().isNow(new GregorianCalendar())) {
+        if (forwardOption == null || forwardOption.getSchedule().isActive(System.currentTimeMillis())) {
             try {
                 Association as;
                 if (fwdAssocs.containsKey(calledAET))
@@ -847,7 +844,7 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
                 case org.dcm4che.net.Status.Success:
                 case org.dcm4che.net.Status.CoercionOfDataElements: {
                     if (proxyAEE.isEnableAuditLog())
-                        LogUtils.writeLogFile(proxyAEE, AuditDirectory.TRANSFERRED, as.getCallingAET(),
+                        LogUtils.writeLog(proxyAEE, AuditDirectory.TRANSFERRED, as.getCallingAET(),
                                 as.getRemoteAET(), prop, fileSize, -1);
                     setSopRef(fmi, attrs);
                     break;
@@ -870,7 +867,7 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
         try {
             if (proxyAEE.isEnableAuditLog()) {
                 String sourceAET = prop.getProperty("source-aet");
-                LogUtils.createStartLogFile(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, as.getRemoteAET(), as
+                LogUtils.startLog(proxyAEE, AuditDirectory.TRANSFERRED, sourceAET, as.getRemoteAET(), as
                         .getConnection().getHostname(), prop, 0);
             }
             as.cstore(cuid, iuid, 0, new DataWriterAdapter(attrs), tsuid, rspHandler);
@@ -911,9 +908,9 @@ public class StowRS implements MultipartParser.Handler, StreamingOutput {
             Properties prop) throws IOException {
         if (proxyAEE.isEnableAuditLog() && file.getPath().contains("cstore")) {
             String sourceAET = prop.getProperty("source-aet");
-            LogUtils.createStartLogFile(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, proxyAEE.getApplicationEntity()
+            LogUtils.startLog(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, proxyAEE.getApplicationEntity()
                     .getConnections().get(0).getHostname(), prop, 0);
-            LogUtils.writeLogFile(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, prop, file.length(), 0);
+            LogUtils.writeLog(proxyAEE, AuditDirectory.FAILED, sourceAET, calledAET, prop, file.length(), 0);
         }
     }
 }
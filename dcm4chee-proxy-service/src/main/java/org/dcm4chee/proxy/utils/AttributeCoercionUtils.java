@@ -41,10 +41,11 @@ package org.dcm4chee.proxy.utils;
 import java.io.IOException;
 import java.util.Arrays;
 
+import javax.xml.transform.Templates;
+
 import org.dcm4che.conf.api.AttributeCoercion;
 import org.dcm4che.data.Attributes;
-import org.dcm4che.io.SAXTransformer;
-import org.dcm4che.io.SAXWriter;
+import org.dcm4che.io.ContentHandlerAdapter;
 import org.dcm4che.net.Association;
 import org.dcm4che.net.Dimse;
 import org.dcm4che.net.TransferCapability.Role;
@@ -75,7 +76,6 @@ public class AttributeCoercionUtils {
 
     public static Attributes coerceAttributes(Object source, ProxyAEExtension proxyAEE, Attributes attrs,
             AttributeCoercion ac) {
-        Attributes tmp = new Attributes(attrs);
         LOG.debug("{}: Apply attribute coercion {} (dimse={}, role={}{}{})",
                 new Object[] {
                     source,
@@ -85,19 +85,30 @@ public class AttributeCoercionUtils {
                     ac.getAETitles().length == 0 ? "" : ", aet=" + Arrays.toString(ac.getAETitles()),
                     ac.getSOPClasses().length == 0 ? "" : ", sopClass=" + Arrays.toString(ac.getSOPClasses())
         });
-        Attributes modify = new Attributes();
+        Attributes modify;
         try {
             ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice()
                     .getDeviceExtension(ProxyDeviceExtension.class);
-            SAXWriter w = SAXTransformer.getSAXWriter(proxyDevExt.getTemplates(ac.getURI()), modify);
-            w.setIncludeKeyword(false);
-            w.write(tmp);
+            Templates templates = proxyDevExt.getTemplates(ac.getURI());
+            modify = XSLTUtils.constantResult(ac.getURI(), templates);
+            if (modify == null) {
+                modify = new Attributes();
+                XSLTUtils.transform(templates, attrs, false, new ContentHandlerAdapter(modify));
+            }
         } catch (Exception e) {
-            new IOException(e);
+            LOG.error("{}: Error applying attribute coercion {}: {}", new Object[] { source, ac.getURI(),
+                    e.getMessage() });
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+            return attrs;
         }
-        if (LOG.isDebugEnabled() && !modify.isEmpty())
+        if (modify.isEmpty())
+            return attrs;
+
+        if (LOG.isDebugEnabled())
             LOG.debug("{}: Attribute coercion result:{}{}",
                     new Object[] { source, proxyAEE.getNewline(), modify.toString(Integer.MAX_VALUE, 200) });
+        Attributes tmp = new Attributes(attrs);
         tmp.addAll(modify);
         return tmp;
     }
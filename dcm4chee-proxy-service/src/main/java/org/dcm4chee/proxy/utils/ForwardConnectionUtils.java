@@ -64,6 +64,8 @@ import org.dcm4chee.proxy.common.RetryObject;
 import org.dcm4chee.proxy.conf.ForwardOption;
 import org.dcm4chee.proxy.conf.ForwardRule;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.forward.CircuitBreaker;
+import org.dcm4chee.proxy.forward.ForwardAssociations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -78,13 +80,36 @@ public class ForwardConnectionUtils {
     public static Association openForwardAssociation(ProxyAEExtension proxyAEE, ForwardRule rule, String callingAET,
             String calledAET, AAssociateRQ rq) throws IOException, InterruptedException,
             IncompatibleConnectionException, GeneralSecurityException, ConfigurationException {
-        return proxyAEE.getApplicationEntity().connect(Proxy.getInstance().findApplicationEntity(calledAET), rq);
+        checkCircuitBreaker(proxyAEE, calledAET);
+        boolean connected = false;
+        try {
+            Association as = proxyAEE.getApplicationEntity().connect(
+                    Proxy.getInstance().findApplicationEntity(calledAET), rq);
+            connected = true;
+            return as;
+        } finally {
+            CircuitBreaker.onConnect(proxyAEE, calledAET, connected);
+        }
+    }
+
+    private static void checkCircuitBreaker(ProxyAEExtension proxyAEE, String calledAET) throws ConnectException {
+        if (!CircuitBreaker.allowRequest(proxyAEE, calledAET)) {
+            LOG.debug("Connections to {} are suspended", calledAET);
+            throw new ConnectException("Connections to " + calledAET + " are suspended");
+        }
     }
 
     public static Association openForwardAssociation(ProxyAEExtension proxyAEE, Association asAccepted,
             ForwardRule rule, String callingAET, String calledAET, AAssociateRQ rq, ApplicationEntityCache aeCache)
             throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException,
             ConfigurationException {
+        return openForwardAssociation(proxyAEE, asAccepted, rule, callingAET, calledAET, rq, aeCache, false);
+    }
+
+    public static Association openForwardAssociation(ProxyAEExtension proxyAEE, Association asAccepted,
+            ForwardRule rule, String callingAET, String calledAET, AAssociateRQ rq, ApplicationEntityCache aeCache,
+            boolean sameContexts) throws IOException, InterruptedException, IncompatibleConnectionException,
+            GeneralSecurityException, ConfigurationException {
         rq.setCallingAET(callingAET);
         rq.setCalledAET(calledAET);
         HashMap<String, ForwardOption> forwardOptions = proxyAEE.getForwardOptions();
@@ -93,7 +118,15 @@ public class ForwardConnectionUtils {
             addEnhancedTS(rq);
         else if (forwardOptions.containsKey(calledAET) && forwardOptions.get(calledAET).isConvertEmf2Sf())
             addReducedTS(rq);
-        Association asInvoked = proxyAEE.getApplicationEntity().connect(aeCache.findApplicationEntity(calledAET), rq);
+        Association asInvoked = ForwardAssociations.take(proxyAEE, rq, sameContexts);
+        if (asInvoked == null) {
+            checkCircuitBreaker(proxyAEE, calledAET);
+            try {
+                asInvoked = proxyAEE.getApplicationEntity().connect(aeCache.findApplicationEntity(calledAET), rq);
+            } finally {
+                CircuitBreaker.onConnect(proxyAEE, calledAET, asInvoked != null);
+            }
+        }
         asInvoked.setProperty(ProxyAEExtension.FORWARD_ASSOCIATION, asAccepted);
         asInvoked.setProperty(ForwardRule.class.getName(), rule);
         return asInvoked;
@@ -39,23 +39,17 @@
 package org.dcm4chee.proxy.utils;
 
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
-import java.util.Iterator;
 import java.util.List;
 
 import javax.xml.transform.Templates;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.sax.TransformerHandler;
 
 import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.data.Attributes;
-import org.dcm4che.io.SAXWriter;
 import org.dcm4che.net.Association;
 import org.dcm4che.net.Dimse;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.proxy.conf.ForwardRule;
+import org.dcm4chee.proxy.conf.ForwardRuleIndex;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
 import org.slf4j.Logger;
@@ -91,9 +85,7 @@ public class ForwardRuleUtils {
             ProxyDeviceExtension proxyDevExt = proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(
                     ProxyDeviceExtension.class);
             Templates templates = proxyDevExt.getTemplates(uri);
-            SAXTransformerFactory transFac = (SAXTransformerFactory) TransformerFactory.newInstance();
-            TransformerHandler handler = transFac.newTransformerHandler(templates);
-            handler.setResult(new SAXResult(new DefaultHandler() {
+            XSLTUtils.transform(templates, data, true, new DefaultHandler() {
 
                 @Override
                 public void startElement(String uri, String localName, String qName, org.xml.sax.Attributes attributes)
@@ -103,9 +95,7 @@ public class ForwardRuleUtils {
                     }
                 }
 
-            }));
-            SAXWriter saxWriter = new SAXWriter(handler);
-            saxWriter.write(data);
+            });
         } catch (Exception e) {
             LOG.error("Error parsing template {}: {}", uri, e);
             throw new ConfigurationException(e.getMessage());
@@ -118,64 +108,58 @@ public class ForwardRuleUtils {
     }
 
     public static List<ForwardRule> filterForwardRulesByCallingAET(ProxyAEExtension proxyAEE, String callingAET) {
-        List<ForwardRule> filterList = new ArrayList<ForwardRule>();
-        for (ForwardRule rule : proxyAEE.getForwardRules()) {
-            List<String> callingAETs = rule.getCallingAETs();
-            if ((callingAETs.isEmpty() || callingAETs.contains(callingAET))
-                    && rule.getReceiveSchedule().isNow(new GregorianCalendar())) {
+        List<ForwardRule> returnList = proxyAEE.getForwardRuleIndex().filterByCallingAET(callingAET,
+                System.currentTimeMillis());
+        if (LOG.isDebugEnabled())
+            for (ForwardRule rule : returnList)
                 LOG.debug(
                         "Filter by Calling AET: use forward rule \"{}\" based on i) Calling AET = {} and ii) receive schedule days = {}, hours = {}",
                         new Object[] { rule.getCommonName(), 
                                 rule.getCallingAETs().isEmpty() ? "<EMPTY>" : rule.getCallingAETs(), 
                                 rule.getReceiveSchedule().getDays(),
                                 rule.getReceiveSchedule().getHours() });
-                filterList.add(rule);
-            }
-        }
-        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList);
-        for (Iterator<ForwardRule> iterator = filterList.iterator(); iterator.hasNext();) {
-            ForwardRule rule = iterator.next();
-            for (ForwardRule fwr : filterList) {
-                if (!returnList.contains(fwr) || rule.getCommonName().equals(fwr.getCommonName()))
-                    continue;
-                if (rule.getCallingAETs().isEmpty()
-                        && !fwr.getCallingAETs().isEmpty()
-                        && fwr.getCallingAETs().contains(callingAET)) {
-                    LOG.debug(
-                            "Filter by Calling AET: remove forward rule \"{}\" with Calling AET = <EMPTY> due to rule \"{}\" with matching Calling AET = {}",
-                            new Object[] { rule.getCommonName(), fwr.getCommonName(), fwr.getCallingAETs() });
-                    returnList.remove(rule);
-                }
-            }
-        }
         return returnList;
     }
 
+    public static List<ForwardRule> filterForwardRulesOnDimseRQ(ProxyAEExtension proxyAEE, List<ForwardRule> fwdRules,
+            String cuid, Dimse dimse) {
+        List<ForwardRule> filterList = proxyAEE.getForwardRuleIndex().filterOnDimseRQ(fwdRules, cuid, dimse);
+        if (LOG.isDebugEnabled())
+            for (ForwardRule rule : filterList)
+                logDimseRQMatch(rule);
+        return removeLessSpecificRules(filterList);
+    }
+
     public static List<ForwardRule> filterForwardRulesOnDimseRQ(List<ForwardRule> fwdRules, String cuid, Dimse dimse) {
         List<ForwardRule> filterList = new ArrayList<ForwardRule>(fwdRules.size());
         for (ForwardRule rule : fwdRules) {
-            if (rule.getDimse().isEmpty() && rule.getSopClasses().isEmpty()
-                    || rule.getSopClasses().contains(cuid) && rule.getDimse().isEmpty()
-                    || rule.getDimse().contains(dimse) 
-                        && (rule.getSopClasses().isEmpty() || rule.getSopClasses().contains(cuid))) {
-                LOG.debug(
-                        "Filter on DIMSE RQ: add forward rule \"{}\" based on DIMSE = \"{}\" and SOPClasses = \"{}\"",
-                        new Object[] { 
-                                rule.getCommonName(), 
-                                rule.getDimse().isEmpty() ? "<EMPTY>" : rule.getDimse(),
-                                rule.getSopClasses().isEmpty() ? "<EMPTY>" : rule.getSopClasses()});
+            if (ForwardRuleIndex.matches(rule, cuid, dimse)) {
+                logDimseRQMatch(rule);
                 filterList.add(rule);
             }
         }
-        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList);
+        return removeLessSpecificRules(filterList);
+    }
+
+    private static void logDimseRQMatch(ForwardRule rule) {
+        LOG.debug(
+                "Filter on DIMSE RQ: add forward rule \"{}\" based on DIMSE = \"{}\" and SOPClasses = \"{}\"",
+                new Object[] { 
+                        rule.getCommonName(), 
+                        rule.getDimse().isEmpty() ? "<EMPTY>" : rule.getDimse(),
+                        rule.getSopClasses().isEmpty() ? "<EMPTY>" : rule.getSopClasses()});
+    }
+
+    private static List<ForwardRule> removeLessSpecificRules(List<ForwardRule> filterList) {
+        boolean[] removed = new boolean[filterList.size()];
         for (int i = 0; i < filterList.size(); i++) {
             ForwardRule rule1 = filterList.get(i);
-            if (!returnList.contains(rule1))
+            if (removed[i])
                 continue;
 
             for (int j = i + 1; j < filterList.size(); j++) {
                 ForwardRule rule2 = filterList.get(j);
-                if (!returnList.contains(rule2))
+                if (removed[j])
                     continue;
 
                 if (rule1.getDimse().isEmpty() && !rule2.getDimse().isEmpty()) {
@@ -185,7 +169,7 @@ public class ForwardRuleUtils {
                                     rule1.getCommonName(),
                                     rule2.getCommonName(),
                                     rule2.getDimse()});
-                    returnList.remove(rule1);
+                    removed[i] = true;
                     break;
                 }
                 if (rule1.getSopClasses().isEmpty() && !rule2.getSopClasses().isEmpty()) {
@@ -195,7 +179,7 @@ public class ForwardRuleUtils {
                                     rule1.getCommonName(),
                                     rule2.getCommonName(),
                                     rule2.getSopClasses()});
-                    returnList.remove(rule1);
+                    removed[i] = true;
                     break;
                 }
                 if (rule2.getDimse().isEmpty() && !rule1.getDimse().isEmpty()) {
@@ -205,7 +189,7 @@ public class ForwardRuleUtils {
                                     rule2.getCommonName(),
                                     rule1.getCommonName(),
                                     rule1.getDimse()});
-                    returnList.remove(rule2);
+                    removed[j] = true;
                     continue;
                 }
                 if (rule2.getSopClasses().isEmpty() && !rule1.getSopClasses().isEmpty()) {
@@ -215,11 +199,15 @@ public class ForwardRuleUtils {
                                     rule2.getCommonName(),
                                     rule1.getCommonName(),
                                     rule1.getSopClasses()});
-                    returnList.remove(rule2);
+                    removed[j] = true;
                     continue;
                 }
             }
         }
+        List<ForwardRule> returnList = new ArrayList<ForwardRule>(filterList.size());
+        for (int i = 0; i < removed.length; i++)
+            if (!removed[i])
+                returnList.add(filterList.get(i));
         return returnList;
     }
 
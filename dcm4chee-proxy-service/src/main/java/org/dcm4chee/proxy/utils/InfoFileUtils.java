@@ -38,11 +38,19 @@
 
 package org.dcm4chee.proxy.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
@@ -57,22 +65,87 @@ public class InfoFileUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(InfoFileUtils.class);
 
+    // leading zero byte never starts a java.util.Properties text file
+    private static final byte[] MAGIC = { 0, 'D', 'P', 'I' };
+
+    private static final int VERSION = 1;
+
     public static Properties getFileInfoProperties(ProxyAEExtension proxyAEE, File file) throws IOException {
-        String infoFileName = file.getPath().substring(0, file.getPath().indexOf('.')) + ".info";
-        return getPropertiesFromInfoFile(proxyAEE, infoFileName);
+        return getPropertiesFromInfoFile(proxyAEE, getInfoFile(file).getPath());
     }
 
+    public static File getInfoFile(File file) {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.indexOf('.')) + ".info");
+    }
+
+    // read with a single open, the size is taken from the opened file
     public static Properties getPropertiesFromInfoFile(ProxyAEExtension proxyAEE, String infoFileName)
             throws FileNotFoundException, IOException {
-        Properties prop = new Properties();
-        FileInputStream inStream = null;
+        LOG.debug("{}: Loading info file {}", proxyAEE, infoFileName);
+        byte[] b;
         try {
-            LOG.debug("{}: Loading info file {}", proxyAEE, infoFileName);
-            inStream = new FileInputStream(infoFileName);
-            prop.load(inStream);
+            b = Files.readAllBytes(Paths.get(infoFileName));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(infoFileName);
+        }
+        return isBinary(b) ? decode(b) : decodeLegacy(b);
+    }
+
+    // written to a temporary file which replaces the info file atomically, so
+    // that a crash never leaves a partially written info file behind
+    public static void storeInfoFile(ProxyAEExtension proxyAEE, File info, Properties prop, boolean sync)
+            throws IOException {
+        LOG.debug("{}: Storing info file {}", proxyAEE, info.getPath());
+        File tmp = File.createTempFile(info.getName(), ".part", info.getParentFile());
+        try {
+            FileOutputStream fout = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeShort(prop.size());
+                for (String name : prop.stringPropertyNames()) {
+                    out.writeUTF(name);
+                    out.writeUTF(prop.getProperty(name));
+                }
+                out.flush();
+                if (sync)
+                    SpoolSync.sync(proxyAEE, fout);
+            } finally {
+                fout.close();
+            }
+            Files.move(tmp.toPath(), info.toPath(), StandardCopyOption.ATOMIC_MOVE);
         } finally {
-            inStream.close();
+            if (tmp.exists() && !tmp.delete())
+                LOG.debug("{}: failed to delete {}", proxyAEE, tmp.getPath());
         }
+    }
+
+    private static boolean isBinary(byte[] b) {
+        if (b.length < MAGIC.length + 1)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++)
+            if (b[i] != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    private static Properties decode(byte[] b) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, MAGIC.length, b.length - MAGIC.length));
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported info file version " + version);
+        int count = in.readUnsignedShort();
+        Properties prop = new Properties();
+        for (int i = 0; i < count; i++)
+            prop.setProperty(in.readUTF(), in.readUTF());
+        return prop;
+    }
+
+    private static Properties decodeLegacy(byte[] b) throws IOException {
+        Properties prop = new Properties();
+        prop.load(new ByteArrayInputStream(b));
         return prop;
     }
 
@@ -38,13 +38,10 @@
 
 package org.dcm4chee.proxy.utils;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Properties;
 
-import org.dcm4che.net.Status;
-import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.proxy.audit.AuditAggregator;
 import org.dcm4chee.proxy.common.AuditDirectory;
 import org.dcm4chee.proxy.conf.ProxyAEExtension;
 import org.slf4j.Logger;
@@ -58,69 +55,34 @@ public class LogUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(LogUtils.class);
 
-    public static void createStartLogFile(ProxyAEExtension proxyAEE, AuditDirectory auditDir, String callingAET,
+    public static void startLog(ProxyAEExtension proxyAEE, AuditDirectory auditDir, String callingAET,
             String calledAET, String proxyHostname, Properties fileInfo, Integer retry) throws IOException {
-        String studyIUID = fileInfo.containsKey("study-iuid") 
-                ? fileInfo.getProperty("study-iuid")
-                : fileInfo.getProperty("sop-instance-uid");
-        File file = new File(getLogDir(proxyAEE, auditDir, callingAET, calledAET, studyIUID, retry), "start.log");
-        if (!file.exists()) {
-            try {
-                Properties prop = new Properties();
-                prop.setProperty("time", String.valueOf(System.currentTimeMillis()));
-                String patID = fileInfo.getProperty("patient-id");
-                prop.setProperty("patient-id", (patID == null || patID.length() == 0) ? "<UNKOWN>" : patID);
-                prop.setProperty("hostname", fileInfo.getProperty("hostname"));
-                prop.setProperty("proxy-hostname", proxyHostname);
-                prop.store(new FileOutputStream(file), null);
-            } catch (IOException e) {
-                LOG.debug("Failed to create log file: " + e.getMessage());
-            }
-        }
-    }
-
-    public static File getLogDir(ProxyAEExtension proxyAEE, AuditDirectory auditDir, String callingAET, String calledAET,
-            String studyIUID, Integer retry) throws IOException {
-        File path = null;
-        String subDirs = proxyAEE.getSeparator() + calledAET + proxyAEE.getSeparator() + callingAET
-                + proxyAEE.getSeparator() + studyIUID;
-        switch (auditDir) {
-        case TRANSFERRED:
-            path = new File(proxyAEE.getTransferredAuditDirectoryPath().getPath() + subDirs);
-            break;
-        case FAILED:
-            path = new File(proxyAEE.getFailedAuditDirectoryPath().getPath()  + subDirs + proxyAEE.getSeparator() + retry);
-            break;
-        case DELETED:
-            path = new File(proxyAEE.getDeleteAuditDirectoryPath().getPath() + subDirs);
-            break;
-        default:
-            LOG.error("Unrecognized Audit Directory: " + auditDir.getDirectoryName());
-            break;
-        }
-        if (path == null)
-            throw new DicomServiceException(Status.UnableToProcess);
-        ProxyAEExtension.makeDirs(path);
-        return path;
+        String patID = fileInfo.getProperty("patient-id");
+        AuditAggregator.getInstance(proxyAEE).start(auditDir, callingAET, calledAET, studyIUIDOf(fileInfo),
+                retryOf(auditDir, retry), (patID == null || patID.length() == 0) ? "<UNKOWN>" : patID,
+                fileInfo.getProperty("hostname"), proxyHostname, System.currentTimeMillis());
     }
 
-    public static File writeLogFile(ProxyAEExtension proxyAEE, AuditDirectory auditDir, String callingAET, String calledAET,
-            Properties fileInfo, long size, Integer retry) {
-        Properties prop = new Properties();
-        File file = null;
+    public static AuditAggregator.Record writeLog(ProxyAEExtension proxyAEE, AuditDirectory auditDir,
+            String callingAET, String calledAET, Properties fileInfo, long size, Integer retry) {
         try {
-            String studyIUID = fileInfo.containsKey("study-iuid") 
-                    ? fileInfo.getProperty("study-iuid")
-                    : fileInfo.getProperty("sop-instance-uid");
-            file = new File(getLogDir(proxyAEE, auditDir, callingAET, calledAET, studyIUID , retry), 
-                    fileInfo.getProperty("sop-instance-uid").concat(".log"));
-            prop.setProperty("sop-class-uid", fileInfo.getProperty("sop-class-uid"));
-            prop.setProperty("size", String.valueOf(size));
-            prop.setProperty("time", String.valueOf(System.currentTimeMillis()));
-            prop.store(new FileOutputStream(file), null);
+            return AuditAggregator.getInstance(proxyAEE).add(auditDir, callingAET, calledAET, studyIUIDOf(fileInfo),
+                    retryOf(auditDir, retry), fileInfo.getProperty("sop-class-uid"), size,
+                    System.currentTimeMillis());
         } catch (IOException e) {
-            LOG.debug("Failed to create log file: " + e.getMessage());
+            LOG.debug("Failed to write audit log record: " + e.getMessage());
+            return null;
         }
-        return file;
+    }
+
+    private static String studyIUIDOf(Properties fileInfo) {
+        return fileInfo.containsKey("study-iuid") 
+                ? fileInfo.getProperty("study-iuid")
+                : fileInfo.getProperty("sop-instance-uid");
+    }
+
+    // only failed transfers are logged per retry
+    private static int retryOf(AuditDirectory auditDir, Integer retry) {
+        return (auditDir == AuditDirectory.FAILED && retry != null) ? retry : 0;
     }
 }
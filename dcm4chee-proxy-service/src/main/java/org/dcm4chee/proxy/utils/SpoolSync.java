@@ -0,0 +1,164 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4che.net.Association;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.SpoolDurability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolSync {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolSync.class);
+
+    private static final String PENDING_FILES = SpoolSync.class.getName();
+
+    public static void sync(ProxyAEExtension proxyAEE, FileOutputStream out) throws IOException {
+        if (proxyAEE.getSpoolDurability() == SpoolDurability.PER_OBJECT)
+            out.getFD().sync();
+    }
+
+    // spool files committed ON_RELEASE which were not yet synced, by the
+    // path they were committed with
+    private static final Set<File> unsynced = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    public static void commit(ProxyAEExtension proxyAEE, Association as, File... files) throws IOException {
+        switch (proxyAEE.getSpoolDurability()) {
+        case PER_OBJECT:
+            break;
+        case ON_RELEASE:
+            if (as != null) {
+                addPendingFiles(as, files);
+                break;
+            }
+            // sync immediately without association
+            for (File file : files)
+                syncFileAndInfo(file);
+            break;
+        }
+    }
+
+    public static void onClose(Association as) {
+        @SuppressWarnings("unchecked")
+        ArrayList<File> files = (ArrayList<File>) as.clearProperty(PENDING_FILES);
+        if (files == null)
+            return;
+
+        LOG.debug("{}: sync {} spool files", as, files.size());
+        for (File file : files)
+            try {
+                // files renamed for sending were synced before
+                if (unsynced.remove(file))
+                    syncFileAndInfo(file);
+            } catch (IOException e) {
+                LOG.error("{}: failed to sync {}: {}", new Object[] { as, file, e.getMessage() });
+                if (LOG.isDebugEnabled())
+                    e.printStackTrace();
+            }
+    }
+
+    /**
+     * Syncs a spool file committed ON_RELEASE before it is renamed, as the
+     * sync on release of the association only knows its committed path.
+     */
+    public static void beforeRename(File file) {
+        if (unsynced.isEmpty() || !unsynced.remove(file))
+            return;
+
+        try {
+            syncFileAndInfo(file);
+        } catch (IOException e) {
+            LOG.error("Failed to sync {}: {}", file, e.getMessage());
+            if (LOG.isDebugEnabled())
+                e.printStackTrace();
+        }
+    }
+
+    private static void addPendingFiles(Association as, File... files) {
+        synchronized (as) {
+            @SuppressWarnings("unchecked")
+            ArrayList<File> pending = (ArrayList<File>) as.getProperty(PENDING_FILES);
+            if (pending == null) {
+                pending = new ArrayList<File>();
+                as.setProperty(PENDING_FILES, pending);
+            }
+            for (File file : files) {
+                unsynced.add(file);
+                pending.add(file);
+            }
+        }
+    }
+
+    private static void syncFileAndInfo(File file) throws IOException {
+        syncFile(file);
+        syncFile(InfoFileUtils.getInfoFile(file));
+    }
+
+    // opened read only, so that a file forwarded and deleted meanwhile is
+    // not created again
+    private static void syncFile(File file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            LOG.debug("{} already forwarded, skip sync", file);
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.io.ContentHandlerAdapter;
+import org.dcm4che.io.SAXWriter;
+import org.dcm4che.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Applies XSL stylesheets to data sets with {@link Transformer}s reused per
+ * stylesheet and thread. Stylesheets are fed the data set without bulk data.
+ * Coercion stylesheets which only emit literal attributes are run once and
+ * applied as constant attribute sets afterwards.
+ * 
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class XSLTUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(XSLTUtils.class);
+
+    private static final String XSL_NS = "http://www.w3.org/1999/XSL/Transform";
+    private static final int MAX_TRANSFORMERS_PER_THREAD = 32;
+    private static final int[] BULK_DATA_TAGS = { Tag.PixelData, Tag.FloatPixelData, Tag.DoubleFloatPixelData,
+            Tag.SpectroscopyData, Tag.EncapsulatedDocument };
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static final ThreadLocal<Map<Templates, Transformer>> transformers =
+            new ThreadLocal<Map<Templates, Transformer>>() {
+
+                @Override
+                protected Map<Templates, Transformer> initialValue() {
+                    return new WeakHashMap<Templates, Transformer>();
+                }
+            };
+
+    private static final Map<Templates, Object> constantResults =
+            Collections.synchronizedMap(new WeakHashMap<Templates, Object>());
+
+    public static void transform(Templates templates, Attributes attrs, boolean includeKeyword,
+            ContentHandler result) throws TransformerException {
+        Map<Templates, Transformer> map = transformers.get();
+        Transformer transformer = map.remove(templates);
+        if (transformer == null)
+            transformer = templates.newTransformer();
+        transformer.transform(new SAXSource(new AttributesReader(headerOf(attrs), includeKeyword), new InputSource()),
+                new SAXResult(result));
+        // only reuse transformers which completed without error
+        if (map.size() >= MAX_TRANSFORMERS_PER_THREAD)
+            map.clear();
+        map.put(templates, transformer);
+    }
+
+    /**
+     * Returns the attributes of a coercion stylesheet which does not depend on
+     * the coerced data set, or {@code null} if the stylesheet has to be applied
+     * to each data set.
+     */
+    public static Attributes constantResult(String uri, Templates templates) {
+        Object result = constantResults.get(templates);
+        if (result == null) {
+            result = NOT_CONSTANT;
+            try {
+                if (isConstant(uri)) {
+                    Attributes attrs = new Attributes();
+                    transform(templates, new Attributes(), false, new ContentHandlerAdapter(attrs));
+                    result = attrs;
+                    LOG.info("Apply attribute coercion {} as constant attributes", uri);
+                }
+            } catch (Exception e) {
+                LOG.debug("Failed to analyse stylesheet {}: {}", uri, e.getMessage());
+            }
+            constantResults.put(templates, result);
+        }
+        return result instanceof Attributes ? (Attributes) result : null;
+    }
+
+    private static Attributes headerOf(Attributes attrs) {
+        for (int tag : BULK_DATA_TAGS)
+            if (attrs.contains(tag)) {
+                Attributes header = new Attributes(attrs);
+                for (int bulkDataTag : BULK_DATA_TAGS)
+                    header.remove(bulkDataTag);
+                return header;
+            }
+        return attrs;
+    }
+
+    private static boolean isConstant(String uri) throws Exception {
+        String path = StringUtils.replaceSystemProperties(uri).replace('\\', '/');
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Element stylesheet = (path.indexOf(':') > 1 ? builder.parse(path) : builder.parse(new File(path)))
+                .getDocumentElement();
+        Element template = null;
+        for (Node node = stylesheet.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+            if (!XSL_NS.equals(node.getNamespaceURI()))
+                return false;
+            if (node.getLocalName().equals("output"))
+                continue;
+            if (!node.getLocalName().equals("template") || template != null)
+                return false;
+            template = (Element) node;
+        }
+        if (template == null || template.hasAttribute("name") || template.hasAttribute("mode"))
+            return false;
+
+        String match = template.getAttribute("match").trim();
+        return (match.equals("/") || match.equals("/NativeDicomModel") || match.equals("NativeDicomModel"))
+                && isLiteral(template);
+    }
+
+    private static boolean isLiteral(Element element) {
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+            if (XSL_NS.equals(node.getNamespaceURI())) {
+                if (!node.getLocalName().equals("text"))
+                    return false;
+                continue;
+            }
+            NamedNodeMap attributes = node.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                if (XSL_NS.equals(attribute.getNamespaceURI()) || attribute.getNodeValue().indexOf('{') >= 0)
+                    return false;
+            }
+            if (!isLiteral((Element) node))
+                return false;
+        }
+        return true;
+    }
+
+    private static final class AttributesReader implements XMLReader {
+
+        private final Attributes attrs;
+        private final boolean includeKeyword;
+        private ContentHandler contentHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        AttributesReader(Attributes attrs, boolean includeKeyword) {
+            this.attrs = attrs;
+            this.includeKeyword = includeKeyword;
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException {
+            SAXWriter w = new SAXWriter(contentHandler);
+            w.setIncludeKeyword(includeKeyword);
+            w.write(attrs);
+        }
+
+        @Override
+        public void parse(String systemId) throws SAXException {
+            parse((InputSource) null);
+        }
+
+        @Override
+        public boolean getFeature(String name) {
+            return name.equals("http://xml.org/sax/features/namespaces");
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) {
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+        }
+
+        @Override
+        public void setEntityResolver(EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.dcm4chee.proxy.common.AuditDirectory;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class AuditAggregatorTest {
+
+    private static final String CT = "1.2.840.10008.5.1.4.1.1.2";
+    private static final long QUIET = 1000L;
+
+    private File spoolDir;
+    private File copyDir;
+    private ProxyAEExtension proxyAEE;
+    private AuditAggregator aggregator;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDir = newTempDir();
+        copyDir = newTempDir();
+        proxyAEE = newProxyAEExtension(spoolDir);
+        aggregator = AuditAggregator.getInstance(proxyAEE);
+    }
+
+    @After
+    public void tearDown() {
+        AuditAggregator.closeAll();
+        delete(spoolDir);
+        delete(copyDir);
+    }
+
+    private static File newTempDir() throws IOException {
+        File dir = File.createTempFile("audit", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    private static ProxyAEExtension newProxyAEExtension(File spoolDir) {
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        proxyAEE.setSpoolDirectory(spoolDir.getPath());
+        return proxyAEE;
+    }
+
+    private AuditAggregator.Record add(String studyIUID, long time) {
+        return aggregator.add(AuditDirectory.TRANSFERRED, "STORESCU", "STORESCP", studyIUID, 0, CT, 100L, time);
+    }
+
+    // the aggregator of another spool directory replays a copy of the journal, as after a restart
+    private AuditAggregator replay() throws IOException {
+        aggregator.flush();
+        File journal = new File(proxyAEE.getAuditDirectoryPath(), AuditAggregator.JOURNAL_FILE_NAME);
+        ProxyAEExtension copy = newProxyAEExtension(copyDir);
+        Files.copy(journal.toPath(),
+                new File(copy.getAuditDirectoryPath(), AuditAggregator.JOURNAL_FILE_NAME).toPath());
+        return AuditAggregator.getInstance(copy);
+    }
+
+    @Test
+    public void testQuietPeriod() throws Exception {
+        add("1.1", 1000L);
+        add("1.1", 1500L);
+        add("1.2", 1800L);
+        Assert.assertTrue(aggregator.takeQuiet(2000L, QUIET, 10).isEmpty());
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(2500L, QUIET, 10);
+        Assert.assertEquals(1, taken.size());
+        Assert.assertEquals("1.1", taken.get(0).studyIUID);
+        Assert.assertEquals(2, taken.get(0).instances);
+        Assert.assertEquals(200L, taken.get(0).totalSize);
+    }
+
+    @Test
+    public void testTakeQuietInBatches() throws Exception {
+        for (int i = 1; i <= 5; i++)
+            add("1." + i, 1000L + i);
+        add("1.6", 4500L);
+        Assert.assertEquals(2, aggregator.takeQuiet(5000L, QUIET, 2).size());
+        List<AuditAggregator.StudyLog> batch = aggregator.takeQuiet(5000L, QUIET, 2);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals("1.3", batch.get(0).studyIUID);
+        Assert.assertEquals("1.4", batch.get(1).studyIUID);
+        // the last batch is not full, the study updated within the quiet period stays
+        batch = aggregator.takeQuiet(5000L, QUIET, 2);
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals("1.5", batch.get(0).studyIUID);
+        Assert.assertEquals(1, aggregator.size());
+    }
+
+    @Test
+    public void testWithdraw() throws Exception {
+        add("1.1", 1000L);
+        AuditAggregator.Record record = add("1.1", 1000L);
+        record.withdraw();
+        record.withdraw();
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(5000L, QUIET, 10);
+        Assert.assertEquals(1, taken.get(0).instances);
+    }
+
+    @Test
+    public void testWithdrawAfterTake() throws Exception {
+        AuditAggregator.Record record = add("1.1", 1000L);
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(5000L, QUIET, 10);
+        add("1.1", 5500L);
+        // the transfer of the taken object failed after its study was taken for writing
+        record.withdraw();
+        aggregator.done(taken.get(0));
+        List<AuditAggregator.StudyLog> newer = aggregator.takeQuiet(10000L, QUIET, 10);
+        Assert.assertEquals(1, newer.size());
+        Assert.assertEquals(1, newer.get(0).instances);
+        aggregator.done(newer.get(0));
+        Assert.assertEquals(0, aggregator.size());
+    }
+
+    @Test
+    public void testTakenStudySurvivesReplayUntilDone() throws Exception {
+        add("1.1", 1000L);
+        add("1.2", 1000L);
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(5000L, QUIET, 10);
+        Assert.assertEquals(2, taken.size());
+        aggregator.done(taken.get(0));
+        List<AuditAggregator.StudyLog> replayed = replay().takeQuiet(5000L, QUIET, 10);
+        Assert.assertEquals(1, replayed.size());
+        Assert.assertEquals("1.2", replayed.get(0).studyIUID);
+        Assert.assertEquals(1, replayed.get(0).instances);
+    }
+
+    @Test
+    public void testFailedStudiesKeepOrder() throws Exception {
+        add("1.1", 1000L);
+        add("1.2", 1100L);
+        add("1.3", 1200L);
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(5000L, QUIET, 10);
+        add("1.4", 1300L);
+        aggregator.done(taken.get(0));
+        aggregator.failed(taken.subList(1, 3));
+        List<AuditAggregator.StudyLog> retaken = aggregator.takeQuiet(5000L, QUIET, 10);
+        Assert.assertEquals(3, retaken.size());
+        Assert.assertEquals("1.2", retaken.get(0).studyIUID);
+        Assert.assertEquals("1.3", retaken.get(1).studyIUID);
+        Assert.assertEquals("1.4", retaken.get(2).studyIUID);
+    }
+
+    @Test
+    public void testFailedStudyMergedIntoNewer() throws Exception {
+        add("1.1", 1000L);
+        List<AuditAggregator.StudyLog> taken = aggregator.takeQuiet(5000L, QUIET, 10);
+        add("1.1", 5500L);
+        aggregator.failed(taken);
+        List<AuditAggregator.StudyLog> retaken = aggregator.takeQuiet(10000L, QUIET, 10);
+        Assert.assertEquals(1, retaken.size());
+        Assert.assertEquals(2, retaken.get(0).instances);
+        Assert.assertEquals(1000L, retaken.get(0).t1);
+        Assert.assertEquals(5500L, retaken.get(0).t2);
+        Assert.assertEquals(2, replay().takeQuiet(10000L, QUIET, 10).get(0).instances);
+    }
+}
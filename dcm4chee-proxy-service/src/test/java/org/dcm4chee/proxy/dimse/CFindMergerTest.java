@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.util.Map;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.DimseRSPHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CFindMergerTest {
+
+    private static Attributes keys(String queryRetrieveLevel) {
+        Attributes keys = new Attributes();
+        keys.setString(Tag.QueryRetrieveLevel, VR.CS, queryRetrieveLevel);
+        return keys;
+    }
+
+    private static Attributes match(int tag, VR vr, String value) {
+        Attributes match = new Attributes();
+        match.setString(tag, vr, value);
+        return match;
+    }
+
+    @Test
+    public void testDuplicatesSuppressed() {
+        CFindMerger merger = new CFindMerger(keys("STUDY"), 0);
+        Assert.assertEquals("STUDY", merger.getQueryRetrieveLevel());
+        Assert.assertTrue(merger.accept(match(Tag.StudyInstanceUID, VR.UI, "1.2.1")));
+        Assert.assertTrue(merger.accept(match(Tag.StudyInstanceUID, VR.UI, "1.2.2")));
+        Assert.assertFalse(merger.accept(match(Tag.StudyInstanceUID, VR.UI, "1.2.1")));
+        // matches without unique key are passed
+        Assert.assertTrue(merger.accept(new Attributes()));
+        Assert.assertTrue(merger.accept(new Attributes()));
+    }
+
+    @Test
+    public void testPatientIDsMergedWithIssuer() {
+        CFindMerger merger = new CFindMerger(keys("PATIENT"), 0);
+        Attributes pid1 = match(Tag.PatientID, VR.LO, "P1");
+        pid1.setString(Tag.IssuerOfPatientID, VR.LO, "HOSPITAL1");
+        Attributes pid2 = match(Tag.PatientID, VR.LO, "P1");
+        pid2.setString(Tag.IssuerOfPatientID, VR.LO, "HOSPITAL2");
+        Assert.assertTrue(merger.accept(pid1));
+        Assert.assertTrue(merger.accept(pid2));
+        Assert.assertFalse(merger.accept(pid1));
+    }
+
+    @Test
+    public void testNoUniqueKeyWithoutLevel() {
+        CFindMerger merger = new CFindMerger(new Attributes(), 0);
+        Assert.assertTrue(merger.accept(match(Tag.StudyInstanceUID, VR.UI, "1.2.1")));
+        Assert.assertTrue(merger.accept(match(Tag.StudyInstanceUID, VR.UI, "1.2.1")));
+    }
+
+    @Test
+    public void testMaxResults() {
+        CFindMerger merger = new CFindMerger(keys("IMAGE"), 2);
+        Assert.assertTrue(merger.accept(match(Tag.SOPInstanceUID, VR.UI, "1.2.1")));
+        Assert.assertFalse(merger.isLimitReached());
+        Assert.assertFalse(merger.accept(match(Tag.SOPInstanceUID, VR.UI, "1.2.1")));
+        Assert.assertFalse(merger.isLimitReached());
+        Assert.assertTrue(merger.accept(match(Tag.SOPInstanceUID, VR.UI, "1.2.2")));
+        Assert.assertTrue(merger.isLimitReached());
+        Assert.assertFalse(merger.accept(match(Tag.SOPInstanceUID, VR.UI, "1.2.3")));
+    }
+
+    @Test
+    public void testCompleteAndExpire() {
+        CFindMerger merger = new CFindMerger(keys("SERIES"), 0);
+        DimseRSPHandler rspHandler1 = new DimseRSPHandler(1);
+        DimseRSPHandler rspHandler2 = new DimseRSPHandler(2);
+        DimseRSPHandler rspHandler3 = new DimseRSPHandler(3);
+        merger.register(rspHandler1, null);
+        merger.register(rspHandler2, null);
+        merger.register(rspHandler3, null);
+        Assert.assertTrue(merger.isOutstanding(rspHandler1));
+        Assert.assertTrue(merger.complete(rspHandler1));
+        Assert.assertFalse(merger.isOutstanding(rspHandler1));
+        Assert.assertFalse(merger.complete(rspHandler1));
+
+        Assert.assertFalse(merger.isExpired());
+        Map<DimseRSPHandler, Association> late = merger.expire();
+        Assert.assertTrue(merger.isExpired());
+        Assert.assertEquals(2, late.size());
+        Assert.assertTrue(late.containsKey(rspHandler2) && late.containsKey(rspHandler3));
+        // late responses of dropped destinations are ignored
+        Assert.assertFalse(merger.isOutstanding(rspHandler2));
+        Assert.assertFalse(merger.complete(rspHandler2));
+        Assert.assertTrue(merger.expire().isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.dimse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CStoreTest {
+
+    private static final byte[] DATA = { 1, 2, 3, 4 };
+    private static final byte[] INFO = { 5, 6 };
+
+    private final ProxyAEExtension proxyAEE = new ProxyAEExtension();
+    private File spoolDir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDir = File.createTempFile("cstore", "");
+        spoolDir.delete();
+        spoolDir.mkdir();
+        proxyAEE.setSpoolDirectory(spoolDir.getPath());
+        file = new File(proxyAEE.getCStoreDirectoryPath(), "1.2.3.dcm");
+        write(file, DATA);
+        write(new File(proxyAEE.getCStoreDirectoryPath(), "1.info"), INFO);
+    }
+
+    @After
+    public void tearDown() {
+        delete(spoolDir);
+    }
+
+    private static void write(File file, byte[] b) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(b);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Test
+    public void testCopyPerDestination() throws Exception {
+        File dst1 = CStore.createMappedFileCopy(proxyAEE, null, file, "DEST1", ".dcm");
+        File dst2 = CStore.createMappedFileCopy(proxyAEE, null, file, "DEST2", ".dcm");
+        Assert.assertEquals(new File(new File(proxyAEE.getCStoreDirectoryPath(), "DEST1"), "1.2.3.dcm"), dst1);
+        Assert.assertTrue(Arrays.equals(DATA, read(dst1)));
+        Assert.assertTrue(Arrays.equals(DATA, read(dst2)));
+        Assert.assertTrue(Arrays.equals(INFO, read(new File(dst1.getParentFile(), "1.info"))));
+        Assert.assertTrue(Arrays.equals(INFO, read(new File(dst2.getParentFile(), "1.info"))));
+        // the copies, or links, stay when the received file is deleted
+        file.delete();
+        Assert.assertTrue(Arrays.equals(DATA, read(dst1)));
+    }
+
+    @Test
+    public void testExistingSpoolFileNotOverwritten() throws Exception {
+        File dst = CStore.createMappedFileCopy(proxyAEE, null, file, "DEST1", ".dcm");
+        try {
+            CStore.createMappedFileCopy(proxyAEE, null, file, "DEST1", ".dcm");
+            Assert.fail("FileAlreadyExistsException expected");
+        } catch (FileAlreadyExistsException e) {
+            Assert.assertEquals(dst.getPath(), e.getFile());
+        }
+        Assert.assertTrue(Arrays.equals(DATA, read(dst)));
+    }
+}
@@ -0,0 +1,129 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.net.Device;
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.ProxyDeviceExtension;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class CircuitBreakerTest {
+
+    private static ProxyAEExtension newProxyAEExtension(int threshold, int timeout) {
+        ProxyDeviceExtension proxyDev = new ProxyDeviceExtension();
+        proxyDev.setCircuitBreakerThreshold(threshold);
+        proxyDev.setCircuitBreakerTimeout(timeout);
+        Device device = new Device("dcm4chee-proxy");
+        device.addDeviceExtension(proxyDev);
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        ApplicationEntity ae = new ApplicationEntity("DCM4CHEE-PROXY");
+        ae.addAEExtension(proxyAEE);
+        device.addApplicationEntity(ae);
+        return proxyAEE;
+    }
+
+    // circuit breakers are shared by all tests, each test uses its own destination
+
+    @Test
+    public void testDisabled() {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(0, 60);
+        for (int i = 0; i < 10; i++)
+            CircuitBreaker.onConnect(proxyAEE, "DISABLED", false);
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "DISABLED"));
+        Assert.assertFalse(CircuitBreaker.isOpen(proxyAEE, "DISABLED"));
+    }
+
+    @Test
+    public void testOpenAfterThreshold() {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(3, 60);
+        CircuitBreaker.onConnect(proxyAEE, "THRESHOLD", false);
+        CircuitBreaker.onConnect(proxyAEE, "THRESHOLD", false);
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "THRESHOLD"));
+        Assert.assertFalse(CircuitBreaker.isOpen(proxyAEE, "THRESHOLD"));
+
+        CircuitBreaker.onConnect(proxyAEE, "THRESHOLD", false);
+        Assert.assertFalse(CircuitBreaker.allowRequest(proxyAEE, "THRESHOLD"));
+        Assert.assertTrue(CircuitBreaker.isOpen(proxyAEE, "THRESHOLD"));
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "OTHER"));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(2, 60);
+        CircuitBreaker.onConnect(proxyAEE, "RESET", false);
+        CircuitBreaker.onConnect(proxyAEE, "RESET", true);
+        CircuitBreaker.onConnect(proxyAEE, "RESET", false);
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "RESET"));
+    }
+
+    @Test
+    public void testSingleProbeAfterTimeout() {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(1, 0);
+        CircuitBreaker.onConnect(proxyAEE, "PROBE", false);
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "PROBE"));
+        // only one caller probes, the others wait for its outcome
+        Assert.assertFalse(CircuitBreaker.allowRequest(proxyAEE, "PROBE"));
+        Assert.assertTrue(CircuitBreaker.isOpen(proxyAEE, "PROBE"));
+
+        CircuitBreaker.onConnect(proxyAEE, "PROBE", true);
+        Assert.assertFalse(CircuitBreaker.isOpen(proxyAEE, "PROBE"));
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "PROBE"));
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "PROBE"));
+    }
+
+    @Test
+    public void testFailedProbeReopens() {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(2, 0);
+        CircuitBreaker.onConnect(proxyAEE, "REOPEN", false);
+        CircuitBreaker.onConnect(proxyAEE, "REOPEN", false);
+        Assert.assertTrue(CircuitBreaker.allowRequest(proxyAEE, "REOPEN"));
+
+        // a single failed probe suspends the destination again
+        proxyAEE.getApplicationEntity().getDevice().getDeviceExtension(ProxyDeviceExtension.class)
+                .setCircuitBreakerTimeout(60);
+        CircuitBreaker.onConnect(proxyAEE, "REOPEN", false);
+        Assert.assertFalse(CircuitBreaker.allowRequest(proxyAEE, "REOPEN"));
+        Assert.assertTrue(CircuitBreaker.isOpen(proxyAEE, "REOPEN"));
+    }
+}
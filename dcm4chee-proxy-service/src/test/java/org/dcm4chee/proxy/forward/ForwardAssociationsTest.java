@@ -0,0 +1,104 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import org.dcm4che.data.UID;
+import org.dcm4che.net.pdu.AAssociateRQ;
+import org.dcm4che.net.pdu.ExtendedNegotiation;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.pdu.RoleSelection;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardAssociationsTest {
+
+    private static AAssociateRQ newAssociateRQ(String... tsuids) {
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCallingAET("PROXY");
+        rq.setCalledAET("STORESCP");
+        rq.addPresentationContext(new PresentationContext(1, UID.CTImageStorage, tsuids));
+        rq.addPresentationContext(new PresentationContext(3, UID.VerificationSOPClass,
+                UID.ImplicitVRLittleEndian));
+        return rq;
+    }
+
+    @Test
+    public void testSameContexts() {
+        AAssociateRQ pooled = newAssociateRQ(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian);
+        Assert.assertTrue(ForwardAssociations.sameContexts(pooled,
+                newAssociateRQ(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian)));
+        // the A-ASSOCIATE-AC passed through refers to the transfer syntaxes in their order
+        Assert.assertFalse(ForwardAssociations.sameContexts(pooled,
+                newAssociateRQ(UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian)));
+        Assert.assertFalse(ForwardAssociations.sameContexts(pooled, newAssociateRQ(UID.ImplicitVRLittleEndian)));
+
+        AAssociateRQ more = newAssociateRQ(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian);
+        more.addPresentationContext(new PresentationContext(5, UID.MRImageStorage, UID.ImplicitVRLittleEndian));
+        Assert.assertFalse(ForwardAssociations.sameContexts(pooled, more));
+    }
+
+    @Test
+    public void testSameNegotiation() {
+        AAssociateRQ pooled = newAssociateRQ(UID.ImplicitVRLittleEndian);
+        Assert.assertTrue(ForwardAssociations.sameNegotiation(pooled, newAssociateRQ(UID.ImplicitVRLittleEndian)));
+
+        AAssociateRQ rq = newAssociateRQ(UID.ImplicitVRLittleEndian);
+        rq.addExtendedNegotiation(new ExtendedNegotiation(UID.CTImageStorage, new byte[] { 1 }));
+        Assert.assertFalse(ForwardAssociations.sameNegotiation(pooled, rq));
+        pooled.addExtendedNegotiation(new ExtendedNegotiation(UID.CTImageStorage, new byte[] { 1 }));
+        Assert.assertTrue(ForwardAssociations.sameNegotiation(pooled, rq));
+    }
+
+    @Test
+    public void testRoleSelectionNotRequested() {
+        // negotiated with SCP role for C-GET, not to be reused by a C-STORE forward
+        AAssociateRQ pooled = newAssociateRQ(UID.ImplicitVRLittleEndian);
+        pooled.addRoleSelection(new RoleSelection(UID.CTImageStorage, false, true));
+        AAssociateRQ rq = newAssociateRQ(UID.ImplicitVRLittleEndian);
+        Assert.assertFalse(ForwardAssociations.sameNegotiation(pooled, rq));
+        rq.addRoleSelection(new RoleSelection(UID.CTImageStorage, false, true));
+        Assert.assertTrue(ForwardAssociations.sameNegotiation(pooled, rq));
+        AAssociateRQ scu = newAssociateRQ(UID.ImplicitVRLittleEndian);
+        scu.addRoleSelection(new RoleSelection(UID.CTImageStorage, true, false));
+        Assert.assertFalse(ForwardAssociations.sameNegotiation(pooled, scu));
+    }
+}
@@ -0,0 +1,115 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class ForwardDispatcherTest {
+
+    private static final String AET = "STORESCP";
+
+    private final ProxyAEExtension proxyAEE = new ProxyAEExtension();
+    private File spoolDir;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDir = File.createTempFile("dispatch", "");
+        spoolDir.delete();
+        spoolDir.mkdir();
+        proxyAEE.setSpoolDirectory(spoolDir.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        delete(spoolDir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    private File newSpoolFile(String name) throws IOException {
+        File dir = new File(proxyAEE.getCStoreDirectoryPath(), AET);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        new FileOutputStream(file).close();
+        return file;
+    }
+
+    // without a running dispatcher, published files are forwarded by the next scheduler run
+    @Test
+    public void testPublishWithoutDispatcher() throws Exception {
+        File file1 = newSpoolFile("1.dcm");
+        File file2 = newSpoolFile("2.dcm");
+        long now = System.currentTimeMillis();
+        ForwardDispatcher.publish(proxyAEE, AET, file1);
+        ForwardDispatcher.publish(proxyAEE, AET, file2);
+        ForwardDispatcher.publish(proxyAEE, AET, file1);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        Assert.assertEquals(2, catalog.size(AET));
+        List<SpoolCatalog.SpoolEntry> due = catalog.takeDueEntries(AET, System.currentTimeMillis());
+        Assert.assertEquals(2, due.size());
+        Assert.assertTrue(due.get(0).getDueTime() >= now);
+        Assert.assertEquals(0, due.get(0).getRetries());
+    }
+
+    @Test
+    public void testPublishFileOutsideSpoolDirectory() throws Exception {
+        File file = new File(spoolDir, "1.dcm");
+        new FileOutputStream(file).close();
+        ForwardDispatcher.publish(proxyAEE, AET, file);
+        Assert.assertEquals(0, SpoolCatalog.getInstance(proxyAEE).size());
+    }
+}
@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.utils.InfoFileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class PrefetchReaderTest {
+
+    private final ProxyAEExtension proxyAEE = new ProxyAEExtension();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("prefetch", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private File newFile(String name, boolean withInfo) throws IOException {
+        File file = new File(dir, name);
+        new FileOutputStream(file).close();
+        if (withInfo) {
+            Properties prop = new Properties();
+            prop.setProperty("sop-class-uid", "1.2.840.10008.5.1.4.1.1.7");
+            InfoFileUtils.storeInfoFile(proxyAEE, InfoFileUtils.getInfoFile(file), prop, false);
+        }
+        return file;
+    }
+
+    private static Thread start(PrefetchReader reader) {
+        Thread thread = new Thread(reader);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testMissingInfoFile() throws Exception {
+        File file = newFile("1.dcm", false);
+        PrefetchReader reader = new PrefetchReader(proxyAEE, null, Arrays.asList(file), 1);
+        start(reader).join(10000);
+        PrefetchReader.Item item = reader.take();
+        Assert.assertSame(file, item.file);
+        Assert.assertTrue(item.infoException instanceof FileNotFoundException);
+        Assert.assertNull(item.attrs);
+    }
+
+    @Test
+    public void testItemQueuedForFailedRead() throws Exception {
+        // reading the data set fails without an association
+        File file1 = newFile("1.dcm", true);
+        File file2 = newFile("2.dcm", false);
+        PrefetchReader reader = new PrefetchReader(proxyAEE, null, Arrays.asList(file1, file2), 1);
+        Thread thread = start(reader);
+        PrefetchReader.Item item1 = reader.take();
+        Assert.assertSame(file1, item1.file);
+        Assert.assertNotNull(item1.prop);
+        Assert.assertNull(item1.infoException);
+        Assert.assertNull(item1.attrs);
+        Assert.assertTrue(item1.exception instanceof NullPointerException);
+        PrefetchReader.Item item2 = reader.take();
+        Assert.assertSame(file2, item2.file);
+        Assert.assertTrue(item2.infoException instanceof FileNotFoundException);
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        File file1 = newFile("1.dcm", false);
+        File file2 = newFile("2.dcm", false);
+        File file3 = newFile("3.dcm", false);
+        PrefetchReader reader = new PrefetchReader(proxyAEE, null, Arrays.asList(file1, file2, file3), 1);
+        Thread thread = start(reader);
+        Assert.assertSame(file1, reader.take().file);
+        reader.cancel();
+        // the reader may have queued the item it was blocked on
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,124 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.util.Properties;
+
+import org.dcm4chee.proxy.common.RetryObject;
+import org.dcm4chee.proxy.conf.Retry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class RetryStateTest {
+
+    private static final String CONN = RetryObject.ConnectionException.getSuffix();
+
+    @Test
+    public void testNoRetryState() {
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        Assert.assertNull(RetryState.valueOf(prop));
+        Assert.assertFalse(RetryState.clear(prop));
+    }
+
+    @Test
+    public void testNext() {
+        Retry retry = new Retry(RetryObject.ConnectionException, 60, 5, false);
+        Properties prop = new Properties();
+        RetryState state = RetryState.next(prop, "1.dcm", CONN, retry, 1000L);
+        Assert.assertEquals(CONN, state.suffix);
+        Assert.assertEquals(1, state.retries);
+        Assert.assertEquals(1000L + retry.getRetryDelayMillis(1), state.dueTime);
+        Assert.assertEquals("Connection Error", prop.getProperty(RetryState.RETRY_ERROR));
+
+        state = RetryState.next(prop, "1.dcm", CONN, retry, 2000L);
+        Assert.assertEquals(2, state.retries);
+        RetryState read = RetryState.valueOf(prop);
+        Assert.assertEquals(CONN, read.suffix);
+        Assert.assertEquals(2, read.retries);
+        Assert.assertEquals(state.dueTime, read.dueTime);
+    }
+
+    @Test
+    public void testRetriesCountedPerSuffix() {
+        Properties prop = new Properties();
+        RetryState.next(prop, "1.dcm", CONN, null, 1000L);
+        RetryState.next(prop, "1.dcm", CONN, null, 1000L);
+        RetryState state = RetryState.next(prop, "1.dcm", ".a700h", null, 1000L);
+        Assert.assertEquals(1, state.retries);
+        // due immediately without a matching retry configuration
+        Assert.assertEquals(1000L, state.dueTime);
+        Assert.assertEquals("Status A700H", prop.getProperty(RetryState.RETRY_ERROR));
+        Assert.assertEquals(2, RetryState.retries(prop, CONN));
+    }
+
+    @Test
+    public void testLegacyRetries() {
+        Assert.assertEquals(3, RetryState.legacyRetries("dcm123.rj1.conn3", CONN));
+        Assert.assertEquals(3, RetryState.legacyRetries("dcm123.conn3.snd", CONN));
+        Assert.assertEquals(0, RetryState.legacyRetries("dcm123.conn", CONN));
+        Assert.assertEquals(0, RetryState.legacyRetries("dcm123.dcm", CONN));
+        // continued from the file name of the former suffix based retry scheme
+        Assert.assertEquals(4, RetryState.next(new Properties(), "dcm123.conn3", CONN, null, 0L).retries);
+    }
+
+    @Test
+    public void testInvalidValues() {
+        Properties prop = new Properties();
+        prop.setProperty(RetryState.RETRY_SUFFIX, CONN);
+        prop.setProperty(RetryState.RETRY_COUNT + CONN, "x");
+        prop.setProperty(RetryState.RETRY_DUE, "y");
+        RetryState state = RetryState.valueOf(prop);
+        Assert.assertEquals(0, state.retries);
+        Assert.assertEquals(0L, state.dueTime);
+    }
+
+    @Test
+    public void testClear() {
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        RetryState.next(prop, "1.dcm", CONN, null, 1000L);
+        Assert.assertTrue(RetryState.clear(prop));
+        Assert.assertEquals(1, prop.size());
+        Assert.assertNull(RetryState.valueOf(prop));
+    }
+}
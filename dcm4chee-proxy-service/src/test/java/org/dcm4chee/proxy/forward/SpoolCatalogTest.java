@@ -0,0 +1,205 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.forward;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolCatalogTest {
+
+    private static final String AET = "STORESCP";
+
+    private File spoolDir;
+    private File copyDir;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDir = newTempDir();
+        copyDir = newTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(spoolDir);
+        delete(copyDir);
+    }
+
+    private static File newTempDir() throws IOException {
+        File dir = File.createTempFile("spool", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    private static ProxyAEExtension newProxyAEExtension(File spoolDir) {
+        ProxyAEExtension proxyAEE = new ProxyAEExtension();
+        proxyAEE.setSpoolDirectory(spoolDir.getPath());
+        return proxyAEE;
+    }
+
+    private static File newSpoolFile(SpoolCatalog catalog, ProxyAEExtension proxyAEE, String name)
+            throws IOException {
+        File dir = new File(proxyAEE.getCStoreDirectoryPath(), AET);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        new FileOutputStream(file).close();
+        catalog.add(AET, file, 0L, 0, null);
+        return file;
+    }
+
+    // the catalog of another spool directory replays a copy of the journal, as after a restart
+    private SpoolCatalog replay(ProxyAEExtension proxyAEE) throws IOException {
+        SpoolCatalog.getInstance(proxyAEE).close();
+        ProxyAEExtension copy = newProxyAEExtension(copyDir);
+        File journal = new File(proxyAEE.getCStoreDirectoryPath(), SpoolCatalog.JOURNAL_FILE_NAME);
+        Files.copy(journal.toPath(), new File(copy.getCStoreDirectoryPath(), SpoolCatalog.JOURNAL_FILE_NAME).toPath());
+        return SpoolCatalog.getInstance(copy);
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        newSpoolFile(catalog, proxyAEE, "1.dcm");
+        File file2 = newSpoolFile(catalog, proxyAEE, "2.dcm");
+        newSpoolFile(catalog, proxyAEE, "3.dcm");
+        catalog.remove(file2);
+        Assert.assertEquals(2, replay(proxyAEE).size(AET));
+    }
+
+    @Test
+    public void testTakenEntrySurvivesReplayUntilCommitted() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file1 = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        File file2 = newSpoolFile(catalog, proxyAEE, "2.dcm");
+        Assert.assertEquals(2, catalog.takeDueEntries(AET, System.currentTimeMillis()).size());
+        Assert.assertEquals(0, catalog.size(AET));
+        catalog.commit(file1);
+        SpoolCatalog replayed = replay(proxyAEE);
+        List<SpoolCatalog.SpoolEntry> due = replayed.takeDueEntries(AET, System.currentTimeMillis());
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(file2.getName(), due.get(0).getFile().getName());
+    }
+
+    @Test
+    public void testTakenEntryNotOfferedUntilPutBack() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        Assert.assertNotNull(catalog.take(file));
+        Assert.assertNull(catalog.take(file));
+        Assert.assertTrue(catalog.takeDueEntries(AET, System.currentTimeMillis()).isEmpty());
+        catalog.putBack(file);
+        Assert.assertEquals(1, catalog.takeDueEntries(AET, System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void testRemoveTakenEntry() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        catalog.take(file);
+        Assert.assertNotNull(catalog.remove(file));
+        catalog.putBack(file);
+        Assert.assertEquals(0, catalog.size(AET));
+        Assert.assertEquals(0, replay(proxyAEE).size(AET));
+    }
+
+    @Test
+    public void testCommitOfSupersededLease() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        catalog.take(file);
+        // restored by the sender and added again before the first sender committed
+        catalog.add(AET, file, 0L, 1, ".conn");
+        catalog.commit(file);
+        Assert.assertEquals(1, catalog.size(AET));
+        List<SpoolCatalog.SpoolEntry> due = replay(proxyAEE).takeDueEntries(AET, System.currentTimeMillis());
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals(1, due.get(0).getRetries());
+        Assert.assertEquals(".conn", due.get(0).getRetrySuffix());
+    }
+
+    @Test
+    public void testRebuildSkipsTakenEntries() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file1 = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        newSpoolFile(catalog, proxyAEE, "2.dcm");
+        catalog.take(file1);
+        catalog.rebuild();
+        Assert.assertEquals(1, catalog.size(AET));
+        catalog.putBack(file1);
+        Assert.assertEquals(2, catalog.size(AET));
+    }
+
+    @Test
+    public void testRebuildKeepsTakenEntriesInJournal() throws Exception {
+        ProxyAEExtension proxyAEE = newProxyAEExtension(spoolDir);
+        SpoolCatalog catalog = SpoolCatalog.getInstance(proxyAEE);
+        File file1 = newSpoolFile(catalog, proxyAEE, "1.dcm");
+        newSpoolFile(catalog, proxyAEE, "2.dcm");
+        catalog.take(file1);
+        // rebuild compacts the journal
+        catalog.rebuild();
+        Assert.assertEquals(2, replay(proxyAEE).size(AET));
+    }
+}
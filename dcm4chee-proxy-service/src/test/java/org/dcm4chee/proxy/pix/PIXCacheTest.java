@@ -0,0 +1,217 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.pix;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class PIXCacheTest {
+
+    private static final IDWithIssuer[] PIDS = { new IDWithIssuer("P1", "ISSUER1"),
+            new IDWithIssuer("P2", "ISSUER2") };
+    private static final IDWithIssuer[] NO_OTHER_PIDS = { new IDWithIssuer("P3", "ISSUER1") };
+
+    private static class CountingQuery implements Callable<IDWithIssuer[]> {
+
+        final AtomicInteger count = new AtomicInteger();
+        final IDWithIssuer[] result;
+
+        CountingQuery(IDWithIssuer[] result) {
+            this.result = result;
+        }
+
+        @Override
+        public IDWithIssuer[] call() throws Exception {
+            count.incrementAndGet();
+            return result;
+        }
+    }
+
+    @Test
+    public void testCachedUntilTimeout() throws Exception {
+        PIXCache cache = new PIXCache();
+        CountingQuery query = new CountingQuery(PIDS);
+        Assert.assertSame(PIDS, cache.get("P1", query, 60000, 60000, 10));
+        Assert.assertSame(PIDS, cache.get("P1", query, 60000, 60000, 10));
+        Assert.assertEquals(1, query.count.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.get("P4", query, 1, 60000, 10);
+        Thread.sleep(10);
+        cache.get("P4", query, 1, 60000, 10);
+        Assert.assertEquals(3, query.count.get());
+    }
+
+    @Test
+    public void testNegativeTimeout() throws Exception {
+        PIXCache cache = new PIXCache();
+        CountingQuery query = new CountingQuery(NO_OTHER_PIDS);
+        cache.get("P3", query, 60000, 60000, 10);
+        cache.get("P3", query, 60000, 60000, 10);
+        Assert.assertEquals(1, query.count.get());
+        Assert.assertEquals(1, cache.getNegativeHits());
+
+        // results without other Patient IDs are not cached without negative timeout
+        cache.clear();
+        cache.get("P3", query, 60000, 0, 10);
+        cache.get("P3", query, 60000, 0, 10);
+        Assert.assertEquals(3, query.count.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        PIXCache cache = new PIXCache();
+        CountingQuery query = new CountingQuery(PIDS);
+        cache.get("A", query, 60000, 60000, 2);
+        cache.get("B", query, 60000, 60000, 2);
+        cache.get("A", query, 60000, 60000, 2);
+        cache.get("C", query, 60000, 60000, 2);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(3, query.count.get());
+
+        cache.get("A", query, 60000, 60000, 2);
+        Assert.assertEquals(3, query.count.get());
+        cache.get("B", query, 60000, 60000, 2);
+        Assert.assertEquals(4, query.count.get());
+    }
+
+    @Test
+    public void testConcurrentQueriesCoalesced() throws Exception {
+        final PIXCache cache = new PIXCache();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        final Callable<IDWithIssuer[]> query = new Callable<IDWithIssuer[]>() {
+
+            @Override
+            public IDWithIssuer[] call() throws Exception {
+                count.incrementAndGet();
+                started.countDown();
+                release.await();
+                return PIDS;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<IDWithIssuer[]> lookup = new Callable<IDWithIssuer[]>() {
+
+                @Override
+                public IDWithIssuer[] call() throws Exception {
+                    return cache.get("P1", query, 60000, 60000, 10);
+                }
+            };
+            Future<IDWithIssuer[]> first = executor.submit(lookup);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<IDWithIssuer[]> second = executor.submit(lookup);
+            while (cache.getCoalesced() == 0)
+                Thread.sleep(1);
+            release.countDown();
+            Assert.assertSame(PIDS, first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(PIDS, second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, count.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailurePropagatedToWaiters() throws Exception {
+        final PIXCache cache = new PIXCache();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        final Callable<IDWithIssuer[]> query = new Callable<IDWithIssuer[]>() {
+
+            @Override
+            public IDWithIssuer[] call() throws Exception {
+                count.incrementAndGet();
+                started.countDown();
+                release.await();
+                throw new IOException("PIX Manager not reachable");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<IDWithIssuer[]> lookup = new Callable<IDWithIssuer[]>() {
+
+                @Override
+                public IDWithIssuer[] call() throws Exception {
+                    try {
+                        cache.get("P1", query, 60000, 60000, 10);
+                        return null;
+                    } catch (IOException e) {
+                        return IDWithIssuer.EMPTY;
+                    }
+                }
+            };
+            Future<IDWithIssuer[]> first = executor.submit(lookup);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<IDWithIssuer[]> second = executor.submit(lookup);
+            while (cache.getCoalesced() == 0)
+                Thread.sleep(1);
+            release.countDown();
+            Assert.assertSame(IDWithIssuer.EMPTY, first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(IDWithIssuer.EMPTY, second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, count.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // failures are not cached
+        CountingQuery retry = new CountingQuery(PIDS);
+        Assert.assertSame(PIDS, cache.get("P1", retry, 60000, 60000, 10));
+        Assert.assertEquals(1, retry.count.get());
+        Assert.assertEquals(1, cache.getCoalesced());
+    }
+}
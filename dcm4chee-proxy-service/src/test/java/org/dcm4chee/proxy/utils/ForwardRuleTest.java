@@ -161,6 +161,10 @@ public class ForwardRuleTest {
         assertRule1(ForwardRuleUtils.filterForwardRulesOnDimseRQ(fwdRules, UID.StudyRootQueryRetrieveInformationModelFIND, Dimse.C_FIND_RQ));
         assertRule2(ForwardRuleUtils.filterForwardRulesOnDimseRQ(fwdRules, UID.CTImageStorage, Dimse.C_STORE_RQ));
         assertRule3(ForwardRuleUtils.filterForwardRulesOnDimseRQ(fwdRules, UID.MRImageStorage, Dimse.C_STORE_RQ));
+
+        assertRule1(ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE, fwdRules, UID.StudyRootQueryRetrieveInformationModelFIND, Dimse.C_FIND_RQ));
+        assertRule2(ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE, fwdRules, UID.CTImageStorage, Dimse.C_STORE_RQ));
+        assertRule3(ForwardRuleUtils.filterForwardRulesOnDimseRQ(proxyAEE, fwdRules, UID.MRImageStorage, Dimse.C_STORE_RQ));
     }
 
 }
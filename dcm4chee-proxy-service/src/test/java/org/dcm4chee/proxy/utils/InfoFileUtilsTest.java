@@ -0,0 +1,173 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class InfoFileUtilsTest {
+
+    private final ProxyAEExtension proxyAEE = new ProxyAEExtension();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("infofile", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private static Properties newProperties() {
+        Properties prop = new Properties();
+        prop.setProperty("source-aet", "STORESCU");
+        prop.setProperty("study-iuid", "1.2.3.4");
+        prop.setProperty("patient-id", "M\u00fcller");
+        return prop;
+    }
+
+    private static void write(File file, byte[] b) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(b);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        File info = new File(dir, "1.info");
+        InfoFileUtils.storeInfoFile(proxyAEE, info, newProperties(), false);
+        DataInputStream in = new DataInputStream(new FileInputStream(info));
+        try {
+            Assert.assertEquals(0, in.readByte());
+            Assert.assertEquals('D', in.readByte());
+            Assert.assertEquals('P', in.readByte());
+            Assert.assertEquals('I', in.readByte());
+            Assert.assertEquals(1, in.readUnsignedByte());
+            Assert.assertEquals(3, in.readUnsignedShort());
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(newProperties(), InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath()));
+        Assert.assertEquals(newProperties(), InfoFileUtils.getFileInfoProperties(proxyAEE, new File(dir, "1.dcm")));
+    }
+
+    @Test
+    public void testLoadLegacyPropertiesFile() throws Exception {
+        File info = new File(dir, "2.info");
+        FileOutputStream out = new FileOutputStream(info);
+        try {
+            newProperties().store(out, null);
+        } finally {
+            out.close();
+        }
+        Assert.assertEquals(newProperties(), InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath()));
+    }
+
+    @Test
+    public void testLoadedPropertiesAreIndependent() throws Exception {
+        File info = new File(dir, "3.info");
+        InfoFileUtils.storeInfoFile(proxyAEE, info, newProperties(), false);
+        Properties prop = InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath());
+        prop.setProperty("study-iuid", "9.9.9");
+        Assert.assertEquals("1.2.3.4",
+                InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath()).getProperty("study-iuid"));
+    }
+
+    @Test
+    public void testChangedFileIsReloaded() throws Exception {
+        File info = new File(dir, "4.info");
+        InfoFileUtils.storeInfoFile(proxyAEE, info, newProperties(), false);
+        InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath());
+
+        // replaced without storeInfoFile, e.g. by another instance
+        write(info, "source-aet=OTHERSCU\n".getBytes("ISO-8859-1"));
+        Properties prop = InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath());
+        Assert.assertEquals(1, prop.size());
+        Assert.assertEquals("OTHERSCU", prop.getProperty("source-aet"));
+    }
+
+    @Test
+    public void testStoreReplacesFile() throws Exception {
+        File info = new File(dir, "7.info");
+        InfoFileUtils.storeInfoFile(proxyAEE, info, newProperties(), false);
+        Properties prop = newProperties();
+        prop.setProperty("source-aet", "OTHERSCU");
+        InfoFileUtils.storeInfoFile(proxyAEE, info, prop, true);
+        Assert.assertEquals(prop, InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath()));
+        // written to a temporary file, which is moved over the info file
+        Assert.assertEquals(1, dir.list().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws Exception {
+        File info = new File(dir, "5.info");
+        write(info, new byte[] { 0, 'D', 'P', 'I', 2, 0, 0 });
+        InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, info.getPath());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingFile() throws Exception {
+        InfoFileUtils.getPropertiesFromInfoFile(proxyAEE, new File(dir, "6.info").getPath());
+    }
+}
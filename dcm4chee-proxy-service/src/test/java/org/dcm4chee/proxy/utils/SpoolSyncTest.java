@@ -0,0 +1,129 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.proxy.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.dcm4chee.proxy.conf.ProxyAEExtension;
+import org.dcm4chee.proxy.conf.SpoolDurability;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Michael Backhaus <michael.backhaus@agfa.com>
+ */
+public class SpoolSyncTest {
+
+    private final ProxyAEExtension proxyAEE = new ProxyAEExtension();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("spoolsync", "");
+        dir.delete();
+        dir.mkdir();
+        proxyAEE.setSpoolDurability(SpoolDurability.ON_RELEASE);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private File newFile(String name) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testCommitWithoutAssociation() throws Exception {
+        File file = newFile("1.dcm");
+        File info = newFile("1.info");
+        SpoolSync.commit(proxyAEE, null, file);
+        Assert.assertEquals(3, file.length());
+        Assert.assertEquals(3, info.length());
+    }
+
+    @Test
+    public void testForwardedFileNotCreatedAgain() throws Exception {
+        File file = new File(dir, "2.dcm");
+        SpoolSync.commit(proxyAEE, null, file);
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(InfoFileUtils.getInfoFile(file).exists());
+    }
+
+    @Test
+    public void testBeforeRenameOfSyncedFile() throws Exception {
+        File file = newFile("3.dcm");
+        SpoolSync.commit(proxyAEE, null, file);
+        file.delete();
+        // nothing left to sync, also not for a file deleted meanwhile
+        SpoolSync.beforeRename(file);
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testPerObject() throws Exception {
+        proxyAEE.setSpoolDurability(SpoolDurability.PER_OBJECT);
+        File file = new File(dir, "4.dcm");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+            SpoolSync.sync(proxyAEE, out);
+        } finally {
+            out.close();
+        }
+        SpoolSync.commit(proxyAEE, null, file);
+        Assert.assertEquals(3, file.length());
+    }
+}